@@ -23,11 +23,13 @@ import edu.umn.cs.spatialHadoop.core.Shape;
  *
  */
 public class TigerShape extends OGCJTSShape {
-  private String originalText;
+  /**The original line as read from the input, kept as bytes to avoid
+   * decoding it into a string*/
+  private Text originalText = new Text();
   
   @Override
   public void fromText(Text text) {
-    originalText = text.toString();
+    originalText.set(text);
     byte[] bytes = text.getBytes();
     int i = 0;
     while (i < text.getLength() && bytes[i] != ',') {
@@ -45,9 +47,8 @@ public class TigerShape extends OGCJTSShape {
   
   @Override
   public void write(DataOutput out) throws IOException {
-    byte[] bytes = originalText.getBytes();
-    out.writeInt(bytes.length);
-    out.write(bytes);
+    out.writeInt(originalText.getLength());
+    out.write(originalText.getBytes(), 0, originalText.getLength());
   }
   
   @Override
@@ -55,14 +56,13 @@ public class TigerShape extends OGCJTSShape {
     int length = in.readInt();
     byte[] bytes = new byte[length];
     in.readFully(bytes);
-    this.originalText = new String(bytes);
-    this.fromText(new Text(originalText));
+    this.fromText(new Text(bytes));
   }
   
   @Override
   public Shape clone() {
     TigerShape c = new TigerShape();
-    c.originalText = this.originalText;
+    c.originalText.set(this.originalText);
     c.geom = this.geom;
     return c;
   }
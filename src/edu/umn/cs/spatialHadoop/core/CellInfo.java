@@ -14,6 +14,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 
@@ -118,9 +119,9 @@ public class CellInfo extends Rectangle {
   }
   
   @Override
-  public void fromText(Text text) {
-    this.cellId = TextSerializerHelper.consumeInt(text, ',');
-    super.fromText(text);
+  public void fromText(TextCursor cursor) {
+    this.cellId = cursor.nextInt(',');
+    super.fromText(cursor);
   }
   
   @Override
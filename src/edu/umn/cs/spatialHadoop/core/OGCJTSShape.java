@@ -26,7 +26,6 @@ import com.vividsolutions.jts.geom.Polygon;
 import com.vividsolutions.jts.io.ParseException;
 import com.vividsolutions.jts.io.WKBReader;
 import com.vividsolutions.jts.io.WKBWriter;
-import com.vividsolutions.jts.io.WKTReader;
 
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
@@ -55,9 +54,7 @@ public class OGCJTSShape implements Shape {
   @SuppressWarnings("unused")
   private static final Log LOG = LogFactory.getLog(OGCJTSShape.class);
   
-  private final WKTReader wktReader = new WKTReader();
   private final WKBWriter wkbWriter = new WKBWriter();
-  private final WKBReader wkbReader = new WKBReader();
   
   /**
    * The underlying geometry
@@ -84,7 +81,7 @@ public class OGCJTSShape implements Shape {
     try {
       byte[] wkb = new byte[in.readInt()];
       in.readFully(wkb);
-      geom = wkbReader.read(wkb);
+      geom = TextSerializerHelper.getWKBReader().read(wkb);
     } catch (ParseException e) {
       e.printStackTrace();
       throw new IOException(e);
@@ -101,12 +98,12 @@ public class OGCJTSShape implements Shape {
     Geometry geom = null;
     try {
       // Parse string as well known text (WKT)
-      geom = wktReader.read(str);
+      geom = TextSerializerHelper.getWKTReader().read(str);
     } catch (ParseException e) {
       try {
         // Error parsing from WKT, try hex string instead
         byte[] binary = WKBReader.hexToBytes(str);
-        geom = wkbReader.read(binary);
+        geom = TextSerializerHelper.getWKBReader().read(binary);
       } catch (RuntimeException e1) {
         // Cannot parse text. Just return null
       }
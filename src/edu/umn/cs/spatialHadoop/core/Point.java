@@ -15,6 +15,7 @@ import java.io.IOException;
 
 import org.apache.hadoop.io.Text;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -133,8 +134,19 @@ public class Point implements Shape, Comparable<Point> {
   
   @Override
   public void fromText(Text text) {
-    x = TextSerializerHelper.consumeDouble(text, ',');
-    y = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = new TextCursor(text);
+    this.fromText(cursor);
+    cursor.consume();
+  }
+
+  /**
+   * Parses the fields of this point from the given cursor without consuming
+   * them from the underlying text.
+   * @param cursor
+   */
+  public void fromText(TextCursor cursor) {
+    x = cursor.nextDouble(',');
+    y = cursor.nextDouble('\0');
   }
 
   @Override
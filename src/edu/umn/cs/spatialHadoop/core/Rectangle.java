@@ -16,6 +16,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.WritableComparable;
 
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 /**
@@ -254,10 +255,22 @@ public class Rectangle implements Shape, WritableComparable<Rectangle> {
   
   @Override
   public void fromText(Text text) {
-    x1 = TextSerializerHelper.consumeDouble(text, ',');
-    y1 = TextSerializerHelper.consumeDouble(text, ',');
-    x2 = TextSerializerHelper.consumeDouble(text, ',');
-    y2 = TextSerializerHelper.consumeDouble(text, '\0');
+    TextCursor cursor = new TextCursor(text);
+    this.fromText(cursor);
+    cursor.consume();
+  }
+
+  /**
+   * Parses the fields of this rectangle from the given cursor without
+   * consuming them from the underlying text. Subclasses that add more fields
+   * should override this method rather than {@link #fromText(Text)}.
+   * @param cursor
+   */
+  public void fromText(TextCursor cursor) {
+    x1 = cursor.nextDouble(',');
+    y1 = cursor.nextDouble(',');
+    x2 = cursor.nextDouble(',');
+    y2 = cursor.nextDouble('\0');
   }
 
   @Override
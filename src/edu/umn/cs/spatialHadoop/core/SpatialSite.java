@@ -18,6 +18,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -86,6 +88,14 @@ public class SpatialSite {
   public static final String RTREE_BUILD_MODE =
       "spatialHadoop.storage.RTreeBuildMode";
   
+  /**
+   * The layout of records in the leaves of the RTree. Either "text" where
+   * records are stored as text lines or "binary" where the MBRs of records
+   * are stored as packed doubles before the records.
+   */
+  public static final String RTREE_LEAF_FORMAT =
+      "spatialHadoop.storage.RTreeLeafFormat";
+  
   /**Configuration line name for replication overhead*/
   public static final String INDEXING_OVERHEAD =
       "spatialHadoop.storage.IndexingOverhead";
@@ -96,12 +106,31 @@ public class SpatialSite {
   /**Ratio of the sample to read from files to build a global R-tree*/
   public static final String SAMPLE_SIZE = "spatialHadoop.storage.SampleSize";
   
+  /**Maximum number of global indexes cached by {@link #getGlobalIndex(FileSystem, Path)}*/
+  public static final String GLOBAL_INDEX_CACHE_SIZE =
+      "spatialHadoop.storage.GlobalIndexCacheSize";
+  
+  /**
+   * Global indexes that were recently read from master files. The key is the
+   * path of the master file along with its modification time and length so
+   * that an index is read again if its master file is overwritten.
+   * The map is kept in access order to evict the least recently used index.
+   */
+  private static final LinkedHashMap<String, GlobalIndex<Partition>> globalIndexCache =
+      new LinkedHashMap<String, GlobalIndex<Partition>>(16, 0.75f, true);
+  
   /**
    * A marker put in the beginning of each block to indicate that this block
    * is stored as an RTree. It might be better to store this in the BlockInfo
    * in a field (e.g. localIndexType).
    */
   public static final long RTreeFileMarker = -0x00012345678910L;
+
+  /**
+   * A marker put in the beginning of each block to indicate that this block
+   * is stored as an RTree with binary leaves.
+   */
+  public static final long BinaryRTreeFileMarker = -0x00012345678920L;
   
   public static final String OUTPUT_CELLS = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.CellsInfo";
   public static final String OVERWRITE = "edu.umn.cs.spatial.mapReduce.GridOutputFormat.Overwrite";
@@ -125,6 +154,8 @@ public class SpatialSite {
 
   public static byte[] RTreeFileMarkerB;
   
+  public static byte[] BinaryRTreeFileMarkerB;
+  
   static {
     // Load configuration from files
     Configuration.addDefaultResource("spatial-default.xml");
@@ -137,6 +168,13 @@ public class SpatialSite {
       dout.close();
       bout.close();
       RTreeFileMarkerB = bout.toByteArray();
+      
+      bout = new ByteArrayOutputStream();
+      dout = new DataOutputStream(bout);
+      dout.writeLong(BinaryRTreeFileMarker);
+      dout.close();
+      bout.close();
+      BinaryRTreeFileMarkerB = bout.toByteArray();
     } catch (IOException e) {
       e.printStackTrace();
     }
@@ -274,6 +312,9 @@ public class SpatialSite {
    * the index command. If the file is not indexed, it returns null.
    * The return value is of type {@link GlobalIndex} where the generic
    * parameter is specified as {@link Partition}.
+   * Global indexes read from master files are cached in the same process and
+   * each caller gets its own copy of the cached partitions so that it can
+   * freely modify them.
    * @param fs
    * @param dir
    * @return
@@ -301,24 +342,25 @@ public class SpatialSite {
         }
       }
       if (masterFile != null) {
-        ShapeIterRecordReader reader = new ShapeIterRecordReader(
-            fs.open(masterFile.getPath()), 0, masterFile.getLen());
-        Rectangle dummy = reader.createKey();
-        reader.setShape(new Partition());
-        ShapeIterator values = reader.createValue();
-        ArrayList<Partition> partitions = new ArrayList<Partition>();
-        while (reader.next(dummy, values)) {
-          for (Shape value : values) {
-            partitions.add((Partition) value.clone());
+        String cacheKey = masterFile.getPath().toString() + "@"
+            + masterFile.getModificationTime() + ":" + masterFile.getLen();
+        synchronized (globalIndexCache) {
+          GlobalIndex<Partition> globalIndex = globalIndexCache.get(cacheKey);
+          if (globalIndex != null)
+            return globalIndex.clone();
+        }
+        GlobalIndex<Partition> globalIndex = readMasterFile(fs, masterFile);
+        int cacheSize = fs.getConf() == null ? 100 :
+          fs.getConf().getInt(GLOBAL_INDEX_CACHE_SIZE, 100);
+        synchronized (globalIndexCache) {
+          globalIndexCache.put(cacheKey, globalIndex);
+          Iterator<String> lru = globalIndexCache.keySet().iterator();
+          while (globalIndexCache.size() > cacheSize) {
+            lru.next();
+            lru.remove();
           }
         }
-        GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
-        globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
-        String extension = masterFile.getPath().getName();
-        extension = extension.substring(extension.lastIndexOf('.') + 1);
-        globalIndex.setCompact(GridRecordWriter.PackedIndexes.contains(extension));
-        globalIndex.setReplicated(GridRecordWriter.ReplicatedIndexes.contains(extension));
-        return globalIndex;
+        return globalIndex.clone();
       } else if (nasaFiles > allFiles.length / 2) {
         // A folder that contains HDF files
         // Create a global index on the fly for these files based on their names
@@ -365,12 +407,45 @@ public class SpatialSite {
     }
   }
 
+  /**
+   * Reads all partitions from a master file into a global index
+   * @param fs
+   * @param masterFile
+   * @return
+   * @throws IOException
+   */
+  private static GlobalIndex<Partition> readMasterFile(FileSystem fs,
+      FileStatus masterFile) throws IOException {
+    ShapeIterRecordReader reader = new ShapeIterRecordReader(
+        fs.open(masterFile.getPath()), 0, masterFile.getLen());
+    ArrayList<Partition> partitions = new ArrayList<Partition>();
+    try {
+      Rectangle dummy = reader.createKey();
+      reader.setShape(new Partition());
+      ShapeIterator values = reader.createValue();
+      while (reader.next(dummy, values)) {
+        for (Shape value : values) {
+          partitions.add((Partition) value.clone());
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    GlobalIndex<Partition> globalIndex = new GlobalIndex<Partition>();
+    globalIndex.bulkLoad(partitions.toArray(new Partition[partitions.size()]));
+    String extension = masterFile.getPath().getName();
+    extension = extension.substring(extension.lastIndexOf('.') + 1);
+    globalIndex.setCompact(GridRecordWriter.PackedIndexes.contains(extension));
+    globalIndex.setReplicated(GridRecordWriter.ReplicatedIndexes.contains(extension));
+    return globalIndex;
+  }
+
   /**
    * Checks whether a file is indexed using an R-tree or not. This allows
    * an operation to use the R-tree to speedup the processing if it exists.
    * This function opens the specified file and reads the first eight bytes
-   * which include the R-tree signature. If the signatures matches with the
-   * R-tree signature, true is returned. Otherwise, false is returned.
+   * which include the R-tree signature. If the signatures matches with either
+   * the text or the binary R-tree signature, true is returned. Otherwise, false is returned.
    * If the parameter is a path to a directory, only the first data file in that
    * directory is tested.
    * @param fs
@@ -408,7 +483,8 @@ public class SpatialSite {
     if (decompressor != null) {
       CodecPool.returnDecompressor(decompressor);
     }
-    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB);
+    return Arrays.equals(signature, SpatialSite.RTreeFileMarkerB) ||
+        Arrays.equals(signature, SpatialSite.BinaryRTreeFileMarkerB);
   }
   
   /**
@@ -578,7 +654,8 @@ public class SpatialSite {
     RTree<S> rtree = new RTree<S>();
     rtree.setStockObject(shape);
     FSDataInputStream input = fs.open(file);
-    input.skip(8); // Skip the 8 bytes that contains the signature
+    // The 8 bytes signature tells the layout of the leaves
+    rtree.setBinaryLeaves(input.readLong() == BinaryRTreeFileMarker);
     rtree.readFields(input);
     return rtree;
   }
@@ -20,12 +20,9 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
-import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
-import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
-import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
 
@@ -40,14 +37,10 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.delaunay.DelaunayTriangulationOutputFormat.TriangulationRecordWriter;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Computes the Delaunay triangulation (DT) for a set of points.
@@ -242,69 +235,8 @@ public class DelaunayTriangulation {
       final OperationsParams params) throws IOException, InterruptedException {
     if (params.getBoolean("mem", false))
       MemoryReporter.startReporting();
-    // 1- Split the input path/file to get splits that can be processed
-    // independently
-    final SpatialInputFormat3<Rectangle, Point> inputFormat =
-        new SpatialInputFormat3<Rectangle, Point>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inPaths);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
-    final Point[][] allLists = new Point[splits.size()][];
-    
-    // 2- Read all input points in memory
-    LOG.info("Reading points from "+splits.size()+" splits");
-    List<Integer> numsPoints = Parallel.forEach(splits.size(), new RunnableRange<Integer>() {
-      @Override
-      public Integer run(int i1, int i2) {
-        try {
-          int numPoints = 0;
-          for (int i = i1; i < i2; i++) {
-            List<Point> points = new ArrayList<Point>();
-            FileSplit fsplit = (FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<Point>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            while (reader.nextKeyValue()) {
-              Iterable<Point> pts = reader.getCurrentValue();
-              for (Point p : pts) {
-                points.add(p.clone());
-              }
-            }
-            reader.close();
-            numPoints += points.size();
-            allLists[i] = points.toArray(new Point[points.size()]);
-          }
-          return numPoints;
-        } catch (IOException e) {
-          e.printStackTrace();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
-        }
-        return null;
-      }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
-    
-    int totalNumPoints = 0;
-    for (int numPoints : numsPoints)
-      totalNumPoints += numPoints;
-    
-    LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
-    int pointer = 0;
-    
-    for (int iList = 0; iList < allLists.length; iList++) {
-      System.arraycopy(allLists[iList], 0, allPoints, pointer, allLists[iList].length);
-      pointer += allLists[iList].length;
-      allLists[iList] = null; // To let the GC collect it
-    }
+    // 1- Read all input points in memory
+    Point[] allPoints = LocalSplitRunner.readPoints(inPaths, params);
     
     if (params.getBoolean("dedup", true)) {
       float threshold = params.getFloat("threshold", 1E-5f);
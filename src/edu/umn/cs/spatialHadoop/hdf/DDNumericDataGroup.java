@@ -69,6 +69,27 @@ public class DDNumericDataGroup extends DataDescriptor {
       }
   }
   
+  /**
+   * Starts reading the underlying data into the given array in the
+   * background without doing any reformatting.
+   * @param buf - the array to read the data into
+   * @param fillValue - the bytes of the value to write where the data is
+   *   missing in the file, or null to leave these parts of the array as is
+   * @param numThreads - maximum number of threads that decompress the data
+   * @return a reader that tells which part of the array is ready, or null
+   *   if this group does not contain data
+   * @throws IOException
+   */
+  public ParallelDataReader getAsByteArrayInParallel(byte[] buf,
+      byte[] fillValue, int numThreads) throws IOException {
+    lazyLoad();
+    for (int i = 0; i < members.length; i++)
+      if (members[i].tagID == HDFConstants.DFTAG_SD)
+        return hdfFile.retrieveElementByID(members[i])
+            .readDataInParallel(buf, fillValue, numThreads);
+    return null;
+  }
+  
   /**
    * Returns the type of the underlying data
    * @return
@@ -406,6 +406,91 @@ public abstract class DataDescriptor {
     return totalBytesRead;
   }
   
+  /**
+   * Reads the data of this descriptor from the file and returns a stream that
+   * decodes it in memory, i.e., the returned stream does not access the file.
+   * Compressed data is returned as read from the file and it is decompressed
+   * while the stream is read.
+   * @return
+   * @throws IOException
+   */
+  InputStream readRawData() throws IOException {
+    int dataLength = getLength();
+    hdfFile.inStream.seek(offset);
+    if (extended && hdfFile.inStream.readUnsignedShort() == HDFConstants.SPECIAL_COMP) {
+      /*int compressionVersion = */hdfFile.inStream.readUnsignedShort();
+      /*int extendedLength = */hdfFile.inStream.readInt();
+      int linkedRefNo = hdfFile.inStream.readUnsignedShort();
+      /*int modelType = */hdfFile.inStream.readUnsignedShort();
+      int compressionType = hdfFile.inStream.readUnsignedShort();
+      if (compressionType != HDFConstants.COMP_CODE_DEFLATE)
+        throw new RuntimeException("Unsupported compression "+compressionType);
+      int deflateLevel = hdfFile.inStream.readUnsignedShort();
+      DDID linkedBlockID = new DDID(HDFConstants.DFTAG_COMPRESSED, linkedRefNo);
+      DDCompressedBlock dataBlock =
+          (DDCompressedBlock) hdfFile.retrieveElementByID(linkedBlockID);
+      return dataBlock.decompressDeflate(deflateLevel);
+    }
+    byte[] data = new byte[dataLength];
+    readData(data, 0, dataLength);
+    return new ByteArrayInputStream(data);
+  }
+
+  /**
+   * Splits the data of this descriptor into pieces that are decoded
+   * independently and adds them to the given reader in order. Chunked data
+   * is split into its chunks while any other data makes one piece.
+   * This is the only method that accesses the file while reading in parallel.
+   * @param reader
+   * @throws IOException
+   */
+  void readPieces(ParallelDataReader reader) throws IOException {
+    int dataLength = getLength();
+    hdfFile.inStream.seek(offset);
+    if (!extended || hdfFile.inStream.readUnsignedShort() != HDFConstants.SPECIAL_CHUNKED) {
+      reader.addPiece(0, dataLength, readRawData());
+      return;
+    }
+    /*int sp_tag_head_len = */hdfFile.inStream.readInt();
+    /*int version = */hdfFile.inStream.readUnsignedByte();
+    /*int flag = */hdfFile.inStream.readInt();
+    /*int elem_total_length = */hdfFile.inStream.readInt();
+    // Logical size of data chunks
+    int chunk_size = hdfFile.inStream.readInt();
+    // Number type size. i.e., the size of the data type
+    int nt_size = hdfFile.inStream.readInt();
+    // ID of the chunk table
+    int tag = hdfFile.inStream.readUnsignedShort();
+    int ref = hdfFile.inStream.readUnsignedShort();
+    DDID chunkTableID = new DDID(tag, ref);
+
+    DDVDataHeader chunkTable = (DDVDataHeader) hdfFile.retrieveElementByID(chunkTableID);
+    int numChunks = chunkTable.getEntryCount();
+    int chunkSizeInBytes = chunk_size * nt_size;
+    for (int i_chunk = 0; i_chunk < numChunks; i_chunk++) {
+      Object[] chunkInformation = (Object[]) chunkTable.getEntryAt(i_chunk);
+      DDID chunkedID = new DDID((Integer)chunkInformation[1], (Integer)chunkInformation[2]);
+      DDChunkData chunkObject = (DDChunkData) hdfFile.retrieveElementByID(chunkedID);
+      // A missing chunk is added without data to be filled with fill values
+      reader.addPiece(i_chunk * chunkSizeInBytes, chunkSizeInBytes,
+          chunkObject == null ? null : chunkObject.readRawData());
+    }
+  }
+
+  /**
+   * Starts reading the data of this descriptor into the given array in the
+   * background where chunks are decompressed in parallel.
+   * @param buf - the array to read the data into
+   * @param fillValue - the bytes of the value to write where the data is
+   *   missing in the file, or null to leave these parts of the array as is
+   * @param numThreads - maximum number of threads that decompress the data
+   * @return a reader that tells which part of the array is ready
+   */
+  public ParallelDataReader readDataInParallel(byte[] buf, byte[] fillValue,
+      int numThreads) {
+    return new ParallelDataReader(this, buf, fillValue, numThreads);
+  }
+
   protected int readData(byte[] buf, int bufOff, int bufLen) throws IOException {
     hdfFile.inStream.seek(offset);
     if (!extended) {
@@ -0,0 +1,256 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.hdf;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads the data of a data descriptor into a byte array in the background.
+ * The data is split into pieces, e.g., the chunks of chunked data, that are
+ * read from the file sequentially by one thread and decoded, e.g.,
+ * decompressed, in parallel by a bounded pool of threads. A consumer calls
+ * {@link #waitFor(int)} to wait until a prefix of the array is ready, which
+ * allows it to process the data while the rest of it is still being decoded.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ParallelDataReader {
+
+  /**Maximum number of bytes decoded before the progress is reported*/
+  private static final int SegmentSize = 64 * 1024;
+
+  /**A part of the data that is decoded independently*/
+  private static class Piece {
+    /**Offset of this piece in the array*/
+    final int offset;
+    /**Number of bytes in this piece*/
+    final int length;
+    /**Number of bytes already decoded at the beginning of this piece*/
+    int decodedLength;
+
+    Piece(int offset, int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+  }
+
+  /**The array that holds the data*/
+  private final byte[] buf;
+
+  /**The bytes of the fill value used for data that is missing in the file*/
+  private final byte[] fillValue;
+
+  /**All pieces added so far ordered by their offsets*/
+  private final List<Piece> pieces = new ArrayList<Piece>();
+
+  /**End offset of the last piece added*/
+  private int piecesEnd;
+
+  /**Index of the first piece that is not completely decoded*/
+  private int firstIncompletePiece;
+
+  /**Number of bytes at the beginning of the array that are ready*/
+  private int readyLength;
+
+  /**The first error that happened while reading or decoding the data*/
+  private Throwable error;
+
+  /**Set when the consumer is no longer interested in the data*/
+  private volatile boolean closed;
+
+  /**Threads that decode the pieces*/
+  private final ThreadPoolExecutor decoders;
+
+  /**The thread that reads the pieces from the file*/
+  private final Thread readerThread;
+
+  /**
+   * Starts reading the data of the given data descriptor in the background.
+   * @param source - the data descriptor to read
+   * @param buf - the array to read the data into
+   * @param fillValue - the bytes of the value to write in the parts of the
+   *  array that do not have data in the file, or null to leave them as is
+   * @param numThreads - maximum number of threads that decode the data
+   */
+  ParallelDataReader(final DataDescriptor source, byte[] buf, byte[] fillValue,
+      int numThreads) {
+    this.buf = buf;
+    this.fillValue = fillValue;
+    numThreads = Math.max(1, numThreads);
+    // Bound the number of pieces waiting to be decoded to bound the memory.
+    // If all threads are busy, the reader thread decodes the next piece itself
+    this.decoders = new ThreadPoolExecutor(numThreads, numThreads, 0L,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(numThreads),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    this.readerThread = new Thread("HDF reader") {
+      @Override
+      public void run() {
+        try {
+          source.readPieces(ParallelDataReader.this);
+          // Cover the remaining part of the array, if any, with fill values
+          addPiece(piecesEnd, ParallelDataReader.this.buf.length - piecesEnd, null);
+        } catch (Throwable e) {
+          setError(e);
+        } finally {
+          // Let the decoders finish the remaining pieces and terminate
+          decoders.shutdown();
+        }
+      }
+    };
+    this.readerThread.setDaemon(true);
+    this.readerThread.start();
+  }
+
+  /**
+   * Adds a piece of the data to be decoded by one of the decoder threads.
+   * Called by the reader thread in the order of the pieces in the array.
+   * @param offset - the offset of the piece in the array
+   * @param length - the number of bytes in the piece
+   * @param data - the stream that decodes the data of the piece without
+   *  accessing the file, or null if the piece is missing in the file
+   * @throws IOException - if the reader has been closed
+   */
+  void addPiece(int offset, int length, final InputStream data) throws IOException {
+    if (closed)
+      throw new InterruptedIOException("Reader closed");
+    if (offset > piecesEnd)
+      addPiece(piecesEnd, offset - piecesEnd, null);
+    length = Math.min(length, buf.length - offset);
+    if (length <= 0)
+      return;
+    final Piece piece = new Piece(offset, length);
+    synchronized (this) {
+      pieces.add(piece);
+      piecesEnd = offset + length;
+    }
+    decoders.execute(new Runnable() {
+      @Override
+      public void run() {
+        decode(piece, data);
+      }
+    });
+  }
+
+  /**
+   * Decodes one piece into the array and reports the progress as it goes
+   * @param piece
+   * @param data
+   */
+  private void decode(Piece piece, InputStream data) {
+    try {
+      int decodedLength = 0;
+      if (data != null) {
+        int numBytesRead;
+        while (!closed && decodedLength < piece.length &&
+            (numBytesRead = data.read(buf, piece.offset + decodedLength,
+                Math.min(SegmentSize, piece.length - decodedLength))) > 0) {
+          decodedLength += numBytesRead;
+          reportProgress(piece, decodedLength);
+        }
+      }
+      if (fillValue != null) {
+        for (int i = piece.offset + decodedLength; i < piece.offset + piece.length; i++)
+          buf[i] = fillValue[i % fillValue.length];
+      }
+      reportProgress(piece, piece.length);
+    } catch (Throwable e) {
+      setError(e);
+    } finally {
+      // Release the stream and its inflater even if decoding failed
+      if (data != null) {
+        try {
+          data.close();
+        } catch (IOException e) {
+          setError(e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Updates the number of decoded bytes in the given piece and wakes up the
+   * consumer if the ready prefix of the array has grown.
+   * @param piece
+   * @param decodedLength
+   */
+  private synchronized void reportProgress(Piece piece, int decodedLength) {
+    piece.decodedLength = decodedLength;
+    while (firstIncompletePiece < pieces.size() &&
+        pieces.get(firstIncompletePiece).decodedLength == pieces.get(firstIncompletePiece).length)
+      firstIncompletePiece++;
+    int newReadyLength;
+    if (firstIncompletePiece < pieces.size()) {
+      Piece firstIncomplete = pieces.get(firstIncompletePiece);
+      newReadyLength = firstIncomplete.offset + firstIncomplete.decodedLength;
+    } else {
+      newReadyLength = piecesEnd;
+    }
+    if (newReadyLength > readyLength) {
+      readyLength = newReadyLength;
+      this.notifyAll();
+    }
+  }
+
+  private synchronized void setError(Throwable e) {
+    if (error == null)
+      error = e;
+    this.notifyAll();
+  }
+
+  /**
+   * Waits until at least the given number of bytes at the beginning of the
+   * array are ready.
+   * @param length - the number of bytes to wait for
+   * @return the number of bytes that are ready, at least the given length
+   * @throws IOException - if an error happened while reading the data
+   */
+  public synchronized int waitFor(int length) throws IOException {
+    length = Math.min(length, buf.length);
+    try {
+      while (readyLength < length && error == null)
+        this.wait();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while reading HDF data");
+    }
+    if (error != null)
+      throw new IOException("Error reading HDF data", error);
+    return readyLength;
+  }
+
+  /**
+   * Waits until all the data is ready
+   * @throws IOException
+   */
+  public void waitForAll() throws IOException {
+    waitFor(buf.length);
+  }
+
+  /**
+   * Stops reading the data and waits until the file is no longer accessed
+   * by the background threads so that it can be closed safely.
+   * @throws IOException
+   */
+  public void close() throws IOException {
+    closed = true;
+    decoders.shutdownNow();
+    try {
+      readerThread.join();
+      decoders.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while closing HDF reader");
+    }
+  }
+}
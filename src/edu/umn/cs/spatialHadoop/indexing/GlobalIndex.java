@@ -12,7 +12,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Iterator;
-import java.util.Vector;
+import java.util.PriorityQueue;
 
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.util.IndexedSortable;
@@ -23,16 +23,22 @@ import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
-import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 
 /**
- * A very simple spatial index that provides some spatial operations based
- * on an array storage.
+ * A spatial index over a small number of shapes (typically, partitions of a
+ * file) that is kept in memory. Shapes are kept in an array in the same order
+ * they were loaded. On top of them, an R-tree is packed using the
+ * Sort-Tile-Recursive (STR) algorithm to speed up range, kNN and spatial join
+ * queries when the number of shapes is large.
  * @author Ahmed Eldawy
  *
  * @param <S>
  */
-public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
+public class GlobalIndex<S extends Shape> implements Writable, Iterable<S>, Cloneable {
+  
+  /**Maximum number of children in each node of the in-memory R-tree*/
+  private static final int NodeCapacity = 16;
   
   /**A stock instance of S used to deserialize objects from disk*/
   protected S stockShape;
@@ -46,6 +52,28 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
   /**Whether objects are allowed to replicated in different partitions or not*/
   private boolean replicated;
   
+  /**Indexes of shapes in the order they appear in the leaves of the R-tree*/
+  private int[] entries;
+  
+  /**MBRs of shapes in the same order of {@link #entries}*/
+  private double[] entryX1, entryY1, entryX2, entryY2;
+  
+  /**
+   * MBRs of the nodes of the R-tree. Nodes are stored level by level
+   * starting at the lowest level and the root is the last node.
+   */
+  private double[] nodeX1, nodeY1, nodeX2, nodeY2;
+  
+  /**
+   * Range of children of each node [first, last). For the lowest level of
+   * nodes, the range points to {@link #entries}, otherwise, it points to
+   * other nodes.
+   */
+  private int[] nodeFirst, nodeLast;
+  
+  /**Number of nodes in the lowest level of the tree*/
+  private int numLeafNodes;
+  
   public GlobalIndex() {
   }
   
@@ -57,6 +85,26 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     for (int i = 0; i < this.shapes.length; i++) {
       this.shapes[i] = (S) this.shapes[i].clone();
     }
+    buildTree();
+  }
+
+  /**
+   * Returns a copy of this index with its own copy of each shape. The
+   * arrays of the packed R-tree are never modified after they are built, so
+   * they are shared with the copy.
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public GlobalIndex<S> clone() {
+    try {
+      GlobalIndex<S> copy = (GlobalIndex<S>) super.clone();
+      copy.shapes = this.shapes.clone();
+      for (int i = 0; i < copy.shapes.length; i++)
+        copy.shapes[i] = (S) copy.shapes[i].clone();
+      return copy;
+    } catch (CloneNotSupportedException e) {
+      throw new RuntimeException(e);
+    }
   }
 
   @Override
@@ -76,25 +124,282 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
       this.shapes[i] = (S) stockShape.clone();
       this.shapes[i].readFields(in);
     }
+    buildTree();
+  }
+  
+  /**
+   * Sorts items [0, count) in the STR order using their centers and returns
+   * the new order. Items are first sorted by x and split into vertical
+   * slices, then each slice is sorted by y so that each run of
+   * {@link #NodeCapacity} items can be packed in one node.
+   * @param cx - x coordinate of the center of each item
+   * @param cy - y coordinate of the center of each item
+   * @param count - number of items
+   * @return
+   */
+  private static int[] strOrder(double[] cx, double[] cy, int count) {
+    final int[] order = new int[count];
+    for (int i = 0; i < count; i++)
+      order[i] = i;
+    if (count <= 1)
+      return order;
+    final double[][] key = {cx};
+    IndexedSortable sortable = new IndexedSortable() {
+      @Override
+      public int compare(int i, int j) {
+        return Double.compare(key[0][order[i]], key[0][order[j]]);
+      }
+
+      @Override
+      public void swap(int i, int j) {
+        int t = order[i];
+        order[i] = order[j];
+        order[j] = t;
+      }
+    };
+    IndexedSorter sorter = new QuickSort();
+    sorter.sort(sortable, 0, count);
+    int numNodes = (count + NodeCapacity - 1) / NodeCapacity;
+    int numSlices = (int) Math.ceil(Math.sqrt(numNodes));
+    int sliceSize = numSlices * NodeCapacity;
+    key[0] = cy;
+    for (int sliceStart = 0; sliceStart < count - 1; sliceStart += sliceSize)
+      sorter.sort(sortable, sliceStart, Math.min(count, sliceStart + sliceSize));
+    return order;
+  }
+  
+  /**
+   * Builds the in-memory R-tree over all shapes using the STR bulk loading
+   * algorithm. Each level is sorted in the STR order and packed into the
+   * level above it until only one node remains.
+   */
+  private void buildTree() {
+    int n = shapes.length;
+    entryX1 = new double[n]; entryY1 = new double[n];
+    entryX2 = new double[n]; entryY2 = new double[n];
+    double[] cx = new double[n], cy = new double[n];
+    for (int i = 0; i < n; i++) {
+      Rectangle mbr = shapes[i].getMBR();
+      if (mbr == null) {
+        // An empty rectangle that does not overlap anything
+        cx[i] = cy[i] = 0;
+        entryX1[i] = entryY1[i] = Double.POSITIVE_INFINITY;
+        entryX2[i] = entryY2[i] = Double.NEGATIVE_INFINITY;
+      } else {
+        entryX1[i] = mbr.x1; entryY1[i] = mbr.y1;
+        entryX2[i] = mbr.x2; entryY2[i] = mbr.y2;
+        cx[i] = (mbr.x1 + mbr.x2) / 2;
+        cy[i] = (mbr.y1 + mbr.y2) / 2;
+      }
+    }
+    entries = strOrder(cx, cy, n);
+    entryX1 = permute(entryX1, entries);
+    entryY1 = permute(entryY1, entries);
+    entryX2 = permute(entryX2, entries);
+    entryY2 = permute(entryY2, entries);
+    
+    // Count the nodes in all levels
+    int nodeCount = 0;
+    int levelSize = n;
+    do {
+      levelSize = (levelSize + NodeCapacity - 1) / NodeCapacity;
+      nodeCount += levelSize;
+    } while (levelSize > 1);
+    nodeX1 = new double[nodeCount]; nodeY1 = new double[nodeCount];
+    nodeX2 = new double[nodeCount]; nodeY2 = new double[nodeCount];
+    nodeFirst = new int[nodeCount]; nodeLast = new int[nodeCount];
+    
+    // Pack the entries into the lowest level of nodes
+    numLeafNodes = (n + NodeCapacity - 1) / NodeCapacity;
+    for (int iNode = 0; iNode < numLeafNodes; iNode++) {
+      int first = iNode * NodeCapacity;
+      int last = Math.min(n, first + NodeCapacity);
+      packNode(iNode, first, last, entryX1, entryY1, entryX2, entryY2);
+    }
+    
+    // Pack each level into the one above it
+    int levelStart = 0, levelEnd = numLeafNodes;
+    while (levelEnd - levelStart > 1) {
+      int count = levelEnd - levelStart;
+      for (int i = 0; i < count; i++) {
+        cx[i] = (nodeX1[levelStart + i] + nodeX2[levelStart + i]) / 2;
+        cy[i] = (nodeY1[levelStart + i] + nodeY2[levelStart + i]) / 2;
+      }
+      // Reorder the nodes in this level in the STR order
+      int[] order = strOrder(cx, cy, count);
+      for (int i = 0; i < count; i++)
+        order[i] += levelStart;
+      permuteRange(nodeX1, order, levelStart);
+      permuteRange(nodeY1, order, levelStart);
+      permuteRange(nodeX2, order, levelStart);
+      permuteRange(nodeY2, order, levelStart);
+      permuteRange(nodeFirst, order, levelStart);
+      permuteRange(nodeLast, order, levelStart);
+      int numParents = (count + NodeCapacity - 1) / NodeCapacity;
+      for (int iParent = 0; iParent < numParents; iParent++) {
+        int first = levelStart + iParent * NodeCapacity;
+        int last = Math.min(levelEnd, first + NodeCapacity);
+        packNode(levelEnd + iParent, first, last, nodeX1, nodeY1, nodeX2, nodeY2);
+      }
+      levelStart = levelEnd;
+      levelEnd += numParents;
+    }
+  }
+  
+  /**
+   * Sets the children of a node and computes its MBR as the union of the
+   * MBRs of its children.
+   */
+  private void packNode(int iNode, int first, int last, double[] x1s,
+      double[] y1s, double[] x2s, double[] y2s) {
+    nodeFirst[iNode] = first;
+    nodeLast[iNode] = last;
+    double x1 = Double.POSITIVE_INFINITY, y1 = Double.POSITIVE_INFINITY;
+    double x2 = Double.NEGATIVE_INFINITY, y2 = Double.NEGATIVE_INFINITY;
+    for (int i = first; i < last; i++) {
+      x1 = Math.min(x1, x1s[i]); y1 = Math.min(y1, y1s[i]);
+      x2 = Math.max(x2, x2s[i]); y2 = Math.max(y2, y2s[i]);
+    }
+    nodeX1[iNode] = x1; nodeY1[iNode] = y1;
+    nodeX2[iNode] = x2; nodeY2[iNode] = y2;
+  }
+  
+  private static double[] permute(double[] values, int[] order) {
+    double[] permuted = new double[order.length];
+    for (int i = 0; i < order.length; i++)
+      permuted[i] = values[order[i]];
+    return permuted;
+  }
+  
+  /**
+   * Reorders the range of the array that starts at the given offset so that
+   * values[offset + i] becomes values[order[i]].
+   */
+  private static void permuteRange(double[] values, int[] order, int offset) {
+    double[] temp = new double[order.length];
+    for (int i = 0; i < order.length; i++)
+      temp[i] = values[order[i]];
+    System.arraycopy(temp, 0, values, offset, temp.length);
+  }
+  
+  private static void permuteRange(int[] values, int[] order, int offset) {
+    int[] temp = new int[order.length];
+    for (int i = 0; i < order.length; i++)
+      temp[i] = values[order[i]];
+    System.arraycopy(temp, 0, values, offset, temp.length);
+  }
+  
+  /**Whether a node overlaps a rectangle including touching edges*/
+  private boolean isNodeOverlapping(int iNode, Rectangle r) {
+    return nodeX1[iNode] <= r.x2 && r.x1 <= nodeX2[iNode] &&
+        nodeY1[iNode] <= r.y2 && r.y1 <= nodeY2[iNode];
+  }
+  
+  private boolean isEntryOverlapping(int iEntry, Rectangle r) {
+    return entryX1[iEntry] <= r.x2 && r.x1 <= entryX2[iEntry] &&
+        entryY1[iEntry] <= r.y2 && r.y1 <= entryY2[iEntry];
   }
   
   public int rangeQuery(Shape queryRange, ResultCollector<S> output) {
     int result_count = 0;
-    for (S shape : shapes) {
-      if (shape.isIntersected(queryRange)) {
-        result_count++;
-        if (output != null) {
-          output.collect(shape);
+    Rectangle queryMBR = queryRange.getMBR();
+    if (queryMBR == null) {
+      // Cannot use the tree, test all shapes
+      for (S shape : shapes) {
+        if (shape.isIntersected(queryRange)) {
+          result_count++;
+          if (output != null)
+            output.collect(shape);
+        }
+      }
+      return result_count;
+    }
+    if (shapes.length == 0)
+      return 0;
+    IntArray toBeSearched = new IntArray();
+    toBeSearched.add(nodeFirst.length - 1); // Start from the root
+    while (!toBeSearched.isEmpty()) {
+      int iNode = toBeSearched.pop();
+      if (!isNodeOverlapping(iNode, queryMBR))
+        continue;
+      if (iNode < numLeafNodes) {
+        for (int iEntry = nodeFirst[iNode]; iEntry < nodeLast[iNode]; iEntry++) {
+          S shape = shapes[entries[iEntry]];
+          if (isEntryOverlapping(iEntry, queryMBR) && shape.isIntersected(queryRange)) {
+            result_count++;
+            if (output != null)
+              output.collect(shape);
+          }
         }
+      } else {
+        for (int iChild = nodeFirst[iNode]; iChild < nodeLast[iNode]; iChild++)
+          toBeSearched.add(iChild);
       }
     }
     return result_count;
   }
   
+  /**
+   * Joins the shapes of two global indexes by traversing both R-trees in
+   * parallel and testing only pairs of nodes that overlap.
+   * @param s1
+   * @param s2
+   * @param output
+   * @return - number of overlapping pairs
+   */
   public static<S1 extends Shape, S2 extends Shape>
       int spatialJoin(GlobalIndex<S1> s1, GlobalIndex<S2> s2,
           final ResultCollector2<S1, S2> output) {
-    return SpatialAlgorithms.SpatialJoin_planeSweep(s1.shapes, s2.shapes, output, null);
+    if (s1.shapes.length == 0 || s2.shapes.length == 0)
+      return 0;
+    int count = 0;
+    // Pairs of nodes to be joined
+    IntArray toBeJoined = new IntArray();
+    toBeJoined.add(s1.nodeFirst.length - 1);
+    toBeJoined.add(s2.nodeFirst.length - 1);
+    while (!toBeJoined.isEmpty()) {
+      int n2 = toBeJoined.pop();
+      int n1 = toBeJoined.pop();
+      if (!(s1.nodeX1[n1] <= s2.nodeX2[n2] && s2.nodeX1[n2] <= s1.nodeX2[n1] &&
+          s1.nodeY1[n1] <= s2.nodeY2[n2] && s2.nodeY1[n2] <= s1.nodeY2[n1]))
+        continue;
+      boolean leaf1 = n1 < s1.numLeafNodes;
+      boolean leaf2 = n2 < s2.numLeafNodes;
+      if (leaf1 && leaf2) {
+        for (int e1 = s1.nodeFirst[n1]; e1 < s1.nodeLast[n1]; e1++) {
+          for (int e2 = s2.nodeFirst[n2]; e2 < s2.nodeLast[n2]; e2++) {
+            if (s1.entryX1[e1] <= s2.entryX2[e2] && s2.entryX1[e2] <= s1.entryX2[e1] &&
+                s1.entryY1[e1] <= s2.entryY2[e2] && s2.entryY1[e2] <= s1.entryY2[e1]) {
+              S1 r = s1.shapes[s1.entries[e1]];
+              S2 s = s2.shapes[s2.entries[e2]];
+              if (r.isIntersected(s)) {
+                if (output != null)
+                  output.collect(r, s);
+                count++;
+              }
+            }
+          }
+        }
+      } else if (leaf1) {
+        for (int c2 = s2.nodeFirst[n2]; c2 < s2.nodeLast[n2]; c2++) {
+          toBeJoined.add(n1);
+          toBeJoined.add(c2);
+        }
+      } else if (leaf2) {
+        for (int c1 = s1.nodeFirst[n1]; c1 < s1.nodeLast[n1]; c1++) {
+          toBeJoined.add(c1);
+          toBeJoined.add(n2);
+        }
+      } else {
+        for (int c1 = s1.nodeFirst[n1]; c1 < s1.nodeLast[n1]; c1++) {
+          for (int c2 = s2.nodeFirst[n2]; c2 < s2.nodeLast[n2]; c2++) {
+            toBeJoined.add(c1);
+            toBeJoined.add(c2);
+          }
+        }
+      }
+    }
+    return count;
   }
   
   /**
@@ -153,80 +458,71 @@ public class GlobalIndex<S extends Shape> implements Writable, Iterable<S> {
     }
     return globalMBR;
   }
+  
+  /**
+   * An entry in the priority queue of the kNN query which is either a node
+   * of the tree or a shape.
+   */
+  private static class KNNEntry implements Comparable<KNNEntry> {
+    /**Index of the node or the shape*/
+    int id;
+    /**Whether this entry is a node or a shape*/
+    boolean isNode;
+    /**Distance to the shape or the minimum distance to the node MBR*/
+    double distance;
+    
+    KNNEntry(int id, boolean isNode, double distance) {
+      this.id = id;
+      this.isNode = isNode;
+      this.distance = distance;
+    }
 
+    @Override
+    public int compareTo(KNNEntry o) {
+      return Double.compare(this.distance, o.distance);
+    }
+  }
+  
+  /**Minimum distance between a point and the MBR of a node*/
+  private double nodeMinDistance(int iNode, double qx, double qy) {
+    double dx = Math.max(0, Math.max(nodeX1[iNode] - qx, qx - nodeX2[iNode]));
+    double dy = Math.max(0, Math.max(nodeY1[iNode] - qy, qy - nodeY2[iNode]));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * Finds the k shapes with the smallest {@link Shape#distanceTo(double, double)}
+   * to the query point. Nodes of the tree are visited in the order of their
+   * minimum distance to the query point which is a lower bound of the
+   * distance to any shape inside them. Results are reported in ascending
+   * order of distance.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return
+   */
   public int knn(final double qx, final double qy, int k, ResultCollector2<S, Double> output) {
-    double query_area = (getMBR().getWidth() * getMBR().getHeight()) * k / size();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<S> shapes = new Vector<S>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius / 2;
-      queryRange.y1 = qy - query_radius / 2;
-      queryRange.x2 = qx + query_radius / 2;
-      queryRange.y2 = qy + query_radius / 2;
-      // Retrieve all results in range
-      rangeQuery(queryRange, new ResultCollector<S>() {
-        @Override
-        public void collect(S shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((S) shape.clone());
-        }
-      });
-      if (shapes.size() <= k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == size() || shapes.size() == k) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
+    if (shapes.length == 0 || k <= 0)
+      return 0;
+    PriorityQueue<KNNEntry> queue = new PriorityQueue<KNNEntry>();
+    int root = nodeFirst.length - 1;
+    queue.add(new KNNEntry(root, true, nodeMinDistance(root, qx, qy)));
+    int result_size = 0;
+    while (!queue.isEmpty() && result_size < k) {
+      KNNEntry top = queue.poll();
+      if (!top.isNode) {
+        result_size++;
+        if (output != null)
+          output.collect(shapes[top.id], top.distance);
+      } else if (top.id < numLeafNodes) {
+        for (int iEntry = nodeFirst[top.id]; iEntry < nodeLast[top.id]; iEntry++) {
+          int iShape = entries[iEntry];
+          queue.add(new KNNEntry(iShape, false, shapes[iShape].distanceTo(qx, qy)));
         }
       } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            S temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-        		return 0;
-            if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
-        }
-      }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
+        for (int iChild = nodeFirst[top.id]; iChild < nodeLast[top.id]; iChild++)
+          queue.add(new KNNEntry(iChild, true, nodeMinDistance(iChild, qx, qy)));
       }
     }
     return result_size;
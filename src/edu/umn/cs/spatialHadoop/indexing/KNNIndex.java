@@ -0,0 +1,34 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * A local index that answers k nearest neighbor queries without scanning all
+ * its records. Implemented by both {@link RTree} and {@link MappedRTree} so
+ * that operations can use whichever one a record reader returns.
+ * @author Ahmed Eldawy
+ *
+ * @param <T> - type of the records in the index
+ */
+public interface KNNIndex<T extends Shape> extends Iterable<T> {
+  /**
+   * k nearest neighbor query. Results are reported in ascending order of
+   * their distance to the query point. Each reported record is a new object
+   * that can be kept by the caller.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return the number of records reported
+   */
+  public int knn(double qx, double qy, int k, ResultCollector2<T, Double> output);
+}
@@ -0,0 +1,406 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+import org.apache.hadoop.io.Text;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.io.Text2;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * A read-only view of an R-tree that is stored in a (memory-mapped)
+ * {@link ByteBuffer}. It reads the same disk layout written by
+ * {@link RTree#bulkLoadWrite(byte[], int, int, int, java.io.DataOutput, Shape, boolean, boolean)}
+ * but, unlike {@link RTree#readFields(java.io.DataInput)}, it does not load
+ * the node MBRs on the heap. All nodes are tested directly from the buffer
+ * and records are parsed only when they are returned. Both the text and
+ * the binary layouts of leaf nodes are supported.
+ *
+ * All methods use absolute positions in the buffer so the same buffer can be
+ * shared by many trees and threads.
+ * @author Ahmed Eldawy
+ *
+ */
+public class MappedRTree<T extends Shape> implements KNNIndex<T> {
+  /**The buffer that contains the tree*/
+  private final ByteBuffer buffer;
+
+  /**Position of the tree in the buffer (right after the tree size)*/
+  private final int treeStart;
+
+  /**Size of the tree (header + structure + data) excluding the tree size*/
+  private final int treeSize;
+
+  /**Height of the tree (number of levels)*/
+  private final int height;
+
+  /**Degree of internal nodes in the tree*/
+  private final int degree;
+
+  /**Number of elements in the tree*/
+  private final int elementCount;
+
+  /**Total number of nodes in the tree*/
+  private final int nodeCount;
+
+  /**Number of non-leaf nodes*/
+  private final int nonLeafNodeCount;
+
+  /**Whether leaf records are stored in the binary layout*/
+  private final boolean binaryLeaves;
+
+  /** An instance of T that can be used to deserialize objects */
+  private T stockObject;
+
+  /**
+   * Creates a view on the tree stored at the given position of the buffer.
+   * @param buffer - the buffer that contains the tree
+   * @param offset - the position of the tree in the buffer (after the marker)
+   * @param binaryLeaves - whether leaves are stored in the binary layout
+   * @param stockObject - used to deserialize records
+   */
+  public MappedRTree(ByteBuffer buffer, int offset, boolean binaryLeaves,
+      T stockObject) {
+    this.buffer = buffer;
+    this.binaryLeaves = binaryLeaves;
+    this.stockObject = stockObject;
+    this.treeSize = buffer.getInt(offset);
+    this.treeStart = offset + 4;
+    if (treeSize == 0 || buffer.getInt(treeStart) == 0) {
+      height = degree = elementCount = nodeCount = nonLeafNodeCount = 0;
+    } else {
+      height = buffer.getInt(treeStart);
+      degree = buffer.getInt(treeStart + 4);
+      elementCount = buffer.getInt(treeStart + 8);
+      nodeCount = (RTree.powInt(degree, height) - 1) / (degree - 1);
+      nonLeafNodeCount = nodeCount - RTree.powInt(degree, height - 1);
+    }
+  }
+
+  /**
+   * Returns the position in the buffer right after the end of this tree.
+   * @return
+   */
+  public int getEndOffset() {
+    return treeStart + treeSize;
+  }
+
+  public int getElementCount() {
+    return elementCount;
+  }
+
+  public void setStockObject(T stockObject) {
+    this.stockObject = stockObject;
+  }
+
+  /**
+   * Returns the MBR of the root
+   * @return
+   */
+  public Rectangle getMBR() {
+    if (nodeCount == 0)
+      return null;
+    return new Rectangle(x1(0), y1(0), x2(0), y2(0));
+  }
+
+  /**Position of a node in the buffer*/
+  private int nodePos(int nodeID) {
+    return treeStart + RTree.TreeHeaderSize + nodeID * RTree.NodeSize;
+  }
+
+  /**Start of the data of a node relative to the tree start*/
+  private int dataOffset(int nodeID) {
+    return nodeID == nodeCount ? treeSize : buffer.getInt(nodePos(nodeID));
+  }
+
+  private double x1(int nodeID) { return buffer.getDouble(nodePos(nodeID) + 4); }
+  private double y1(int nodeID) { return buffer.getDouble(nodePos(nodeID) + 12); }
+  private double x2(int nodeID) { return buffer.getDouble(nodePos(nodeID) + 20); }
+  private double y2(int nodeID) { return buffer.getDouble(nodePos(nodeID) + 28); }
+
+  /**
+   * Tests whether a node overlaps the given rectangle using the same
+   * semantics of {@link Rectangle#isIntersected(Shape)}
+   * @param nodeID
+   * @param r
+   * @return
+   */
+  private boolean isIntersected(int nodeID, Rectangle r) {
+    return r.x2 > x1(nodeID) && x2(nodeID) > r.x1 &&
+        r.y2 > y1(nodeID) && y2(nodeID) > r.y1;
+  }
+
+  /**
+   * Performs a range query over this tree using the given query range.
+   * @param query - The query shape to use
+   * @param output - Shapes found are reported to this output. If null, results are not reported
+   * @return - Total number of records found
+   */
+  public int search(Shape query, ResultCollector<T> output) {
+    int resultCount = 0;
+    for (T result : search(query)) {
+      resultCount++;
+      if (output != null)
+        output.collect(result);
+    }
+    return resultCount;
+  }
+
+  /**
+   * Searches the tree for all shapes overlapping the queryShape and returns
+   * an iterator for all these shapes
+   * @param queryShape
+   * @return
+   */
+  public Iterable<T> search(Shape queryShape) {
+    return new SearchIterator(queryShape);
+  }
+
+  @Override
+  public Iterator<T> iterator() {
+    return new SearchIterator(null);
+  }
+
+  /**
+   * Returns the minimum distance between the MBR of a node and a point
+   * @param nodeID
+   * @param qx
+   * @param qy
+   * @return
+   */
+  private double getMinDistance(int nodeID, double qx, double qy) {
+    double dx = Math.max(0, Math.max(x1(nodeID) - qx, qx - x2(nodeID)));
+    double dy = Math.max(0, Math.max(y1(nodeID) - qy, qy - y2(nodeID)));
+    return Math.sqrt(dx * dx + dy * dy);
+  }
+
+  /**
+   * k nearest neighbor query. Nodes are visited in the order of their
+   * minimum distance to the query point, the same way as
+   * {@link RTree#knn(double, double, int, ResultCollector2)}, and a leaf is
+   * parsed only when it is closer than the k<sup>th</sup> record found so
+   * far. Results are reported in ascending order of their distance.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   * @return
+   */
+  @SuppressWarnings("unchecked")
+  @Override
+  public int knn(double qx, double qy, int k, ResultCollector2<T, Double> output) {
+    PriorityQueue<RTree.KNNEntry<T>> queue = new PriorityQueue<RTree.KNNEntry<T>>();
+    if (nodeCount > 0)
+      queue.add(new RTree.KNNEntry<T>(0, null, getMinDistance(0, qx, qy)));
+    int resultSize = 0;
+    while (resultSize < k && !queue.isEmpty()) {
+      RTree.KNNEntry<T> top = queue.poll();
+      if (top.shape != null) {
+        resultSize++;
+        if (output != null)
+          output.collect(top.shape, top.distance);
+      } else if (top.nodeID < nonLeafNodeCount) {
+        for (int iChild = 1; iChild <= degree; iChild++) {
+          int childID = top.nodeID * degree + iChild;
+          queue.add(new RTree.KNNEntry<T>(childID, null, getMinDistance(childID, qx, qy)));
+        }
+      } else {
+        // Parse all the records of the leaf
+        for (T shape : new SearchIterator(null, top.nodeID)) {
+          T copy = (T) shape.clone();
+          queue.add(new RTree.KNNEntry<T>(top.nodeID, copy, copy.distanceTo(qx, qy)));
+        }
+      }
+    }
+    return resultSize;
+  }
+
+  /**
+   * An iterator that returns all records that overlap a query shape or all
+   * records in the tree if the query shape is null.
+   * @author Ahmed Eldawy
+   *
+   */
+  class SearchIterator implements Iterable<T>, Iterator<T> {
+    /**Shape to search or null to return all records*/
+    private Shape queryShape;
+
+    /**MBR of the query shape for fast comparison with nodes*/
+    private Rectangle queryMBR;
+
+    /**Nodes to be searched*/
+    private IntArray toBeSearched = new IntArray();
+
+    /**Holds one data line from tree data*/
+    private Text line = new Text2();
+
+    /**Used to copy lines of text leaves from the buffer*/
+    private byte[] lineBytes = new byte[1024];
+
+    /**A duplicate of the buffer with its own position to copy bytes*/
+    private ByteBuffer dup = buffer.duplicate();
+
+    /**The binary leaf currently being searched*/
+    private RTree.BinaryLeaf leaf;
+
+    /**Index of the next record in the binary leaf*/
+    private int leafRecord;
+
+    /**Range of the remaining records in the text leaf currently being searched*/
+    private int firstOffset, lastOffset;
+
+    /**The object that will be returned on the following next() call*/
+    private T nextResultShape;
+
+    /**The last object returned by next()*/
+    private T resultShape;
+
+    /**Whether nextResultShape holds a result*/
+    private boolean hasNextResult;
+
+    SearchIterator(Shape queryShape) {
+      this(queryShape, 0);
+    }
+
+    /**
+     * Creates an iterator over the subtree rooted at the given node
+     * @param queryShape - the shape to search or null to return all records
+     * @param rootID - the ID of the node to start the search from
+     */
+    @SuppressWarnings("unchecked")
+    SearchIterator(Shape queryShape, int rootID) {
+      this.queryShape = queryShape;
+      this.queryMBR = queryShape == null ? null : queryShape.getMBR();
+      this.resultShape = (T) stockObject.clone();
+      this.nextResultShape = (T) stockObject.clone();
+      if (binaryLeaves)
+        leaf = new RTree.BinaryLeaf();
+      if (nodeCount > 0)
+        toBeSearched.add(rootID);
+      prepareNextResult();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNextResult;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNextResult)
+        return null;
+      T temp = resultShape;
+      resultShape = nextResultShape;
+      nextResultShape = temp;
+      prepareNextResult();
+      return resultShape;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Unsupported method");
+    }
+
+    private boolean isMatched(T shape) {
+      return queryShape == null || shape.isIntersected(queryShape);
+    }
+
+    /**
+     * Search for next item in result and store it in nextResultShape.
+     */
+    private void prepareNextResult() {
+      hasNextResult = true;
+      while (true) {
+        if (leaf != null) {
+          while (leafRecord < leaf.count) {
+            int i = leafRecord++;
+            if (queryMBR == null || leaf.isMBRIntersected(i, queryMBR)) {
+              leaf.getPayload(i, line);
+              nextResultShape.fromText(line);
+              if (isMatched(nextResultShape))
+                return;
+            }
+          }
+        } else {
+          while (firstOffset < lastOffset) {
+            firstOffset = readLine(firstOffset, lastOffset);
+            nextResultShape.fromText(line);
+            if (isMatched(nextResultShape))
+              return;
+          }
+        }
+        // Current leaf is exhausted. Find the next leaf to search
+        int leafID = -1;
+        while (leafID == -1 && !toBeSearched.isEmpty()) {
+          int nodeID = toBeSearched.pop();
+          if (queryMBR == null || isIntersected(nodeID, queryMBR)) {
+            if (nodeID >= nonLeafNodeCount) {
+              leafID = nodeID;
+            } else {
+              // Add child nodes in reverse order to search them in order
+              for (int iChild = degree; iChild > 0; iChild--)
+                toBeSearched.add(nodeID * degree + iChild);
+            }
+          }
+        }
+        if (leafID == -1) {
+          // No more results in the tree
+          hasNextResult = false;
+          return;
+        }
+        if (leaf != null) {
+          leaf.wrap(buffer, treeStart + dataOffset(leafID));
+          leafRecord = 0;
+        } else {
+          firstOffset = dataOffset(leafID);
+          lastOffset = dataOffset(leafID + 1);
+        }
+      }
+    }
+
+    /**
+     * Reads one line of a text leaf into {@link #line} and returns the offset
+     * of the following line.
+     * @param offset - offset of the line relative to the tree start
+     * @param end - end of the leaf relative to the tree start
+     * @return
+     */
+    private int readLine(int offset, int end) {
+      int eol = offset;
+      while (eol < end && !isEOL(buffer.get(treeStart + eol)))
+        eol++;
+      int length = eol - offset;
+      if (lineBytes.length < length)
+        lineBytes = new byte[length * 2];
+      dup.position(treeStart + offset);
+      dup.get(lineBytes, 0, length);
+      line.set(lineBytes, 0, length);
+      while (eol < end && isEOL(buffer.get(treeStart + eol)))
+        eol++;
+      return eol;
+    }
+
+    private boolean isEOL(byte b) {
+      return b == '\n' || b == '\r';
+    }
+  }
+}
@@ -17,6 +17,7 @@ import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.CellInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 
 public class Partition extends CellInfo {
@@ -71,12 +72,12 @@ public class Partition extends CellInfo {
   }
   
   @Override
-  public void fromText(Text text) {
-    super.fromText(text);
-    text.set(text.getBytes(), 1, text.getLength() - 1); // Skip comma
-    this.recordCount = TextSerializerHelper.consumeLong(text, ',');
-    this.size = TextSerializerHelper.consumeLong(text, ',');
-    filename = text.toString();
+  public void fromText(TextCursor cursor) {
+    super.fromText(cursor);
+    cursor.skip(1); // Skip comma
+    this.recordCount = cursor.nextLong(',');
+    this.size = cursor.nextLong(',');
+    filename = cursor.nextString();
   }
   
   @Override
@@ -17,6 +17,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
@@ -52,6 +53,7 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.ResultCollector2;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialAlgorithms;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.io.MemoryInputStream;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
@@ -67,7 +69,7 @@ import edu.umn.cs.spatialHadoop.io.TextSerializable;
  * @author Ahmed Eldawy
  *
  */
-public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable {
+public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable, KNNIndex<T> {
   /**Logger*/
   private static final Log LOG = LogFactory.getLog(RTree.class);
   
@@ -114,6 +116,19 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   /**A cached copy of data offset for each node.*/
   private int[] dataOffset;
 
+  /**
+   * Whether leaf records are stored in the binary layout where the MBRs of
+   * all records in a leaf are stored as packed doubles before their payloads.
+   * See {@link BinaryLeaf} for the exact layout.
+   */
+  private boolean binaryLeaves;
+
+  /**
+   * Children of all non-leaf nodes sorted by the x1 coordinate of their MBRs.
+   * Computed lazily when the tree is first used in a spatial join.
+   */
+  private int[] childrenSortedByX1;
+
   public RTree() {
   }
   
@@ -144,6 +159,31 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   public static void bulkLoadWrite(final byte[] element_bytes,
       final int offset, final int len, final int degree, DataOutput dataOut,
       final Shape stockObject, final boolean fast_sort) {
+    bulkLoadWrite(element_bytes, offset, len, degree, dataOut, stockObject,
+        fast_sort, false);
+  }
+
+  /**
+   * Builds the RTree given a serialized list of elements similar to
+   * {@link #bulkLoadWrite(byte[], int, int, int, DataOutput, Shape, boolean)}.
+   * If <code>binary_leaves</code> is set, the records in each leaf node are
+   * written in the binary layout described in {@link BinaryLeaf} which allows
+   * the MBR filter step to run without parsing the records.
+   * 
+   * @param element_bytes
+   * @param offset
+   * @param len
+   * @param degree
+   * @param dataOut
+   * @param stockObject
+   * @param fast_sort
+   * @param binary_leaves
+   *          - write leaf records in the binary layout rather than text lines
+   */
+  public static void bulkLoadWrite(final byte[] element_bytes,
+      final int offset, final int len, final int degree, DataOutput dataOut,
+      final Shape stockObject, final boolean fast_sort,
+      final boolean binary_leaves) {
     try {
 
       int elementCount = 0;
@@ -380,6 +420,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       
       // Now we have our data sorted in the required order. Start building
       // the tree.
+      // MBRs of all elements in their sorted order (binary layout only)
+      final double[] element_mbrs = binary_leaves? new double[elementCount * 4] : null;
+      // Total size of the data part of the tree
+      int tree_data_size = len;
       // Store the offset of each leaf node in the tree
       FSDataOutputStream fakeOut = null;
       try {
@@ -405,11 +449,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           
           // Initialize MBR to first object
           int eol = skipToEOL(element_bytes, offsets[i]);
-          fakeOut.write(element_bytes, offsets[i],
-              eol - offsets[i]);
+          if (!binary_leaves)
+            fakeOut.write(element_bytes, offsets[i],
+                eol - offsets[i]);
           line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
           stockObject.fromText(line);
           Rectangle mbr = stockObject.getMBR();
+          if (element_mbrs != null)
+            storeMBR(element_mbrs, i, mbr);
           x1 = mbr.x1;
           y1 = mbr.y1;
           x2 = mbr.x2;
@@ -418,11 +465,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           
           while (i < nodes.elementAt(i_leaf).index2) {
             eol = skipToEOL(element_bytes, offsets[i]);
-            fakeOut.write(element_bytes, offsets[i],
-                eol - offsets[i]);
+            if (!binary_leaves)
+              fakeOut.write(element_bytes, offsets[i],
+                  eol - offsets[i]);
             line.set(element_bytes, offsets[i], eol - offsets[i] - 1);
             stockObject.fromText(line);
             mbr = stockObject.getMBR();
+            if (element_mbrs != null)
+              storeMBR(element_mbrs, i, mbr);
             if (mbr.x1 < x1) x1 = mbr.x1;
             if (mbr.y1 < y1) y1 = mbr.y1;
             if (mbr.x2 > x2) x2 = mbr.x2;
@@ -430,8 +480,14 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             i++;
           }
           nodes.elementAt(i_leaf).set(x1, y1, x2, y2);
+          if (binary_leaves) {
+            BinaryLeaf.write(fakeOut, element_bytes, offsets, element_mbrs,
+                nodes.elementAt(i_leaf).index1, nodes.elementAt(i_leaf).index2);
+          }
         }
-        
+        if (binary_leaves)
+          tree_data_size = (int) fakeOut.getPos() -
+              (TreeHeaderSize + nodes.size() * NodeSize);
       } finally {
         if (fakeOut != null)
           fakeOut.close();
@@ -465,7 +521,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       // Start writing the tree
       // write tree header (including size)
       // Total tree size. (== Total bytes written - 8 bytes for the size itself)
-      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + len);
+      dataOut.writeInt(TreeHeaderSize + NodeSize * nodeCount + tree_data_size);
       // Tree height
       dataOut.writeInt(height);
       // Degree
@@ -477,10 +533,17 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         node.write(dataOut);
       }
       // write elements
-      for (int element_i = 0; element_i < elementCount; element_i++) {
-        int eol = skipToEOL(element_bytes, offsets[element_i]);
-        dataOut.write(element_bytes, offsets[element_i],
-            eol - offsets[element_i]);
+      if (binary_leaves) {
+        for (int i_leaf = nonLeafNodeCount; i_leaf < nodes.size(); i_leaf++) {
+          BinaryLeaf.write(dataOut, element_bytes, offsets, element_mbrs,
+              nodes.elementAt(i_leaf).index1, nodes.elementAt(i_leaf).index2);
+        }
+      } else {
+        for (int element_i = 0; element_i < elementCount; element_i++) {
+          int eol = skipToEOL(element_bytes, offsets[element_i]);
+          dataOut.write(element_bytes, offsets[element_i],
+              eol - offsets[element_i]);
+        }
       }
       
     } catch (IOException e) {
@@ -488,6 +551,161 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     }
   }
   
+  /**
+   * Stores the given MBR in the flat array of MBRs at the given position
+   * @param mbrs
+   * @param i
+   * @param mbr
+   */
+  private static void storeMBR(double[] mbrs, int i, Rectangle mbr) {
+    mbrs[i * 4 + 0] = mbr.x1;
+    mbrs[i * 4 + 1] = mbr.y1;
+    mbrs[i * 4 + 2] = mbr.x2;
+    mbrs[i * 4 + 3] = mbr.y2;
+  }
+  
+  /**
+   * A leaf node stored in the binary layout. The layout of a leaf is:
+   * <ol>
+   *  <li>Number of records in the leaf (int)</li>
+   *  <li>x1, y1, x2 and y2 of all records stored as four columns of doubles</li>
+   *  <li>End offset of each record payload relative to the first payload (int)</li>
+   *  <li>Payloads of all records stored as text without new lines</li>
+   * </ol>
+   * This allows the MBRs of all records in a leaf to be tested against a
+   * query without parsing any of them. Only records that pass the MBR test
+   * are parsed from their payload.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class BinaryLeaf {
+    /**Raw bytes of the leaf node if it is read from a stream*/
+    private byte[] data = new byte[0];
+    
+    /**A buffer that contains the leaf to read primitive values*/
+    private ByteBuffer buffer;
+    
+    /**Position of the leaf in the buffer*/
+    private int base;
+    
+    /**Number of records in the leaf*/
+    int count;
+    
+    /**Offset of the first payload relative to the start of the leaf*/
+    private int payloadStart;
+    
+    /**
+     * Reads a leaf node that spans the given range in the given stream
+     * @param in
+     * @param pos
+     * @param length
+     * @throws IOException
+     */
+    void read(FSDataInputStream in, long pos, int length) throws IOException {
+      if (data.length < length)
+        data = new byte[length];
+      if (buffer == null || !buffer.hasArray() || buffer.array() != data)
+        buffer = ByteBuffer.wrap(data);
+      in.seek(pos);
+      in.readFully(data, 0, length);
+      wrap(buffer, 0);
+    }
+    
+    /**
+     * Points this leaf to a leaf node stored in the given buffer at the given
+     * position without copying it.
+     * @param buffer
+     * @param base
+     */
+    void wrap(ByteBuffer buffer, int base) {
+      this.buffer = buffer;
+      this.base = base;
+      count = buffer.getInt(base);
+      payloadStart = 4 + count * (8 * 4 + 4);
+    }
+    
+    double x1(int i) { return buffer.getDouble(base + 4 + i * 8); }
+    double y1(int i) { return buffer.getDouble(base + 4 + (count + i) * 8); }
+    double x2(int i) { return buffer.getDouble(base + 4 + (2 * count + i) * 8); }
+    double y2(int i) { return buffer.getDouble(base + 4 + (3 * count + i) * 8); }
+    
+    /**
+     * Tests whether the MBR of record #i touches the given rectangle. Edges
+     * are inclusive so that it can be safely used as a filter step before
+     * the exact test on the parsed record.
+     * @param i
+     * @param r
+     * @return
+     */
+    boolean isMBRIntersected(int i, Rectangle r) {
+      return x2(i) >= r.x1 && r.x2 >= x1(i) && y2(i) >= r.y1 && r.y2 >= y1(i);
+    }
+    
+    /**
+     * Sets the given text to the payload of record #i
+     * @param i
+     * @param line
+     */
+    void getPayload(int i, Text line) {
+      int offsetsStart = base + 4 + count * 8 * 4;
+      int start = i == 0 ? 0 : buffer.getInt(offsetsStart + (i - 1) * 4);
+      int end = buffer.getInt(offsetsStart + i * 4);
+      if (buffer.hasArray()) {
+        line.set(buffer.array(), buffer.arrayOffset() + base + payloadStart + start,
+            end - start);
+      } else {
+        // A direct (e.g., memory-mapped) buffer. Copy the payload out of it
+        if (data.length < end - start)
+          data = new byte[end - start];
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(base + payloadStart + start);
+        payload.get(data, 0, end - start);
+        line.set(data, 0, end - start);
+      }
+    }
+    
+    /**
+     * Writes the records in the range [index1, index2) as one binary leaf.
+     * @param out
+     * @param element_bytes
+     * @param offsets
+     * @param element_mbrs
+     * @param index1
+     * @param index2
+     * @throws IOException
+     */
+    static void write(DataOutput out, byte[] element_bytes, int[] offsets,
+        double[] element_mbrs, int index1, int index2) throws IOException {
+      out.writeInt(index2 - index1);
+      for (int column = 0; column < 4; column++) {
+        for (int i = index1; i < index2; i++)
+          out.writeDouble(element_mbrs[i * 4 + column]);
+      }
+      int payloadEnd = 0;
+      for (int i = index1; i < index2; i++) {
+        payloadEnd += payloadLength(element_bytes, offsets[i]);
+        out.writeInt(payloadEnd);
+      }
+      for (int i = index1; i < index2; i++)
+        out.write(element_bytes, offsets[i],
+            payloadLength(element_bytes, offsets[i]));
+    }
+    
+    /**
+     * Length of the line that starts at the given offset excluding any
+     * end of line characters.
+     * @param bytes
+     * @param startOffset
+     * @return
+     */
+    private static int payloadLength(byte[] bytes, int startOffset) {
+      int eol = startOffset;
+      while (eol < bytes.length && (bytes[eol] != '\n' && bytes[eol] != '\r'))
+        eol++;
+      return eol - startOffset;
+    }
+  }
+  
   @Override
   public void write(DataOutput out) throws IOException {
     throw new RuntimeException("write is no longer supported. " +
@@ -526,6 +744,7 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       this.nodes[node_id].readFields(in);
     }
     this.dataOffset[nodeCount] = treeSize;
+    this.childrenSortedByX1 = null;
 
     if (in instanceof FSDataInputStream) {
       // A random input stream, can keep the data on disk
@@ -632,6 +851,23 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     this.stockObject = stockObject;
   }
   
+  /**
+   * Sets whether the leaf records of this tree are stored in the binary
+   * layout. This has to be set before the tree is read using
+   * {@link #readFields(DataInput)} as it cannot be inferred from the tree
+   * itself. It is indicated by the file marker, i.e., either
+   * {@link SpatialSite#RTreeFileMarker} or
+   * {@link SpatialSite#BinaryRTreeFileMarker}.
+   * @param binaryLeaves
+   */
+  public void setBinaryLeaves(boolean binaryLeaves) {
+    this.binaryLeaves = binaryLeaves;
+  }
+  
+  public boolean isBinaryLeaves() {
+    return binaryLeaves;
+  }
+  
   /**
    * Create rectangles that together pack all points in sample such that
    * each rectangle contains roughly the same number of points. In other words
@@ -734,16 +970,31 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     /**A reader to read lines from the tree*/
     LineReader reader;
     
+    /**The leaf currently being read in case of binary leaves*/
+    BinaryLeaf leaf;
+    
+    /**ID of the current leaf node and index of next record in it*/
+    int leafNodeID, leafRecord;
+    
     RTreeIterator() throws IOException {
       offset = TreeHeaderSize + NodeSize * RTree.this.nodeCount;
       _stockObject = (T) RTree.this.stockObject.clone();
       line = new Text();
-      RTree.this.data.seek(offset + RTree.this.treeStartOffset);
-      reader = new LineReader(RTree.this.data);
+      if (RTree.this.binaryLeaves) {
+        leaf = new BinaryLeaf();
+        leafNodeID = RTree.this.nonLeafNodeCount - 1;
+      } else {
+        RTree.this.data.seek(offset + RTree.this.treeStartOffset);
+        reader = new LineReader(RTree.this.data);
+      }
     }
 
     @Override
     public boolean hasNext() {
+      if (leaf != null) {
+        return (leafNodeID >= RTree.this.nonLeafNodeCount && leafRecord < leaf.count)
+            || leafNodeID < RTree.this.nodeCount - 1;
+      }
       return offset < RTree.this.treeSize;
     }
 
@@ -752,7 +1003,20 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       if (!hasNext())
         return null;
       try {
-        offset += reader.readLine(line);
+        if (leaf != null) {
+          while (leafNodeID < RTree.this.nonLeafNodeCount || leafRecord >= leaf.count) {
+            if (leafNodeID >= RTree.this.nodeCount - 1)
+              return null;
+            leafNodeID++;
+            leaf.read(RTree.this.data,
+                RTree.this.dataOffset[leafNodeID] + RTree.this.treeStartOffset,
+                RTree.this.dataOffset[leafNodeID + 1] - RTree.this.dataOffset[leafNodeID]);
+            leafRecord = 0;
+          }
+          leaf.getPayload(leafRecord++, line);
+        } else {
+          offset += reader.readLine(line);
+        }
         _stockObject.fromText(line);
       } catch (IOException e) {
         e.printStackTrace();
@@ -845,6 +1109,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
 
     // Holds one data line from tree data
     Text line = new Text2();
+    // Holds one leaf node in case of binary leaves
+    BinaryLeaf leaf = binaryLeaves ? new BinaryLeaf() : null;
     
     while (!toBeSearched.isEmpty()) {
       int searchNumber = toBeSearched.pop();
@@ -854,7 +1120,22 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
         int nodeID = searchNumber;
         if (query_mbr.isIntersected(nodes[nodeID])) {
           boolean is_leaf = nodeID >= nonLeafNodeCount;
-          if (is_leaf) {
+          if (is_leaf && leaf != null) {
+            // Filter records using their MBRs and parse only the candidates
+            leaf.read(data, dataOffset[nodeID] + treeStartOffset,
+                dataOffset[nodeID + 1] - dataOffset[nodeID]);
+            for (int i = 0; i < leaf.count; i++) {
+              if (leaf.isMBRIntersected(i, query_mbr)) {
+                leaf.getPayload(i, line);
+                stockObject.fromText(line);
+                if (stockObject.isIntersected(query_shape)) {
+                  resultSize++;
+                  if (output != null)
+                    output.collect(stockObject);
+                }
+              }
+            }
+          } else if (is_leaf) {
             // Check all objects under this node
             int start_offset = this.dataOffset[nodeID];
             int end_offset = this.dataOffset[nodeID + 1];
@@ -924,6 +1205,10 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     
     /**If searching within a node, lineReader points to result items*/
     LineReader lineReader;
+    
+    /**If searching within a binary leaf, the leaf and the next record in it*/
+    private BinaryLeaf leaf;
+    private int leafRecord;
 
 
     public SearchIterator(Shape queryShape) {
@@ -973,6 +1258,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             return;
           }
         }
+        if (leaf != null && nextInBinaryLeaf())
+          return;
         // Case 2: Searching in nodes
         while (!toBeSearched.isEmpty()) {
           int searchNumber = toBeSearched.pop();
@@ -982,7 +1269,16 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
             int nodeID = searchNumber;
             if (queryMBR.isIntersected(nodes[nodeID])) {
               boolean is_leaf = nodeID >= nonLeafNodeCount;
-              if (is_leaf) {
+              if (is_leaf && binaryLeaves) {
+                // Search the records of the leaf without parsing them first
+                if (leaf == null)
+                  leaf = new BinaryLeaf();
+                leaf.read(data, dataOffset[nodeID] + treeStartOffset,
+                    dataOffset[nodeID + 1] - dataOffset[nodeID]);
+                leafRecord = 0;
+                if (nextInBinaryLeaf())
+                  return;
+              } else if (is_leaf) {
                 // Check all objects under this node
                 int start_offset = RTree.this.dataOffset[nodeID];
                 int end_offset = RTree.this.dataOffset[nodeID + 1];
@@ -994,23 +1290,23 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
                   toBeSearched.add(nodeID * RTree.this.degree + iChild + 1);
                 }
               }
-            } else {
-              // searchNumber is the end offset of data search. Start offset is next
-              // in stack
-              lastOffset = searchNumber;
-              firstOffset = toBeSearched.pop();
-
-              data.seek(firstOffset + treeStartOffset);
-              lineReader = new LineReader(data);
-              while (firstOffset < lastOffset) {
-                firstOffset += lineReader.readLine(line);
-                nextResultShape.fromText(line);
-                if (nextResultShape.isIntersected(queryShape)) {
-                  return;
-                }
+            }
+          } else {
+            // searchNumber is the end offset of data search. Start offset is next
+            // in stack
+            lastOffset = searchNumber;
+            firstOffset = toBeSearched.pop();
+
+            data.seek(firstOffset + treeStartOffset);
+            lineReader = new LineReader(data);
+            while (firstOffset < lastOffset) {
+              firstOffset += lineReader.readLine(line);
+              nextResultShape.fromText(line);
+              if (nextResultShape.isIntersected(queryShape)) {
+                return;
               }
             }
-          }          
+          }
         }
         // No more results in the tree
         nextResultShape = null;
@@ -1021,6 +1317,24 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       }
     }
     
+    /**
+     * Advances to the next matching record in the current binary leaf and
+     * parses it into nextResultShape.
+     * @return <code>true</code> if a matching record was found
+     */
+    private boolean nextInBinaryLeaf() {
+      while (leafRecord < leaf.count) {
+        int i = leafRecord++;
+        if (leaf.isMBRIntersected(i, queryMBR)) {
+          leaf.getPayload(i, line);
+          nextResultShape.fromText(line);
+          if (nextResultShape.isIntersected(queryShape))
+            return true;
+        }
+      }
+      return false;
+    }
+    
   }
   
   /**
@@ -1052,86 +1366,177 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   }
   
   /**
-   * k nearest neighbor query
-   * @param qx
-   * @param qy
-   * @param k
-   * @param output
+   * An entry in the priority queue of the best-first kNN traversal which is
+   * either a node of the tree or a record that has been read from a leaf.
    */
-  public int knn(final double qx, final double qy, int k, final ResultCollector2<T, Double> output) {
-    double query_area = ((getMBR().x2 - getMBR().x1) * (getMBR().y2 - getMBR().y1)) * k / getElementCount();
-    double query_radius = Math.sqrt(query_area / Math.PI);
-
-    boolean result_correct;
-    final Vector<Double> distances = new Vector<Double>();
-    final Vector<T> shapes = new Vector<T>();
-    // Find results in the range and increase this range if needed to ensure
-    // correctness of the answer
-    do {
-      // Initialize result and query range
-      distances.clear(); shapes.clear();
-      Rectangle queryRange = new Rectangle();
-      queryRange.x1 = qx - query_radius;
-      queryRange.y1 = qy - query_radius;
-      queryRange.x2 = qx + query_radius;
-      queryRange.y2 = qy + query_radius;
-      // Retrieve all results in range
-      search(queryRange, new ResultCollector<T>() {
-        @Override
-        public void collect(T shape) {
-          distances.add(shape.distanceTo(qx, qy));
-          shapes.add((T) shape.clone());
+  static class KNNEntry<S> implements Comparable<KNNEntry<S>> {
+    /**ID of the node if this entry is a node*/
+    int nodeID;
+    /**The record if this entry is a record or null if it is a node*/
+    S shape;
+    /**Distance to the record or the minimum distance to the node MBR*/
+    double distance;
+
+    KNNEntry(int nodeID, S shape, double distance) {
+      this.nodeID = nodeID;
+      this.shape = shape;
+      this.distance = distance;
+    }
+
+    @Override
+    public int compareTo(KNNEntry<S> o) {
+      return Double.compare(this.distance, o.distance);
+    }
+  }
+
+  /**
+   * An iterator that returns the records of the tree in ascending order of
+   * their {@link Shape#distanceTo(double, double)} to a query point. Nodes
+   * are visited in the order of their minimum distance to the query point
+   * which is a lower bound of the distance to any record inside them, and a
+   * leaf is read only when it is closer than all the records found so far.
+   * This means that the nearest neighbors are found incrementally and the
+   * caller can stop at any time without reading the rest of the tree.
+   * 
+   * Each record returned by {@link #next()} is a new object that is not
+   * reused by the iterator and can be kept by the caller.
+   * @author Ahmed Eldawy
+   *
+   */
+  public class KNNIterator implements Iterable<T>, Iterator<T> {
+    /**Coordinates of the query point*/
+    private final double qx, qy;
+
+    /**Nodes and records to be visited ordered by their distance*/
+    private PriorityQueue<KNNEntry<T>> queue = new PriorityQueue<KNNEntry<T>>();
+
+    /**Distance of the last record returned by next*/
+    private double distance;
+
+    /**Used to deserialize record information*/
+    private Text line = new Text2();
+
+    /**Used to read leaves that are stored in the binary layout*/
+    private BinaryLeaf leaf;
+
+    public KNNIterator(double qx, double qy) {
+      this.qx = qx;
+      this.qy = qy;
+      if (height > 0 && nodeCount > 0)
+        queue.add(new KNNEntry<T>(0, null, nodes[0].getMinDistanceTo(qx, qy)));
+      if (binaryLeaves)
+        leaf = new BinaryLeaf();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+      return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+      try {
+        // Expand nodes until the closest entry is a record
+        while (!queue.isEmpty() && queue.peek().shape == null)
+          expandNode(queue.poll().nodeID);
+      } catch (IOException e) {
+        e.printStackTrace();
+        queue.clear();
+      }
+      return !queue.isEmpty();
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext())
+        return null;
+      KNNEntry<T> top = queue.poll();
+      distance = top.distance;
+      return top.shape;
+    }
+
+    /**
+     * Returns the distance between the query point and the last record
+     * returned by {@link #next()}
+     * @return
+     */
+    public double getDistance() {
+      return distance;
+    }
+
+    @Override
+    public void remove() {
+      throw new RuntimeException("Unsupported method");
+    }
+
+    /**
+     * Adds the children of the given node to the queue. If the node is a
+     * leaf, all records in it are read and added to the queue.
+     * @param nodeID
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    private void expandNode(int nodeID) throws IOException {
+      if (nodeID < nonLeafNodeCount) {
+        for (int iChild = 1; iChild <= degree; iChild++) {
+          int childID = nodeID * degree + iChild;
+          queue.add(new KNNEntry<T>(childID, null, nodes[childID].getMinDistanceTo(qx, qy)));
         }
-      });
-      if (shapes.size() < k) {
-        // Didn't find k elements in range, double the range to get more items
-        if (shapes.size() == getElementCount()) {
-          // Already returned all possible elements
-          result_correct = true;
-        } else {
-          query_radius *= 2;
-          result_correct = false;
+      } else if (leaf != null) {
+        leaf.read(data, dataOffset[nodeID] + treeStartOffset,
+            dataOffset[nodeID + 1] - dataOffset[nodeID]);
+        for (int i = 0; i < leaf.count; i++) {
+          leaf.getPayload(i, line);
+          T shape = (T) stockObject.clone();
+          shape.fromText(line);
+          queue.add(new KNNEntry<T>(nodeID, shape, shape.distanceTo(qx, qy)));
         }
       } else {
-        // Sort items by distance to get the kth neighbor
-        IndexedSortable s = new IndexedSortable() {
-          @Override
-          public void swap(int i, int j) {
-            double temp_distance = distances.elementAt(i);
-            distances.set(i, distances.elementAt(j));
-            distances.set(j, temp_distance);
-            
-            T temp_shape = shapes.elementAt(i);
-            shapes.set(i, shapes.elementAt(j));
-            shapes.set(j, temp_shape);
-          }
-          @Override
-          public int compare(int i, int j) {
-            // Note. Equality is not important to check because items with the
-            // same distance can be ordered anyway. 
-        	if (distances.elementAt(i) == distances.elementAt(j))
-                  return 0;
-        	if (distances.elementAt(i) < distances.elementAt(j))
-              return -1;
-            return 1;
-          }
-        };
-        IndexedSorter sorter = new QuickSort();
-        sorter.sort(s, 0, shapes.size());
-        if (distances.elementAt(k - 1) > query_radius) {
-          result_correct = false;
-          query_radius = distances.elementAt(k);
-        } else {
-          result_correct = true;
+        int start_offset = dataOffset[nodeID];
+        int end_offset = dataOffset[nodeID + 1];
+        data.seek(start_offset + treeStartOffset);
+        // Should not close the line reader to keep the data stream open
+        @SuppressWarnings("resource")
+        LineReader lineReader = new LineReader(data);
+        while (start_offset < end_offset) {
+          start_offset += lineReader.readLine(line);
+          T shape = (T) stockObject.clone();
+          shape.fromText(line);
+          queue.add(new KNNEntry<T>(nodeID, shape, shape.distanceTo(qx, qy)));
         }
       }
-    } while (!result_correct);
-    
-    int result_size = Math.min(k,  shapes.size());
-    if (output != null) {
-      for (int i = 0; i < result_size; i++) {
-        output.collect(shapes.elementAt(i), distances.elementAt(i));
-      }
+    }
+  }
+
+  /**
+   * Returns all records in the tree in ascending order of their distance to
+   * the given query point. The records are found lazily while iterating
+   * which makes it efficient to stop after the first few records.
+   * @param qx
+   * @param qy
+   * @return
+   */
+  public KNNIterator knn(double qx, double qy) {
+    return new KNNIterator(qx, qy);
+  }
+
+  /**
+   * k nearest neighbor query. Results are reported in ascending order of
+   * their distance to the query point.
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   */
+  @Override
+  public int knn(final double qx, final double qy, int k, final ResultCollector2<T, Double> output) {
+    int result_size = 0;
+    KNNIterator neighbors = knn(qx, qy);
+    while (result_size < k && neighbors.hasNext()) {
+      T neighbor = neighbors.next();
+      result_size++;
+      if (output != null)
+        output.collect(neighbor, neighbors.getDistance());
     }
     return result_size;
   }
@@ -1187,18 +1592,241 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
   }
 
   /**
-   * Performs a spatial join between records in two R-trees
+   * Parsed records of one leaf node sorted by the x1 coordinate of their MBRs
+   * to be joined using a plane-sweep. The arrays are reused when the entry is
+   * evicted from the cache and used for another leaf.
+   */
+  static class LeafRecords {
+    /**The records of the leaf. Only the first count entries are valid*/
+    Shape[] records = new Shape[0];
+    /**The x1 and x2 coordinates of the MBR of each record*/
+    double[] x1s = new double[0], x2s = new double[0];
+    /**Number of records in the leaf*/
+    int count;
+
+    /**
+     * Makes sure that the arrays can hold the given number of records
+     * @param size
+     */
+    void ensureCapacity(int size) {
+      if (records.length < size) {
+        size = Math.max(size, records.length * 2);
+        Shape[] newRecords = new Shape[size];
+        System.arraycopy(records, 0, newRecords, 0, records.length);
+        records = newRecords;
+        x1s = new double[size];
+        x2s = new double[size];
+      }
+    }
+
+    /**
+     * Computes the MBRs of all records and sorts them by the x1 coordinate
+     */
+    void sort() {
+      for (int i = 0; i < count; i++) {
+        Rectangle mbr = records[i].getMBR();
+        if (mbr == null) {
+          // Such a record cannot overlap anything
+          x1s[i] = Double.POSITIVE_INFINITY;
+          x2s[i] = Double.NEGATIVE_INFINITY;
+        } else {
+          x1s[i] = mbr.x1;
+          x2s[i] = mbr.x2;
+        }
+      }
+      if (count <= 1)
+        return;
+      new QuickSort().sort(new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          Shape tempRecord = records[i];
+          records[i] = records[j];
+          records[j] = tempRecord;
+          double temp = x1s[i]; x1s[i] = x1s[j]; x1s[j] = temp;
+          temp = x2s[i]; x2s[i] = x2s[j]; x2s[j] = temp;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          return Double.compare(x1s[i], x1s[j]);
+        }
+      }, 0, count);
+    }
+  }
+
+  /**
+   * Reads and parses the records of leaf nodes of one tree. Consecutive text
+   * leaves are read using the same {@link LineReader} to avoid seeking the
+   * underlying stream.
+   */
+  static class LeafReader {
+    /**The tree to read its leaves*/
+    private final RTree<? extends Shape> tree;
+    /**Used to parse records from text*/
+    private final Text line = new Text2();
+    /**Used to read leaves stored in the binary layout*/
+    private BinaryLeaf leaf;
+    /**Reads leaves stored as text lines*/
+    private LineReader lineReader;
+    /**The offset right after the last text leaf that has been read*/
+    private int lastOffset = -1;
+
+    LeafReader(RTree<? extends Shape> tree) {
+      this.tree = tree;
+      if (tree.binaryLeaves)
+        leaf = new BinaryLeaf();
+    }
+
+    /**
+     * Reads all records of the given leaf node in the given leaf records
+     * reusing the objects already in it.
+     * @param nodeID
+     * @param records
+     * @throws IOException
+     */
+    void read(int nodeID, LeafRecords records) throws IOException {
+      int start_offset = tree.dataOffset[nodeID];
+      int end_offset = tree.dataOffset[nodeID + 1];
+      records.count = 0;
+      if (leaf != null) {
+        leaf.read(tree.data, start_offset + tree.treeStartOffset,
+            end_offset - start_offset);
+        records.ensureCapacity(leaf.count);
+        for (int i = 0; i < leaf.count; i++) {
+          leaf.getPayload(i, line);
+          parseRecord(records);
+        }
+      } else {
+        if (lineReader == null || lastOffset != start_offset) {
+          tree.data.seek(start_offset + tree.treeStartOffset);
+          // Buffer only one leaf rather than the default 64KB of the reader
+          lineReader = new LineReader(tree.data,
+              Math.max(end_offset - start_offset, 1));
+        }
+        while (start_offset < end_offset) {
+          start_offset += lineReader.readLine(line);
+          parseRecord(records);
+        }
+        lastOffset = start_offset;
+      }
+      records.sort();
+    }
+
+    /**Parses the record in {@link #line} and appends it to the records*/
+    private void parseRecord(LeafRecords records) {
+      records.ensureCapacity(records.count + 1);
+      if (records.records[records.count] == null)
+        records.records[records.count] = tree.stockObject.clone();
+      records.records[records.count++].fromText(line);
+    }
+  }
+
+  /**
+   * Returns the IDs of the children of all non-leaf nodes where the children
+   * of each node are sorted by the x1 coordinate of their MBRs. The children
+   * of node <code>n</code> are stored in the range
+   * <code>[n * degree, (n + 1) * degree)</code> of the returned array.
+   * The array is computed once and reused by all subsequent joins.
+   * @return
+   */
+  private int[] getChildrenSortedByX1() {
+    if (childrenSortedByX1 == null) {
+      // Children of all non-leaf nodes are the nodes 1 to nonLeafNodeCount * degree
+      final int[] children = new int[nonLeafNodeCount * degree];
+      for (int i = 0; i < children.length; i++)
+        children[i] = i + 1;
+      IndexedSortable sortable = new IndexedSortable() {
+        @Override
+        public void swap(int i, int j) {
+          int temp = children[i];
+          children[i] = children[j];
+          children[j] = temp;
+        }
+
+        @Override
+        public int compare(int i, int j) {
+          return Double.compare(nodes[children[i]].x1, nodes[children[j]].x1);
+        }
+      };
+      QuickSort sorter = new QuickSort();
+      for (int nodeID = 0; nodeID < nonLeafNodeCount; nodeID++)
+        sorter.sort(sortable, nodeID * degree, (nodeID + 1) * degree);
+      childrenSortedByX1 = children;
+    }
+    return childrenSortedByX1;
+  }
+
+  /**
+   * Pairs the children of two non-leaf nodes that overlap using a plane-sweep
+   * over their MBRs sorted by x1 and adds each pair to the given queue.
+   * @param R
+   * @param r_node
+   * @param S
+   * @param s_node
+   * @param nodesToJoin
+   */
+  private static void planeSweepChildren(RTree<? extends Shape> R, int r_node,
+      RTree<? extends Shape> S, int s_node, PriorityQueue<Long> nodesToJoin) {
+    int[] r_children = R.getChildrenSortedByX1();
+    int[] s_children = S.getChildrenSortedByX1();
+    int i = r_node * R.degree, i_end = i + R.degree;
+    int j = s_node * S.degree, j_end = j + S.degree;
+    while (i < i_end && j < j_end) {
+      Rectangle r = R.nodes[r_children[i]];
+      Rectangle s = S.nodes[s_children[j]];
+      if (r.x1 < s.x1) {
+        // Pair r with all the remaining children of s_node that start before it ends
+        for (int jj = j; jj < j_end && S.nodes[s_children[jj]].x1 <= r.x2; jj++) {
+          if (r.isIntersected(S.nodes[s_children[jj]]))
+            nodesToJoin.add((((long) r_children[i]) << 32) | s_children[jj]);
+        }
+        i++;
+      } else {
+        // Pair s with all the remaining children of r_node that start before it ends
+        for (int ii = i; ii < i_end && R.nodes[r_children[ii]].x1 <= s.x2; ii++) {
+          if (R.nodes[r_children[ii]].isIntersected(s))
+            nodesToJoin.add((((long) r_children[ii]) << 32) | s_children[j]);
+        }
+        j++;
+      }
+    }
+  }
+
+  /**
+   * Retrieves the records of a leaf node from the cache or reads them using
+   * the given reader if they are not cached.
+   * @param nodeID
+   * @param cache
+   * @param reader
+   * @return
+   * @throws IOException
+   */
+  private static LeafRecords getLeafRecords(int nodeID,
+      LruCache<Integer, LeafRecords> cache, LeafReader reader)
+      throws IOException {
+    LeafRecords records = cache.get(nodeID);
+    if (records == null) {
+      records = cache.popUnusedEntry();
+      if (records == null)
+        records = new LeafRecords();
+      reader.read(nodeID, records);
+      cache.put(nodeID, records);
+    }
+    return records;
+  }
+
+  /**
+   * Performs a spatial join between records in two R-trees.
+   * Pairs of nodes are joined using a plane-sweep over the MBRs of their
+   * children and the parsed records of leaf nodes are cached, sorted by x,
+   * to be joined with a plane-sweep as well.
    * @param R
    * @param S
    * @param output
    * @return
    * @throws IOException
-   * SuppresWarnings("resource") is used because we create LineReaders on the
-   * internal data stream of both R and S. We do not want to close the
-   * LineReader because it will subsequently close the internal data stream
-   * of R and S which is something we want to avoid because both R and S are
-   * not created by this function and it should not free these resources.
    */
+  @SuppressWarnings("unchecked")
   protected static<S1 extends Shape, S2 extends Shape> int spatialJoinDisk(
       final RTree<S1> R,
       final RTree<S2> S,
@@ -1210,22 +1838,18 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
     // Start with the two roots
     nodesToJoin.add(0L);
 
-    // Caches to keep the retrieved data records. Helpful when it reaches the
-    // leaves and starts to read objects from the two trees
-    LruCache<Integer, Shape[]> r_records_cache = new LruCache<Integer, Shape[]>(
-        R.degree * 2);
-    LruCache<Integer, Shape[]> s_records_cache = new LruCache<Integer, Shape[]>(
-        S.degree * R.degree * 4);
-    
-    Text line = new Text2();
+    // Caches to keep the parsed records of leaf nodes keyed by the leaf ID.
+    // Nodes of R are processed in order, so all pairs of one leaf in R are
+    // joined before moving to the next leaf while leaves in S are revisited
+    LruCache<Integer, LeafRecords> r_records_cache =
+        new LruCache<Integer, LeafRecords>(R.degree * 2);
+    LruCache<Integer, LeafRecords> s_records_cache =
+        new LruCache<Integer, LeafRecords>(S.degree * R.degree * 4);
+    LeafReader r_reader = new LeafReader(R);
+    LeafReader s_reader = new LeafReader(S);
     
     int result_count = 0;
 
-    LineReader r_lr = null, s_lr = null;
-    // Last offset read from r and s
-    int r_last_offset = 0;
-    int s_last_offset = 0;
-    
     while (nodesToJoin.size() > 0) {
       long nodes_to_join = nodesToJoin.remove();
       int r_node = (int) (nodes_to_join >>> 32);
@@ -1238,18 +1862,8 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
       boolean s_leaf = s_node >= S.nonLeafNodeCount;
       
       if (!r_leaf && !s_leaf) {
-        // Both are internal nodes, read child nodes under them
-        // Find overlaps using a simple cross join (TODO: Use plane-sweep)
-        for (int i = 0; i < R.degree; i++) {
-          int new_r_node = r_node * R.degree + i + 1;
-          for (int j = 0; j < S.degree; j++) {
-            int new_s_node = s_node * S.degree + j + 1;
-            if (R.nodes[new_r_node].isIntersected(S.nodes[new_s_node])) {
-              long new_pair = (((long)new_r_node) << 32) | new_s_node;
-              nodesToJoin.add(new_pair);
-            }
-          }
-        }
+        // Both are internal nodes, find overlapping child nodes
+        planeSweepChildren(R, r_node, S, s_node, nodesToJoin);
       } else if (r_leaf && !s_leaf) {
         // R is a leaf node while S is an internal node
         // Compare the leaf node in R against all child nodes of S
@@ -1271,84 +1885,33 @@ public class RTree<T extends Shape> implements Writable, Iterable<T>, Closeable
           }
         }
       } else if (r_leaf && s_leaf) {
-        // Both are leaf nodes, join objects under them
-        int r_start_offset = R.dataOffset[r_node];
-        int r_end_offset = R.dataOffset[r_node+1];
-        int s_start_offset = S.dataOffset[s_node];
-        int s_end_offset = S.dataOffset[s_node+1];
-        
-        // Read or retrieve r_records
-        Shape[] r_records = r_records_cache.get(r_start_offset);
-        if (r_records == null) {
-          int cache_key = r_start_offset;
-          r_records = r_records_cache.popUnusedEntry();
-          if (r_records == null) {
-            r_records = new Shape[R.degree * 2];
-          }
-
-          // Need to read it from stream
-          if (r_last_offset != r_start_offset) {
-            long seekTo = r_start_offset + R.treeStartOffset;
-            R.data.seek(seekTo);
-            r_lr = new LineReader(R.data);
-          }
-          int record_i = 0;
-          while (r_start_offset < r_end_offset) {
-            r_start_offset += r_lr.readLine(line);
-            if (r_records[record_i] == null)
-              r_records[record_i] = R.stockObject.clone();
-            r_records[record_i].fromText(line);
-            record_i++;
-          }
-          r_last_offset = r_start_offset;
-          // Nullify other records
-          while (record_i < r_records.length)
-            r_records[record_i++] = null;
-          r_records_cache.put(cache_key, r_records);
-        }
-
-        // Read or retrieve s_records
-        Shape[] s_records = s_records_cache.get(s_start_offset);
-        if (s_records == null) {
-          int cache_key = s_start_offset;
-
-          // Need to read it from stream
-          if (s_lr == null || s_last_offset != s_start_offset) {
-            // Need to reposition s_lr (LineReader of S)
-            long seekTo = s_start_offset + S.treeStartOffset;
-            S.data.seek(seekTo);
-            s_lr = new LineReader(S.data);
-          }
-          s_records = s_records_cache.popUnusedEntry();
-          if (s_records == null) {
-            s_records = new Shape[S.degree * 2];
-          }
-          int record_i = 0;
-          while (s_start_offset < s_end_offset) {
-            s_start_offset += s_lr.readLine(line);
-            if (s_records[record_i] == null)
-              s_records[record_i] = S.stockObject.clone();
-            s_records[record_i].fromText(line);
-            record_i++;
-          }
-          // Nullify other records
-          while (record_i < s_records.length)
-            s_records[record_i++] = null;
-          // Put in cache
-          s_records_cache.put(cache_key, s_records);
-          s_last_offset = s_start_offset;
-        }
-
-        // Do Cartesian product between records to find overlapping pairs
-        for (int i_r = 0; i_r < r_records.length && r_records[i_r] != null; i_r++) {
-          for (int i_s = 0; i_s < s_records.length && s_records[i_s] != null; i_s++) {
-            if (r_records[i_r].isIntersected(s_records[i_s]) &&
-                !r_records[i_r].equals(s_records[i_s])) {
-              result_count++;
-              if (output != null) {
-                output.collect((S1)r_records[i_r], (S2)s_records[i_s]);
+        // Both are leaf nodes, join objects under them using a plane-sweep
+        LeafRecords rs = getLeafRecords(r_node, r_records_cache, r_reader);
+        LeafRecords ss = getLeafRecords(s_node, s_records_cache, s_reader);
+        int i = 0, j = 0;
+        while (i < rs.count && j < ss.count) {
+          if (rs.x1s[i] < ss.x1s[j]) {
+            Shape r = rs.records[i];
+            for (int jj = j; jj < ss.count && ss.x1s[jj] <= rs.x2s[i]; jj++) {
+              Shape s = ss.records[jj];
+              if (r.isIntersected(s) && !r.equals(s)) {
+                result_count++;
+                if (output != null)
+                  output.collect((S1) r, (S2) s);
+              }
+            }
+            i++;
+          } else {
+            Shape s = ss.records[j];
+            for (int ii = i; ii < rs.count && rs.x1s[ii] <= ss.x2s[j]; ii++) {
+              Shape r = rs.records[ii];
+              if (r.isIntersected(s) && !r.equals(s)) {
+                result_count++;
+                if (output != null)
+                  output.collect((S1) r, (S2) s);
               }
             }
+            j++;
           }
         }
       }
@@ -0,0 +1,229 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.indexing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.Vector;
+
+import org.apache.hadoop.util.IndexedSortable;
+import org.apache.hadoop.util.IndexedSorter;
+import org.apache.hadoop.util.QuickSort;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+
+/**
+ * Compares the best-first kNN query of {@link RTree.KNNIterator} with the
+ * older method that runs range queries of an increasing radius
+ * ({@link #knnExpandingRange(RTree, double, double, int, ResultCollector2)}).
+ * Both methods run the same random queries on an R-tree of random points
+ * and the sums of the returned distances are printed to make sure that both
+ * of them return the same answer.
+ *
+ * Usage: RTreeKNNBenchmark [count:&lt;n&gt;] [queries:&lt;q&gt;] [k:1,10,1000] [-binary]
+ * @author Ahmed Eldawy
+ *
+ */
+public class RTreeKNNBenchmark {
+
+  /**
+   * Builds an R-tree of random points in the square [0, 1000)^2
+   * @param count - number of points
+   * @param binaryLeaves - whether to store leaves in the binary layout
+   * @return
+   * @throws IOException
+   */
+  static RTree<Point> buildTree(int count, boolean binaryLeaves) throws IOException {
+    Random random = new Random(0);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < count; i++)
+      text.append(random.nextDouble() * 1000).append(',')
+        .append(random.nextDouble() * 1000).append('\n');
+    byte[] bytes = text.toString().getBytes();
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    RTree.bulkLoadWrite(bytes, 0, bytes.length, 4096 / RTree.NodeSize, out,
+        new Point(), true, binaryLeaves);
+    out.close();
+    RTree<Point> rtree = new RTree<Point>();
+    rtree.setStockObject(new Point());
+    rtree.setBinaryLeaves(binaryLeaves);
+    rtree.readFields(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    return rtree;
+  }
+
+  /**
+   * k nearest neighbor query that runs range queries of an increasing radius
+   * around the query point until it finds k records within the radius. This
+   * is the method that {@link RTree#knn(double, double, int, ResultCollector2)}
+   * used before {@link RTree.KNNIterator} and it is only kept here to compare
+   * against it.
+   * @param rtree
+   * @param qx
+   * @param qy
+   * @param k
+   * @param output
+   */
+  @SuppressWarnings("unchecked")
+  static <T extends Shape> int knnExpandingRange(RTree<T> rtree,
+      final double qx, final double qy, int k,
+      final ResultCollector2<T, Double> output) {
+    Rectangle mbr = rtree.getMBR();
+    double query_area = ((mbr.x2 - mbr.x1) * (mbr.y2 - mbr.y1)) * k / rtree.getElementCount();
+    double query_radius = Math.sqrt(query_area / Math.PI);
+
+    boolean result_correct;
+    final Vector<Double> distances = new Vector<Double>();
+    final Vector<T> shapes = new Vector<T>();
+    // Find results in the range and increase this range if needed to ensure
+    // correctness of the answer
+    do {
+      // Initialize result and query range
+      distances.clear(); shapes.clear();
+      Rectangle queryRange = new Rectangle();
+      queryRange.x1 = qx - query_radius;
+      queryRange.y1 = qy - query_radius;
+      queryRange.x2 = qx + query_radius;
+      queryRange.y2 = qy + query_radius;
+      // Retrieve all results in range
+      rtree.search(queryRange, new ResultCollector<T>() {
+        @Override
+        public void collect(T shape) {
+          distances.add(shape.distanceTo(qx, qy));
+          shapes.add((T) shape.clone());
+        }
+      });
+      if (shapes.size() < k) {
+        // Didn't find k elements in range, double the range to get more items
+        if (shapes.size() == rtree.getElementCount()) {
+          // Already returned all possible elements
+          result_correct = true;
+        } else {
+          query_radius *= 2;
+          result_correct = false;
+        }
+      } else {
+        // Sort items by distance to get the kth neighbor
+        IndexedSortable s = new IndexedSortable() {
+          @Override
+          public void swap(int i, int j) {
+            double temp_distance = distances.elementAt(i);
+            distances.set(i, distances.elementAt(j));
+            distances.set(j, temp_distance);
+            
+            T temp_shape = shapes.elementAt(i);
+            shapes.set(i, shapes.elementAt(j));
+            shapes.set(j, temp_shape);
+          }
+          @Override
+          public int compare(int i, int j) {
+            // Note. Equality is not important to check because items with the
+            // same distance can be ordered anyway. 
+        	if (distances.elementAt(i) == distances.elementAt(j))
+                  return 0;
+        	if (distances.elementAt(i) < distances.elementAt(j))
+              return -1;
+            return 1;
+          }
+        };
+        IndexedSorter sorter = new QuickSort();
+        sorter.sort(s, 0, shapes.size());
+        // The search range is a square so it may contain exactly k records
+        // where the kth one is in a corner farther than query_radius. The
+        // range is expanded to the distance of the kth record which is at
+        // index k - 1 as there might be no record at index k.
+        if (distances.elementAt(k - 1) > query_radius) {
+          result_correct = false;
+          query_radius = distances.elementAt(k - 1);
+        } else {
+          result_correct = true;
+        }
+      }
+    } while (!result_correct);
+    
+    int result_size = Math.min(k,  shapes.size());
+    if (output != null) {
+      for (int i = 0; i < result_size; i++) {
+        output.collect(shapes.elementAt(i), distances.elementAt(i));
+      }
+    }
+    return result_size;
+  }
+
+  /**Adds up all the distances of the results to compare both methods*/
+  static class DistanceSum implements ResultCollector2<Point, Double> {
+    double sum;
+
+    @Override
+    public void collect(Point r, Double s) {
+      sum += s;
+    }
+  }
+
+  /**
+   * Runs all the queries using one of the two methods
+   * @return the sum of all distances of the results
+   */
+  static double runQueries(RTree<Point> rtree, Point[] queries, int k,
+      boolean bestFirst) {
+    DistanceSum distances = new DistanceSum();
+    for (Point query : queries) {
+      if (bestFirst)
+        rtree.knn(query.x, query.y, k, distances);
+      else
+        knnExpandingRange(rtree, query.x, query.y, k, distances);
+    }
+    return distances.sum;
+  }
+
+  public static void main(String[] args) throws IOException {
+    int count = 1000000;
+    int numQueries = 1000;
+    String ks = "1,10,1000";
+    boolean binaryLeaves = false;
+    for (String arg : args) {
+      if (arg.startsWith("count:"))
+        count = Integer.parseInt(arg.substring(6));
+      else if (arg.startsWith("queries:"))
+        numQueries = Integer.parseInt(arg.substring(8));
+      else if (arg.startsWith("k:"))
+        ks = arg.substring(2);
+      else if (arg.equals("-binary"))
+        binaryLeaves = true;
+    }
+    RTree<Point> rtree = buildTree(count, binaryLeaves);
+    Random random = new Random(1);
+    Point[] queries = new Point[numQueries];
+    for (int i = 0; i < numQueries; i++)
+      queries[i] = new Point(random.nextDouble() * 1000, random.nextDouble() * 1000);
+
+    // Warm up the JIT before measuring
+    runQueries(rtree, queries, 10, true);
+    runQueries(rtree, queries, 10, false);
+    for (String kStr : ks.split(",")) {
+      int k = Integer.parseInt(kStr);
+      long t1 = System.nanoTime();
+      double sum1 = runQueries(rtree, queries, k, false);
+      long t2 = System.nanoTime();
+      double sum2 = runQueries(rtree, queries, k, true);
+      long t3 = System.nanoTime();
+      System.out.printf("k: %d, expanding range: %.3f seconds (%f), best-first: %.3f seconds (%f)\n",
+          k, (t2 - t1) / 1E9, sum1, (t3 - t2) / 1E9, sum2);
+    }
+    rtree.close();
+  }
+}
@@ -0,0 +1,466 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+
+/**
+ * A thread-safe cache for random reads from many small files that are read
+ * over and over again. Files written by {@link RandomCompressedOutputStream}
+ * are decompressed one block at a time and the decompressed blocks are kept
+ * in a shared LRU cache bounded by their total size, so that concurrent and
+ * repeated reads of the same block decompress it only once. Files that are
+ * not compressed are memory-mapped using {@link MappedFile} when possible.
+ * The lookup table of each file is cached as well to avoid reading it with
+ * every read.
+ * @author Ahmed Eldawy
+ *
+ */
+public class DecompressedBlockCache {
+  private static final Log LOG = LogFactory.getLog(DecompressedBlockCache.class);
+
+  /**The first two bytes of a block compressed using GZIP*/
+  private static final int GZIPMagic = 0x1f8b;
+
+  /**Cached information about one file*/
+  private static class FileInfo {
+    /**The modification time of the file when it was cached*/
+    final long modificationTime;
+    /**Start offsets of the blocks in the compressed file followed by its end*/
+    long[] blockOffsetsInCompressedFile;
+    /**Start offsets of the blocks in the raw file followed by its end*/
+    long[] blockOffsetsInRawFile;
+    /**The contents of an uncompressed file if mapped in memory*/
+    MappedFile mappedFile;
+    /**Number of open streams that read the mapped file*/
+    int numOfReaders;
+    /**Set when the file is removed from the cache*/
+    boolean evicted;
+
+    FileInfo(long modificationTime) {
+      this.modificationTime = modificationTime;
+    }
+
+    boolean isCompressed() {
+      return blockOffsetsInRawFile != null;
+    }
+
+    long getLength() {
+      return isCompressed() ? blockOffsetsInRawFile[blockOffsetsInRawFile.length - 1]
+          : mappedFile.getBuffer().capacity();
+    }
+  }
+
+  /**The key of a decompressed block in the cache*/
+  private static class BlockID {
+    final FileInfo file;
+    final int blockIndex;
+
+    BlockID(FileInfo file, int blockIndex) {
+      this.file = file;
+      this.blockIndex = blockIndex;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      BlockID other = (BlockID) obj;
+      return this.file == other.file && this.blockIndex == other.blockIndex;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(file) * 31 + blockIndex;
+    }
+  }
+
+  /**Maximum number of bytes of decompressed blocks to keep in memory*/
+  private final long capacity;
+
+  /**Total size of all decompressed blocks currently in the cache*/
+  private long cachedBytes;
+
+  /**Cached information of recently used files in access order*/
+  private final Map<Path, FileInfo> files;
+
+  /**Recently used decompressed blocks in access order*/
+  private final Map<BlockID, byte[]> blocks;
+
+  /**
+   * Creates a new cache
+   * @param capacity - maximum total size of decompressed blocks in bytes
+   * @param maxFiles - maximum number of files to keep their information
+   */
+  public DecompressedBlockCache(long capacity, final int maxFiles) {
+    this.capacity = capacity;
+    this.files = new LinkedHashMap<Path, FileInfo>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Path, FileInfo> eldest) {
+        if (size() <= maxFiles)
+          return false;
+        evict(eldest.getValue());
+        return true;
+      }
+    };
+    this.blocks = new LinkedHashMap<BlockID, byte[]>(16, 0.75f, true);
+  }
+
+  /**
+   * Opens the given file for reading through this cache. The returned stream
+   * should be used by one thread and closed when done.
+   * @param fs
+   * @param p
+   * @return
+   * @throws IOException
+   */
+  public FSDataInputStream open(FileSystem fs, Path p) throws IOException {
+    FileStatus fileStatus = fs.getFileStatus(p);
+    FileInfo fileInfo = acquireFileInfo(p, fileStatus.getModificationTime(), null);
+    if (fileInfo == null) {
+      FileInfo newFileInfo = readFileInfo(fs, p, fileStatus);
+      fileInfo = acquireFileInfo(p, fileStatus.getModificationTime(), newFileInfo);
+    }
+    if (!fileInfo.isCompressed() && fileInfo.mappedFile == null) {
+      // Neither compressed nor mapped. Read it directly
+      releaseReader(fileInfo);
+      return fs.open(p);
+    }
+    return new FSDataInputStream(new CachedInputStream(fs, p, fileInfo));
+  }
+
+  /**
+   * Returns the cached information of a file and registers a new reader of
+   * it so that its mapped buffer is not released while being read.
+   * @param p
+   * @param modificationTime - the current modification time of the file
+   * @param newFileInfo - the information to cache if the file is not
+   *  already in the cache
+   * @return the cached information or <code>null</code> if the file is not
+   *  in the cache and no new information is given
+   */
+  private synchronized FileInfo acquireFileInfo(Path p, long modificationTime,
+      FileInfo newFileInfo) {
+    FileInfo fileInfo = files.get(p);
+    if (fileInfo != null && fileInfo.modificationTime != modificationTime) {
+      // The file has been overwritten since it was cached
+      files.remove(p);
+      evict(fileInfo);
+      fileInfo = null;
+    }
+    if (newFileInfo != null) {
+      if (fileInfo == null) {
+        fileInfo = newFileInfo;
+        files.put(p, fileInfo);
+      } else {
+        // Another thread has cached the same file in the meantime
+        evict(newFileInfo);
+      }
+    }
+    if (fileInfo != null)
+      fileInfo.numOfReaders++;
+    return fileInfo;
+  }
+
+  /**
+   * Reads the information of a file that is not in the cache
+   * @param fs
+   * @param p
+   * @param fileStatus
+   * @return
+   * @throws IOException
+   */
+  private static FileInfo readFileInfo(FileSystem fs, Path p,
+      FileStatus fileStatus) throws IOException {
+    FileInfo fileInfo = new FileInfo(fileStatus.getModificationTime());
+    long totalLength = fileStatus.getLen();
+    FSDataInputStream in = fs.open(p);
+    try {
+      if (totalLength >= 2 && in.readUnsignedShort() == GZIPMagic) {
+        // Read the lookup table that is stored at the end of the file
+        in.seek(totalLength - 4);
+        int numberOfBlocks = in.readInt();
+        fileInfo.blockOffsetsInCompressedFile = new long[numberOfBlocks + 1];
+        fileInfo.blockOffsetsInRawFile = new long[numberOfBlocks + 1];
+        in.seek(totalLength - 4 - numberOfBlocks * (8 + 8));
+        for (int i = 1; i <= numberOfBlocks; i++) {
+          fileInfo.blockOffsetsInCompressedFile[i] = in.readLong();
+          fileInfo.blockOffsetsInRawFile[i] = in.readLong();
+        }
+      } else {
+        fileInfo.mappedFile = MappedFile.map(fs, p, fs.getConf());
+      }
+    } finally {
+      in.close();
+    }
+    return fileInfo;
+  }
+
+  /**
+   * Removes all cached blocks of a file that is no longer in the cache and
+   * releases its mapped buffer once no streams are reading it.
+   * Must be called while holding the lock of this cache.
+   * @param fileInfo
+   */
+  private void evict(FileInfo fileInfo) {
+    fileInfo.evicted = true;
+    if (fileInfo.isCompressed()) {
+      for (int i = 0; i < fileInfo.blockOffsetsInRawFile.length - 1; i++) {
+        byte[] block = blocks.remove(new BlockID(fileInfo, i));
+        if (block != null)
+          cachedBytes -= block.length;
+      }
+    }
+    releaseIfUnused(fileInfo);
+  }
+
+  private void releaseIfUnused(FileInfo fileInfo) {
+    if (fileInfo.evicted && fileInfo.numOfReaders == 0 && fileInfo.mappedFile != null) {
+      try {
+        fileInfo.mappedFile.close();
+      } catch (IOException e) {
+        LOG.warn("Error releasing a mapped file", e);
+      }
+      fileInfo.mappedFile = null;
+    }
+  }
+
+  private synchronized void releaseReader(FileInfo fileInfo) {
+    fileInfo.numOfReaders--;
+    releaseIfUnused(fileInfo);
+  }
+
+  private synchronized byte[] getCachedBlock(BlockID blockID) {
+    return blocks.get(blockID);
+  }
+
+  /**
+   * Adds a decompressed block to the cache and removes the least recently
+   * used blocks to keep the cache within its capacity.
+   * @param blockID
+   * @param block
+   */
+  private synchronized void cacheBlock(BlockID blockID, byte[] block) {
+    if (blockID.file.evicted || block.length > capacity)
+      return;
+    byte[] oldBlock = blocks.put(blockID, block);
+    if (oldBlock != null)
+      cachedBytes -= oldBlock.length;
+    cachedBytes += block.length;
+    Iterator<byte[]> iter = blocks.values().iterator();
+    while (cachedBytes > capacity && iter.hasNext()) {
+      cachedBytes -= iter.next().length;
+      iter.remove();
+    }
+  }
+
+  /**
+   * A stream that reads a file from the blocks in the cache.
+   * @author Ahmed Eldawy
+   *
+   */
+  private class CachedInputStream extends InputStream implements Seekable, PositionedReadable {
+    private final FileSystem fs;
+    private final Path path;
+    private final FileInfo fileInfo;
+    /**Opened on the first block that is not in the cache*/
+    private FSDataInputStream compressedIn;
+
+    /**The block that contains the current position*/
+    private ByteBuffer currentBlock;
+    /**The position of the current block in the file*/
+    private long currentBlockStart;
+    /**The current position in the file*/
+    private long pos;
+    /**Total length of the file*/
+    private final long length;
+    private boolean closed;
+
+    CachedInputStream(FileSystem fs, Path path, FileInfo fileInfo) {
+      this.fs = fs;
+      this.path = path;
+      this.fileInfo = fileInfo;
+      this.length = fileInfo.getLength();
+      if (!fileInfo.isCompressed())
+        this.currentBlock = fileInfo.mappedFile.getBuffer().duplicate();
+    }
+
+    /**
+     * Makes sure that the current block contains the current position
+     * @return <code>false</code> if the end of file has been reached
+     * @throws IOException
+     */
+    private boolean ensureBlock() throws IOException {
+      if (currentBlock != null && pos >= currentBlockStart
+          && pos < currentBlockStart + currentBlock.capacity())
+        return true;
+      if (!fileInfo.isCompressed() || pos >= length)
+        return false;
+      long[] rawOffsets = fileInfo.blockOffsetsInRawFile;
+      // Find the block that contains the current position
+      int s = 0, e = rawOffsets.length - 1;
+      while (s < e) {
+        int m = (s + e) / 2;
+        if (rawOffsets[m + 1] <= pos)
+          s = m + 1;
+        else
+          e = m;
+      }
+      BlockID blockID = new BlockID(fileInfo, s);
+      byte[] block = getCachedBlock(blockID);
+      if (block == null) {
+        block = decompressBlock(s);
+        cacheBlock(blockID, block);
+      }
+      currentBlock = ByteBuffer.wrap(block);
+      currentBlockStart = rawOffsets[s];
+      return true;
+    }
+
+    private byte[] decompressBlock(int blockIndex) throws IOException {
+      if (compressedIn == null)
+        compressedIn = fs.open(path);
+      long[] compressedOffsets = fileInfo.blockOffsetsInCompressedFile;
+      long[] rawOffsets = fileInfo.blockOffsetsInRawFile;
+      byte[] compressed = new byte[(int) (compressedOffsets[blockIndex + 1]
+          - compressedOffsets[blockIndex])];
+      compressedIn.readFully(compressedOffsets[blockIndex], compressed);
+      byte[] block = new byte[(int) (rawOffsets[blockIndex + 1] - rawOffsets[blockIndex])];
+      InputStream decompressedIn = new GZIPInputStream(new ByteArrayInputStream(compressed));
+      int length = 0;
+      int numBytesRead;
+      while (length < block.length &&
+          (numBytesRead = decompressedIn.read(block, length, block.length - length)) > 0)
+        length += numBytesRead;
+      decompressedIn.close();
+      if (length < block.length)
+        throw new EOFException("Block #"+blockIndex+" of '"+path+"' is truncated");
+      return block;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensureBlock())
+        return -1;
+      return currentBlock.get((int) (pos++ - currentBlockStart)) & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      int totalRead = 0;
+      while (len > 0 && ensureBlock()) {
+        int offsetInBlock = (int) (pos - currentBlockStart);
+        int n = Math.min(len, currentBlock.capacity() - offsetInBlock);
+        currentBlock.position(offsetInBlock);
+        currentBlock.get(b, off, n);
+        pos += n;
+        off += n;
+        len -= n;
+        totalRead += n;
+      }
+      return totalRead == 0 ? -1 : totalRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long canSkip = Math.max(0, Math.min(n, length - pos));
+      pos += canSkip;
+      return canSkip;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(Integer.MAX_VALUE, length - pos);
+    }
+
+    @Override
+    public long getPos() throws IOException {
+      return pos;
+    }
+
+    @Override
+    public void seek(long newPos) throws IOException {
+      if (newPos < 0 || newPos > length)
+        throw new EOFException("Cannot seek to "+newPos+" in '"+path+"'");
+      this.pos = newPos;
+    }
+
+    @Override
+    public boolean seekToNewSource(long targetPos) throws IOException {
+      return false;
+    }
+
+    @Override
+    public int read(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      long oldPos = pos;
+      seek(position);
+      try {
+        return read(buffer, offset, length);
+      } finally {
+        pos = oldPos;
+      }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer, int offset, int length)
+        throws IOException {
+      long oldPos = pos;
+      seek(position);
+      try {
+        while (length > 0) {
+          int n = read(buffer, offset, length);
+          if (n < 0)
+            throw new EOFException("Reached the end of '"+path+"'");
+          offset += n;
+          length -= n;
+        }
+      } finally {
+        pos = oldPos;
+      }
+    }
+
+    @Override
+    public void readFully(long position, byte[] buffer) throws IOException {
+      readFully(position, buffer, 0, buffer.length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (compressedIn != null) {
+        compressedIn.close();
+        compressedIn = null;
+      }
+      if (!closed) {
+        closed = true;
+        currentBlock = null;
+        releaseReader(fileInfo);
+      }
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.Text;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.io.WKBWriter;
+
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * Measures the throughput of
+ * {@link TextSerializerHelper#consumeGeometryJTS(Text, char)} when it is
+ * called from many threads at the same time, the way it is called by
+ * {@link Parallel#forEach(int, RunnableRange, int)} in local operations.
+ * Half of the generated polygons are stored as WKT and the other half as
+ * hexed WKB to exercise both parsers.
+ *
+ * Usage: GeometryParseBenchmark [count:&lt;n&gt;] [threads:1,4,16,32]
+ * @author Ahmed Eldawy
+ *
+ */
+public class GeometryParseBenchmark {
+
+  /**
+   * Generates random polygons serialized as text lines
+   * @param count - number of polygons
+   * @param numPoints - number of points in each polygon
+   * @return
+   */
+  static Text[] generatePolygons(int count, int numPoints) {
+    Random random = new Random(0);
+    WKBWriter wkbWriter = new WKBWriter();
+    Text[] lines = new Text[count];
+    for (int i = 0; i < count; i++) {
+      double cx = random.nextDouble() * 1000;
+      double cy = random.nextDouble() * 1000;
+      Coordinate[] coords = new Coordinate[numPoints + 1];
+      for (int j = 0; j < numPoints; j++) {
+        double angle = 2 * Math.PI * j / numPoints;
+        double r = 1 + random.nextDouble();
+        coords[j] = new Coordinate(cx + r * Math.cos(angle), cy + r * Math.sin(angle));
+      }
+      coords[numPoints] = coords[0];
+      Geometry polygon = TextSerializerHelper.JTSFactory.createPolygon(
+          TextSerializerHelper.JTSFactory.createLinearRing(coords), null);
+      if (i % 2 == 0)
+        lines[i] = new Text(polygon.toText());
+      else
+        lines[i] = new Text(TextSerializerHelper.bytesToHex(wkbWriter.write(polygon)));
+    }
+    return lines;
+  }
+
+  /**
+   * Parses all the given lines using the given number of threads.
+   * @return the total number of parsed points to prevent dead code removal
+   */
+  static long parseAll(final Text[] lines, int numThreads) throws InterruptedException {
+    List<Long> results = Parallel.forEach(lines.length, new RunnableRange<Long>() {
+      @Override
+      public Long run(int i1, int i2) {
+        Text line = new Text();
+        long numPoints = 0;
+        for (int i = i1; i < i2; i++) {
+          line.set(lines[i]);
+          numPoints += TextSerializerHelper.consumeGeometryJTS(line, '\0').getNumPoints();
+        }
+        return numPoints;
+      }
+    }, numThreads);
+    long total = 0;
+    for (Long result : results)
+      total += result;
+    return total;
+  }
+
+  public static void main(String[] args) throws InterruptedException {
+    int count = 200000;
+    String threads = "1,4,16,32";
+    for (String arg : args) {
+      if (arg.startsWith("count:"))
+        count = Integer.parseInt(arg.substring(6));
+      else if (arg.startsWith("threads:"))
+        threads = arg.substring(8);
+    }
+    Text[] lines = generatePolygons(count, 32);
+    // Warm up the JIT before measuring
+    parseAll(lines, 1);
+    for (String t : threads.split(",")) {
+      int numThreads = Integer.parseInt(t);
+      long t1 = System.nanoTime();
+      long checksum = parseAll(lines, numThreads);
+      long t2 = System.nanoTime();
+      double seconds = (t2 - t1) / 1E9;
+      System.out.printf("threads: %d, time: %.3f seconds, throughput: %.0f geometries/second (%d points)\n",
+          numThreads, seconds, count / seconds, checksum);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.EnumSet;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+
+/**
+ * A read-only memory-mapped view of a whole file. Local files are mapped
+ * directly using {@link FileChannel#map(FileChannel.MapMode, long, long)}.
+ * HDFS files are mapped using the zero-copy read API of HDFS which is only
+ * possible if short-circuit local reads are enabled and the whole file is
+ * stored in one local block. If the file cannot be mapped, {@link #map}
+ * returns <code>null</code> and the caller should fall back to streams.
+ * @author Ahmed Eldawy
+ *
+ */
+public class MappedFile implements Closeable {
+  private static final Log LOG = LogFactory.getLog(MappedFile.class);
+
+  /**Whether to memory-map files when possible*/
+  public static final String MMAP_FILES = "spatialHadoop.storage.MMapFiles";
+
+  /**The mapped contents of the file*/
+  private ByteBuffer buffer;
+
+  /**The HDFS stream that owns the buffer if it is mapped through HDFS*/
+  private FSDataInputStream hdfsIn;
+
+  /**The buffer returned by HDFS which has to be released when done*/
+  private ByteBuffer hdfsBuffer;
+
+  private MappedFile(ByteBuffer buffer, FSDataInputStream hdfsIn,
+      ByteBuffer hdfsBuffer) {
+    this.buffer = buffer;
+    this.hdfsIn = hdfsIn;
+    this.hdfsBuffer = hdfsBuffer;
+  }
+
+  /**
+   * Returns the mapped contents of the file. Use absolute get methods or a
+   * {@link ByteBuffer#duplicate()} as the buffer might be shared.
+   * @return
+   */
+  public ByteBuffer getBuffer() {
+    return buffer;
+  }
+
+  /**
+   * Maps the given file in memory if possible.
+   * @param fs
+   * @param path
+   * @param conf
+   * @return the mapped file or <code>null</code> if it cannot be mapped
+   * @throws IOException
+   */
+  public static MappedFile map(FileSystem fs, Path path, Configuration conf)
+      throws IOException {
+    if (!conf.getBoolean(MMAP_FILES, true))
+      return null;
+    long length = fs.getFileStatus(path).getLen();
+    if (length > Integer.MAX_VALUE)
+      return null; // A ByteBuffer cannot address more than 2GB
+    File localFile = null;
+    if (fs instanceof LocalFileSystem)
+      localFile = ((LocalFileSystem) fs).pathToFile(path);
+    else if (fs instanceof RawLocalFileSystem)
+      localFile = ((RawLocalFileSystem) fs).pathToFile(path);
+    if (localFile != null) {
+      RandomAccessFile raf = new RandomAccessFile(localFile, "r");
+      try {
+        // The mapping remains valid after the file is closed
+        ByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        return new MappedFile(buffer, null, null);
+      } finally {
+        raf.close();
+      }
+    }
+    if (conf.getBoolean("dfs.client.read.shortcircuit", false))
+      return mapHDFS(fs, path, (int) length);
+    return null;
+  }
+
+  /**
+   * Maps an HDFS file using the zero-copy read API that was added in
+   * Hadoop 2.3. Reflection is used to keep the code compatible with older
+   * versions of Hadoop which do not have this API.
+   * @param fs
+   * @param path
+   * @param length
+   * @return
+   * @throws IOException
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static MappedFile mapHDFS(FileSystem fs, Path path, int length)
+      throws IOException {
+    FSDataInputStream in = fs.open(path);
+    try {
+      Class<?> bufferPoolClass = Class.forName("org.apache.hadoop.io.ByteBufferPool");
+      Class<? extends Enum> readOptionClass =
+          (Class<? extends Enum>) Class.forName("org.apache.hadoop.fs.ReadOption");
+      Method readMethod = FSDataInputStream.class.getMethod("read",
+          bufferPoolClass, int.class, EnumSet.class);
+      EnumSet options = EnumSet.of(Enum.valueOf(readOptionClass, "SKIP_CHECKSUMS"));
+      // A null buffer pool allows only zero-copy reads (i.e., mmap)
+      ByteBuffer buffer = (ByteBuffer) readMethod.invoke(in, null, length, options);
+      if (buffer != null && buffer.remaining() == length)
+        return new MappedFile(buffer.slice(), in, buffer);
+      if (buffer != null)
+        releaseHDFSBuffer(in, buffer);
+    } catch (Exception e) {
+      // API not available or the file could not be mapped
+      LOG.debug("Cannot map '"+path+"'", e);
+    }
+    in.close();
+    return null;
+  }
+
+  private static void releaseHDFSBuffer(FSDataInputStream in, ByteBuffer buffer) {
+    try {
+      Method releaseMethod = FSDataInputStream.class.getMethod("releaseBuffer",
+          ByteBuffer.class);
+      releaseMethod.invoke(in, buffer);
+    } catch (Exception e) {
+      LOG.warn("Error releasing mapped buffer", e);
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (hdfsIn != null) {
+      releaseHDFSBuffer(hdfsIn, hdfsBuffer);
+      hdfsIn.close();
+      hdfsBuffer = null;
+      hdfsIn = null;
+    }
+    buffer = null;
+  }
+}
@@ -0,0 +1,253 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.io;
+
+import java.nio.charset.CharacterCodingException;
+
+import org.apache.hadoop.io.Text;
+
+/**
+ * Parses values from a {@link Text} in place. Unlike the consume methods in
+ * {@link TextSerializerHelper}, reading a value only advances the cursor and
+ * does not remove the value from the text. After all values are read,
+ * {@link #consume()} removes everything read so far from the text in one
+ * shot. This keeps the contract of
+ * {@link TextSerializable#fromText(Text)} where each class consumes its own
+ * part of the text and leaves the rest to its subclasses.
+ *
+ * Numbers are parsed directly from the underlying byte array without
+ * creating any intermediate strings.
+ * @author Ahmed Eldawy
+ *
+ */
+public class TextCursor {
+  /**Exact powers of ten that can be represented as a double*/
+  private static final double[] PowersOf10 = {
+    1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+    1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+  };
+
+  /**Largest mantissa that can be exactly represented as a double*/
+  private static final long MaxExactMantissa = 1L << 53;
+
+  /**The text being parsed*/
+  private Text text;
+
+  /**Position of the next byte to read*/
+  private int pos;
+
+  public TextCursor() {
+  }
+
+  public TextCursor(Text text) {
+    set(text);
+  }
+
+  /**
+   * Resets this cursor to the beginning of the given text
+   * @param text
+   */
+  public void set(Text text) {
+    this.text = text;
+    this.pos = 0;
+  }
+
+  /**
+   * Position of the next byte to be read
+   * @return
+   */
+  public int getPosition() {
+    return pos;
+  }
+
+  /**
+   * Whether there are more bytes to read in the text
+   * @return
+   */
+  public boolean hasMore() {
+    return pos < text.getLength();
+  }
+
+  /**
+   * Skips the given number of bytes
+   * @param n
+   */
+  public void skip(int n) {
+    pos = Math.min(pos + n, text.getLength());
+  }
+
+  /**
+   * Skips the separator if it is the next byte in the text
+   * @param separator
+   */
+  private void skipSeparator(char separator) {
+    if (pos < text.getLength() && text.getBytes()[pos] == separator)
+      pos++;
+  }
+
+  /**
+   * Reads a double and advances the cursor after it. If the double is
+   * followed by the given separator, the separator is skipped as well.
+   * @param separator
+   * @return
+   */
+  public double nextDouble(char separator) {
+    byte[] bytes = text.getBytes();
+    int end = text.getLength();
+    int start = pos;
+    int numberEnd = pos;
+    while (numberEnd < end && isDoubleChar(bytes[numberEnd]))
+      numberEnd++;
+
+    // Fast path. Accumulate all digits in one long and apply the decimal
+    // exponent in one floating point operation. This is exact as long as
+    // both the mantissa and the power of ten are exactly representable.
+    int i = start;
+    boolean negative = false;
+    if (i < numberEnd && (bytes[i] == '-' || bytes[i] == '+'))
+      negative = bytes[i++] == '-';
+    long mantissa = 0;
+    int exp10 = 0;
+    int digits = 0;
+    boolean exact = true;
+    while (i < numberEnd && bytes[i] >= '0' && bytes[i] <= '9') {
+      if (mantissa < MaxExactMantissa)
+        mantissa = mantissa * 10 + (bytes[i] - '0');
+      else
+        exact = false;
+      digits++;
+      i++;
+    }
+    if (i < numberEnd && bytes[i] == '.') {
+      i++;
+      while (i < numberEnd && bytes[i] >= '0' && bytes[i] <= '9') {
+        if (mantissa < MaxExactMantissa) {
+          mantissa = mantissa * 10 + (bytes[i] - '0');
+          exp10--;
+        } else {
+          exact = false;
+        }
+        digits++;
+        i++;
+      }
+    }
+    if (i < numberEnd && (bytes[i] == 'e' || bytes[i] == 'E')) {
+      i++;
+      boolean negativeExp = false;
+      if (i < numberEnd && (bytes[i] == '-' || bytes[i] == '+'))
+        negativeExp = bytes[i++] == '-';
+      int exp = 0;
+      int expDigits = 0;
+      while (i < numberEnd && bytes[i] >= '0' && bytes[i] <= '9' && exp < 10000) {
+        exp = exp * 10 + (bytes[i++] - '0');
+        expDigits++;
+      }
+      if (expDigits == 0)
+        exact = false;
+      exp10 += negativeExp ? -exp : exp;
+    }
+
+    double d;
+    if (exact && digits > 0 && i == numberEnd && mantissa <= MaxExactMantissa
+        && exp10 >= -22 && exp10 <= 22) {
+      d = mantissa;
+      d = exp10 < 0 ? d / PowersOf10[-exp10] : d * PowersOf10[exp10];
+      if (negative)
+        d = -d;
+    } else {
+      // Too many digits or a malformed number. Fall back to the slow path
+      d = Double.parseDouble(new String(bytes, start, numberEnd - start));
+    }
+    pos = numberEnd;
+    skipSeparator(separator);
+    return d;
+  }
+
+  private static boolean isDoubleChar(byte b) {
+    return (b >= '0' && b <= '9') || b == 'e' || b == 'E' || b == '-'
+        || b == '+' || b == '.';
+  }
+
+  /**
+   * Reads a decimal long and advances the cursor after it. If the long is
+   * followed by the given separator, the separator is skipped as well.
+   * @param separator
+   * @return
+   */
+  public long nextLong(char separator) {
+    byte[] bytes = text.getBytes();
+    int end = text.getLength();
+    int start = pos;
+    while (pos < end && TextSerializerHelper.DecimalChars[bytes[pos] & 0xff])
+      pos++;
+    long l = TextSerializerHelper.deserializeLong(bytes, start, pos - start);
+    skipSeparator(separator);
+    return l;
+  }
+
+  /**
+   * Reads a decimal integer and advances the cursor after it. If the integer
+   * is followed by the given separator, the separator is skipped as well.
+   * @param separator
+   * @return
+   */
+  public int nextInt(char separator) {
+    byte[] bytes = text.getBytes();
+    int end = text.getLength();
+    int start = pos;
+    while (pos < end && TextSerializerHelper.DecimalChars[bytes[pos] & 0xff])
+      pos++;
+    int i = TextSerializerHelper.deserializeInt(bytes, start, pos - start);
+    skipSeparator(separator);
+    return i;
+  }
+
+  /**
+   * Reads a hexadecimal long and advances the cursor after it. If the long is
+   * followed by the given separator, the separator is skipped as well.
+   * @param separator
+   * @return
+   */
+  public long nextHexLong(char separator) {
+    byte[] bytes = text.getBytes();
+    int end = text.getLength();
+    int start = pos;
+    while (pos < end && TextSerializerHelper.HexadecimalChars[bytes[pos] & 0xff])
+      pos++;
+    long l = TextSerializerHelper.deserializeHexLong(bytes, start, pos - start);
+    skipSeparator(separator);
+    return l;
+  }
+
+  /**
+   * Reads all the remaining bytes in the text as a string and advances the
+   * cursor to the end of the text.
+   * @return
+   */
+  public String nextString() {
+    int start = pos;
+    pos = text.getLength();
+    try {
+      return Text.decode(text.getBytes(), start, pos - start);
+    } catch (CharacterCodingException e) {
+      return new String(text.getBytes(), start, pos - start);
+    }
+  }
+
+  /**
+   * Removes all bytes read so far from the text.
+   */
+  public void consume() {
+    if (pos >= text.getLength())
+      text.clear();
+    else if (pos > 0)
+      text.set(text.getBytes(), pos, text.getLength() - pos);
+    pos = 0;
+  }
+}
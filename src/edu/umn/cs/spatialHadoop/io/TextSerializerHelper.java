@@ -146,18 +146,9 @@ public final class TextSerializerHelper {
    * @return
    */
   public static long consumeHexLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && HexadecimalChars[bytes[i]])
-      i++;
-    long l = deserializeHexLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextHexLong(separator);
+    cursor.consume();
     return l;
   }
   
@@ -167,23 +158,16 @@ public final class TextSerializerHelper {
    * characters read for deserialization are removed from the given text.
    * If separator is non-zero, a double is read and consumed up to the first
    * occurrence of this separator. The separator is also consumed.
+   * To parse several values from the same text, use a {@link TextCursor}
+   * which does not shift the text after each value.
    * @param text
    * @param separator
    * @return
    */
   public static double consumeDouble(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength()
-        && ((bytes[i] >= '0' && bytes[i] <= '9') || bytes[i] == 'e'
-            || bytes[i] == 'E' || bytes[i] == '-' || bytes[i] == '+' || bytes[i] == '.'))
-      i++;
-    double d = Double.parseDouble(new String(bytes, 0, i));
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    double d = cursor.nextDouble(separator);
+    cursor.consume();
     return d;
   }
   
@@ -261,18 +245,9 @@ public final class TextSerializerHelper {
   }
   
   public static long consumeLong(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    long l = deserializeLong(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
+    TextCursor cursor = new TextCursor(text);
+    long l = cursor.nextLong(separator);
+    cursor.consume();
     return l;
   }
   
@@ -335,19 +310,10 @@ public final class TextSerializerHelper {
   }
   
   public static int consumeInt(Text text, char separator) {
-    int i = 0;
-    byte[] bytes = text.getBytes();
-    // Skip until the separator or end of text
-    while (i < text.getLength() && DecimalChars[bytes[i]])
-      i++;
-    int l = deserializeInt(bytes, 0, i);
-    // If the first char after the long is the separator, skip it
-    if (i < text.getLength() && bytes[i] == separator)
-      i++;
-    // Shift bytes after the long
-    System.arraycopy(bytes, i, bytes, 0, text.getLength() - i);
-    text.set(bytes, 0, text.getLength() - i);
-    return l;
+    TextCursor cursor = new TextCursor(text);
+    int i = cursor.nextInt(separator);
+    cursor.consume();
+    return i;
   }
  
   private static final byte[] Separators = {'[', '#', ',', ']'};
@@ -469,13 +435,15 @@ public final class TextSerializerHelper {
   /**
    * Convert a string containing a hex string to a byte array of binary.
    * For example, the string "AABB" is converted to the byte array {0xAA, 0XBB}
-   * @param hex
+   * @param hex - the hex characters
+   * @param offset - position of the first hex character in the array
+   * @param length - number of hex characters
    * @return
    */
-  public static byte[] hexToBytes(String hex) {
-    byte[] bytes = new byte[(hex.length() + 1) / 2];
-    for (int i = 0; i < hex.length(); i++) {
-      byte x = (byte) hex.charAt(i);
+  public static byte[] hexToBytes(byte[] hex, int offset, int length) {
+    byte[] bytes = new byte[(length + 1) / 2];
+    for (int i = 0; i < length; i++) {
+      byte x = hex[offset + i];
       if (x >= '0' && x <= '9')
         x -= '0';
       else if (x >= 'a' && x <= 'f')
@@ -490,6 +458,10 @@ public final class TextSerializerHelper {
     }
     return bytes;
   }
+
+  public static byte[] hexToBytes(String hex) {
+    return hexToBytes(hex.getBytes(), 0, hex.length());
+  }
   
   public static void serializeGeometry(Text text, OGCGeometry geom, char toAppend) {
     String str = bytesToHex(geom.asBinary().array());
@@ -499,8 +471,45 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  private static final WKTReader wktReader = new WKTReader(new GeometryFactory());
-  private static final WKBReader wkbReader = new WKBReader(new GeometryFactory());
+  /**
+   * A geometry factory shared by all JTS parsers. A GeometryFactory is
+   * immutable so it can be safely used by many threads at the same time.
+   */
+  public static final GeometryFactory JTSFactory = new GeometryFactory();
+
+  /**
+   * JTS readers are not thread-safe. Each thread keeps its own readers so
+   * that geometries can be parsed concurrently without locking.
+   */
+  private static final ThreadLocal<WKTReader> wktReader = new ThreadLocal<WKTReader>() {
+    @Override
+    protected WKTReader initialValue() {
+      return new WKTReader(JTSFactory);
+    }
+  };
+
+  private static final ThreadLocal<WKBReader> wkbReader = new ThreadLocal<WKBReader>() {
+    @Override
+    protected WKBReader initialValue() {
+      return new WKBReader(JTSFactory);
+    }
+  };
+
+  /**
+   * Returns a WKT reader that can be used only by the calling thread.
+   * @return
+   */
+  public static WKTReader getWKTReader() {
+    return wktReader.get();
+  }
+
+  /**
+   * Returns a WKB reader that can be used only by the calling thread.
+   * @return
+   */
+  public static WKBReader getWKBReader() {
+    return wkbReader.get();
+  }
   
   public static void serializeGeometry(Text text, Geometry geom, char toAppend) {
     String wkt = geom.toText();
@@ -510,7 +519,7 @@ public final class TextSerializerHelper {
       text.append(new byte[] {(byte) toAppend}, 0, 1);
   }
   
-  public static synchronized Geometry consumeGeometryJTS(Text text, char separator) {
+  public static Geometry consumeGeometryJTS(Text text, char separator) {
     // Check whether this text is a Well Known Text (WKT) or a hexed string
     boolean wkt = false;
     byte[] bytes = text.getBytes();
@@ -549,21 +558,21 @@ public final class TextSerializerHelper {
       String wkt_text = new String(bytes, 0, i_end);
       
       try {
-        geom = wktReader.read(wkt_text);
+        geom = wktReader.get().read(wkt_text);
       } catch (ParseException e) {
         throw new RuntimeException("Error parsing WKT '"+wkt_text+"'", e);
       }
     } else {
       i_end = 0;
-      while (i_end < text.getLength() && IsHex[bytes[i_end]])
+      while (i_end < text.getLength() && IsHex[bytes[i_end] & 0xff])
         i_end++;
       if (i_end > 1) {
-        String hex_string = new String(bytes, 0, i_end);
-        byte[] binary = hexToBytes(hex_string);
+        byte[] binary = hexToBytes(bytes, 0, i_end);
         try {
-          geom = wkbReader.read(binary);
+          geom = wkbReader.get().read(binary);
         } catch (ParseException e) {
-          throw new RuntimeException("Error parsing Hex seting '"+hex_string+"'", e);
+          throw new RuntimeException("Error parsing Hex seting '"+
+              new String(bytes, 0, i_end)+"'", e);
         }
       } else {
         geom = null; // Cannot parse
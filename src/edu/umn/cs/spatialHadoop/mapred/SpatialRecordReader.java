@@ -305,6 +305,9 @@ public abstract class SpatialRecordReader<K, V> implements RecordReader<K, V> {
       pos += 8;
       // Ignore the signature
       buffer = null;
+    } else if (buffer != null && Arrays.equals(buffer, SpatialSite.BinaryRTreeFileMarkerB)) {
+      throw new IOException("R-trees with binary leaves in '"+path+"' can only be read using"
+          + " the new mapreduce API");
     } else {
       blockType = BlockType.HEAP;
       // The read buffer might contain some data that must be read
@@ -0,0 +1,299 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.mapreduce;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+
+/**
+ * Runs an operation on the local machine (no MapReduce) by processing the
+ * splits of the input in parallel. Each thread takes one split at a time,
+ * largest split first, so that a few large splits do not leave the other
+ * threads idle at the end. The result of each split is passed through a
+ * bounded queue to the calling thread which combines it with the results
+ * of other splits while the remaining splits are still being processed.
+ * @author Ahmed Eldawy
+ *
+ */
+public class LocalSplitRunner {
+
+  static final Log LOG = LogFactory.getLog(LocalSplitRunner.class);
+
+  private LocalSplitRunner() { /* Enforce static use only */ }
+
+  /**
+   * Processes the shapes of one split.
+   * @author Ahmed Eldawy
+   *
+   * @param <S> - type of shapes in the input
+   * @param <T> - type of the result of one split
+   */
+  public static interface SplitMapper<S extends Shape, T> {
+    /**
+     * Processes all the shapes in one split. This function is called
+     * concurrently from several threads, each with a different split.
+     * @param split - the split to process
+     * @param reader - an initialized reader over the split. It is closed by
+     *  the caller when this function returns.
+     * @return - the result of this split which is passed to the combiner
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public T map(FileSplit split, RecordReader<Rectangle, Iterable<S>> reader)
+        throws IOException, InterruptedException;
+  }
+
+  /**The result of one split as passed from a worker to the calling thread*/
+  private static class SplitResult<T> {
+    final T value;
+    final Throwable error;
+
+    SplitResult(T value, Throwable error) {
+      this.value = value;
+      this.error = error;
+    }
+  }
+
+  /**Threads that process the splits. Shared by all local operations*/
+  private static final ExecutorService Workers =
+      Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Local worker #"+threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Creates and initializes a record reader for the given split
+   * @param inputFormat
+   * @param fsplit
+   * @param conf
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static <S extends Shape> RecordReader<Rectangle, Iterable<S>> createRecordReader(
+      SpatialInputFormat3<Rectangle, S> inputFormat, FileSplit fsplit,
+      Configuration conf) throws IOException, InterruptedException {
+    final RecordReader<Rectangle, Iterable<S>> reader =
+        inputFormat.createRecordReader(fsplit, null);
+    if (reader instanceof SpatialRecordReader3) {
+      ((SpatialRecordReader3)reader).initialize(fsplit, conf);
+    } else if (reader instanceof RTreeRecordReader3) {
+      ((RTreeRecordReader3)reader).initialize(fsplit, conf);
+    } else if (reader instanceof HDFRecordReader) {
+      ((HDFRecordReader)reader).initialize(fsplit, conf);
+    } else {
+      throw new RuntimeException("Unknown record reader");
+    }
+    return reader;
+  }
+
+  /**
+   * Processes all splits of the given input paths in parallel using the
+   * given mapper and passes the result of each split to the given combiner.
+   * The combiner is always called from the calling thread, one result at a
+   * time in the order the splits finish, so it does not need to be thread
+   * safe. The number of threads is set by the parameter "parallel" which
+   * defaults to the number of available processors.
+   * @param inPaths - the input files or directories
+   * @param params - the parameters of the operation including the
+   *  query range, if any, that is used to prune the splits
+   * @param mapper - the function that processes each split
+   * @param combiner - receives the result of each split, may be null
+   * @return the number of splits that have been processed
+   * @throws IOException - if any split fails
+   * @throws InterruptedException
+   */
+  public static <S extends Shape, T> int run(Path[] inPaths,
+      final OperationsParams params, final SplitMapper<S, T> mapper,
+      ResultCollector<T> combiner) throws IOException, InterruptedException {
+    // 1- Split the input path/file to get splits that can be processed independently
+    final SpatialInputFormat3<Rectangle, S> inputFormat =
+        new SpatialInputFormat3<Rectangle, S>();
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3.setInputPaths(job, inPaths);
+    final List<FileSplit> splits = new ArrayList<FileSplit>();
+    for (InputSplit split : inputFormat.getSplits(job))
+      splits.add((FileSplit) split);
+    // Process larger splits first to balance the load at the end
+    Collections.sort(splits, new Comparator<FileSplit>() {
+      @Override
+      public int compare(FileSplit s1, FileSplit s2) {
+        return s1.getLength() > s2.getLength() ? -1 :
+          (s1.getLength() < s2.getLength() ? 1 : 0);
+      }
+    });
+    int parallelism = Math.min(splits.size(),
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    LOG.info("Processing "+splits.size()+" splits using "+parallelism+" threads");
+
+    if (parallelism <= 1) {
+      // Avoid the overhead of threads and process all splits in this thread
+      for (FileSplit split : splits) {
+        T result = processSplit(inputFormat, split, params, mapper);
+        if (combiner != null)
+          combiner.collect(result);
+      }
+      return splits.size();
+    }
+
+    // 2- Process splits in parallel
+    final AtomicInteger nextSplit = new AtomicInteger();
+    final BlockingQueue<SplitResult<T>> results =
+        new ArrayBlockingQueue<SplitResult<T>>(2 * parallelism);
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    for (int i = 0; i < parallelism; i++) {
+      Workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          int iSplit;
+          while (!cancelled.get() && (iSplit = nextSplit.getAndIncrement()) < splits.size()) {
+            SplitResult<T> result;
+            try {
+              result = new SplitResult<T>(processSplit(inputFormat,
+                  splits.get(iSplit), params, mapper), null);
+            } catch (Throwable e) {
+              result = new SplitResult<T>(null, e);
+            }
+            try {
+              // Wait until the calling thread makes room in the queue
+              while (!results.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled.get())
+                  return;
+              }
+            } catch (InterruptedException e) {
+              return;
+            }
+          }
+        }
+      });
+    }
+
+    // 3- Combine the results in this thread as they arrive
+    try {
+      for (int i = 0; i < splits.size(); i++) {
+        SplitResult<T> result = results.take();
+        if (result.error != null) {
+          if (result.error instanceof IOException)
+            throw (IOException) result.error;
+          if (result.error instanceof RuntimeException)
+            throw (RuntimeException) result.error;
+          if (result.error instanceof InterruptedException)
+            throw new InterruptedIOException("Interrupted while processing a split");
+          throw new IOException("Error processing a split", result.error);
+        }
+        if (combiner != null)
+          combiner.collect(result.value);
+      }
+    } finally {
+      // Stop the workers, if still running, after an error
+      cancelled.set(true);
+      results.clear();
+    }
+    return splits.size();
+  }
+
+  /**
+   * Processes one split by the given mapper
+   * @param inputFormat
+   * @param split
+   * @param params
+   * @param mapper
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static <S extends Shape, T> T processSplit(
+      SpatialInputFormat3<Rectangle, S> inputFormat, FileSplit split,
+      OperationsParams params, SplitMapper<S, T> mapper)
+      throws IOException, InterruptedException {
+    RecordReader<Rectangle, Iterable<S>> reader =
+        createRecordReader(inputFormat, split, params);
+    try {
+      return mapper.map(split, reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Reads all the points of the given input in memory.
+   * @param inPaths
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static Point[] readPoints(Path[] inPaths, OperationsParams params)
+      throws IOException, InterruptedException {
+    final List<Point[]> allLists = new ArrayList<Point[]>();
+    final int[] totalNumPoints = {0};
+    run(inPaths, params, new SplitMapper<Point, Point[]>() {
+      @Override
+      public Point[] map(FileSplit split,
+          RecordReader<Rectangle, Iterable<Point>> reader)
+          throws IOException, InterruptedException {
+        List<Point> points = new ArrayList<Point>();
+        while (reader.nextKeyValue()) {
+          for (Point p : reader.getCurrentValue())
+            points.add(p.clone());
+        }
+        return points.toArray(new Point[points.size()]);
+      }
+    }, new ResultCollector<Point[]>() {
+      @Override
+      public void collect(Point[] points) {
+        allLists.add(points);
+        totalNumPoints[0] += points.length;
+      }
+    });
+
+    LOG.info("Read "+totalNumPoints[0]+" points and merging into one list");
+    Point[] allPoints = new Point[totalNumPoints[0]];
+    int pointer = 0;
+    for (int iList = 0; iList < allLists.size(); iList++) {
+      Point[] list = allLists.set(iList, null); // To let the GC collect it
+      System.arraycopy(list, 0, allPoints, pointer, list.length);
+      pointer += list.length;
+    }
+    return allPoints;
+  }
+}
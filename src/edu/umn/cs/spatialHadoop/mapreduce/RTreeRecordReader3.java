@@ -10,6 +10,7 @@ package edu.umn.cs.spatialHadoop.mapreduce;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Iterator;
 
@@ -36,7 +37,9 @@ import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.io.MappedFile;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.MappedRTree;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.indexing.RTree;
 
@@ -82,11 +85,20 @@ public class RTreeRecordReader3<V extends Shape> extends
   /**The shape used to parse input lines*/
   private V stockShape;
   
+  /**Whether the file stores R-trees with binary leaves*/
+  private boolean binaryLeaves;
+  
   /**Start offset of the next tree*/
   private long offsetOfNextTree;
   
   /**Value to be returned*/
   private Iterable<V> value;
+  
+  /**The memory-mapped input file if it could be mapped*/
+  private MappedFile mappedFile;
+  
+  /**Current position in the memory-mapped file*/
+  private long mappedPos;
 
   /**Optional query range*/
   private Shape inputQueryRange;
@@ -111,10 +123,20 @@ public class RTreeRecordReader3<V extends Shape> extends
     this.start = fsplit.getStart();
     this.end = this.start + split.getLength();
     this.fs = this.path.getFileSystem(conf);
-    this.directIn = fs.open(this.path);
     codec = new CompressionCodecFactory(conf).getCodec(this.path);
+    if (codec == null) {
+      // Try to memory-map the file to search the trees without reading them
+      mappedFile = MappedFile.map(fs, path, conf);
+    }
+    byte[] signature = new byte[8];
     
-    if (codec != null) {
+    if (mappedFile != null) {
+      ByteBuffer buffer = mappedFile.getBuffer().duplicate();
+      buffer.position((int) start);
+      buffer.get(signature);
+      mappedPos = start;
+    } else if (codec != null) {
+      this.directIn = fs.open(this.path);
       // Input is compressed, create a decompressor to decompress it
       decompressor = CodecPool.getDecompressor(codec);
       if (codec instanceof SplittableCompressionCodec) {
@@ -138,13 +160,16 @@ public class RTreeRecordReader3<V extends Shape> extends
     } else {
       // Non-compressed file, seek to the desired position and use this stream
       // to get the progress and position
+      this.directIn = fs.open(this.path);
       directIn.seek(start);
       in = directIn;
       filePosition = directIn;
     }
-    byte[] signature = new byte[8];
-    in.readFully(signature);
-    if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
+    if (in != null)
+      in.readFully(signature);
+    if (Arrays.equals(signature, SpatialSite.BinaryRTreeFileMarkerB)) {
+      binaryLeaves = true;
+    } else if (!Arrays.equals(signature, SpatialSite.RTreeFileMarkerB)) {
       throw new RuntimeException("Incorrect signature for RTree");
     }
     this.stockShape = (V) OperationsParams.getShape(conf, "shape");
@@ -172,6 +197,8 @@ public class RTreeRecordReader3<V extends Shape> extends
   
   @Override
   public boolean nextKeyValue() throws IOException, InterruptedException {
+    if (mappedFile != null)
+      return nextMappedTree();
     if (offsetOfNextTree > 0) {
       if (codec == null) {
         // Input is not compressed. Just seek to the next RTree
@@ -184,6 +211,7 @@ public class RTreeRecordReader3<V extends Shape> extends
       return false;
     RTree<V> rtree = new RTree<V>();
     rtree.setStockObject(stockShape);
+    rtree.setBinaryLeaves(binaryLeaves);
     rtree.readFields(in);
     this.offsetOfNextTree = rtree.getEndOffset();
 
@@ -198,7 +226,34 @@ public class RTreeRecordReader3<V extends Shape> extends
     }
   }
   
+  /**
+   * Reads the next tree directly from the memory-mapped file without loading
+   * its structure in memory.
+   * @return
+   */
+  private boolean nextMappedTree() {
+    // Skip the signature at the beginning of the split
+    mappedPos = offsetOfNextTree > 0 ? offsetOfNextTree : start + 8;
+    if (mappedPos >= end)
+      return false;
+    MappedRTree<V> rtree = new MappedRTree<V>(mappedFile.getBuffer(),
+        (int) mappedPos, binaryLeaves, stockShape);
+    this.offsetOfNextTree = rtree.getEndOffset();
+
+    if (inputQueryRange != null) {
+      // Apply a query query
+      value = rtree.search(inputQueryRange);
+      return value.iterator().hasNext();
+    } else {
+      // Return the tree
+      value = rtree;
+      return rtree.getElementCount() > 0;
+    }
+  }
+  
   public long getPos() throws IOException {
+    if (mappedFile != null)
+      return mappedPos;
     return filePosition.getPos();
   }
 
@@ -286,6 +341,11 @@ public class RTreeRecordReader3<V extends Shape> extends
 
   @Override
   public void close() throws IOException {
+    if (mappedFile != null) {
+      mappedFile.close();
+      mappedFile = null;
+      return;
+    }
     try {
       in.close();
       in = null;
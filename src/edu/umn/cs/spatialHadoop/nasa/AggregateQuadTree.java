@@ -21,8 +21,8 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Stack;
@@ -50,9 +50,11 @@ import edu.umn.cs.spatialHadoop.hdf.DDVDataHeader;
 import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
 import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.io.DecompressedBlockCache;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
 import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
@@ -268,7 +270,30 @@ public class AggregateQuadTree {
   /**
    * Stock quad trees of all supported sizes (resolutions).
    */
-  final static Map<Integer, StockQuadTree> StockQuadTrees = new HashMap<Integer, StockQuadTree>();
+  final static Map<Integer, StockQuadTree> StockQuadTrees = new ConcurrentHashMap<Integer, StockQuadTree>();
+  
+  /**Maximum number of bytes of decompressed trees to cache in memory*/
+  public static final String TreeCacheSize = "AggregateQuadTree.TreeCacheSize";
+  
+  /**Maximum number of trees to cache their lookup tables*/
+  public static final String TreeCacheFiles = "AggregateQuadTree.TreeCacheFiles";
+  
+  /**A cache of recently queried trees shared by all concurrent queries*/
+  private static DecompressedBlockCache TreeCache;
+  
+  /**
+   * Returns the cache of trees which is created on first use.
+   * @param conf
+   * @return
+   */
+  static synchronized DecompressedBlockCache getTreeCache(Configuration conf) {
+    if (TreeCache == null) {
+      TreeCache = new DecompressedBlockCache(
+          conf.getLong(TreeCacheSize, 512L * 1024 * 1024),
+          conf.getInt(TreeCacheFiles, 10000));
+    }
+    return TreeCache;
+  }
   
   static StockQuadTree getOrCreateStockQuadTree(int resolution) {
     StockQuadTree stockTree = StockQuadTrees.get(resolution);
@@ -343,9 +368,11 @@ public class AggregateQuadTree {
   /**Tree header size = resolution + fillValue + cardinality*/
   private static final int TreeHeaderSize = 4 + 2 + 4;
   /**Value size = short*/
-  private static final int ValueSize = 2;
+  static final int ValueSize = 2;
   /**Node size = min + max + sum + count*/
-  private static final int NodeSize = 2 + 2 + 8 + 8;
+  static final int NodeSize = 2 + 2 + 8 + 8;
+  /**Maximum number of bytes of values read from a tree at once*/
+  private static final int ReadBufferSize = 64 * 1024;
   
   /**
    * Constructs an aggregate quad tree for an input HDF file on a selected
@@ -488,7 +515,7 @@ public class AggregateQuadTree {
    * @param resolution
    * @return
    */
-  private static long getValuesStartOffset(int cardinality) {
+  static long getValuesStartOffset(int cardinality) {
     // Skip tree header and timestamps
     return TreeHeaderSize + cardinality * 8;
   }
@@ -504,8 +531,8 @@ public class AggregateQuadTree {
    * @param node_pos
    * @return
    */
-  private static long getNodesStartOffset(int resolution, int cardinality) {
-    return TreeHeaderSize + cardinality * 8 + resolution * resolution * cardinality * ValueSize;
+  static long getNodesStartOffset(int resolution, int cardinality) {
+    return TreeHeaderSize + cardinality * 8 + (long) resolution * resolution * cardinality * ValueSize;
   }
 
   /**
@@ -567,7 +594,8 @@ public class AggregateQuadTree {
     
     // Write timestamps of all trees
     for (int iTree = 0; iTree < inTrees.length; iTree++) {
-      outTree.writeLong(inTrees[iTree].readLong());
+      for (int iTimestamp = 0; iTimestamp < cardinalities[iTree]; iTimestamp++)
+        outTree.writeLong(inTrees[iTree].readLong());
     }
     
     // Merge sorted values in all input trees
@@ -627,8 +655,7 @@ public class AggregateQuadTree {
       ResultCollector<PointValue> output) throws IOException {
     FSDataInputStream inStream = null;
     try {
-      inStream = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
-      //inStream = fs.open(p);
+      inStream = getTreeCache(fs.getConf()).open(fs, p);
       return selectionQuery(inStream, query_mbr, output);
     } finally {
       if (inStream != null)
@@ -648,90 +675,42 @@ public class AggregateQuadTree {
   public static int selectionQuery(FSDataInputStream in, Rectangle query_mbr,
       ResultCollector<PointValue> output) throws IOException {
     long treeStartPosition = in.getPos();
-    int numOfResults = 0;
     int resolution = in.readInt();
     short fillValue = in.readShort();
     int cardinality = in.readInt();
     long[] timestamps = new long[cardinality];
     for (int i = 0; i < cardinality; i++)
       timestamps[i] = in.readLong();
-    Vector<Integer> selectedStarts = new Vector<Integer>();
-    Vector<Integer> selectedEnds = new Vector<Integer>();
+    IntArray selectedStarts = new IntArray();
+    IntArray selectedEnds = new IntArray();
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
-    // Nodes to be searched. Contains node positions in the array of nodes
-    Stack<Integer> nodes_2b_searched = new Stack<Integer>();
-    nodes_2b_searched.add(0); // Root node (ID=1)
-    Rectangle node_mbr = new Rectangle();
-    while (!nodes_2b_searched.isEmpty()) {
-      int node_pos = nodes_2b_searched.pop();
-      stockQuadTree.getNodeMBR(node_pos, node_mbr);
-      if (query_mbr.contains(node_mbr)) {
-        // Add this node to the selection list and stop this branch
-        if (!selectedEnds.isEmpty()
-            && selectedEnds.lastElement() == stockQuadTree.nodesStartPosition[node_pos]) {
-          // Merge with an adjacent range
-          selectedEnds.set(selectedEnds.size() - 1, stockQuadTree.nodesEndPosition[node_pos]);
-        } else {
-          // add a new range
-          selectedStarts.add(stockQuadTree.nodesStartPosition[node_pos]);
-          selectedEnds.add(stockQuadTree.nodesEndPosition[node_pos]);
-        }
-        numOfResults += stockQuadTree.nodesEndPosition[node_pos]
-            - stockQuadTree.nodesStartPosition[node_pos];
-      } else if (query_mbr.intersects(node_mbr)) {
-        int first_child_id = stockQuadTree.nodesID[node_pos] * 4 + 0;
-        int first_child_pos = Arrays.binarySearch(stockQuadTree.nodesID, first_child_id);
-        if (first_child_pos < 0) {
-          // No children. Hit a leaf node
-          // Scan and add matching points only
-          java.awt.Point record_coords = new Point();
-          for (int record_pos = stockQuadTree.nodesStartPosition[node_pos];
-              record_pos < stockQuadTree.nodesEndPosition[node_pos]; record_pos++) {
-            stockQuadTree.getRecordCoords(record_pos, record_coords);
-            if (query_mbr.contains(record_coords)) {
-              // matched a record.
-              if (!selectedEnds.isEmpty()
-                  && selectedEnds.lastElement() == record_pos) {
-                // Merge with an adjacent range
-                selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
-              } else {
-                // Add a new range of unit width
-                selectedStarts.add(record_pos);
-                selectedEnds.add(record_pos+1);
-              }
-              numOfResults++;
-            }
-          }
-        } else {
-          // Non-leaf node. Add all children to the list of nodes to search
-          // Add in reverse order to the stack so that results come in sorted order
-          nodes_2b_searched.add(first_child_pos+3);
-          nodes_2b_searched.add(first_child_pos+2);
-          nodes_2b_searched.add(first_child_pos+1);
-          nodes_2b_searched.add(first_child_pos+0);
-        }
-      }
-    }
+    int numOfResults = searchStockQuadTree(stockQuadTree, query_mbr, null,
+        selectedStarts, selectedEnds);
     if (output != null) {
       PointValue returnValue = new PointValue();
       long dataStartPosition = treeStartPosition + getValuesStartOffset(cardinality);
+      int recordSize = cardinality * ValueSize;
+      byte[] buffer = new byte[Math.max(1, ReadBufferSize / recordSize) * recordSize];
       // Return all values in the selected ranges
       for (int iRange = 0; iRange < selectedStarts.size(); iRange++) {
-        int treeStart = selectedStarts.get(iRange);
+        int treePos = selectedStarts.get(iRange);
         int treeEnd = selectedEnds.get(iRange);
-        long startPosition = dataStartPosition
-            + selectedStarts.get(iRange) * cardinality * 2;
-        in.seek(startPosition);
-        for (int treePos = treeStart; treePos < treeEnd; treePos++) {
-          // Retrieve the coords for the point at treePos
-          stockQuadTree.getRecordCoords(treePos, returnValue);
-          // Read all entries at current position
-          for (int iValue = 0; iValue < cardinality; iValue++) {
-            short value = in.readShort();
-            if (value != fillValue) {
-              returnValue.value = value;
-              returnValue.timestamp = timestamps[iValue];
-              output.collect(returnValue);
+        in.seek(dataStartPosition + (long) treePos * recordSize);
+        while (treePos < treeEnd) {
+          int numOfRecords = Math.min(treeEnd - treePos, buffer.length / recordSize);
+          in.readFully(buffer, 0, numOfRecords * recordSize);
+          int offset = 0;
+          for (int iRecord = 0; iRecord < numOfRecords; iRecord++, treePos++) {
+            // Retrieve the coords for the point at treePos
+            stockQuadTree.getRecordCoords(treePos, returnValue);
+            // Report all entries at current position
+            for (int iValue = 0; iValue < cardinality; iValue++, offset += ValueSize) {
+              short value = getShort(buffer, offset);
+              if (value != fillValue) {
+                returnValue.value = value;
+                returnValue.timestamp = timestamps[iValue];
+                output.collect(returnValue);
+              }
             }
           }
         }
@@ -744,8 +723,7 @@ public class AggregateQuadTree {
   public static Node aggregateQuery(FileSystem fs, Path p, Rectangle query_mbr) throws IOException {
     FSDataInputStream inStream = null;
     try {
-      inStream = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
-      //inStream = fs.open(p);
+      inStream = getTreeCache(fs.getConf()).open(fs, p);
       return aggregateQuery(inStream, query_mbr);
     } finally {
       if (inStream != null)
@@ -764,46 +742,108 @@ public class AggregateQuadTree {
   public static Node aggregateQuery(FSDataInputStream in, Rectangle query_mbr) throws IOException {
     long treeStartPosition = in.getPos();
     Node result = new Node();
-    int numOfSelectedRecords = 0;
     int resolution = in.readInt();
     short fillValue = in.readShort();
     int cardinality = in.readInt();
-    final Vector<Integer> selectedNodesPos = new Vector<Integer>();
-    final Vector<Integer> selectedStarts = new Vector<Integer>();
-    final Vector<Integer> selectedEnds = new Vector<Integer>();
+    IntArray selectedNodesPos = new IntArray();
+    IntArray selectedStarts = new IntArray();
+    IntArray selectedEnds = new IntArray();
     StockQuadTree stockQuadTree = getOrCreateStockQuadTree(resolution);
+    int numOfSelectedRecords = searchStockQuadTree(stockQuadTree, query_mbr,
+        selectedNodesPos, selectedStarts, selectedEnds);
+    // Result 1: Accumulate all values
+    // Ranges are found in increasing order which eliminates backward seeks
+    if (!selectedStarts.isEmpty()) {
+      LOG.debug("Aggregate query selected "+selectedNodesPos.size()
+          +" nodes and "+numOfSelectedRecords+" records");
+      
+      long dataStartPosition = treeStartPosition + getValuesStartOffset(cardinality);
+      int recordSize = cardinality * ValueSize;
+      byte[] buffer = new byte[Math.max(1, ReadBufferSize / recordSize) * recordSize];
+      for (int iRange = 0; iRange < selectedStarts.size(); iRange++) {
+        int treePos = selectedStarts.get(iRange);
+        int treeEnd = selectedEnds.get(iRange);
+        in.seek(dataStartPosition + (long) treePos * recordSize);
+        while (treePos < treeEnd) {
+          int numOfRecords = Math.min(treeEnd - treePos, buffer.length / recordSize);
+          int numOfBytes = numOfRecords * recordSize;
+          in.readFully(buffer, 0, numOfBytes);
+          for (int offset = 0; offset < numOfBytes; offset += ValueSize) {
+            short value = getShort(buffer, offset);
+            if (value != fillValue)
+              result.accumulate(value);
+          }
+          treePos += numOfRecords;
+        }
+      }
+    }
+    
+    // Result 2: Accumulate all nodes
+    if (!selectedNodesPos.isEmpty()) {
+      long nodesStartPosition = treeStartPosition + getNodesStartOffset(resolution, cardinality);
+      // Sort node positions to eliminate backward seeks
+      selectedNodesPos.sort();
+      
+      Node selectedNode = new Node();
+      for (int i = 0; i < selectedNodesPos.size(); i++) {
+        long nodePosition = nodesStartPosition + (long) selectedNodesPos.get(i) * NodeSize;
+        in.seek(nodePosition);
+        selectedNode.readFields(in);
+        result.accumulate(selectedNode);
+      }
+    }
+    return result;
+  }
+  
+  /**
+   * Searches the stock quad tree for all records in the given range.
+   * Records of nodes that are completely inside the query range are either
+   * added as one node to the list of selected nodes, if given, or added to
+   * the selected ranges. Matching records of partially overlapping leaf nodes
+   * are always added to the selected ranges. Ranges are found in increasing
+   * order and adjacent ranges are merged together.
+   * @param stockQuadTree
+   * @param query_mbr
+   * @param selectedNodesPos - (output) positions of the selected nodes or
+   *  <code>null</code> to report their records as ranges
+   * @param selectedStarts - (output) start positions of the selected ranges
+   * @param selectedEnds - (output) end positions of the selected ranges
+   * @return total number of selected records in ranges and nodes
+   */
+  static int searchStockQuadTree(StockQuadTree stockQuadTree,
+      Rectangle query_mbr, IntArray selectedNodesPos, IntArray selectedStarts,
+      IntArray selectedEnds) {
+    int numOfResults = 0;
     // Nodes to be searched. Contains node positions in the array of nodes
-    Stack<Integer> nodes_2b_searched = new Stack<Integer>();
+    IntArray nodes_2b_searched = new IntArray();
     nodes_2b_searched.add(0); // Root node (ID=1)
     Rectangle node_mbr = new Rectangle();
+    java.awt.Point record_coords = new Point();
     while (!nodes_2b_searched.isEmpty()) {
       int node_pos = nodes_2b_searched.pop();
       stockQuadTree.getNodeMBR(node_pos, node_mbr);
       if (query_mbr.contains(node_mbr)) {
         // Add this node to the selection list and stop this branch
-        selectedNodesPos.add(node_pos);
+        int nodeStart = stockQuadTree.nodesStartPosition[node_pos];
+        int nodeEnd = stockQuadTree.nodesEndPosition[node_pos];
+        if (selectedNodesPos != null)
+          selectedNodesPos.add(node_pos);
+        else
+          addRange(selectedStarts, selectedEnds, nodeStart, nodeEnd);
+        numOfResults += nodeEnd - nodeStart;
       } else if (query_mbr.intersects(node_mbr)) {
         int first_child_id = stockQuadTree.nodesID[node_pos] * 4 + 0;
         int first_child_pos = Arrays.binarySearch(stockQuadTree.nodesID, first_child_id);
         if (first_child_pos < 0) {
           // No children. Hit a leaf node
           // Scan and add matching points only
-          java.awt.Point record_coords = new Point();
           for (int record_pos = stockQuadTree.nodesStartPosition[node_pos];
               record_pos < stockQuadTree.nodesEndPosition[node_pos]; record_pos++) {
             stockQuadTree.getRecordCoords(record_pos, record_coords);
             if (query_mbr.contains(record_coords)) {
               // matched a record.
-              if (!selectedEnds.isEmpty()
-                  && selectedEnds.lastElement() == record_pos) {
-                // Merge with an adjacent range
-                selectedEnds.set(selectedEnds.size() - 1, record_pos + 1);
-              } else {
-                // Add a new range of unit width
-                selectedStarts.add(record_pos);
-                selectedEnds.add(record_pos+1);
-              }
-              numOfSelectedRecords++;
+              addRange(selectedStarts, selectedEnds, record_pos, record_pos + 1);
+              numOfResults++;
             }
           }
         } else {
@@ -816,82 +856,37 @@ public class AggregateQuadTree {
         }
       }
     }
-    // Result 1: Accumulate all values
-    // Sort disk offsets to eliminate backward seeks
-    if (!selectedStarts.isEmpty()) {
-      LOG.debug("Aggregate query selected "+selectedNodesPos.size()
-          +" nodes and "+numOfSelectedRecords+" records");
-      
-      final IndexedSortable sortable = new IndexedSortable() {
-        @Override
-        public int compare(int i, int j) {
-          return selectedStarts.get(i) - selectedStarts.get(j);
-        }
-        
-        @Override
-        public void swap(int i, int j) {
-          int temp = selectedStarts.get(i);
-          selectedStarts.set(i, selectedStarts.get(j));
-          selectedStarts.set(j, temp);
-          
-          temp = selectedEnds.get(i);
-          selectedEnds.set(i, selectedEnds.get(j));
-          selectedEnds.set(j, temp);
-        }
-      };
-      new QuickSort().sort(sortable, 0, selectedStarts.size());
-      
-      long dataStartPosition = getValuesStartOffset(cardinality);
-      Point resultCoords = new Point();
-      // Return all values in the selected ranges
-      for (int iRange = 0; iRange < selectedStarts.size(); iRange++) {
-        int treeStart = selectedStarts.get(iRange);
-        int treeEnd = selectedEnds.get(iRange);
-        long startPosition = dataStartPosition
-            + selectedStarts.get(iRange) * cardinality * 2;
-        in.seek(startPosition);
-        for (int treePos = treeStart; treePos < treeEnd; treePos++) {
-          // Retrieve the coords for the point at treePos
-          stockQuadTree.getRecordCoords(treePos, resultCoords);
-          // Read all entries at current position
-          for (int iValue = 0; iValue < cardinality; iValue++) {
-            short value = in.readShort();
-            if (value != fillValue)
-              result.accumulate(value);
-          }
-        }
-      }
-      
-    }
-    
-    // Result 2: Accumulate all nodes
-    if (!selectedNodesPos.isEmpty()) {
-      long nodesStartPosition = treeStartPosition + getNodesStartOffset(resolution, cardinality);
-      // Sort node positions to eliminate backward seeks
-      IndexedSortable nodeSortable = new IndexedSortable() {
-        @Override
-        public int compare(int i, int j) {
-          return selectedNodesPos.get(i) - selectedNodesPos.get(j);
-        }
-        
-        @Override
-        public void swap(int i, int j) {
-          int temp = selectedNodesPos.get(i);
-          selectedNodesPos.set(i, selectedNodesPos.get(j));
-          selectedNodesPos.set(j, temp);
-        }
-      };
-      new QuickSort().sort(nodeSortable, 0, selectedNodesPos.size());
-      
-      Node selectedNode = new Node();
-      for (int node_pos : selectedNodesPos) {
-        long nodePosition = nodesStartPosition + node_pos * NodeSize;
-        in.seek(nodePosition);
-        selectedNode.readFields(in);
-        result.accumulate(selectedNode);
-      }
+    return numOfResults;
+  }
+  
+  /**
+   * Adds a range of records to the selected ranges or merges it with the last
+   * selected range if they are adjacent.
+   * @param selectedStarts
+   * @param selectedEnds
+   * @param start
+   * @param end
+   */
+  private static void addRange(IntArray selectedStarts, IntArray selectedEnds,
+      int start, int end) {
+    if (!selectedEnds.isEmpty() && selectedEnds.peek() == start) {
+      // Merge with an adjacent range
+      selectedEnds.set(selectedEnds.size() - 1, end);
+    } else {
+      // add a new range
+      selectedStarts.add(start);
+      selectedEnds.add(end);
     }
-    return result;
+  }
+  
+  /**
+   * Decodes a big-endian short value stored in the given array
+   * @param b
+   * @param offset
+   * @return
+   */
+  static short getShort(byte[] b, int offset) {
+    return (short) (((b[offset] & 0xff) << 8) | (b[offset + 1] & 0xff));
   }
   
   /**
@@ -991,6 +986,13 @@ public class AggregateQuadTree {
     final SimpleDateFormat yearFormat = new SimpleDateFormat("yyyy");
     mergeIndexes(destFs, monthlyIndexDir, yearlyIndexDir, monthFormat, yearFormat, params);
     LOG.info("Done generating yearly indexes");
+    
+    if (params.getBoolean("rollup", false)) {
+      // Build temporal roll-ups of all daily indexes
+      Path rollupDir = new Path(destDir, AggregateRollup.RollupDir);
+      AggregateRollup.buildAll(destFs, dailyIndexDir, rollupDir, params);
+      LOG.info("Done generating roll-ups");
+    }
   }
   
   /**
@@ -1152,8 +1154,7 @@ public class AggregateQuadTree {
   public static int getResolution(FileSystem fs, Path p) throws IOException {
     FSDataInputStream inStream = null;
     try {
-      inStream = new FSDataInputStream(new RandomCompressedInputStream(fs, p));
-      //inStream = fs.open(p);
+      inStream = getTreeCache(fs.getConf()).open(fs, p);
       int resolution = inStream.readInt();
       return resolution;
     } finally {
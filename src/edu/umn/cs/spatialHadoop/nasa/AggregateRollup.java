@@ -0,0 +1,576 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.nasa;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+
+import edu.umn.cs.spatialHadoop.io.DecompressedBlockCache;
+import edu.umn.cs.spatialHadoop.io.RandomCompressedInputStream;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+import edu.umn.cs.spatialHadoop.util.Parallel;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+
+/**
+ * A temporal roll-up of all the daily aggregate quad trees of one tile. It
+ * answers an aggregate query over any range of days with a constant number
+ * of reads per quad tree node instead of reading one tree per temporal
+ * partition. A roll-up consists of two files.
+ * <ul>
+ * <li>The nodes file stores one record per day which contains, for each
+ * node in the stock quad tree, the sum and count of all values up to and
+ * including that day (prefix aggregates), the minimum and maximum of that
+ * day, and the minimum and maximum from the beginning of its block of
+ * {@link #BlockSize} days up to that day and from that day to the end of its
+ * block. Since minimum and maximum cannot be subtracted, the records are
+ * followed by a sparse table that stores the minimum and maximum of each
+ * run of 2<sup>k</sup> consecutive blocks.</li>
+ * <li>The values file is an aggregate quad tree that merges the daily trees
+ * of all days. It answers the part of the query that partially overlaps
+ * leaf nodes.</li>
+ * </ul>
+ * A roll-up has to be rebuilt when new days are indexed.
+ * @author Ahmed Eldawy
+ *
+ */
+public class AggregateRollup {
+  private static final Log LOG = LogFactory.getLog(AggregateRollup.class);
+
+  /**Name of the directory that contains the roll-ups in an index*/
+  public static final String RollupDir = "rollup";
+
+  /**Subdirectory of the roll-up directory that contains the nodes files*/
+  static final String NodesDir = "nodes";
+
+  /**Subdirectory of the roll-up directory that contains the values files*/
+  static final String ValuesDir = "values";
+
+  /**Number of days in one block of the sparse table*/
+  static final int BlockSize = 32;
+
+  /**Header size = resolution + number of nodes + number of days + block size*/
+  private static final int HeaderSize = 4 + 4 + 4 + 4;
+
+  /**
+   * Size of the entry of one node in the record of one day = prefix sum +
+   * prefix count + min and max of (the day, the block up to the day, and the
+   * block starting at the day)
+   */
+  private static final int NodeEntrySize = 8 + 8 + 2 * 2 + 2 * 2 + 2 * 2;
+
+  /**Size of the entry of one node in the sparse table = min + max*/
+  private static final int SparseEntrySize = 2 + 2;
+
+  /**Maximum number of trees to merge at once while building the values file*/
+  private static final int MergeFanIn = 64;
+
+  /**
+   * Builds or updates the roll-ups of all tiles in a daily index
+   * @param fs
+   * @param dailyIndexDir
+   * @param rollupDir
+   * @param conf
+   * @throws IOException
+   * @throws ParseException
+   * @throws InterruptedException
+   */
+  public static void buildAll(final FileSystem fs, Path dailyIndexDir,
+      Path rollupDir, final Configuration conf)
+      throws IOException, ParseException, InterruptedException {
+    final Pattern DayPattern = Pattern.compile(TimeRange.DayRegex);
+    FileStatus[] days = fs.listStatus(dailyIndexDir, new PathFilter() {
+      @Override
+      public boolean accept(Path p) {
+        return DayPattern.matcher(p.getName()).matches();
+      }
+    });
+    Arrays.sort(days); // Alphabetical sort acts as sort-by-date here
+
+    // Group the daily trees by tile
+    final Pattern MODISTileID = Pattern.compile("^.*(h\\d\\dv\\d\\d).*$");
+    final Map<String, Vector<FileStatus>> tileTrees = new TreeMap<String, Vector<FileStatus>>();
+    final Map<String, IntArray> tileDays = new TreeMap<String, IntArray>();
+    final long[] dayStarts = new long[days.length];
+    final long[] dayEnds = new long[days.length];
+    SimpleDateFormat dayFormat = new SimpleDateFormat("yyyy.MM.dd");
+    Calendar calendar = Calendar.getInstance();
+    for (int iDay = 0; iDay < days.length; iDay++) {
+      calendar.setTime(dayFormat.parse(days[iDay].getPath().getName()));
+      dayStarts[iDay] = calendar.getTimeInMillis();
+      calendar.add(Calendar.DAY_OF_MONTH, 1);
+      dayEnds[iDay] = calendar.getTimeInMillis();
+      for (FileStatus tree : fs.listStatus(days[iDay].getPath())) {
+        Matcher matcher = MODISTileID.matcher(tree.getPath().getName());
+        if (!matcher.matches()) {
+          LOG.warn("Cannot extract tile id from file "+tree.getPath());
+          continue;
+        }
+        String tileID = matcher.group(1);
+        if (!tileTrees.containsKey(tileID)) {
+          tileTrees.put(tileID, new Vector<FileStatus>());
+          tileDays.put(tileID, new IntArray());
+        }
+        tileTrees.get(tileID).add(tree);
+        tileDays.get(tileID).add(iDay);
+      }
+    }
+
+    final Path nodesDir = new Path(rollupDir, NodesDir);
+    final Path valuesDir = new Path(rollupDir, ValuesDir);
+    fs.mkdirs(nodesDir);
+    fs.mkdirs(valuesDir);
+    final Vector<String> tileIDs = new Vector<String>(tileTrees.keySet());
+    Parallel.forEach(tileIDs.size(), new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        for (int i = i1; i < i2; i++) {
+          String tileID = tileIDs.get(i);
+          Vector<FileStatus> trees = tileTrees.get(tileID);
+          Path nodesFile = new Path(nodesDir, tileID);
+          Path valuesFile = new Path(valuesDir, tileID);
+          try {
+            if (fs.exists(nodesFile) && fs.exists(valuesFile)) {
+              // Rebuild only if any of the daily trees is newer
+              long rollupTimestamp = Math.min(
+                  fs.getFileStatus(nodesFile).getModificationTime(),
+                  fs.getFileStatus(valuesFile).getModificationTime());
+              boolean needsUpdate = false;
+              for (FileStatus tree : trees) {
+                if (tree.getModificationTime() > rollupTimestamp) {
+                  needsUpdate = true;
+                  break;
+                }
+              }
+              if (!needsUpdate)
+                continue;
+              LOG.info("Updating roll-up of tile "+tileID);
+            }
+            Path[] treePaths = new Path[trees.size()];
+            long[] treeDayStarts = new long[trees.size()];
+            long[] treeDayEnds = new long[trees.size()];
+            for (int iTree = 0; iTree < treePaths.length; iTree++) {
+              treePaths[iTree] = trees.get(iTree).getPath();
+              treeDayStarts[iTree] = dayStarts[tileDays.get(tileID).get(iTree)];
+              treeDayEnds[iTree] = dayEnds[tileDays.get(tileID).get(iTree)];
+            }
+            Path tmpNodes = createTempPath(fs);
+            buildNodes(conf, treePaths, treeDayStarts, treeDayEnds, tmpNodes);
+            Path tmpValues = createTempPath(fs);
+            buildValues(conf, treePaths, tmpValues);
+            fs.delete(nodesFile, false);
+            fs.rename(tmpNodes, nodesFile);
+            fs.delete(valuesFile, false);
+            fs.rename(tmpValues, valuesFile);
+          } catch (IOException e) {
+            throw new RuntimeException("Error building the roll-up of tile "+tileID, e);
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  private static Path createTempPath(FileSystem fs) throws IOException {
+    Path tmpFile;
+    do {
+      tmpFile = new Path((int)(Math.random()* 1000000)+".tmp");
+    } while (fs.exists(tmpFile));
+    return fs.makeQualified(tmpFile);
+  }
+
+  /**
+   * Builds the nodes file of a roll-up out of the daily trees of one tile.
+   * @param conf
+   * @param dailyTrees - the daily trees of the tile sorted by time
+   * @param dayStarts - the start time of the day of each tree
+   * @param dayEnds - the end time of the day of each tree
+   * @param outFile
+   * @throws IOException
+   */
+  public static void buildNodes(Configuration conf, Path[] dailyTrees,
+      long[] dayStarts, long[] dayEnds, Path outFile) throws IOException {
+    int numOfDays = dailyTrees.length;
+    int resolution = AggregateQuadTree.getResolution(
+        dailyTrees[0].getFileSystem(conf), dailyTrees[0]);
+    int numOfNodes = AggregateQuadTree.getOrCreateStockQuadTree(resolution).nodesID.length;
+
+    FileSystem outFs = outFile.getFileSystem(conf);
+    // The nodes file is not compressed to allow memory-mapping it
+    FSDataOutputStream out = outFs.create(outFile, false);
+    out.writeInt(resolution);
+    out.writeInt(numOfNodes);
+    out.writeInt(numOfDays);
+    out.writeInt(BlockSize);
+    for (int iDay = 0; iDay < numOfDays; iDay++) {
+      out.writeLong(dayStarts[iDay]);
+      out.writeLong(dayEnds[iDay]);
+    }
+
+    // Prefix aggregates of all days in the current block
+    long[][] sums = new long[BlockSize][numOfNodes];
+    long[][] counts = new long[BlockSize][numOfNodes];
+    // Aggregates of each day in the current block
+    short[][] dayMins = new short[BlockSize][numOfNodes];
+    short[][] dayMaxs = new short[BlockSize][numOfNodes];
+    // Aggregates of each full block used to build the sparse table
+    int numOfBlocks = numOfDays / BlockSize;
+    short[][] blockMins = new short[numOfBlocks][];
+    short[][] blockMaxs = new short[numOfBlocks][];
+
+    long[] prefixSums = new long[numOfNodes];
+    long[] prefixCounts = new long[numOfNodes];
+    Node node = new Node();
+    for (int iDay = 0; iDay < numOfDays; iDay++) {
+      int dayInBlock = iDay % BlockSize;
+      FileSystem inFs = dailyTrees[iDay].getFileSystem(conf);
+      FSDataInputStream in = new FSDataInputStream(
+          new RandomCompressedInputStream(inFs, dailyTrees[iDay]));
+      try {
+        int treeResolution = in.readInt();
+        in.readShort(); // Fill value
+        int cardinality = in.readInt();
+        if (treeResolution != resolution || cardinality != 1)
+          throw new RuntimeException("Tree "+dailyTrees[iDay]+" is not a daily tree of resolution "+resolution);
+        in.seek(AggregateQuadTree.getNodesStartOffset(resolution, cardinality));
+        for (int iNode = 0; iNode < numOfNodes; iNode++) {
+          node.readFields(in);
+          prefixSums[iNode] += node.sum;
+          prefixCounts[iNode] += node.count;
+          sums[dayInBlock][iNode] = prefixSums[iNode];
+          counts[dayInBlock][iNode] = prefixCounts[iNode];
+          dayMins[dayInBlock][iNode] = node.min;
+          dayMaxs[dayInBlock][iNode] = node.max;
+        }
+      } finally {
+        in.close();
+      }
+      if (dayInBlock == BlockSize - 1 || iDay == numOfDays - 1) {
+        int iBlock = iDay / BlockSize;
+        short[] blockMin = new short[numOfNodes];
+        short[] blockMax = new short[numOfNodes];
+        writeBlock(out, sums, counts, dayMins, dayMaxs, dayInBlock + 1,
+            blockMin, blockMax);
+        if (iBlock < numOfBlocks) {
+          blockMins[iBlock] = blockMin;
+          blockMaxs[iBlock] = blockMax;
+        }
+      }
+    }
+
+    // Write the sparse table one level at a time. Level k stores the
+    // aggregates of all runs of 2^k blocks
+    short[][] levelMins = blockMins;
+    short[][] levelMaxs = blockMaxs;
+    int runLength = 1;
+    ByteBuffer sparseRecord = ByteBuffer.allocate(numOfNodes * SparseEntrySize);
+    while (runLength <= numOfBlocks) {
+      if (runLength > 1) {
+        // Compute this level by combining two runs of the previous level
+        int numOfRuns = numOfBlocks - runLength + 1;
+        short[][] newMins = new short[numOfRuns][numOfNodes];
+        short[][] newMaxs = new short[numOfRuns][numOfNodes];
+        for (int iRun = 0; iRun < numOfRuns; iRun++) {
+          for (int iNode = 0; iNode < numOfNodes; iNode++) {
+            newMins[iRun][iNode] = (short) Math.min(levelMins[iRun][iNode],
+                levelMins[iRun + runLength / 2][iNode]);
+            newMaxs[iRun][iNode] = (short) Math.max(levelMaxs[iRun][iNode],
+                levelMaxs[iRun + runLength / 2][iNode]);
+          }
+        }
+        levelMins = newMins;
+        levelMaxs = newMaxs;
+      }
+      for (int iRun = 0; iRun < numOfBlocks - runLength + 1; iRun++) {
+        sparseRecord.clear();
+        for (int iNode = 0; iNode < numOfNodes; iNode++) {
+          sparseRecord.putShort(levelMins[iRun][iNode]);
+          sparseRecord.putShort(levelMaxs[iRun][iNode]);
+        }
+        out.write(sparseRecord.array(), 0, sparseRecord.position());
+      }
+      runLength *= 2;
+    }
+    out.close();
+  }
+
+  /**
+   * Writes the records of the days in one block and computes the aggregate
+   * of the whole block.
+   * @param out
+   * @param sums
+   * @param counts
+   * @param dayMins
+   * @param dayMaxs
+   * @param numOfDays - number of days in this block
+   * @param blockMin - (output) the minimum of each node in the whole block
+   * @param blockMax - (output) the maximum of each node in the whole block
+   * @throws IOException
+   */
+  private static void writeBlock(FSDataOutputStream out, long[][] sums,
+      long[][] counts, short[][] dayMins, short[][] dayMaxs, int numOfDays,
+      short[] blockMin, short[] blockMax) throws IOException {
+    int numOfNodes = blockMin.length;
+    // Compute the aggregates from each day to the end of the block
+    short[][] suffixMins = new short[numOfDays][numOfNodes];
+    short[][] suffixMaxs = new short[numOfDays][numOfNodes];
+    for (int iNode = 0; iNode < numOfNodes; iNode++) {
+      short min = Short.MAX_VALUE, max = Short.MIN_VALUE;
+      for (int iDay = numOfDays - 1; iDay >= 0; iDay--) {
+        min = (short) Math.min(min, dayMins[iDay][iNode]);
+        max = (short) Math.max(max, dayMaxs[iDay][iNode]);
+        suffixMins[iDay][iNode] = min;
+        suffixMaxs[iDay][iNode] = max;
+      }
+      blockMin[iNode] = min;
+      blockMax[iNode] = max;
+    }
+    // Write the records while computing the aggregates from the beginning of
+    // the block to each day
+    short[] prefixMins = new short[numOfNodes];
+    short[] prefixMaxs = new short[numOfNodes];
+    Arrays.fill(prefixMins, Short.MAX_VALUE);
+    Arrays.fill(prefixMaxs, Short.MIN_VALUE);
+    ByteBuffer record = ByteBuffer.allocate(numOfNodes * NodeEntrySize);
+    for (int iDay = 0; iDay < numOfDays; iDay++) {
+      record.clear();
+      for (int iNode = 0; iNode < numOfNodes; iNode++) {
+        prefixMins[iNode] = (short) Math.min(prefixMins[iNode], dayMins[iDay][iNode]);
+        prefixMaxs[iNode] = (short) Math.max(prefixMaxs[iNode], dayMaxs[iDay][iNode]);
+        record.putLong(sums[iDay][iNode]);
+        record.putLong(counts[iDay][iNode]);
+        record.putShort(dayMins[iDay][iNode]);
+        record.putShort(dayMaxs[iDay][iNode]);
+        record.putShort(prefixMins[iNode]);
+        record.putShort(prefixMaxs[iNode]);
+        record.putShort(suffixMins[iDay][iNode]);
+        record.putShort(suffixMaxs[iDay][iNode]);
+      }
+      out.write(record.array(), 0, record.position());
+    }
+  }
+
+  /**
+   * Builds the values file of a roll-up by merging the daily trees of one
+   * tile. Trees are merged in groups to limit the number of open files.
+   * @param conf
+   * @param dailyTrees - the daily trees of the tile sorted by time
+   * @param outFile
+   * @throws IOException
+   */
+  public static void buildValues(Configuration conf, Path[] dailyTrees,
+      Path outFile) throws IOException {
+    if (dailyTrees.length <= MergeFanIn) {
+      AggregateQuadTree.merge(conf, dailyTrees, outFile);
+      return;
+    }
+    FileSystem outFs = outFile.getFileSystem(conf);
+    Path[] groupTrees = new Path[(dailyTrees.length + MergeFanIn - 1) / MergeFanIn];
+    try {
+      for (int iGroup = 0; iGroup < groupTrees.length; iGroup++) {
+        groupTrees[iGroup] = new Path(outFile.getParent(),
+            outFile.getName()+"_"+iGroup);
+        buildValues(conf, Arrays.copyOfRange(dailyTrees, iGroup * MergeFanIn,
+            Math.min(dailyTrees.length, (iGroup + 1) * MergeFanIn)),
+            groupTrees[iGroup]);
+      }
+      buildValues(conf, groupTrees, outFile);
+    } finally {
+      for (Path groupTree : groupTrees) {
+        if (groupTree != null)
+          outFs.delete(groupTree, false);
+      }
+    }
+  }
+
+  /**
+   * Computes the aggregate of all values in the given range of positions and
+   * all the days that are completely contained in the given time range.
+   * @param fs
+   * @param nodesFile
+   * @param valuesFile
+   * @param query_mbr - the query range in the two-dimensional array positions
+   * @param start - start of the time range (inclusive)
+   * @param end - end of the time range (exclusive)
+   * @return
+   * @throws IOException
+   */
+  public static Node aggregateQuery(FileSystem fs, Path nodesFile,
+      Path valuesFile, Rectangle query_mbr, long start, long end)
+      throws IOException {
+    Node result = new Node();
+    DecompressedBlockCache cache = AggregateQuadTree.getTreeCache(fs.getConf());
+    IntArray selectedNodesPos = new IntArray();
+    IntArray selectedStarts = new IntArray();
+    IntArray selectedEnds = new IntArray();
+    int numOfDays, firstDay, lastDay;
+    FSDataInputStream nodesIn = cache.open(fs, nodesFile);
+    try {
+      int resolution = nodesIn.readInt();
+      int numOfNodes = nodesIn.readInt();
+      numOfDays = nodesIn.readInt();
+      int blockSize = nodesIn.readInt();
+      // Select the range of days [firstDay, lastDay] inside the time range
+      firstDay = numOfDays;
+      lastDay = -1;
+      for (int iDay = 0; iDay < numOfDays; iDay++) {
+        long dayStart = nodesIn.readLong();
+        long dayEnd = nodesIn.readLong();
+        if (dayStart >= start && dayEnd <= end) {
+          firstDay = Math.min(firstDay, iDay);
+          lastDay = iDay;
+        }
+      }
+      if (firstDay > lastDay)
+        return result;
+
+      AggregateQuadTree.searchStockQuadTree(
+          AggregateQuadTree.getOrCreateStockQuadTree(resolution), query_mbr,
+          selectedNodesPos, selectedStarts, selectedEnds);
+
+      // Accumulate all selected nodes from the roll-up
+      selectedNodesPos.sort();
+      long recordsStart = HeaderSize + numOfDays * 16L;
+      long recordSize = (long) numOfNodes * NodeEntrySize;
+      long sparseStart = recordsStart + numOfDays * recordSize;
+      int numOfBlocks = numOfDays / blockSize;
+      int firstBlock = firstDay / blockSize;
+      int lastBlock = lastDay / blockSize;
+      byte[] entry = new byte[NodeEntrySize];
+      ByteBuffer entryBuffer = ByteBuffer.wrap(entry);
+      Node nodeResult = new Node();
+      for (int i = 0; i < selectedNodesPos.size(); i++) {
+        long entryOffset = recordsStart + (long) selectedNodesPos.get(i) * NodeEntrySize;
+        // Sum and count are the difference of two prefix aggregates
+        nodesIn.readFully(entryOffset + lastDay * recordSize, entry);
+        nodeResult.sum = entryBuffer.getLong(0);
+        nodeResult.count = entryBuffer.getLong(8);
+        short lastDayPrefixMin = entryBuffer.getShort(20);
+        short lastDayPrefixMax = entryBuffer.getShort(22);
+        if (firstDay > 0) {
+          nodesIn.readFully(entryOffset + (firstDay - 1) * recordSize, entry);
+          nodeResult.sum -= entryBuffer.getLong(0);
+          nodeResult.count -= entryBuffer.getLong(8);
+        }
+        if (nodeResult.count == 0)
+          continue;
+        // Minimum and maximum are combined from the partial blocks at both
+        // ends and the sparse table for all full blocks in between
+        nodeResult.min = Short.MAX_VALUE;
+        nodeResult.max = Short.MIN_VALUE;
+        boolean lastDayEndsBlock = (lastDay + 1) % blockSize == 0 || lastDay == numOfDays - 1;
+        if (firstBlock == lastBlock && firstDay % blockSize == 0) {
+          nodeResult.min = lastDayPrefixMin;
+          nodeResult.max = lastDayPrefixMax;
+        } else if (firstBlock == lastBlock && !lastDayEndsBlock) {
+          // A short range in the middle of one block. Scan all its days
+          for (int iDay = firstDay; iDay <= lastDay; iDay++) {
+            nodesIn.readFully(entryOffset + iDay * recordSize, entry);
+            nodeResult.min = (short) Math.min(nodeResult.min, entryBuffer.getShort(16));
+            nodeResult.max = (short) Math.max(nodeResult.max, entryBuffer.getShort(18));
+          }
+        } else {
+          nodesIn.readFully(entryOffset + firstDay * recordSize, entry);
+          nodeResult.min = entryBuffer.getShort(24);
+          nodeResult.max = entryBuffer.getShort(26);
+          if (firstBlock != lastBlock) {
+            nodeResult.min = (short) Math.min(nodeResult.min, lastDayPrefixMin);
+            nodeResult.max = (short) Math.max(nodeResult.max, lastDayPrefixMax);
+          }
+          if (firstBlock + 1 < lastBlock) {
+            readSparseTable(nodesIn, sparseStart, numOfNodes, numOfBlocks,
+                selectedNodesPos.get(i), firstBlock + 1, lastBlock - 1, nodeResult);
+          }
+        }
+        result.accumulate(nodeResult);
+      }
+    } finally {
+      nodesIn.close();
+    }
+
+    // Accumulate the values of the selected records in the selected days
+    if (!selectedStarts.isEmpty()) {
+      FSDataInputStream valuesIn = cache.open(fs, valuesFile);
+      try {
+        valuesIn.readInt(); // Resolution
+        short fillValue = valuesIn.readShort();
+        int cardinality = valuesIn.readInt();
+        if (cardinality != numOfDays)
+          throw new RuntimeException("Roll-up files "+nodesFile+" and "+valuesFile+" do not match");
+        long valuesStart = AggregateQuadTree.getValuesStartOffset(cardinality);
+        int recordSize = cardinality * AggregateQuadTree.ValueSize;
+        byte[] buffer = new byte[(lastDay - firstDay + 1) * AggregateQuadTree.ValueSize];
+        for (int iRange = 0; iRange < selectedStarts.size(); iRange++) {
+          for (int treePos = selectedStarts.get(iRange); treePos < selectedEnds.get(iRange); treePos++) {
+            valuesIn.readFully(valuesStart + (long) treePos * recordSize
+                + firstDay * AggregateQuadTree.ValueSize, buffer);
+            for (int offset = 0; offset < buffer.length; offset += AggregateQuadTree.ValueSize) {
+              short value = AggregateQuadTree.getShort(buffer, offset);
+              if (value != fillValue)
+                result.accumulate(value);
+            }
+          }
+        }
+      } finally {
+        valuesIn.close();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Combines the minimum and maximum of one node in a range of full blocks
+   * from the two overlapping runs of 2<sup>k</sup> blocks that cover it.
+   * @param in
+   * @param sparseStart - the position of the sparse table in the file
+   * @param numOfNodes
+   * @param numOfBlocks - number of full blocks in the sparse table
+   * @param nodePos - the position of the node in the stock quad tree
+   * @param block1 - the first block in the range (inclusive)
+   * @param block2 - the last block in the range (inclusive)
+   * @param result - the node to combine the minimum and maximum into
+   * @throws IOException
+   */
+  private static void readSparseTable(FSDataInputStream in, long sparseStart,
+      int numOfNodes, int numOfBlocks, int nodePos, int block1, int block2,
+      Node result) throws IOException {
+    int level = 31 - Integer.numberOfLeadingZeros(block2 - block1 + 1);
+    long levelStart = sparseStart;
+    for (int k = 0; k < level; k++)
+      levelStart += (long)(numOfBlocks - (1 << k) + 1) * numOfNodes * SparseEntrySize;
+    byte[] entry = new byte[SparseEntrySize];
+    ByteBuffer entryBuffer = ByteBuffer.wrap(entry);
+    int[] runs = {block1, block2 - (1 << level) + 1};
+    for (int run : runs) {
+      in.readFully(levelStart + ((long) run * numOfNodes + nodePos) * SparseEntrySize, entry);
+      result.min = (short) Math.min(result.min, entryBuffer.getShort(0));
+      result.max = (short) Math.max(result.max, entryBuffer.getShort(2));
+    }
+  }
+}
@@ -153,6 +153,11 @@ public class HDFPlot {
       return HDFRasterLayer.class;
     }
 
+    @Override
+    public boolean isTileable() {
+      return true;
+    }
+
     @Override
     public void merge(Canvas finalLayer,
         Canvas intermediateLayer) {
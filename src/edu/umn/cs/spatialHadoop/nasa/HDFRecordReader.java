@@ -35,10 +35,16 @@ import edu.umn.cs.spatialHadoop.hdf.DDVGroup;
 import edu.umn.cs.spatialHadoop.hdf.DataDescriptor;
 import edu.umn.cs.spatialHadoop.hdf.HDFConstants;
 import edu.umn.cs.spatialHadoop.hdf.HDFFile;
+import edu.umn.cs.spatialHadoop.hdf.ParallelDataReader;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 
 /**
- * A record reader for HDF files with the new mapreduce interface
+ * A record reader for HDF files with the new mapreduce interface.
+ * The data array is decompressed in parallel in the background and records
+ * are returned as soon as the data they need is ready. This only applies
+ * when holes are not recovered (recoverholes:false). Recovering holes
+ * interpolates along whole rows and columns, so the first record is
+ * returned only after the whole array is decompressed.
  * @author Ahmed Eldawy
  *
  */
@@ -49,6 +55,13 @@ public class HDFRecordReader<S extends NASAShape>
   
   /**Configuration line for the path to water mask*/
   public static final String WATER_MASK_PATH = "HDFRecordReader.WaterMaskPath";
+
+  /**
+   * Configuration line for the number of threads that decompress the data.
+   * Records are streamed while the data is decompressed only if
+   * recoverholes is false.
+   */
+  public static final String DecompressionThreads = "HDFRecordReader.DecompressionThreads";
   
   /**Information about the dataset being read*/
   private NASADataset nasaDataset;
@@ -66,6 +79,12 @@ public class HDFRecordReader<S extends NASAShape>
    */
   private byte[] unparsedDataArray;
   
+  /**Reads the data array in the background while records are returned*/
+  private ParallelDataReader dataReader;
+
+  /**Number of bytes at the beginning of the data array known to be ready*/
+  private int readyLength;
+  
   /**Number of bytes per data entry*/
   private int valueSize;
   
@@ -176,19 +195,24 @@ public class HDFRecordReader<S extends NASAShape>
         if (fillValueFound) {
           fillValueBytes = new byte[valueSize];
           HDFConstants.writeAt(fillValueBytes, 0, fillValuee, valueSize);
-          for (int i = 0; i < unparsedDataArray.length; i++)
-            unparsedDataArray[i] = fillValueBytes[i % valueSize];
         }
-        numericDataGroup.getAsByteArray(unparsedDataArray, 0, unparsedDataArray.length);
+        // Chunks are decompressed in parallel in the background and records
+        // are returned as soon as the data they need is ready
+        dataReader = numericDataGroup.getAsByteArrayInParallel(unparsedDataArray,
+            fillValueBytes, conf.getInt(DecompressionThreads,
+                Runtime.getRuntime().availableProcessors()));
       }
     }
+    readyLength = 0;
     
     nasaDataset.resolution = resolution;
     if (!fillValueFound) {
       skipFillValue = false;
     } else {
       skipFillValue = conf.getBoolean("skipfill", true);
-      // Whether we need to recover fill values or not
+      // Whether we need to recover fill values or not. This waits for the
+      // whole data array, so records are no longer streamed as chunks are
+      // decompressed.
       boolean recoverFillValues = conf.getBoolean("recoverholes", true);
       if (recoverFillValues)
         recoverFillValues(conf);
@@ -228,12 +252,31 @@ public class HDFRecordReader<S extends NASAShape>
   
   @Override
   public void close() throws IOException {
+    if (dataReader != null) {
+      // Make sure the file is no longer accessed in the background
+      dataReader.close();
+      dataReader = null;
+    }
     hdfFile.close();
     if (deleteOnEnd) {
       fs.delete(inFile, true);
     }
   }
   
+  /**
+   * Waits until the given number of bytes at the beginning of the data array
+   * are read and decompressed.
+   * @param length
+   * @throws IOException
+   */
+  private void waitForData(int length) throws IOException {
+    if (length > readyLength) {
+      if (dataReader == null)
+        throw new IOException("No data found in file "+inFile);
+      readyLength = dataReader.waitFor(length);
+    }
+  }
+
   /**
    * Sets the geometry information for the given object according to its
    * position in the array
@@ -294,9 +337,18 @@ public class HDFRecordReader<S extends NASAShape>
     }
     
     private void skipFillValue() {
-      while (position < unparsedDataArray.length
-          && (!skipFillValue || isFillValue(position)))
-        position += valueSize;
+      try {
+        while (position < unparsedDataArray.length
+            && (!skipFillValue || waitAndCheckFillValue(position)))
+          position += valueSize;
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading file "+inFile, e);
+      }
+    }
+    
+    private boolean waitAndCheckFillValue(int position) throws IOException {
+      waitForData(position + valueSize);
+      return isFillValue(position);
     }
 
     @Override
@@ -311,6 +363,11 @@ public class HDFRecordReader<S extends NASAShape>
     
     @Override
     public S next() {
+      try {
+        waitForData(position + valueSize);
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading file "+inFile, e);
+      }
       shape.setValue(HDFConstants.readAsInteger(unparsedDataArray, position, valueSize));
       setShapeGeometry(shape, position);
       position += valueSize;
@@ -395,6 +452,10 @@ public class HDFRecordReader<S extends NASAShape>
         }
       }
 
+      // Recovering fill values requires the whole data array. The water mask
+      // is read while the data array is decompressed in the background
+      waitForData(unparsedDataArray.length);
+
       // Stores which values has been recovered by copying a single value
       // without interpolation in the x-direction
       byte[] valueStatus = new byte[unparsedDataArray.length / valueSize];
@@ -17,6 +17,7 @@ import java.io.IOException;
 import org.apache.hadoop.io.Text;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.io.TextCursor;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 import edu.umn.cs.spatialHadoop.nasa.NASAPoint.GradientType;
 
@@ -80,12 +81,11 @@ public class NASARectangle extends Rectangle implements NASAShape {
   }
   
   @Override
-  public void fromText(Text text) {
-    super.fromText(text);
-    byte[] bytes = text.getBytes();
-    text.set(bytes, 1, text.getLength() - 1);
-    value = TextSerializerHelper.consumeInt(text, ',');
-    timestamp = TextSerializerHelper.consumeLong(text, '\0');
+  public void fromText(TextCursor cursor) {
+    super.fromText(cursor);
+    cursor.skip(1);
+    value = cursor.nextInt(',');
+    timestamp = cursor.nextLong('\0');
   }
   
   @Override
@@ -59,11 +59,7 @@ public class SpatioAggregateQueries {
    * @throws InterruptedException 
    */
   public static AggregateQuadTree.Node aggregateQuery(Path inFile, OperationsParams params) throws ParseException, IOException, InterruptedException {
-    // 1- Find matching temporal partitions
     final FileSystem fs = inFile.getFileSystem(params);
-    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
-    
-    // 2- Find all matching files (AggregateQuadTrees) in matching partitions
     final Rectangle spatialRange = params.getShape("rect", new Rectangle()).getMBR();
     // Convert spatialRange from lat/lng space to Sinusoidal space
     double cosPhiRad = Math.cos(spatialRange.y1 * Math.PI / 180);
@@ -99,7 +95,19 @@ public class SpatioAggregateQueries {
         return h >= h1 && h < h2 && v >= v1 && v < v2;
       }
     };
+    
+    if (params.getBoolean("rollup", false)) {
+      Path rollupDir = new Path(inFile, AggregateRollup.RollupDir);
+      if (fs.exists(rollupDir))
+        return aggregateQueryRollup(fs, rollupDir, spatialRange, rangeFilter,
+            new TimeRange(params.get("time")));
+      LOG.warn("No roll-ups found in "+inFile);
+    }
 
+    // 1- Find matching temporal partitions
+    Vector<Path> matchingPartitions = selectTemporalPartitions(inFile, params);
+    
+    // 2- Find all matching files (AggregateQuadTrees) in matching partitions
     final Vector<Path> allMatchingFiles = new Vector<Path>();
     
     for (Path matchingPartition : matchingPartitions) {
@@ -116,42 +124,108 @@ public class SpatioAggregateQueries {
     final int resolution = AggregateQuadTree.getResolution(fs, allMatchingFiles.get(0));
     
     // 3- Query all matching files in parallel
-    List<Node> threadsResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<AggregateQuadTree.Node>() {
+    List<Node> chunkResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<AggregateQuadTree.Node>() {
       @Override
       public Node run(int i1, int i2) {
-        Node threadResult = new AggregateQuadTree.Node();
-        if (i1 == 0)
+        Node chunkResult = new AggregateQuadTree.Node();
         for (int i_file = i1; i_file < i2; i_file++) {
           Path matchingFile = allMatchingFiles.get(i_file);
           try {
-            Matcher matcher = MODISTileID.matcher(matchingFile.getName());
-            matcher.matches(); // It has to match
-            int h = Integer.parseInt(matcher.group(1));
-            int v = Integer.parseInt(matcher.group(2));
-            // Clip the query region and normalize in this tile
-            Rectangle translated = spatialRange.translate(-h, -v);
-            int x1 = (int) (Math.max(translated.x1, 0) * resolution);
-            int y1 = (int) (Math.max(translated.y1, 0) * resolution);
-            int x2 = (int) (Math.min(translated.x2, 1.0) * resolution);
-            int y2 = (int) (Math.min(translated.y2, 1.0) * resolution);
             AggregateQuadTree.Node fileResult = AggregateQuadTree.aggregateQuery(fs, matchingFile,
-                new java.awt.Rectangle(x1, y1, (x2 - x1), (y2 - y1)));
-            threadResult.accumulate(fileResult);
+                getQueryInTile(matchingFile, spatialRange, resolution));
+            chunkResult.accumulate(fileResult);
           } catch (Exception e) {
             throw new RuntimeException("Error reading file "+matchingFile, e);
           }
         }
-        return threadResult;
+        return chunkResult;
       }
     });
     AggregateQuadTree.Node finalResult = new AggregateQuadTree.Node();
-    for (Node threadResult : threadsResults) {
-      finalResult.accumulate(threadResult);
+    for (Node chunkResult : chunkResults) {
+      finalResult.accumulate(chunkResult);
     }
     numOfTreesTouchesInLastRequest = allMatchingFiles.size();
     return finalResult;
   }
   
+  /**
+   * Answers an aggregate query from the temporal roll-ups of all tiles that
+   * overlap the query range. Each tile is answered from its roll-up with a
+   * constant number of reads per quad tree node regardless of the length of
+   * the time range.
+   * @param fs
+   * @param rollupDir
+   * @param spatialRange - the query range in the MODIS grid space
+   * @param tileFilter - selects the tiles that overlap the query range
+   * @param timeRange
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static AggregateQuadTree.Node aggregateQueryRollup(final FileSystem fs,
+      Path rollupDir, final Rectangle spatialRange, PathFilter tileFilter,
+      final TimeRange timeRange) throws IOException, InterruptedException {
+    final Path valuesDir = new Path(rollupDir, AggregateRollup.ValuesDir);
+    final FileStatus[] matchingTiles =
+        fs.listStatus(new Path(rollupDir, AggregateRollup.NodesDir), tileFilter);
+    numOfTemporalPartitionsInLastQuery = 1;
+    numOfTreesTouchesInLastRequest = matchingTiles.length;
+    if (matchingTiles.length == 0)
+      return null;
+    
+    // All tiles are supposed to have the same resolution
+    final int resolution = AggregateQuadTree.getResolution(fs, matchingTiles[0].getPath());
+    
+    List<Node> chunkResults = Parallel.forEach(matchingTiles.length, new RunnableRange<AggregateQuadTree.Node>() {
+      @Override
+      public Node run(int i1, int i2) {
+        Node chunkResult = new AggregateQuadTree.Node();
+        for (int i_tile = i1; i_tile < i2; i_tile++) {
+          Path nodesFile = matchingTiles[i_tile].getPath();
+          try {
+            AggregateQuadTree.Node tileResult = AggregateRollup.aggregateQuery(fs,
+                nodesFile, new Path(valuesDir, nodesFile.getName()),
+                getQueryInTile(nodesFile, spatialRange, resolution),
+                timeRange.start, timeRange.end);
+            chunkResult.accumulate(tileResult);
+          } catch (Exception e) {
+            throw new RuntimeException("Error reading roll-up "+nodesFile, e);
+          }
+        }
+        return chunkResult;
+      }
+    });
+    AggregateQuadTree.Node finalResult = new AggregateQuadTree.Node();
+    for (Node chunkResult : chunkResults) {
+      finalResult.accumulate(chunkResult);
+    }
+    return finalResult;
+  }
+  
+  /**
+   * Clips the query range to the tile of the given file and converts it to
+   * positions in the two-dimensional array of values of that tile.
+   * @param file - a file with the tile identifier in its name
+   * @param spatialRange - the query range in the MODIS grid space
+   * @param resolution - the resolution of the tile
+   * @return
+   */
+  private static java.awt.Rectangle getQueryInTile(Path file,
+      Rectangle spatialRange, int resolution) {
+    Matcher matcher = MODISTileID.matcher(file.getName());
+    matcher.matches(); // It has to match
+    int h = Integer.parseInt(matcher.group(1));
+    int v = Integer.parseInt(matcher.group(2));
+    // Clip the query region and normalize in this tile
+    Rectangle translated = spatialRange.translate(-h, -v);
+    int x1 = (int) (Math.max(translated.x1, 0) * resolution);
+    int y1 = (int) (Math.max(translated.y1, 0) * resolution);
+    int x2 = (int) (Math.min(translated.x2, 1.0) * resolution);
+    int y2 = (int) (Math.min(translated.y2, 1.0) * resolution);
+    return new java.awt.Rectangle(x1, y1, (x2 - x1), (y2 - y1));
+  }
+  
   /**
    * Performs a spatio-temporal aggregate query on an indexed directory
    * @param inFile
@@ -204,7 +278,7 @@ public class SpatioAggregateQueries {
     queryInMatchingTile.y = (int) Math.floor((queryPoint.y - v) * resolution);
     
     // 3- Query all matching files in parallel
-    List<Long> threadsResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<Long>() {
+    List<Long> chunkResults = Parallel.forEach(allMatchingFiles.size(), new RunnableRange<Long>() {
       @Override
       public Long run(int i1, int i2) {
         ResultCollector<AggregateQuadTree.PointValue> internalOutput = output == null ? null :
@@ -234,7 +308,7 @@ public class SpatioAggregateQueries {
       }
     });
     long totalResults = 0;
-    for (long result : threadsResults) {
+    for (long result : chunkResults) {
       totalResults += result;
     }
     return totalResults;
@@ -315,6 +389,7 @@ public class SpatioAggregateQueries {
     System.out.println("rect:<x1,y1,x2,y2> - Spatial query range");
     System.out.println("time:<date1..date2> - Temporal query range. "
         + "Format of each date is yyyy.mm.dd");
+    System.out.println("-rollup - Answer the query from temporal roll-ups if the index has them");
     System.out.println("-server - Starts a server to handle queries");
     System.out.println("port:<p> - Port to listen to. Default: 8888");
     GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -0,0 +1,620 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DoubleWritable;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.GenericOptionsParser;
+import org.apache.hadoop.util.LineReader;
+
+import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
+import edu.umn.cs.spatialHadoop.core.ResultCollector2;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.indexing.KNNIndex;
+import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
+import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
+import edu.umn.cs.spatialHadoop.operations.KNN.KNNObjects;
+import edu.umn.cs.spatialHadoop.operations.KNN.TextWithDistance;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * Finds the k nearest neighbors of each point in a file of query points.
+ * Unlike {@link KNN} which runs one iterative job per query point, all
+ * queries are answered together in at most two MapReduce jobs.
+ * <ol>
+ *   <li>Each query is routed, using the global index, to the partition that
+ *   contains it (its home partition) where a local kNN is computed. The
+ *   distance to the k<sup>th</sup> neighbor in the home partition is an upper
+ *   bound of the distance to the true k<sup>th</sup> neighbor.</li>
+ *   <li>Each query is routed to all partitions within this distance and the
+ *   local kNN answers of all partitions are merged in the reduce phase.</li>
+ * </ol>
+ * If the input is not indexed, the first job is skipped and every query is
+ * processed in every split.
+ * @author Ahmed Eldawy
+ *
+ */
+public class BatchKNN {
+  /**Logger for BatchKNN*/
+  private static final Log LOG = LogFactory.getLog(BatchKNN.class);
+
+  /**Path of the file that contains the query points*/
+  public static final String QueryFile = "BatchKNN.QueryFile";
+
+  /**
+   * Path of a file that contains an upper bound of the distance to the
+   * k<sup>th</sup> neighbor for each query point. If not set, queries are
+   * routed to their home partitions.
+   */
+  public static final String BoundsFile = "BatchKNN.BoundsFile";
+
+  /**
+   * Reads all query points from the given file. The ID of each query is its
+   * position in the file. Empty lines are skipped.
+   * @param fs
+   * @param path
+   * @return
+   * @throws IOException
+   */
+  static Point[] readQueries(FileSystem fs, Path path) throws IOException {
+    List<Point> queries = new ArrayList<Point>();
+    FSDataInputStream in = fs.open(path);
+    LineReader reader = new LineReader(in);
+    Text line = new Text();
+    try {
+      while (reader.readLine(line) > 0) {
+        if (line.getLength() == 0)
+          continue;
+        Point query = new Point();
+        query.fromText(line);
+        queries.add(query);
+      }
+    } finally {
+      reader.close();
+    }
+    return queries.toArray(new Point[queries.size()]);
+  }
+
+  /**
+   * Reads the distance bounds of all queries. Each line contains a query ID
+   * and a distance separated by a tab. If a query appears more than once, the
+   * minimum distance is kept.
+   * @param fs
+   * @param path - a file or a directory of files
+   * @param numQueries
+   * @return
+   * @throws IOException
+   */
+  static double[] readBounds(FileSystem fs, Path path, int numQueries) throws IOException {
+    double[] bounds = new double[numQueries];
+    Arrays.fill(bounds, Double.POSITIVE_INFINITY);
+    FileStatus[] files = fs.isFile(path) ? new FileStatus[] {fs.getFileStatus(path)}
+        : fs.listStatus(path, SpatialSite.NonHiddenFileFilter);
+    Text line = new Text();
+    for (FileStatus file : files) {
+      LineReader reader = new LineReader(fs.open(file.getPath()));
+      try {
+        while (reader.readLine(line) > 0) {
+          String[] parts = line.toString().split("\t");
+          if (parts.length < 2)
+            continue;
+          int id = Integer.parseInt(parts[0]);
+          bounds[id] = Math.min(bounds[id], Double.parseDouble(parts[1]));
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    return bounds;
+  }
+
+  /**
+   * Returns the home partition of a query point which is the partition that
+   * contains it. If the point is contained in more than one partition, the
+   * one with the smallest file name is returned. If the point is outside all
+   * partitions, the closest partition is returned. All mappers use this
+   * function to agree on the home partition of each query.
+   * @param gIndex
+   * @param query
+   * @return
+   */
+  static Partition homePartition(GlobalIndex<Partition> gIndex, Point query) {
+    final Partition[] home = new Partition[1];
+    gIndex.rangeQuery(query, new ResultCollector<Partition>() {
+      @Override
+      public void collect(Partition p) {
+        if (home[0] == null || p.filename.compareTo(home[0].filename) < 0)
+          home[0] = p;
+      }
+    });
+    if (home[0] == null) {
+      // The point is outside all partitions, choose the closest one
+      double minDistance = Double.POSITIVE_INFINITY;
+      for (Partition p : gIndex) {
+        double distance = p.getMinDistanceTo(query.x, query.y);
+        if (distance < minDistance || (distance == minDistance &&
+            home[0] != null && p.filename.compareTo(home[0].filename) < 0)) {
+          minDistance = distance;
+          home[0] = p;
+        }
+      }
+    }
+    return home[0];
+  }
+
+  /**
+   * Computes an upper bound of the distance between a query point and its
+   * k<sup>th</sup> neighbor using only the global index. The closest
+   * partitions are added until they contain at least k records. All these
+   * records are within the maximum distance to these partitions. This is
+   * used when the home partition of a query has less than k records.
+   * In replicated indexes, the same record might be counted in more than
+   * one partition so no bound is computed and infinity is returned.
+   * @param gIndex
+   * @param query
+   * @param k
+   * @return
+   */
+  static double distanceBound(GlobalIndex<Partition> gIndex, final Point query, int k) {
+    if (gIndex.isReplicated())
+      return Double.POSITIVE_INFINITY;
+    Partition[] partitions = new Partition[gIndex.size()];
+    int i = 0;
+    for (Partition p : gIndex)
+      partitions[i++] = p;
+    Arrays.sort(partitions, new Comparator<Partition>() {
+      @Override
+      public int compare(Partition p1, Partition p2) {
+        return Double.compare(p1.getMinDistanceTo(query.x, query.y),
+            p2.getMinDistanceTo(query.x, query.y));
+      }
+    });
+    long recordCount = 0;
+    double bound = 0;
+    for (Partition p : partitions) {
+      recordCount += p.recordCount;
+      bound = Math.max(bound, p.getMaxDistanceTo(query.x, query.y));
+      if (recordCount >= k)
+        return bound;
+    }
+    return Double.POSITIVE_INFINITY;
+  }
+
+  /**
+   * Assigns each query to the partitions that need to be processed for it.
+   * If bounds are not given, each query is assigned to its home partition.
+   * Otherwise, each query is assigned to all partitions within its bound.
+   * @param gIndex
+   * @param queries
+   * @param bounds
+   * @return - a map from partition file name to IDs of queries
+   */
+  static Map<String, IntArray> routeQueries(GlobalIndex<Partition> gIndex,
+      Point[] queries, double[] bounds) {
+    final Map<String, IntArray> routes = new HashMap<String, IntArray>();
+    for (int id = 0; id < queries.length; id++) {
+      final Point q = queries[id];
+      if (bounds == null) {
+        Partition home = homePartition(gIndex, q);
+        if (home != null)
+          addRoute(routes, home.filename, id);
+      } else if (Double.isInfinite(bounds[id])) {
+        for (Partition p : gIndex)
+          addRoute(routes, p.filename, id);
+      } else {
+        final double r = bounds[id];
+        final int queryId = id;
+        // Expand the range slightly as partitions touching its edge do not
+        // overlap it but might contain a neighbor at exactly distance r
+        Rectangle range = new Rectangle(q.x - r, q.y - r, q.x + r, q.y + r);
+        range.x1 -= Math.ulp(range.x1); range.y1 -= Math.ulp(range.y1);
+        range.x2 += Math.ulp(range.x2); range.y2 += Math.ulp(range.y2);
+        gIndex.rangeQuery(range, new ResultCollector<Partition>() {
+          @Override
+          public void collect(Partition p) {
+            if (p.getMinDistanceTo(q.x, q.y) <= r)
+              addRoute(routes, p.filename, queryId);
+          }
+        });
+      }
+    }
+    return routes;
+  }
+
+  private static void addRoute(Map<String, IntArray> routes, String filename, int id) {
+    IntArray ids = routes.get(filename);
+    if (ids == null)
+      routes.put(filename, ids = new IntArray());
+    ids.add(id);
+  }
+
+  /**
+   * Selects only the partitions that have at least one query routed to them
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BatchKNNFilter extends DefaultBlockFilter {
+    private Configuration conf;
+
+    @Override
+    public void configure(Configuration conf) {
+      this.conf = conf;
+    }
+
+    @Override
+    public void selectCells(GlobalIndex<Partition> gIndex,
+        ResultCollector<Partition> output) {
+      try {
+        Path queryFile = new Path(conf.get(QueryFile));
+        Point[] queries = readQueries(queryFile.getFileSystem(conf), queryFile);
+        double[] bounds = null;
+        if (conf.get(BoundsFile) != null) {
+          Path boundsFile = new Path(conf.get(BoundsFile));
+          bounds = readBounds(boundsFile.getFileSystem(conf), boundsFile, queries.length);
+        }
+        Map<String, IntArray> routes = routeQueries(gIndex, queries, bounds);
+        int numPartitions = 0;
+        for (Partition p : gIndex) {
+          if (routes.containsKey(p.filename)) {
+            output.collect(p);
+            numPartitions++;
+          }
+        }
+        LOG.info("Selected "+numPartitions+" partitions out of "+gIndex.size());
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading queries", e);
+      }
+    }
+  }
+
+  /**
+   * Computes the local kNN of each query routed to a partition. The k nearest
+   * shapes of each query are kept in a bounded heap until the mapper is done.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static abstract class LocalKNNMap<K, V> extends
+      Mapper<Rectangle, Iterable<Shape>, K, V> {
+    protected int k;
+    protected Point[] queries;
+    /**Upper bound of the kNN distance of each query or null if unknown*/
+    protected double[] bounds;
+    protected GlobalIndex<Partition> gIndex;
+    /**Queries routed to each partition or null to process all queries everywhere*/
+    private Map<String, IntArray> routes;
+    /**IDs of all queries used when the input is not indexed*/
+    private IntArray allQueries;
+    /**The local kNN of each query processed by this mapper*/
+    protected Map<Integer, KNNObjects<TextWithDistance>> knn =
+        new HashMap<Integer, KNNObjects<TextWithDistance>>();
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      k = conf.getInt("k", 1);
+      Path queryFile = new Path(conf.get(QueryFile));
+      queries = readQueries(queryFile.getFileSystem(conf), queryFile);
+      if (conf.get(BoundsFile) != null) {
+        Path boundsFile = new Path(conf.get(BoundsFile));
+        bounds = readBounds(boundsFile.getFileSystem(conf), boundsFile, queries.length);
+      }
+      Path inPath = FileInputFormat.getInputPaths(context)[0];
+      gIndex = SpatialSite.getGlobalIndex(inPath.getFileSystem(conf), inPath);
+      if (gIndex != null) {
+        routes = routeQueries(gIndex, queries, bounds);
+      } else {
+        allQueries = new IntArray();
+        for (int id = 0; id < queries.length; id++)
+          allQueries.add(id);
+      }
+    }
+
+    /**
+     * Inserts a shape in the kNN of a query if it is within the bound of the
+     * query and closer than its current k<sup>th</sup> neighbor.
+     */
+    private void insert(int id, Shape shape, double distance) {
+      if (bounds != null && distance > bounds[id])
+        return;
+      KNNObjects<TextWithDistance> heap = knn.get(id);
+      if (heap == null)
+        knn.put(id, heap = new KNNObjects<TextWithDistance>(k));
+      if (heap.size() == k && distance >= heap.top().distance)
+        return;
+      TextWithDistance t = new TextWithDistance();
+      t.distance = distance;
+      shape.toText(t.text);
+      heap.insert(t);
+    }
+
+    @Override
+    protected void map(Rectangle key, Iterable<Shape> shapes, Context context)
+        throws IOException, InterruptedException {
+      IntArray ids;
+      if (routes != null && key instanceof Partition)
+        ids = routes.get(((Partition)key).filename);
+      else
+        ids = allQueries;
+      if (ids == null || ids.isEmpty() || k == 0)
+        return;
+      if (shapes instanceof KNNIndex) {
+        KNNIndex<Shape> index = (KNNIndex<Shape>) shapes;
+        for (int i = 0; i < ids.size(); i++) {
+          final int id = ids.get(i);
+          index.knn(queries[id].x, queries[id].y, k, new ResultCollector2<Shape, Double>() {
+            @Override
+            public void collect(Shape shape, Double distance) {
+              insert(id, shape, distance);
+            }
+          });
+        }
+      } else {
+        // Index the shapes in memory to answer all queries efficiently
+        List<Shape> list = new ArrayList<Shape>();
+        for (Shape shape : shapes)
+          list.add(shape.clone());
+        if (list.isEmpty())
+          return;
+        GlobalIndex<Shape> localIndex = new GlobalIndex<Shape>();
+        localIndex.bulkLoad(list.toArray(new Shape[list.size()]));
+        for (int i = 0; i < ids.size(); i++) {
+          final int id = ids.get(i);
+          localIndex.knn(queries[id].x, queries[id].y, k, new ResultCollector2<Shape, Double>() {
+            @Override
+            public void collect(Shape shape, Double distance) {
+              insert(id, shape, distance);
+            }
+          });
+        }
+      }
+    }
+  }
+
+  /**
+   * The mapper of the first job. Writes the distance to the k<sup>th</sup>
+   * neighbor of each query that has at least k neighbors in its home
+   * partition.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BoundMap extends LocalKNNMap<IntWritable, DoubleWritable> {
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      IntWritable id = new IntWritable();
+      DoubleWritable bound = new DoubleWritable();
+      for (Map.Entry<Integer, KNNObjects<TextWithDistance>> entry : knn.entrySet()) {
+        if (entry.getValue().size() == k) {
+          id.set(entry.getKey());
+          bound.set(entry.getValue().top().distance);
+          context.write(id, bound);
+        }
+      }
+      super.cleanup(context);
+    }
+  }
+
+  /**
+   * The mapper of the second job. Writes the local kNN of each query.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BatchKNNMap extends LocalKNNMap<IntWritable, TextWithDistance> {
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      IntWritable id = new IntWritable();
+      for (Map.Entry<Integer, KNNObjects<TextWithDistance>> entry : knn.entrySet()) {
+        id.set(entry.getKey());
+        KNNObjects<TextWithDistance> heap = entry.getValue();
+        while (heap.size() > 0)
+          context.write(id, heap.pop());
+      }
+      super.cleanup(context);
+    }
+  }
+
+  /**
+   * Reduce (and combine) class for batch KNN. Merges the local kNN of each
+   * query and writes its k nearest neighbors in ascending order of distance.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class BatchKNNReduce extends
+      Reducer<IntWritable, TextWithDistance, IntWritable, TextWithDistance> {
+    private int k;
+
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      super.setup(context);
+      k = context.getConfiguration().getInt("k", 1);
+    }
+
+    @Override
+    protected void reduce(IntWritable id, Iterable<TextWithDistance> values,
+        Context context) throws IOException, InterruptedException {
+      if (k == 0)
+        return;
+      KNNObjects<TextWithDistance> knn = new KNNObjects<TextWithDistance>(k);
+      for (TextWithDistance t : values) {
+        if (knn.size() < k || t.distance < knn.top().distance)
+          knn.insert(t.clone());
+      }
+      TextWithDistance[] knnAscendingOrder = new TextWithDistance[knn.size()];
+      int i = knnAscendingOrder.length;
+      while (knn.size() > 0)
+        knnAscendingOrder[--i] = knn.pop();
+      for (TextWithDistance t : knnAscendingOrder)
+        context.write(id, t);
+    }
+  }
+
+  /**
+   * Runs the first job which computes an upper bound of the kNN distance of
+   * each query and writes all the bounds to one file.
+   * @param inFile
+   * @param queryFile
+   * @param boundsFile
+   * @param gIndex
+   * @param queries
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  private static void computeBounds(Path inFile, Path queryFile,
+      Path boundsFile, GlobalIndex<Partition> gIndex, Point[] queries,
+      OperationsParams params) throws IOException, InterruptedException,
+      ClassNotFoundException {
+    FileSystem fs = boundsFile.getFileSystem(params);
+    Path localBounds = boundsFile.suffix("_local");
+    Job job = Job.getInstance(params, "BatchKNN-Bounds");
+    job.setJarByClass(BatchKNN.class);
+    job.getConfiguration().set(QueryFile, queryFile.toString());
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, inFile);
+    job.getConfiguration().setClass(SpatialSite.FilterClass, BatchKNNFilter.class, BlockFilter.class);
+    job.setMapperClass(BoundMap.class);
+    job.setMapOutputKeyClass(IntWritable.class);
+    job.setMapOutputValueClass(DoubleWritable.class);
+    job.setNumReduceTasks(0);
+    job.setOutputFormatClass(TextOutputFormat3.class);
+    TextOutputFormat3.setOutputPath(job, localBounds);
+    if (!job.waitForCompletion(false))
+      throw new RuntimeException("Job "+job.getJobName()+" failed");
+
+    // Use the global index for queries with less than k neighbors in their
+    // home partitions
+    double[] bounds = readBounds(fs, localBounds, queries.length);
+    int k = params.getInt("k", 1);
+    PrintStream ps = new PrintStream(fs.create(boundsFile));
+    for (int id = 0; id < queries.length; id++) {
+      if (Double.isInfinite(bounds[id]))
+        bounds[id] = distanceBound(gIndex, queries[id], k);
+      ps.print(id);
+      ps.print('\t');
+      ps.println(bounds[id]);
+    }
+    ps.close();
+    fs.delete(localBounds, true);
+  }
+
+  /**
+   * Finds the k nearest neighbors of all query points in the given query file
+   * using MapReduce. Each line of the output contains the ID of a query (its
+   * position in the query file) followed by one of its neighbors.
+   * @param inFile
+   * @param queryFile
+   * @param outFile
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  public static Job batchKnnMapReduce(Path inFile, Path queryFile,
+      Path outFile, OperationsParams params) throws IOException,
+      InterruptedException, ClassNotFoundException {
+    FileSystem inFs = inFile.getFileSystem(params);
+    FileSystem outFs = outFile.getFileSystem(params);
+    Point[] queries = readQueries(queryFile.getFileSystem(params), queryFile);
+    LOG.info("Read "+queries.length+" queries from '"+queryFile+"'");
+
+    GlobalIndex<Partition> gIndex = SpatialSite.getGlobalIndex(inFs, inFile);
+    Path boundsFile = gIndex == null ? null : outFile.suffix("_bounds");
+    try {
+      if (boundsFile != null)
+        computeBounds(inFile, queryFile, boundsFile, gIndex, queries, params);
+
+      Job job = Job.getInstance(params, "BatchKNN");
+      job.setJarByClass(BatchKNN.class);
+      job.getConfiguration().set(QueryFile, queryFile.toString());
+      job.setInputFormatClass(SpatialInputFormat3.class);
+      SpatialInputFormat3.setInputPaths(job, inFile);
+      if (boundsFile != null) {
+        job.getConfiguration().set(BoundsFile, boundsFile.toString());
+        job.getConfiguration().setClass(SpatialSite.FilterClass, BatchKNNFilter.class, BlockFilter.class);
+      }
+      job.setMapperClass(BatchKNNMap.class);
+      job.setMapOutputKeyClass(IntWritable.class);
+      job.setMapOutputValueClass(TextWithDistance.class);
+      job.setCombinerClass(BatchKNNReduce.class);
+      job.setReducerClass(BatchKNNReduce.class);
+      job.setOutputFormatClass(TextOutputFormat3.class);
+      TextOutputFormat3.setOutputPath(job, outFile);
+
+      if (!job.waitForCompletion(false))
+        throw new RuntimeException("Job "+job.getJobName()+" failed");
+      return job;
+    } finally {
+      if (boundsFile != null)
+        outFs.delete(boundsFile, false);
+    }
+  }
+
+  private static void printUsage() {
+    System.out.println("Finds the k nearest neighbors of each point in a file of query points");
+    System.out.println("Parameters: (* marks required parameters)");
+    System.out.println("<input file> - (*) Path to input file");
+    System.out.println("<query file> - (*) Path to a file of query points");
+    System.out.println("<output file> - (*) Path to output file");
+    System.out.println("shape:<point|rectangle|polygon> - (*) Type of shapes stored in input file");
+    System.out.println("k:<k> - (*) Number of neighbors to find for each query");
+    System.out.println("-overwrite - Overwrite output file without notice");
+    GenericOptionsParser.printGenericCommandUsage(System.out);
+  }
+
+  public static void main(String[] args) throws IOException,
+      InterruptedException, ClassNotFoundException {
+    final OperationsParams params = new OperationsParams(new GenericOptionsParser(args));
+    Path[] paths = params.getPaths();
+    if (paths.length != 3 || !params.checkInputOutput(true)) {
+      printUsage();
+      System.exit(1);
+    }
+    if (params.getInt("k", 1) == 0)
+      LOG.warn("k = 0");
+    long t1 = System.currentTimeMillis();
+    batchKnnMapReduce(paths[0], paths[1], paths[2], params);
+    long t2 = System.currentTimeMillis();
+    System.out.println("Total time: "+(t2-t1)+" millis");
+  }
+}
@@ -21,16 +21,17 @@ import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.ClusterStatus;
+import org.apache.hadoop.mapred.JobClient;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapred.Task;
-import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.JobStatus.State;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.OutputCommitter;
-import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
-import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputCommitter;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.GenericOptionsParser;
@@ -38,18 +39,17 @@ import org.apache.hadoop.util.IndexedSortable;
 import org.apache.hadoop.util.QuickSort;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.GridInfo;
 import edu.umn.cs.spatialHadoop.core.Point;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
  * Closest pair of points algorithm
@@ -63,6 +63,21 @@ public class ClosestPair {
   
   public static final String BruteForceThreshold = "ClosestPair.BruteForceThreshold";
   
+  /**Number of cells in the grid of the first round of reducers*/
+  public static final String ReduceGridCells = "ClosestPair.ReduceGridCells";
+  
+  /**The grid of the first round of reducers*/
+  private static final String ReduceGrid = "ClosestPair.ReduceGrid";
+  
+  /**The level of the current round of reducers in the reduce tree*/
+  private static final String ReduceLevel = "ClosestPair.ReduceLevel";
+  
+  /**Whether the partitions of the input are disjoint or not*/
+  private static final String DisjointPartitions = "ClosestPair.DisjointPartitions";
+  
+  /**A temporary directory of the last job that it deletes when it completes*/
+  private static final String TempInput = "ClosestPair.TempInput";
+  
   /**
    * A pair of points.
    * @author Ahmed Eldawy
@@ -272,100 +287,181 @@ public class ClosestPair {
     return bound1;
   }
   
+  /**
+   * Returns the cell of the reduce tree that contains the given point. At
+   * level zero, cells are the cells of the reduce grid. Each cell at the
+   * next level merges up to 2x2 cells of the previous level.
+   * @param grid - the grid of the first level
+   * @param level - the level of the reduce tree
+   * @param x
+   * @param y
+   * @return the ID of the cell in the given level
+   */
+  static int getReduceCell(GridInfo grid, int level, double x, double y) {
+    int column = grid.getWidth() > 0 ?
+        (int) Math.floor((x - grid.x1) * grid.columns / grid.getWidth()) : 0;
+    int row = grid.getHeight() > 0 ?
+        (int) Math.floor((y - grid.y1) * grid.rows / grid.getHeight()) : 0;
+    column = Math.max(0, Math.min(grid.columns - 1, column)) >> level;
+    row = Math.max(0, Math.min(grid.rows - 1, row)) >> level;
+    return row * (((grid.columns - 1) >> level) + 1) + column;
+  }
+  
+  /**
+   * Returns the region of a cell in the reduce tree. The sides of the cell
+   * that are on the boundary of the grid are set to infinity as there are
+   * no points beyond them.
+   * @param grid - the grid of the first level
+   * @param level - the level of the reduce tree
+   * @param cellId - the ID of the cell in the given level
+   * @return
+   */
+  static Rectangle getReduceRegion(GridInfo grid, int level, int cellId) {
+    int levelColumns = ((grid.columns - 1) >> level) + 1;
+    int column1 = (cellId % levelColumns) << level;
+    int column2 = Math.min(grid.columns, column1 + (1 << level));
+    int row1 = (cellId / levelColumns) << level;
+    int row2 = Math.min(grid.rows, row1 + (1 << level));
+    return new Rectangle(
+        column1 == 0 ? Double.NEGATIVE_INFINITY : grid.x1 + grid.getWidth() * column1 / grid.columns,
+        row1 == 0 ? Double.NEGATIVE_INFINITY : grid.y1 + grid.getHeight() * row1 / grid.rows,
+        column2 == grid.columns ? Double.POSITIVE_INFINITY : grid.x1 + grid.getWidth() * column2 / grid.columns,
+        row2 == grid.rows ? Double.POSITIVE_INFINITY : grid.y1 + grid.getHeight() * row2 / grid.rows);
+  }
+  
+  /**
+   * Returns the number of levels in the reduce tree of the given grid. The
+   * last level has only one cell.
+   * @param grid
+   * @return
+   */
+  static int getNumReduceLevels(GridInfo grid) {
+    int numLevels = 1;
+    while ((grid.columns - 1) >> (numLevels - 1) > 0 || (grid.rows - 1) >> (numLevels - 1) > 0)
+      numLevels++;
+    return numLevels;
+  }
+  
   /**
    * The map function computes the closest pair for a partition and returns all
    * points that can possibly contribute to the global closest pair. This
    * includes the closest pair found in this partition as well as all points
    * that are closer to the partition boudnary than the distance between the
-   * closest pair.
+   * closest pair. Points are processed as they are read and only the ones
+   * that are close to the boundary are kept in memory. If partitions can
+   * overlap, all points are returned as a point can be part of a pair with
+   * a point in another partition regardless of its distance to the boundary.
+   * Each point is sent to the cell of the reduce grid that contains it.
    * @author Ahmed Eldawy
    *
    */
   public static class ClosestPairMap
       extends Mapper<Rectangle, Iterable<Point>, IntWritable, Point> {
     
-    /**Boundaries of columns to split partitions*/
-    private double[] columnBoundaries;
+    /**The grid of the first round of reducers*/
+    private GridInfo reduceGrid;
+    
+    /**Whether the partitions of the input are disjoint or not*/
+    private boolean disjointPartitions;
     
     @Override
     protected void setup(Context context) throws IOException,
         InterruptedException {
-      this.columnBoundaries = SpatialSite.getReduceSpace(context.getConfiguration());
+      this.reduceGrid = (GridInfo) OperationsParams.getShape(context.getConfiguration(), ReduceGrid);
+      this.disjointPartitions = context.getConfiguration().getBoolean(DisjointPartitions, false);
     }
     
     @Override
     protected void map(Rectangle key, Iterable<Point> values, Context context)
         throws IOException, InterruptedException {
-      IntWritable column = new IntWritable();
-      List<Point> points = new ArrayList<Point>();
+      IntWritable cell = new IntWritable();
+      if (!disjointPartitions || !key.isValid()) {
+        // Any point can be part of a pair with a point in another partition
+        for (Point p : values) {
+          cell.set(getReduceCell(reduceGrid, 0, p.x, p.y));
+          context.write(cell, p);
+        }
+        return;
+      }
+      StreamingClosestPair closestPair = new StreamingClosestPair(key);
       for (Point point : values)
-        points.add(point.clone());
-      
-      Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
+        closestPair.add(point);
       
       // Output the two closest points as well as all points within the minimum
       // distance of the partition boundary
-      if (key.isValid()) {
-        int col = Arrays.binarySearch(this.columnBoundaries, key.getCenterPoint().x);
-        if (col < 0)
-          col = -col - 1;
-        column.set(col);
-        
-        double minDistance = pair.getDistance();
-        Rectangle innerRectangle = key.buffer(-minDistance, -minDistance);
-        for (Point p : points) {
-          if (!innerRectangle.contains(p))
-            context.write(column, p);
-        }
-        
-        // Write p1 and p2 if they have not been written using the previous loop
-        if (innerRectangle.contains(pair.p1))
-          context.write(column, (Point) pair.p1);
-        if (innerRectangle.contains(pair.p2))
-          context.write(column, (Point) pair.p2);
+      for (Point p : closestPair.getCandidatePoints()) {
+        cell.set(getReduceCell(reduceGrid, 0, p.x, p.y));
+        context.write(cell, p);
       }
     }
   }
   
   /**
-   * The reduce
-   * @author 
+   * The map function of the rounds after the first one in the reduce tree.
+   * It sends each point produced by the previous round to the cell that
+   * contains it in the current level.
+   * @author Ahmed Eldawy
+   *
+   */
+  public static class ClosestPairMergeMap
+      extends Mapper<Rectangle, Iterable<Point>, IntWritable, Point> {
+    
+    private GridInfo reduceGrid;
+    
+    private int level;
+    
+    @Override
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      this.reduceGrid = (GridInfo) OperationsParams.getShape(context.getConfiguration(), ReduceGrid);
+      this.level = context.getConfiguration().getInt(ReduceLevel, 0);
+    }
+    
+    @Override
+    protected void map(Rectangle key, Iterable<Point> values, Context context)
+        throws IOException, InterruptedException {
+      IntWritable cell = new IntWritable();
+      for (Point p : values) {
+        cell.set(getReduceCell(reduceGrid, level, p.x, p.y));
+        context.write(cell, p);
+      }
+    }
+  }
+  
+  /**
+   * Computes the closest pair of the points in one cell of the reduce tree
+   * and returns the closest pair as well as all points within its distance
+   * of the cell boundary. These are the only points that can contribute to
+   * the global closest pair in the next level. The cell of the last level
+   * covers the whole space so only the closest pair is returned.
+   * @author Ahmed Eldawy
    *
    */
   public static class ClosestPairReduce
       extends Reducer<IntWritable, Point, NullWritable, Point> {
     
+    private GridInfo reduceGrid;
+    
+    private int level;
+    
     @Override
-    protected void reduce(IntWritable dummyColumn, Iterable<Point> values,
+    protected void setup(Context context) throws IOException,
+        InterruptedException {
+      this.reduceGrid = (GridInfo) OperationsParams.getShape(context.getConfiguration(), ReduceGrid);
+      this.level = context.getConfiguration().getInt(ReduceLevel, 0);
+    }
+    
+    @Override
+    protected void reduce(IntWritable cell, Iterable<Point> values,
         Context context) throws IOException, InterruptedException {
-
-      List<Point> points = new ArrayList<Point>();
-      Rectangle mbr = new Rectangle(Double.MAX_VALUE, Double.MAX_VALUE,
-          -Double.MAX_VALUE, -Double.MAX_VALUE);
-      for (Point point : values) {
-        points.add(point.clone());
-        mbr.expand(point);
-      }
-      
-      Pair pair = closestPairInMemory(points.toArray(new Point[points.size()]),
-          context.getConfiguration().getInt(BruteForceThreshold, 100));
+      StreamingClosestPair closestPair =
+          new StreamingClosestPair(getReduceRegion(reduceGrid, level, cell.get()));
+      for (Point point : values)
+        closestPair.add(point);
       
-      // Output the two closest points as well as all points within the minimum
-      // distance of the partition boundary
-      double minDistance = pair.getDistance();
-      Rectangle innerRectangle = mbr.buffer(-minDistance, -minDistance);
       final NullWritable dummyNull = NullWritable.get();
-      for (Point p : points) {
-        if (!innerRectangle.contains(p))
-          context.write(dummyNull, p);
-      }
-
-      // Write p1 and p2 if they have not been written using the previous loop
-      if (innerRectangle.contains(pair.p1))
-        context.write(dummyNull, (Point) pair.p1);
-      if (innerRectangle.contains(pair.p2))
-        context.write(dummyNull, (Point) pair.p2);
+      for (Point p : closestPair.getCandidatePoints())
+        context.write(dummyNull, p);
     }
   }
 
@@ -402,6 +498,27 @@ public class ClosestPair {
       // Delete all intermediate files
       for (FileStatus outFile : outFiles)
         fs.delete(outFile.getPath(), false);
+      deleteTempInput(context);
+    }
+    
+    @Override
+    public void abortJob(JobContext context, State state) throws IOException {
+      super.abortJob(context, state);
+      deleteTempInput(context);
+    }
+    
+    /**
+     * Deletes the output of the previous level if it was left to this job
+     * because it runs in the background
+     * @param context
+     * @throws IOException
+     */
+    private void deleteTempInput(JobContext context) throws IOException {
+      String tempInput = context.getConfiguration().get(TempInput);
+      if (tempInput != null) {
+        Path tempPath = new Path(tempInput);
+        tempPath.getFileSystem(context.getConfiguration()).delete(tempPath, true);
+      }
     }
   }
   
@@ -415,35 +532,102 @@ public class ClosestPair {
     }
   }
   
+  /**
+   * Computes the closest pair using MapReduce. The first job computes the
+   * closest pair of each partition and sends the points that might be part
+   * of a closer pair across partitions to the cells of a reduce grid. Each
+   * following job merges 2x2 cells of the previous one until all the
+   * points are merged in one cell. This way, no reducer has to process all
+   * the points along a whole column or row of the input. The outputs of
+   * intermediate levels are written under the directory outPath_tmp and
+   * deleted once they are read, or if a level fails. If the last job runs in
+   * the background, it deletes this directory itself when it completes or
+   * fails.
+   * @param inPaths
+   * @param outPath
+   * @param params
+   * @return the last job
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
   public static Job closestPairMapReduce(Path[] inPaths, Path outPath,
       OperationsParams params)
           throws IOException, InterruptedException, ClassNotFoundException {
-    Job job = new Job(params, "Closest Pair");
-    job.setJarByClass(ClosestPair.class);
     Shape shape = params.getShape("shape");
-
-    // Set map and reduce
-    job.setMapperClass(ClosestPairMap.class);
-    job.setMapOutputKeyClass(IntWritable.class);
-    job.setMapOutputValueClass(shape.getClass());
-    job.setReducerClass(ClosestPairReduce.class);
-
-    // Set input and output
-    job.setInputFormatClass(SpatialInputFormat3.class);
-    SpatialInputFormat3.setInputPaths(job, inPaths);
-    job.setOutputFormatClass(ClosestPairOutputFormat.class);
-    TextOutputFormat.setOutputPath(job, outPath);
     
-    // Set column boundaries to define the boundaries of each reducer
-    SpatialSite.splitReduceSpace(job, inPaths, params);
-
-    // Submit the job
-    if (!params.getBoolean("background", false)) {
-      job.waitForCompletion(params.getBoolean("verbose", false));
-      if (!job.isSuccessful())
-        throw new RuntimeException("Job failed!");
-    } else {
-      job.submit();
+    // Points can be filtered in the map only if partitions do not overlap
+    boolean disjointPartitions = true;
+    for (Path inPath : inPaths) {
+      GlobalIndex<Partition> gIndex =
+          SpatialSite.getGlobalIndex(inPath.getFileSystem(params), inPath);
+      disjointPartitions = disjointPartitions && gIndex != null && gIndex.isReplicated();
+    }
+    
+    // Build the grid of the first round of reducers
+    Rectangle inputMBR = FileMBR.fileMBR(inPaths, params);
+    ClusterStatus clusterStatus = new JobClient(new JobConf()).getClusterStatus();
+    GridInfo reduceGrid = new GridInfo(inputMBR.x1, inputMBR.y1, inputMBR.x2, inputMBR.y2);
+    reduceGrid.calculateCellDimensions(params.getInt(ReduceGridCells,
+        Math.max(1, clusterStatus.getMaxReduceTasks() * 9 / 10)));
+    int numLevels = getNumReduceLevels(reduceGrid);
+    
+    FileSystem outFs = outPath.getFileSystem(params);
+    // Outputs of intermediate levels are written under one temp directory
+    Path tempDir = new Path(outPath.toUri().getPath()+"_tmp");
+    outFs.delete(tempDir, true);
+    boolean deleteTempDir = true;
+    Job job = null;
+    Path[] levelInPaths = inPaths;
+    try {
+      for (int level = 0; level < numLevels; level++) {
+        job = Job.getInstance(params, "Closest Pair"+(numLevels > 1? " level "+level : ""));
+        job.setJarByClass(ClosestPair.class);
+        OperationsParams.setShape(job.getConfiguration(), ReduceGrid, reduceGrid);
+        job.getConfiguration().setInt(ReduceLevel, level);
+        job.getConfiguration().setBoolean(DisjointPartitions, disjointPartitions);
+        
+        // Set map and reduce
+        job.setMapperClass(level == 0 ? ClosestPairMap.class : ClosestPairMergeMap.class);
+        job.setMapOutputKeyClass(IntWritable.class);
+        job.setMapOutputValueClass(shape.getClass());
+        job.setReducerClass(ClosestPairReduce.class);
+        job.setNumReduceTasks((((reduceGrid.columns - 1) >> level) + 1) *
+            (((reduceGrid.rows - 1) >> level) + 1));
+        
+        // Set input and output
+        job.setInputFormatClass(SpatialInputFormat3.class);
+        SpatialInputFormat3.setInputPaths(job, levelInPaths);
+        Path levelOutPath;
+        if (level == numLevels - 1) {
+          job.setOutputFormatClass(ClosestPairOutputFormat.class);
+          levelOutPath = outPath;
+        } else {
+          job.setOutputFormatClass(TextOutputFormat3.class);
+          levelOutPath = new Path(tempDir, "level_"+level);
+        }
+        TextOutputFormat.setOutputPath(job, levelOutPath);
+        
+        // Submit the job
+        if (level == numLevels - 1 && params.getBoolean("background", false)) {
+          if (level > 0) {
+            job.getConfiguration().set(TempInput, tempDir.toString());
+            // The job deletes its input when it completes
+            deleteTempDir = false;
+          }
+          job.submit();
+        } else {
+          job.waitForCompletion(params.getBoolean("verbose", false));
+          if (level > 0)
+            outFs.delete(levelInPaths[0], true);
+          if (!job.isSuccessful())
+            throw new RuntimeException("Job failed!");
+        }
+        levelInPaths = new Path[] {levelOutPath};
+      }
+    } finally {
+      if (deleteTempDir)
+        outFs.delete(tempDir, true);
     }
     return job;
   }
@@ -461,68 +645,8 @@ public class ClosestPair {
       throws IOException, InterruptedException {
     if (params.getBoolean("mem", false))
       MemoryReporter.startReporting();
-    // 1- Split the input path/file to get splits that can be processed
-    // independently
-    final SpatialInputFormat3<Rectangle, Point> inputFormat =
-        new SpatialInputFormat3<Rectangle, Point>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inPaths);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
-    final Point[][] allLists = new Point[splits.size()][];
-    
-    // 2- Read all input points in memory
-    LOG.info("Reading points from "+splits.size()+" splits");
-    List<Integer> numsPoints = Parallel.forEach(splits.size(), new RunnableRange<Integer>() {
-      @Override
-      public Integer run(int i1, int i2) {
-        int numPoints = 0;
-        for (int i = i1; i < i2; i++) {
-          try {
-            List<Point> points = new ArrayList<Point>();
-            FileSplit fsplit = (FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<Point>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            while (reader.nextKeyValue()) {
-              Iterable<Point> pts = reader.getCurrentValue();
-              for (Point p : pts) {
-                points.add(p.clone());
-              }
-            }
-            reader.close();
-            numPoints += points.size();
-            allLists[i] = points.toArray(new Point[points.size()]);
-          } catch (IOException e) {
-            throw new RuntimeException("Error reading file", e);
-          } catch (InterruptedException e) {
-            throw new RuntimeException("Error reading file", e);
-          }
-        }
-        return numPoints;
-      }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
-    
-    int totalNumPoints = 0;
-    for (int numPoints : numsPoints)
-      totalNumPoints += numPoints;
-    
-    LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
-    int pointer = 0;
-    
-    for (int iList = 0; iList < allLists.length; iList++) {
-      System.arraycopy(allLists[iList], 0, allPoints, pointer, allLists[iList].length);
-      pointer += allLists[iList].length;
-      allLists[iList] = null; // To let the GC collect it
-    }
+    // 1- Read all input points in memory
+    Point[] allPoints = LocalSplitRunner.readPoints(inPaths, params);
     
     LOG.info("Computing closest-pair for "+allPoints.length+" points");
     Pair closestPair = closestPairInMemory(allPoints,
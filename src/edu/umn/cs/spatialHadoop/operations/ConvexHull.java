@@ -12,11 +12,11 @@ import java.io.IOException;
 import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -32,9 +32,8 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapreduce.InputSplit;
-import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
@@ -50,10 +49,9 @@ import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.DefaultBlockFilter;
 import edu.umn.cs.spatialHadoop.mapred.GridOutputFormat2;
 import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner.SplitMapper;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
@@ -67,50 +65,163 @@ public class ConvexHull {
   
   private static final Log LOG = LogFactory.getLog(ConvexHull.class);
   
+  /**Maximum number of points buffered by a map task before it filters them*/
+  public static final String MapBufferSize = "ConvexHull.MapBufferSize";
+  
+  /**
+   * Number of threads used by the reduce task to combine the points. It
+   * defaults to the number of virtual cores given to each reduce task
+   * (mapreduce.reduce.cpu.vcores) as the task shares the machine with other
+   * tasks.
+   */
+  public static final String ReduceParallelism = "ConvexHull.ReduceParallelism";
+  
   /**
-   * Computes the convex hull of a set of points using a divide and conquer
-   * in-memory algorithm. This function implements Andrew's modification to
-   * the Graham scan algorithm.
+   * Computes the convex hull of a set of points using an in-memory
+   * algorithm. This function implements Andrew's modification to the Graham
+   * scan algorithm. The given array is sorted in place.
    * 
    * @param points
    * @return
    */
   public static <P extends Point> P[] convexHullInMemory(P[] points) {
-    Stack<P> s1 = new Stack<P>();
-    Stack<P> s2 = new Stack<P>();
-    
+    if (points.length < 2)
+      return points;
     Arrays.sort(points);
-    
-    // Lower chain
-    for (int i=0; i<points.length; i++) {
-      while(s1.size() > 1) {
-        P p1 = s1.get(s1.size() - 2);
-        P p2 = s1.get(s1.size() - 1);
-        P p3 = points[i];
-        double crossProduct = (p2.x - p1.x) * (p3.y - p1.y) - (p2.y - p1.y) * (p3.x - p1.x);
-        if (crossProduct <= 0) s1.pop();
-        else break;
+    double[] xs = new double[points.length];
+    double[] ys = new double[points.length];
+    IntArray[] chains = chainsOfSortedRange(points, xs, ys, 0, points.length);
+    List<IntArray> lowerChains = new ArrayList<IntArray>();
+    lowerChains.add(chains[0]);
+    List<IntArray> upperChains = new ArrayList<IntArray>();
+    upperChains.add(chains[1]);
+    return mergeChains(points, xs, ys, lowerChains, upperChains);
+  }
+  
+  /**
+   * Computes the convex hull of a set of points using multiple threads. The
+   * points are sorted in parallel and split into vertical slabs of
+   * consecutive points. The lower and upper chains of each slab are computed
+   * in parallel and the chains of all slabs are merged by one more scan over
+   * them. As only the points on the chains of the slabs are scanned again,
+   * the cost of the merge depends on the size of the hulls of the slabs
+   * rather than the input. The given array is sorted in place.
+   * @param points
+   * @param parallelism - maximum number of threads to use
+   * @return
+   * @throws InterruptedException
+   */
+  public static Point[] convexHullInMemory(final Point[] points, int parallelism)
+      throws InterruptedException {
+    if (parallelism <= 1 || points.length < 2 * parallelism)
+      return convexHullInMemory(points);
+    Parallel.sort(points, new Comparator<Point>() {
+      @Override
+      public int compare(Point p1, Point p2) {
+        return p1.compareTo(p2);
       }
-      s1.push(points[i]);
-    }
-    
-    // Upper chain
-    for (int i=points.length - 1; i>=0; i--) {
-      while(s2.size() > 1) {
-        P p1 = s2.get(s2.size() - 2);
-        P p2 = s2.get(s2.size() - 1);
-        P p3 = points[i];
-        double crossProduct = (p2.x - p1.x) * (p3.y - p1.y) - (p2.y - p1.y) * (p3.x - p1.x);
-        if (crossProduct <= 0) s2.pop();
-        else break;
+    }, parallelism);
+    final double[] xs = new double[points.length];
+    final double[] ys = new double[points.length];
+    List<IntArray[]> slabChains = Parallel.forEach(points.length, new RunnableRange<IntArray[]>() {
+      @Override
+      public IntArray[] run(int i1, int i2) {
+        return chainsOfSortedRange(points, xs, ys, i1, i2);
       }
-      s2.push(points[i]);
+    }, parallelism);
+    List<IntArray> lowerChains = new ArrayList<IntArray>();
+    List<IntArray> upperChains = new ArrayList<IntArray>();
+    for (IntArray[] chains : slabChains) {
+      lowerChains.add(chains[0]);
+      upperChains.add(0, chains[1]);
     }
-    
-    s1.pop();
-    s2.pop();
-    s1.addAll(s2);
-    return s1.toArray((P[]) Array.newInstance(s1.firstElement().getClass(), s1.size()));    
+    return mergeChains(points, xs, ys, lowerChains, upperChains);
+  }
+  
+  /**
+   * Computes the lower and upper chains of a range of sorted points. The
+   * coordinates of the points in the range are copied to the given flat
+   * arrays which are used by all the later steps.
+   * @param points - all points sorted by x then y
+   * @param xs - the flat array of x coordinates of all points
+   * @param ys - the flat array of y coordinates of all points
+   * @param i1 - the start of the range, inclusive
+   * @param i2 - the end of the range, exclusive
+   * @return the indexes of the points on the lower chain from left to right
+   *  followed by the indexes of the points on the upper chain from right to
+   *  left
+   */
+  private static IntArray[] chainsOfSortedRange(Point[] points, double[] xs,
+      double[] ys, int i1, int i2) {
+    for (int i = i1; i < i2; i++) {
+      xs[i] = points[i].x;
+      ys[i] = points[i].y;
+    }
+    IntArray lowerChain = new IntArray();
+    for (int i = i1; i < i2; i++)
+      addToChain(xs, ys, lowerChain, i);
+    IntArray upperChain = new IntArray();
+    for (int i = i2 - 1; i >= i1; i--)
+      addToChain(xs, ys, upperChain, i);
+    return new IntArray[] {lowerChain, upperChain};
+  }
+  
+  /**
+   * Adds a point to the end of a chain after removing the points at the end
+   * of the chain that do not make a left turn with it.
+   * @param xs
+   * @param ys
+   * @param chain - the indexes of the points on the chain
+   * @param i - the index of the point to add
+   */
+  private static void addToChain(double[] xs, double[] ys, IntArray chain, int i) {
+    while (chain.size() > 1) {
+      int i1 = chain.get(chain.size() - 2);
+      int i2 = chain.get(chain.size() - 1);
+      double crossProduct = (xs[i2] - xs[i1]) * (ys[i] - ys[i1]) -
+          (ys[i2] - ys[i1]) * (xs[i] - xs[i1]);
+      if (crossProduct <= 0) chain.pop();
+      else break;
+    }
+    chain.add(i);
+  }
+  
+  /**
+   * Merges the chains of consecutive ranges of sorted points into the
+   * convex hull of all of them.
+   * @param points - all points sorted by x then y
+   * @param xs - the flat array of x coordinates of all points
+   * @param ys - the flat array of y coordinates of all points
+   * @param lowerChains - the lower chains of the ranges from left to right
+   * @param upperChains - the upper chains of the ranges from right to left
+   * @return the points on the convex hull in counter-clockwise order
+   */
+  @SuppressWarnings("unchecked")
+  private static <P extends Point> P[] mergeChains(P[] points, double[] xs,
+      double[] ys, List<IntArray> lowerChains, List<IntArray> upperChains) {
+    IntArray lowerChain = new IntArray();
+    for (IntArray chain : lowerChains)
+      for (int i = 0; i < chain.size(); i++)
+        addToChain(xs, ys, lowerChain, chain.get(i));
+    IntArray upperChain = new IntArray();
+    for (IntArray chain : upperChains)
+      for (int i = 0; i < chain.size(); i++)
+        addToChain(xs, ys, upperChain, chain.get(i));
+    // The last point of each chain is the first point of the other one
+    lowerChain.pop();
+    upperChain.pop();
+    // If all points are the same, both chains are left with that point
+    if (lowerChain.size() == 1 && upperChain.size() == 1 &&
+        xs[lowerChain.get(0)] == xs[upperChain.get(0)] &&
+        ys[lowerChain.get(0)] == ys[upperChain.get(0)])
+      upperChain.pop();
+    P[] hull = (P[]) Array.newInstance(points.getClass().getComponentType(),
+        lowerChain.size() + upperChain.size());
+    for (int i = 0; i < lowerChain.size(); i++)
+      hull[i] = points[lowerChain.get(i)];
+    for (int i = 0; i < upperChain.size(); i++)
+      hull[lowerChain.size() + i] = points[upperChain.get(i)];
+    return hull;
   }
   
   /**
@@ -127,70 +238,44 @@ public class ConvexHull {
       final OperationsParams params) throws IOException, InterruptedException {
     if (params.getBoolean("mem", false))
       MemoryReporter.startReporting();
-    // 1- Split the input path/file to get splits that can be processed
-    // independently
-    final SpatialInputFormat3<Rectangle, Point> inputFormat =
-        new SpatialInputFormat3<Rectangle, Point>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inFile);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
     
-    // 2- Read all input points in memory
-    LOG.info("Reading points from "+splits.size()+" splits");
-    List<Point[]> allLists = Parallel.forEach(splits.size(), new RunnableRange<Point[]>() {
+    // 1- Read all input points in memory and filter the points of each split
+    final int bufferSize = params.getInt(MapBufferSize, PointFilterBuffer.DefaultCapacity);
+    final List<Point[]> allLists = new ArrayList<Point[]>();
+    final int[] totalNumPoints = {0};
+    LocalSplitRunner.run(new Path[] {inFile}, params, new SplitMapper<Point, Point[]>() {
       @Override
-      public Point[] run(int i1, int i2) {
-        try {
-          List<Point> finalPoints = new ArrayList<Point>();
-          final int MaxSize = 100000;
-          Point[] points = new Point[MaxSize];
-          int size = 0;
-          for (int i = i1; i < i2; i++) {
-            org.apache.hadoop.mapreduce.lib.input.FileSplit fsplit = (org.apache.hadoop.mapreduce.lib.input.FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<Point>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            while (reader.nextKeyValue()) {
-              Iterable<Point> pts = reader.getCurrentValue();
-              for (Point p : pts) {
-                points[size++] = p.clone();
-                if (size >= points.length) {
-                  // Perform convex hull and write the result to finalPoints
-                  Point[] chPoints = convexHullInMemory(points);
-                  for (Point skylinePoint : chPoints)
-                    finalPoints.add(skylinePoint);
-                  size = 0; // reset
-                }
-              }
-            }
-            reader.close();
+      public Point[] map(FileSplit split, RecordReader<Rectangle, Iterable<Point>> reader)
+          throws IOException, InterruptedException {
+        final List<Point> finalPoints = new ArrayList<Point>();
+        PointFilterBuffer buffer = new PointFilterBuffer(bufferSize) {
+          @Override
+          protected Point[] filter(Point[] points) {
+            return convexHullInMemory(points);
+          }
+          
+          @Override
+          protected void output(Point p) {
+            finalPoints.add(p);
           }
-          while (size-- > 0)
-            finalPoints.add(points[size]);
-          return finalPoints.toArray(new Point[finalPoints.size()]);
-        } catch (IOException e) {
-          e.printStackTrace();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+        };
+        while (reader.nextKeyValue()) {
+          for (Point p : reader.getCurrentValue())
+            buffer.add(p);
         }
-        return null;
+        buffer.close();
+        return finalPoints.toArray(new Point[finalPoints.size()]);
       }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
-    
-    int totalNumPoints = 0;
-    for (Point[] list : allLists)
-      totalNumPoints += list.length;
+    }, new ResultCollector<Point[]>() {
+      @Override
+      public void collect(Point[] points) {
+        allLists.add(points);
+        totalNumPoints[0] += points.length;
+      }
+    });
     
-    LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
+    LOG.info("Read "+totalNumPoints[0]+" points and merging into one list");
+    Point[] allPoints = new Point[totalNumPoints[0]];
     int pointer = 0;
     
     for (Point[] list : allLists) {
@@ -199,7 +284,8 @@ public class ConvexHull {
     }
     allLists.clear(); // To the let the GC collect it
     
-    Point[] ch = convexHullInMemory(allPoints);
+    Point[] ch = convexHullInMemory(allPoints,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
 
     if (outFile != null) {
       if (params.getBoolean("overwrite", false)) {
@@ -265,7 +351,11 @@ public class ConvexHull {
    * An identity map function that returns values as-is with a null key. This
    * ensures that all values are reduced in one reducer.
    * @author Ahmed Eldawy
+   * @deprecated this mapper sends every input point to the reducer. Use
+   *   {@link ConvexHullMapper} which emits only the points that survive its
+   *   local filter.
    */
+  @Deprecated
   public static class IdentityMapper extends MapReduceBase implements
   Mapper<Rectangle, Point, NullWritable, Point> {
     @Override
@@ -274,23 +364,82 @@ public class ConvexHull {
         throws IOException {
       output.collect(NullWritable.get(), point);
     }
+  }
+  
+  /**
+   * Computes the convex hull of the points of each map task and emits only
+   * the points on the hull with a null key. This ensures that all of them are
+   * reduced in one reducer. Points are buffered in a bounded buffer which is
+   * replaced by its hull whenever it fills up.
+   * @author Ahmed Eldawy
+   */
+  public static class ConvexHullMapper extends MapReduceBase implements
+  Mapper<Rectangle, Point, NullWritable, Point> {
+    /**Points of this task that might be on the hull*/
+    private PointFilterBuffer buffer;
+    /**The output of this task, kept to write the remaining points at close*/
+    private OutputCollector<NullWritable, Point> output;
     
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      int capacity = job.getInt(MapBufferSize, PointFilterBuffer.DefaultCapacity);
+      buffer = new PointFilterBuffer(capacity) {
+        @Override
+        protected Point[] filter(Point[] points) {
+          return convexHullInMemory(points);
+        }
+        
+        @Override
+        protected void output(Point p) throws IOException {
+          output.collect(NullWritable.get(), p);
+        }
+      };
+    }
+    
+    @Override
+    public void map(Rectangle dummy, Point point,
+        OutputCollector<NullWritable, Point> output, Reporter reporter)
+        throws IOException {
+      this.output = output;
+      buffer.add(point);
+    }
+    
+    @Override
+    public void close() throws IOException {
+      buffer.close();
+      super.close();
+    }
   }
   
   public static class ConvexHullReducer extends MapReduceBase implements
   Reducer<NullWritable,Point,NullWritable,Point> {
     
+    private int parallelism;
+    
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      parallelism = job.getInt(ReduceParallelism,
+          job.getInt("mapreduce.reduce.cpu.vcores", 1));
+    }
+    
     @Override
     public void reduce(NullWritable dummy, Iterator<Point> points,
         OutputCollector<NullWritable, Point> output, Reporter reporter)
         throws IOException {
-      Vector<Point> vpoints = new Vector<Point>();
+      List<Point> vpoints = new ArrayList<Point>();
       while (points.hasNext()) {
         vpoints.add(points.next().clone());
       }
-      Point[] convex_hull = convexHullInMemory(vpoints.toArray(new Point[vpoints.size()]));
-      for (Point pt : convex_hull) {
-        output.collect(dummy, pt);
+      try {
+        Point[] convex_hull = convexHullInMemory(
+            vpoints.toArray(new Point[vpoints.size()]), parallelism);
+        for (Point pt : convex_hull) {
+          output.collect(dummy, pt);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while computing the convex hull", e);
       }
     }
   }
@@ -321,8 +470,7 @@ public class ConvexHull {
     
     job.setJobName("ConvexHull");
     job.setClass(SpatialSite.FilterClass, ConvexHullFilter.class, BlockFilter.class);
-    job.setMapperClass(IdentityMapper.class);
-    job.setCombinerClass(ConvexHullReducer.class);
+    job.setMapperClass(ConvexHullMapper.class);
     job.setReducerClass(ConvexHullReducer.class);
     job.setOutputKeyClass(NullWritable.class);
     job.setOutputValueClass(shape.getClass());
@@ -344,6 +492,8 @@ public class ConvexHull {
     System.out.println("<input file>: (*) Path to input file");
     System.out.println("<output file>: Path to output file");
     System.out.println("-overwrite: Overwrite output file without notice");
+    System.out.println("ConvexHull.MapBufferSize:<n>: Number of points a map task buffers before filtering them (default is "+PointFilterBuffer.DefaultCapacity+")");
+    System.out.println("ConvexHull.ReduceParallelism:<n>: Number of threads that merge the points in the reducer (default is mapreduce.reduce.cpu.vcores)");
     
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
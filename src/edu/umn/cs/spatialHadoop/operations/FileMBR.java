@@ -12,9 +12,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Vector;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,7 +24,6 @@ import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.ClusterStatus;
 import org.apache.hadoop.mapred.Counters;
 import org.apache.hadoop.mapred.Counters.Counter;
-import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapred.FileOutputCommitter;
 import org.apache.hadoop.mapred.FileSplit;
@@ -47,6 +44,7 @@ import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
@@ -57,12 +55,8 @@ import edu.umn.cs.spatialHadoop.mapred.ShapeLineInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeRecordReader;
 import edu.umn.cs.spatialHadoop.mapred.SpatialInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner.SplitMapper;
 
 /**
  * Finds the minimal bounding rectangle for a file.
@@ -210,68 +204,37 @@ public class FileMBR {
   
   public static Partition fileMBRLocal(Path[] inFiles, final OperationsParams params)
       throws IOException, InterruptedException {
-    // 1- Split the input path/file to get splits that can be processed independently
-    final SpatialInputFormat3<Rectangle, Shape> inputFormat =
-        new SpatialInputFormat3<Rectangle, Shape>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inFiles);
-    final List<org.apache.hadoop.mapreduce.InputSplit> splits = inputFormat.getSplits(job);
-    int parallelism = params.getInt("parallel", Runtime.getRuntime().availableProcessors());
-
-    // 2- Process splits in parallel
-    List<Map<String, Partition>> allMbrs = Parallel.forEach(splits.size(), new RunnableRange<Map<String, Partition>>() {
+    // 1- Process splits in parallel and combine the MBRs of splits of each file
+    final Map<String, Partition> mbrs = new HashMap<String, Partition>();
+    LocalSplitRunner.run(inFiles, params, new SplitMapper<Shape, Partition>() {
       @Override
-      public Map<String, Partition> run(int i1, int i2) {
-        Map<String, Partition> mbrs = new HashMap<String, Partition>();
-        for (int i = i1; i < i2; i++) {
-          try {
-            org.apache.hadoop.mapreduce.lib.input.FileSplit fsplit = (org.apache.hadoop.mapreduce.lib.input.FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<Shape>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            Partition p = mbrs.get(fsplit.getPath().getName());
-            if (p == null) {
-              p = new Partition();
-              p.filename = fsplit.getPath().getName();
-              p.cellId = p.filename.hashCode();
-              p.size = 0;
-              p.recordCount = 0;
-              p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
-              mbrs.put(p.filename, p);
-            }
-            Text temp = new Text2();
-            while (reader.nextKeyValue()) {
-              Iterable<Shape> shapes = reader.getCurrentValue();
-              for (Shape s : shapes) {
-                Rectangle mbr = s.getMBR();
-                if (mbr != null)
-                  p.expand(mbr);
-                p.recordCount++;
-                temp.clear();
-                s.toText(temp);
-                p.size += temp.getLength() + 1;
-              }
-            }
-          } catch (IOException e) {
-            throw new RuntimeException(e);
-          } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+      public Partition map(org.apache.hadoop.mapreduce.lib.input.FileSplit split,
+          RecordReader<Rectangle, Iterable<Shape>> reader)
+          throws IOException, InterruptedException {
+        Partition p = new Partition();
+        p.filename = split.getPath().getName();
+        p.cellId = p.filename.hashCode();
+        p.size = 0;
+        p.recordCount = 0;
+        p.set(Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE);
+        Text temp = new Text2();
+        while (reader.nextKeyValue()) {
+          Iterable<Shape> shapes = reader.getCurrentValue();
+          for (Shape s : shapes) {
+            Rectangle mbr = s.getMBR();
+            if (mbr != null)
+              p.expand(mbr);
+            p.recordCount++;
+            temp.clear();
+            s.toText(temp);
+            p.size += temp.getLength() + 1;
           }
         }
-        return mbrs;
+        return p;
       }
-    }, parallelism);
-    Map<String, Partition> mbrs = allMbrs.remove(allMbrs.size() - 1);
-    for (Map<String, Partition> list : allMbrs) {
-      for (Partition p1 : list.values()) {
+    }, new ResultCollector<Partition>() {
+      @Override
+      public void collect(Partition p1) {
         Partition p2 = mbrs.get(p1.filename);
         if (p2 != null) {
           p2.expand(p1);
@@ -279,7 +242,7 @@ public class FileMBR {
           mbrs.put(p1.filename, p1);
         }
       }
-    }
+    });
     
     // Cache the final result, if needed
     for (Path inFile : inFiles) {
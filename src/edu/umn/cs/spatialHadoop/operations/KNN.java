@@ -54,7 +54,7 @@ import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
 import edu.umn.cs.spatialHadoop.indexing.Partition;
-import edu.umn.cs.spatialHadoop.indexing.RTree;
+import edu.umn.cs.spatialHadoop.indexing.KNNIndex;
 import edu.umn.cs.spatialHadoop.io.TextSerializable;
 import edu.umn.cs.spatialHadoop.io.TextSerializerHelper;
 import edu.umn.cs.spatialHadoop.mapred.BlockFilter;
@@ -214,18 +214,19 @@ public class KNN {
 
   /**
    * Mapper for KNN MapReduce. Calculates the distance between a shape and 
-   * the query point.
+   * the query point. Only the k nearest shapes seen by each mapper are kept
+   * in a bounded heap and written when the mapper is done.
    * @author eldawy
    *
    */
   public static class KNNMap<S extends Shape> extends
     Mapper<Rectangle, Iterable<Shape>, NullWritable, TextWithDistance> {
-    /**A temporary object to be used for output*/
-    private final TextWithDistance outputValue = new TextWithDistance();
-    
     /**User query*/
     private Point queryPoint;
     private int k;
+    
+    /**The k nearest shapes found so far by this mapper*/
+    private KNNObjects<TextWithDistance> knn;
 
     @Override
     protected void setup(Context context) throws IOException,
@@ -234,37 +235,49 @@ public class KNN {
       Configuration conf = context.getConfiguration();
       queryPoint = (Point) OperationsParams.getShape(conf, "point");
       k = conf.getInt("k", 1);
+      knn = new KNNObjects<TextWithDistance>(k);
+    }
+    
+    /**
+     * Inserts a shape into the top-k heap if it is closer than the current
+     * k<sup>th</sup> neighbor. The shape is serialized only if inserted.
+     * @param shape
+     * @param distance
+     */
+    private void insert(Shape shape, double distance) {
+      if (k == 0 || (knn.size() == k && distance >= knn.top().distance))
+        return;
+      TextWithDistance t = new TextWithDistance();
+      t.distance = distance;
+      shape.toText(t.text);
+      knn.insert(t);
     }
     
     @Override
     protected void map(Rectangle key, Iterable<Shape> shapes, final Context context)
         throws IOException, InterruptedException {
-      final NullWritable dummy = NullWritable.get();
-      if (shapes instanceof RTree) {
-        ((RTree<S>)shapes).knn(queryPoint.x, queryPoint.y, k, new ResultCollector2<S, Double>() {
+      if (shapes instanceof KNNIndex) {
+        ((KNNIndex<S>)shapes).knn(queryPoint.x, queryPoint.y, k, new ResultCollector2<S, Double>() {
           @Override
           public void collect(S shape, Double distance) {
-            try {
-              outputValue.distance = distance;
-              outputValue.text.clear();
-              shape.toText(outputValue.text);
-              context.write(dummy, outputValue);
-            } catch (IOException e) {
-              e.printStackTrace();
-            } catch (InterruptedException e) {
-              e.printStackTrace();
-            }
+            insert(shape, distance);
           }
         });
       } else {
         for (Shape shape : shapes) {
-          outputValue.distance = shape.distanceTo(queryPoint.x, queryPoint.y);
-          outputValue.text.clear();
-          shape.toText(outputValue.text);
-          context.write(dummy, outputValue);
+          insert(shape, shape.distanceTo(queryPoint.x, queryPoint.y));
         }
       }
     }
+    
+    @Override
+    protected void cleanup(Context context) throws IOException,
+        InterruptedException {
+      final NullWritable dummy = NullWritable.get();
+      while (knn.size() > 0)
+        context.write(dummy, knn.pop());
+      super.cleanup(context);
+    }
   }
   
   /**
@@ -296,7 +309,9 @@ public class KNN {
         return;
       PriorityQueue<TextWithDistance> knn = new KNNObjects<TextWithDistance>(k);
       for (TextWithDistance t : values) {
-        knn.insert(t.clone());
+        // Avoid copying values that cannot be in the answer
+        if (knn.size() < k || t.distance < knn.top().distance)
+          knn.insert(t.clone());
       }
       
       TextWithDistance[] knnAscendingOrder = new TextWithDistance[knn.size()];
@@ -337,6 +352,7 @@ public class KNN {
     job.setMapOutputKeyClass(NullWritable.class);
     job.setMapOutputValueClass(TextWithDistance.class);
 
+    job.setCombinerClass(KNNReduce.class);
     job.setReducerClass(KNNReduce.class);
     job.setNumReduceTasks(1);
     
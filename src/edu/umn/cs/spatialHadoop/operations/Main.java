@@ -52,6 +52,9 @@ public class Main {
       pgd.addClass("knn", KNN.class,
           "Finds the k nearest neighbor in a file to a point");
 
+      pgd.addClass("batchknn", BatchKNN.class,
+          "Finds the k nearest neighbors of each point in a file of query points");
+
       pgd.addClass("dj", DistributedJoin.class,
           "Computes the spatial join between two input files using the " +
           "distributed join algorithm");
@@ -0,0 +1,85 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+
+/**
+ * A bounded buffer that filters a stream of points, e.g., to keep only the
+ * points that might be on the skyline. Whenever the buffer fills up, its
+ * points are replaced by the filtered ones. If the filtered points take more
+ * than half of the buffer, they are written to the output to make room for
+ * more points. The filter should be decomposable, i.e., filtering the union
+ * of filtered subsets gives the same result as filtering all points.
+ * @author Ahmed Eldawy
+ *
+ */
+abstract class PointFilterBuffer {
+  /**Number of points buffered if the capacity is not configured*/
+  static final int DefaultCapacity = 100000;
+
+  /**Points that passed the filter so far followed by unfiltered ones*/
+  private final Point[] buffer;
+  /**Number of points in the buffer*/
+  private int size;
+
+  PointFilterBuffer(int capacity) {
+    this.buffer = new Point[Math.max(16, capacity)];
+  }
+
+  /**
+   * Adds a copy of the given point to the buffer.
+   * @param p
+   * @throws IOException
+   */
+  void add(Point p) throws IOException {
+    buffer[size++] = p.clone();
+    if (size == buffer.length)
+      filterBuffer(false);
+  }
+
+  /**
+   * Filters the remaining points and writes them to the output.
+   * @throws IOException
+   */
+  void close() throws IOException {
+    if (size > 0)
+      filterBuffer(true);
+  }
+
+  private void filterBuffer(boolean last) throws IOException {
+    Point[] filtered = filter(Arrays.copyOf(buffer, size));
+    Arrays.fill(buffer, 0, size, null);
+    if (last || filtered.length > buffer.length / 2) {
+      for (Point p : filtered)
+        output(p);
+      size = 0;
+    } else {
+      System.arraycopy(filtered, 0, buffer, 0, filtered.length);
+      size = filtered.length;
+    }
+  }
+
+  /**
+   * Returns the subset of the given points that pass the filter
+   * @param points
+   * @return
+   */
+  protected abstract Point[] filter(Point[] points);
+
+  /**
+   * Writes one point that passed the filter
+   * @param p
+   * @throws IOException
+   */
+  protected abstract void output(Point p) throws IOException;
+}
@@ -9,7 +9,6 @@
 package edu.umn.cs.spatialHadoop.operations;
 
 import java.io.IOException;
-import java.util.List;
 import java.util.Vector;
 
 import org.apache.commons.logging.Log;
@@ -24,7 +23,6 @@ import org.apache.hadoop.mapred.LocalJobRunner;
 import org.apache.hadoop.mapred.Task;
 import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.Counters;
-import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.RecordReader;
@@ -38,12 +36,9 @@ import edu.umn.cs.spatialHadoop.core.ResultCollector;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.io.Text2;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner.SplitMapper;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
-import edu.umn.cs.spatialHadoop.util.Parallel;
-import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 import edu.umn.cs.spatialHadoop.util.ResultCollectorSynchronizer;
 
 /**
@@ -124,54 +119,30 @@ public class RangeQuery {
       final OperationsParams params, final ResultCollector<S> output) throws IOException, InterruptedException {
     // Set MBR of query shape in job configuration to work with the spatial filter
     OperationsParams.setShape(params, SpatialInputFormat3.InputQueryRange, queryRange.getMBR());
-    // 1- Split the input path/file to get splits that can be processed independently
-    final SpatialInputFormat3<Rectangle, S> inputFormat =
-        new SpatialInputFormat3<Rectangle, S>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inPath);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
-    
-    // 2- Process splits in parallel
-    List<Long> results = Parallel.forEach(splits.size(), new RunnableRange<Long>() {
+    // Process splits in parallel and stream the results to the output
+    final long[] totalResultSize = {0};
+    LocalSplitRunner.run(new Path[] {inPath}, params, new SplitMapper<S, Long>() {
       @Override
-      public Long run(int i1, int i2) {
+      public Long map(FileSplit split, RecordReader<Rectangle, Iterable<S>> reader)
+          throws IOException, InterruptedException {
         long results = 0;
-        for (int i = i1; i < i2; i++) {
-          try {
-            FileSplit fsplit = (FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<S>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            while (reader.nextKeyValue()) {
-              Iterable<S> shapes = reader.getCurrentValue();
-              for (Shape s : shapes) {
-                results++;
-                if (output != null)
-                  output.collect((S) s);
-              }
-            }
-            reader.close();
-          } catch (IOException e) {
-            LOG.error("Error processing split "+splits.get(i), e);
-          } catch (InterruptedException e) {
-            LOG.error("Error processing split "+splits.get(i), e);
+        while (reader.nextKeyValue()) {
+          Iterable<S> shapes = reader.getCurrentValue();
+          for (Shape s : shapes) {
+            results++;
+            if (output != null)
+              output.collect((S) s);
           }
         }
         return results;
       }
+    }, new ResultCollector<Long>() {
+      @Override
+      public void collect(Long results) {
+        totalResultSize[0] += results;
+      }
     });
-    long totalResultSize = 0;
-    for (long result : results)
-      totalResultSize += result;
-    return totalResultSize;
+    return totalResultSize[0];
   }
   
   private static void printUsage() {
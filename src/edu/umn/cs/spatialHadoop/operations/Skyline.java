@@ -11,6 +11,7 @@ package edu.umn.cs.spatialHadoop.operations;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Vector;
@@ -28,9 +29,8 @@ import org.apache.hadoop.mapred.Mapper;
 import org.apache.hadoop.mapred.OutputCollector;
 import org.apache.hadoop.mapred.Reducer;
 import org.apache.hadoop.mapred.Reporter;
-import org.apache.hadoop.mapreduce.InputSplit;
-import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.GenericOptionsParser;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
@@ -49,10 +49,9 @@ import edu.umn.cs.spatialHadoop.mapred.ShapeInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.ShapeIterInputFormat;
 import edu.umn.cs.spatialHadoop.mapred.SpatialRecordReader.ShapeIterator;
 import edu.umn.cs.spatialHadoop.mapred.TextOutputFormat;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner.SplitMapper;
+import edu.umn.cs.spatialHadoop.util.IntArray;
 import edu.umn.cs.spatialHadoop.util.MemoryReporter;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
@@ -66,62 +65,153 @@ public class Skyline {
   
   private static final Log LOG = LogFactory.getLog(Skyline.class);
   
+  /**Maximum number of points buffered by a map task before it filters them*/
+  public static final String MapBufferSize = "Skyline.MapBufferSize";
+  
+  /**
+   * Number of threads used by the reduce task to combine the points. It
+   * defaults to the number of virtual cores given to each reduce task
+   * (mapreduce.reduce.cpu.vcores) as the task shares the machine with other
+   * tasks.
+   */
+  public static final String ReduceParallelism = "Skyline.ReduceParallelism";
+  
   /**
-   * Computes the skyline of a set of points using a divided and conquer
-   * in-memory algorithm. The algorithm recursively splits the points into
-   * half, computes the skyline of each half, and finally combines the two
-   * skylines.
+   * Computes the skyline of a set of points. The points are sorted such that
+   * a point cannot be dominated by any point that comes before it. The
+   * skyline is then found in one scan from the end. The given array is
+   * sorted in place.
    * @param points
    * @param dir
-   * @return
+   * @return the skyline points in the sorted order
    */
   public static Point[] skylineInMemory(Point[] points, Direction dir) {
-    Arrays.sort(points);
-    return skylineRecursive(points, 0, points.length, dir);
+    if (points.length == 0)
+      return points;
+    Arrays.sort(points, skylineOrder(dir));
+    double[] ys = new double[points.length];
+    List<IntArray> skyline = new ArrayList<IntArray>();
+    skyline.add(skylineOfSortedRange(points, ys, 0, points.length, dir));
+    return mergeSkylines(points, ys, skyline);
   }
   
   /**
-   * The recursive method of skyline
+   * Computes the skyline of a set of points using multiple threads. The
+   * points are sorted in parallel and split into ranges which are scanned in
+   * parallel. The skylines of the ranges are then merged from the last range
+   * to the first one. A range is pruned at once if its best point is
+   * dominated by the later ranges, otherwise, its dominated points are
+   * skipped by a binary search, so the merge cost depends on the size of
+   * the output rather than the input.
+   * The given array is sorted in place.
    * @param points
-   * @param start
-   * @param end
+   * @param dir
+   * @param parallelism - maximum number of threads to use
+   * @return the skyline points in the sorted order
+   * @throws InterruptedException
+   */
+  public static Point[] skylineInMemory(final Point[] points, final Direction dir,
+      int parallelism) throws InterruptedException {
+    if (parallelism <= 1 || points.length < 2 * parallelism)
+      return skylineInMemory(points, dir);
+    Parallel.sort(points, skylineOrder(dir), parallelism);
+    final double[] ys = new double[points.length];
+    List<IntArray> skylines = Parallel.forEach(points.length, new RunnableRange<IntArray>() {
+      @Override
+      public IntArray run(int i1, int i2) {
+        return skylineOfSortedRange(points, ys, i1, i2, dir);
+      }
+    }, parallelism);
+    return mergeSkylines(points, ys, skylines);
+  }
+  
+  /**
+   * Returns the order in which points are sorted before computing the
+   * skyline in the given direction. Points are sorted by x such that the
+   * points that come later cannot be dominated by points that come earlier.
    * @param dir
    * @return
    */
-  private static Point[] skylineRecursive(Point[] points, int start, int end, Direction dir) {
-    if (end - start == 1) {
-      // Return the one input point as the skyline
-      return new Point[] {points[start]};
-    }
-    int mid = (start + end) / 2;
-    // Find the skyline of each half
-    Point[] skyline1 = skylineRecursive(points, start, mid, dir);
-    Point[] skyline2 = skylineRecursive(points, mid, end, dir);
-    // Merge the two skylines
-    int cut_point = 0;
-    while (cut_point < skyline1.length && !skylineDominate(skyline2[0], skyline1[cut_point], dir))
-      cut_point++;
-    Point[] result = new Point[cut_point + skyline2.length];
-    System.arraycopy(skyline1, 0, result, 0, cut_point);
-    System.arraycopy(skyline2, 0, result, cut_point, skyline2.length);
-    return result;
+  private static Comparator<Point> skylineOrder(Direction dir) {
+    final boolean maxX = dir == Direction.MaxMax || dir == Direction.MaxMin;
+    final boolean maxY = dir == Direction.MaxMax || dir == Direction.MinMax;
+    return new Comparator<Point>() {
+      @Override
+      public int compare(Point p1, Point p2) {
+        int result = Double.compare(p1.x, p2.x);
+        if (result == 0)
+          result = Double.compare(p1.y, p2.y) * (maxY ? 1 : -1);
+        else if (!maxX)
+          result = -result;
+        return result;
+      }
+    };
   }
-
+  
   /**
-   * Returns true if p1 dominates p2 according to the given direction.
-   * @param p1
-   * @param p2
+   * Computes the skyline of a range of sorted points. The y coordinates of
+   * the points in the range are written to the given array, negated if
+   * smaller values are preferred, so that a larger value is always better.
+   * @param points - all points sorted in the skyline order
+   * @param ys - the flat array of y coordinates of all points
+   * @param i1 - the start of the range, inclusive
+   * @param i2 - the end of the range, exclusive
    * @param dir
+   * @return the indexes of the skyline points of the range from the last one
+   *  to the first one, i.e., in increasing order of their y coordinates
+   */
+  private static IntArray skylineOfSortedRange(Point[] points, double[] ys,
+      int i1, int i2, Direction dir) {
+    boolean maxY = dir == Direction.MaxMax || dir == Direction.MinMax;
+    for (int i = i1; i < i2; i++)
+      ys[i] = maxY ? points[i].y : -points[i].y;
+    IntArray skyline = new IntArray();
+    double bestY = Double.NEGATIVE_INFINITY;
+    for (int i = i2 - 1; i >= i1; i--) {
+      // A point is dominated by a later point unless its y is strictly better
+      if (ys[i] > bestY) {
+        skyline.add(i);
+        bestY = ys[i];
+      }
+    }
+    return skyline;
+  }
+  
+  /**
+   * Merges the skylines of consecutive ranges of sorted points.
+   * @param points - all points sorted in the skyline order
+   * @param ys - the flat array of y coordinates as set by
+   *  {@link #skylineOfSortedRange(Point[], double[], int, int, Direction)}
+   * @param skylines - the skylines of the ranges ordered by the ranges
    * @return
    */
-  private static boolean skylineDominate(Point p1, Point p2, Direction dir) {
-    switch (dir) {
-    case MaxMax: return p1.x >= p2.x && p1.y >= p2.y;
-    case MaxMin: return p1.x >= p2.x && p1.y <= p2.y;
-    case MinMax: return p1.x <= p2.x && p1.y >= p2.y;
-    case MinMin: return p1.x <= p2.x && p1.y <= p2.y;
-    default: throw new RuntimeException("Unknown direction: "+dir);
+  private static Point[] mergeSkylines(Point[] points, double[] ys,
+      List<IntArray> skylines) {
+    IntArray skyline = new IntArray();
+    double bestY = Double.NEGATIVE_INFINITY;
+    for (int iRange = skylines.size() - 1; iRange >= 0; iRange--) {
+      IntArray rangeSkyline = skylines.get(iRange);
+      // Prune the whole range if its best point is dominated by later ranges
+      if (rangeSkyline.isEmpty() ||
+          ys[rangeSkyline.get(rangeSkyline.size() - 1)] <= bestY)
+        continue;
+      // Points dominated by later ranges come first as y is increasing
+      int lo = 0, hi = rangeSkyline.size() - 1;
+      while (lo < hi) {
+        int mid = (lo + hi) >>> 1;
+        if (ys[rangeSkyline.get(mid)] <= bestY)
+          lo = mid + 1;
+        else
+          hi = mid;
+      }
+      for (int i = lo; i < rangeSkyline.size(); i++)
+        skyline.add(rangeSkyline.get(i));
+      bestY = ys[rangeSkyline.get(rangeSkyline.size() - 1)];
     }
+    Point[] result = new Point[skyline.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = points[skyline.get(result.length - 1 - i)];
+    return result;
   }
   
   /**
@@ -159,7 +249,7 @@ public class Skyline {
                        (r1.x1 >= r2.x2 && r1.y2 <= r2.y1);
     case MinMax:
       return compact ? (r1.x2 <= r2.x1 && r1.y2 >= r2.y2) ||
-                       (r1.x1 <= r2.x1 && r1.y2 >= r2.y2) :
+                       (r1.x1 <= r2.x1 && r1.y1 >= r2.y2) :
                        (r1.x2 <= r2.x1 && r1.y1 >= r2.y2);
     case MinMin:
       return compact ? (r1.x2 <= r2.x1 && r1.y1 <= r2.y1) ||
@@ -184,71 +274,45 @@ public class Skyline {
       final OperationsParams params) throws IOException, InterruptedException {
     if (params.getBoolean("mem", false))
       MemoryReporter.startReporting();
-    // 1- Split the input path/file to get splits that can be processed
-    // independently
-    final SpatialInputFormat3<Rectangle, Point> inputFormat =
-        new SpatialInputFormat3<Rectangle, Point>();
-    Job job = Job.getInstance(params);
-    SpatialInputFormat3.setInputPaths(job, inFile);
-    final List<InputSplit> splits = inputFormat.getSplits(job);
     final Direction dir = params.getDirection("dir", Direction.MaxMax);
     
-    // 2- Read all input points in memory
-    LOG.info("Reading points from "+splits.size()+" splits");
-    List<Point[]> allLists = Parallel.forEach(splits.size(), new RunnableRange<Point[]>() {
+    // 1- Read all input points in memory and filter the points of each split
+    final int bufferSize = params.getInt(MapBufferSize, PointFilterBuffer.DefaultCapacity);
+    final List<Point[]> allLists = new ArrayList<Point[]>();
+    final int[] totalNumPoints = {0};
+    LocalSplitRunner.run(new Path[] {inFile}, params, new SplitMapper<Point, Point[]>() {
       @Override
-      public Point[] run(int i1, int i2) {
-        try {
-          List<Point> finalPoints = new ArrayList<Point>();
-          final int MaxSize = 100000;
-          Point[] points = new Point[MaxSize];
-          int size = 0;
-          for (int i = i1; i < i2; i++) {
-            org.apache.hadoop.mapreduce.lib.input.FileSplit fsplit = (org.apache.hadoop.mapreduce.lib.input.FileSplit) splits.get(i);
-            final RecordReader<Rectangle, Iterable<Point>> reader =
-                inputFormat.createRecordReader(fsplit, null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplit, params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplit, params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
-            while (reader.nextKeyValue()) {
-              Iterable<Point> pts = reader.getCurrentValue();
-              for (Point p : pts) {
-                points[size++] = p.clone();
-                if (size >= points.length) {
-                  // Perform Skyline and write the result to finalPoints
-                  Point[] skylinePoints = skylineInMemory(points, dir);
-                  for (Point skylinePoint : skylinePoints)
-                    finalPoints.add(skylinePoint);
-                  size = 0; // reset
-                }
-              }
-            }
-            reader.close();
+      public Point[] map(FileSplit split, RecordReader<Rectangle, Iterable<Point>> reader)
+          throws IOException, InterruptedException {
+        final List<Point> finalPoints = new ArrayList<Point>();
+        PointFilterBuffer buffer = new PointFilterBuffer(bufferSize) {
+          @Override
+          protected Point[] filter(Point[] points) {
+            return skylineInMemory(points, dir);
           }
-          while (size-- > 0)
-            finalPoints.add(points[size]);
-          return finalPoints.toArray(new Point[finalPoints.size()]);
-        } catch (IOException e) {
-          e.printStackTrace();
-        } catch (InterruptedException e) {
-          e.printStackTrace();
+          
+          @Override
+          protected void output(Point p) {
+            finalPoints.add(p);
+          }
+        };
+        while (reader.nextKeyValue()) {
+          for (Point p : reader.getCurrentValue())
+            buffer.add(p);
         }
-        return null;
+        buffer.close();
+        return finalPoints.toArray(new Point[finalPoints.size()]);
       }
-    }, params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
-    
-    int totalNumPoints = 0;
-    for (Point[] list : allLists)
-      totalNumPoints += list.length;
+    }, new ResultCollector<Point[]>() {
+      @Override
+      public void collect(Point[] points) {
+        allLists.add(points);
+        totalNumPoints[0] += points.length;
+      }
+    });
     
-    LOG.info("Read "+totalNumPoints+" points and merging into one list");
-    Point[] allPoints = new Point[totalNumPoints];
+    LOG.info("Read "+totalNumPoints[0]+" points and merging into one list");
+    Point[] allPoints = new Point[totalNumPoints[0]];
     int pointer = 0;
     
     for (Point[] list : allLists) {
@@ -257,7 +321,8 @@ public class Skyline {
     }
     allLists.clear(); // To the let the GC collect it
     
-    Point[] skyline = skylineInMemory(allPoints, dir);
+    Point[] skyline = skylineInMemory(allPoints, dir,
+        params.getInt("parallel", Runtime.getRuntime().availableProcessors()));
 
     if (outFile != null) {
       if (params.getBoolean("overwrite", false)) {
@@ -321,7 +386,11 @@ public class Skyline {
    * An identity map function that returns values as-is with a null key. This
    * ensures that all values are reduced in one reducer.
    * @author Ahmed Eldawy
+   * @deprecated this mapper sends every input point to the reducer. Use
+   *   {@link SkylineMapper} which emits only the points that survive its
+   *   local filter.
    */
+  @Deprecated
   public static class IdentityMapper extends MapReduceBase implements
   Mapper<Rectangle, ShapeIterator, NullWritable, Point> {
     @Override
@@ -334,15 +403,66 @@ public class Skyline {
     }
   }
   
+  /**
+   * Computes the skyline of the points of each map task and emits only the
+   * points on the skyline with a null key. This ensures that all of them are
+   * reduced in one reducer. Points are buffered in a bounded buffer which is
+   * replaced by its skyline whenever it fills up.
+   * @author Ahmed Eldawy
+   */
+  public static class SkylineMapper extends MapReduceBase implements
+  Mapper<Rectangle, ShapeIterator, NullWritable, Point> {
+    /**Points of this task that might be on the skyline*/
+    private PointFilterBuffer buffer;
+    /**The output of this task, kept to write the remaining points at close*/
+    private OutputCollector<NullWritable, Point> output;
+    
+    @Override
+    public void configure(JobConf job) {
+      super.configure(job);
+      final Direction dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
+      int capacity = job.getInt(MapBufferSize, PointFilterBuffer.DefaultCapacity);
+      buffer = new PointFilterBuffer(capacity) {
+        @Override
+        protected Point[] filter(Point[] points) {
+          return skylineInMemory(points, dir);
+        }
+        
+        @Override
+        protected void output(Point p) throws IOException {
+          output.collect(NullWritable.get(), p);
+        }
+      };
+    }
+    
+    @Override
+    public void map(Rectangle dummy, ShapeIterator points,
+        OutputCollector<NullWritable, Point> output, Reporter reporter)
+        throws IOException {
+      this.output = output;
+      for (Shape point : points)
+        buffer.add((Point) point);
+    }
+    
+    @Override
+    public void close() throws IOException {
+      buffer.close();
+      super.close();
+    }
+  }
+  
   public static class SkylineReducer extends MapReduceBase implements
   Reducer<NullWritable,Point,NullWritable,Point> {
     
     private Direction dir;
+    private int parallelism;
     
     @Override
     public void configure(JobConf job) {
       super.configure(job);
       dir = OperationsParams.getDirection(job, "dir", Direction.MaxMax);
+      parallelism = job.getInt(ReduceParallelism,
+          job.getInt("mapreduce.reduce.cpu.vcores", 1));
     }
     
 
@@ -350,13 +470,18 @@ public class Skyline {
     public void reduce(NullWritable dummy, Iterator<Point> points,
         OutputCollector<NullWritable, Point> output, Reporter reporter)
         throws IOException {
-      Vector<Point> vpoints = new Vector<Point>();
+      List<Point> vpoints = new ArrayList<Point>();
       while (points.hasNext()) {
         vpoints.add(points.next().clone());
       }
-      Point[] skyline = skylineInMemory(vpoints.toArray(new Point[vpoints.size()]), dir);
-      for (Point pt : skyline) {
-        output.collect(dummy, pt);
+      try {
+        Point[] skyline = skylineInMemory(vpoints.toArray(new Point[vpoints.size()]),
+            dir, parallelism);
+        for (Point pt : skyline) {
+          output.collect(dummy, pt);
+        }
+      } catch (InterruptedException e) {
+        throw new IOException("Interrupted while computing the skyline", e);
       }
     }
   }
@@ -377,8 +502,7 @@ public class Skyline {
     
     job.setJobName("Skyline");
     job.setClass(SpatialSite.FilterClass, SkylineFilter.class, BlockFilter.class);
-    job.setMapperClass(IdentityMapper.class);
-    job.setCombinerClass(SkylineReducer.class);
+    job.setMapperClass(SkylineMapper.class);
     job.setReducerClass(SkylineReducer.class);
     job.setOutputKeyClass(NullWritable.class);
     job.setOutputValueClass(shape.getClass());
@@ -411,6 +535,8 @@ public class Skyline {
     System.err.println("<output file>: Path to output file");
     System.err.println("<direction (max-max|max-min|min-max|min-min)>: Direction of skyline (default is max-max)");
     System.err.println("-overwrite: Overwrite output file without notice");
+    System.err.println("Skyline.MapBufferSize:<n>: Number of points a map task buffers before filtering them (default is "+PointFilterBuffer.DefaultCapacity+")");
+    System.err.println("Skyline.ReduceParallelism:<n>: Number of threads that merge the points in the reducer (default is mapreduce.reduce.cpu.vcores)");
     GenericOptionsParser.printGenericCommandUsage(System.err);
   }
   
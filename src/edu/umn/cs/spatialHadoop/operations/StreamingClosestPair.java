@@ -0,0 +1,305 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.operations.ClosestPair.Pair;
+import edu.umn.cs.spatialHadoop.util.IntArray;
+
+/**
+ * Finds the closest pair of a stream of points in one pass. The points seen
+ * so far are stored in a uniform grid with a cell size between delta and
+ * twice delta, where delta is the distance of the closest pair found so far.
+ * A new point can only be closer than delta to the points in the nine cells
+ * around it, which contain a few points each. The grid is rebuilt whenever
+ * delta drops below half the cell size.
+ * <p>
+ * The grid keeps only the coordinates of its points in flat arrays. Points
+ * are copied only when they become part of the closest pair or when they are
+ * within delta of the boundary of the region of the points, as only these
+ * points can make a closer pair with points outside the region. Since delta
+ * never increases, a point that is farther than delta from the boundary when
+ * it arrives is never copied. All the points are assumed to be of the same
+ * class.
+ * <p>
+ * When a new point makes the closest pair, its partner arrived earlier. If
+ * the partner is within delta of the boundary, its copy is reused.
+ * Otherwise, it is rebuilt from its coordinates as a new object of the point
+ * class, so any other attributes of the partner, e.g., the ID of an
+ * OSMPoint, keep their default values.
+ * @author Ahmed Eldawy
+ *
+ */
+class StreamingClosestPair {
+  /**The region of the points. An infinite side has no points beyond it*/
+  private final Rectangle region;
+
+  /**Class of the points, used to rebuild the points of the grid*/
+  private Class<? extends Point> pointClass;
+
+  /**Coordinates of all points added to the grid*/
+  private double[] xs = new double[1024], ys = new double[1024];
+  /**Index of the previous point in the same cell, or -1 for the first one*/
+  private int[] next = new int[1024];
+  /**Number of points added to the grid*/
+  private int numPoints;
+
+  /**Side length of the grid cells*/
+  private double cellSize = Double.POSITIVE_INFINITY;
+  /**Hash table of grid cells: the column, row, and last point of each cell*/
+  private long[] cellColumns, cellRows;
+  private int[] cellLastPoint;
+  /**Number of non-empty cells*/
+  private int numCells;
+
+  /**Distance of the closest pair found so far*/
+  private double delta = Double.POSITIVE_INFINITY;
+  /**The closest pair found so far*/
+  private Point closest1, closest2;
+
+  /**Copies of the points that might be within delta of the boundary*/
+  private List<Point> boundaryPoints = new ArrayList<Point>();
+  /**Index of each point of boundaryPoints in the grid, or -1 if not added*/
+  private IntArray boundaryIndexes = new IntArray();
+
+  /**
+   * Creates an empty stream of points in the given region
+   * @param region - the region of all the points that will be added, or
+   *   null if no points should be kept for pairs across the region
+   */
+  StreamingClosestPair(Rectangle region) {
+    this.region = region;
+  }
+
+  /**
+   * Adds a point to the stream. The point is copied if it needs to be kept.
+   * @param p
+   */
+  void add(Point p) {
+    if (pointClass == null)
+      pointClass = p.getClass();
+    Point copy = null;
+    int index = -1;
+    if (delta > 0) {
+      // Index of the closest point in the grid if it is closer than delta
+      int closest = -1;
+      if (cellColumns == null) {
+        // No grid yet, there is at most one point
+        for (int i = 0; i < numPoints; i++)
+          if (compare(p, i))
+            closest = i;
+      } else {
+        long column = (long) Math.floor(p.x / cellSize);
+        long row = (long) Math.floor(p.y / cellSize);
+        for (long c = column - 1; c <= column + 1; c++) {
+          for (long r = row - 1; r <= row + 1; r++) {
+            int slot = findCell(c, r);
+            if (cellLastPoint[slot] != -1) {
+              for (int i = cellLastPoint[slot]; i != -1; i = next[i])
+                if (compare(p, i))
+                  closest = i;
+            }
+          }
+        }
+      }
+      if (closest != -1) {
+        copy = p.clone();
+        closest1 = copy;
+        closest2 = getPoint(closest);
+      }
+      if (delta > 0) {
+        index = addToGrid(p);
+      } else {
+        // Nothing can be closer than a duplicate point, drop the grid
+        xs = ys = null;
+        next = null;
+        cellColumns = cellRows = null;
+        cellLastPoint = null;
+      }
+    }
+    if (distanceToBoundary(p.x, p.y) <= delta) {
+      boundaryPoints.add(copy != null ? copy : p.clone());
+      boundaryIndexes.add(index);
+    }
+  }
+
+  /**
+   * Updates delta if the given point is closer than delta to the point with
+   * the given index.
+   * @param p
+   * @param i
+   * @return true if delta was updated
+   */
+  private boolean compare(Point p, int i) {
+    double dx = p.x - xs[i];
+    double dy = p.y - ys[i];
+    double distance = Math.sqrt(dx * dx + dy * dy);
+    if (distance < delta) {
+      delta = distance;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Adds the coordinates of a point to the grid
+   * @param p
+   * @return the index of the point in the grid
+   */
+  private int addToGrid(Point p) {
+    if (numPoints == xs.length) {
+      xs = Arrays.copyOf(xs, numPoints * 2);
+      ys = Arrays.copyOf(ys, numPoints * 2);
+      next = Arrays.copyOf(next, numPoints * 2);
+    }
+    xs[numPoints] = p.x;
+    ys[numPoints] = p.y;
+    numPoints++;
+    if (delta < cellSize / 2 || (cellColumns != null && numCells * 2 >= cellColumns.length)) {
+      rebuildGrid();
+    } else if (cellColumns != null) {
+      addToCell(numPoints - 1);
+    }
+    return numPoints - 1;
+  }
+
+  /**
+   * Rebuilds the grid with a cell size equal to delta. Also drops the copies
+   * of the points that are no longer within delta of the boundary.
+   */
+  private void rebuildGrid() {
+    cellSize = delta;
+    int capacity = 16;
+    while (capacity < numPoints * 2)
+      capacity *= 2;
+    cellColumns = new long[capacity];
+    cellRows = new long[capacity];
+    cellLastPoint = new int[capacity];
+    Arrays.fill(cellLastPoint, -1);
+    numCells = 0;
+    for (int i = 0; i < numPoints; i++)
+      addToCell(i);
+
+    int size = 0;
+    for (int i = 0; i < boundaryPoints.size(); i++) {
+      Point p = boundaryPoints.get(i);
+      if (distanceToBoundary(p.x, p.y) <= delta) {
+        boundaryIndexes.set(size, boundaryIndexes.get(i));
+        boundaryPoints.set(size++, p);
+      }
+    }
+    boundaryPoints.subList(size, boundaryPoints.size()).clear();
+    while (boundaryIndexes.size() > size)
+      boundaryIndexes.pop();
+  }
+
+  /**
+   * Returns a copy of the point with the given index in the grid. The copy
+   * kept for the boundary is returned if the point is within delta of the
+   * boundary, otherwise, a new point is created at its coordinates.
+   * @param i
+   * @return
+   */
+  private Point getPoint(int i) {
+    // Recent points are more likely to be close to the new point
+    for (int j = boundaryIndexes.size() - 1; j >= 0; j--) {
+      if (boundaryIndexes.get(j) == i)
+        return boundaryPoints.get(j);
+    }
+    if (pointClass == Point.class)
+      return new Point(xs[i], ys[i]);
+    try {
+      Point p = pointClass.newInstance();
+      p.set(xs[i], ys[i]);
+      return p;
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Cannot instantiate objects of point class", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Cannot instantiate objects of point class", e);
+    }
+  }
+
+  private void addToCell(int i) {
+    int slot = findCell((long) Math.floor(xs[i] / cellSize),
+        (long) Math.floor(ys[i] / cellSize));
+    if (cellLastPoint[slot] == -1) {
+      cellColumns[slot] = (long) Math.floor(xs[i] / cellSize);
+      cellRows[slot] = (long) Math.floor(ys[i] / cellSize);
+      numCells++;
+    }
+    next[i] = cellLastPoint[slot];
+    cellLastPoint[slot] = i;
+  }
+
+  /**
+   * Returns the slot of the given cell in the hash table, or the empty slot
+   * where it should be added if it does not exist.
+   * @param column
+   * @param row
+   * @return
+   */
+  private int findCell(long column, long row) {
+    long hash = column * 0x9E3779B97F4A7C15L + row;
+    hash ^= hash >>> 29;
+    int slot = (int) hash & (cellColumns.length - 1);
+    while (cellLastPoint[slot] != -1 &&
+        (cellColumns[slot] != column || cellRows[slot] != row))
+      slot = (slot + 1) & (cellColumns.length - 1);
+    return slot;
+  }
+
+  private double distanceToBoundary(double x, double y) {
+    if (region == null)
+      return Double.POSITIVE_INFINITY;
+    return Math.min(Math.min(x - region.x1, region.x2 - x),
+        Math.min(y - region.y1, region.y2 - y));
+  }
+
+  /**
+   * Returns the closest pair of all the points added so far, or null if less
+   * than two points were added.
+   * @return
+   */
+  Pair getClosestPair() {
+    if (closest1 == null)
+      return null;
+    Pair pair = new Pair();
+    pair.p1 = closest1;
+    pair.p2 = closest2;
+    return pair;
+  }
+
+  /**
+   * Returns the points that can be part of the closest pair of a set of
+   * points that includes these points and points outside the region. These
+   * are the two points of the closest pair and all points within the
+   * distance of the closest pair from the boundary of the region.
+   * @return
+   */
+  List<Point> getCandidatePoints() {
+    List<Point> candidates = new ArrayList<Point>();
+    for (Point p : boundaryPoints) {
+      if (distanceToBoundary(p.x, p.y) <= delta)
+        candidates.add(p);
+    }
+    // Add the closest pair if it has not been added in the previous loop
+    if (closest1 != null) {
+      if (distanceToBoundary(closest1.x, closest1.y) > delta)
+        candidates.add(closest1);
+      if (distanceToBoundary(closest2.x, closest2.y) > delta)
+        candidates.add(closest2);
+    }
+    return candidates;
+  }
+}
@@ -188,6 +188,14 @@ public class IntArray implements Writable, Iterable<Integer> {
     return array[index];
   }
   
+  public void set(int index, int value) {
+    array[index] = value;
+  }
+  
+  public int peek() {
+    return array[size - 1];
+  }
+  
   public int pop() {
     return array[--size];
   }
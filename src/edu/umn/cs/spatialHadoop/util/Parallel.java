@@ -8,8 +8,22 @@
 *************************************************************************/
 package edu.umn.cs.spatialHadoop.util;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -25,10 +39,35 @@ public class Parallel {
 
   private Parallel() { /* Enforce static use only */ }
   
+  /**
+   * A function that processes a contiguous part of a range. It might be
+   * called concurrently from several threads and more than once by the same
+   * thread, each time with a different part of the range. The number of
+   * calls depends on the timing of the loop, so callers should combine the
+   * results of all calls without assuming one result per thread.
+   * @author Ahmed Eldawy
+   *
+   * @param <T>
+   */
   public static interface RunnableRange<T> {
     public T run(int i1, int i2);
   }
   
+  /**
+   * A function that processes parts of a range into a partial result that is
+   * kept by the thread that runs it, e.g., a canvas. Each thread creates its
+   * partial result once and processes all the parts it claims into it, so
+   * the number of partial results is bounded by the number of threads.
+   * @author Ahmed Eldawy
+   *
+   * @param <T>
+   */
+  public static interface RunnableRangeInto<T> {
+    /**Creates an empty partial result for the calling thread*/
+    public T createPartial();
+    public void run(int i1, int i2, T partial);
+  }
+  
   /**
    * An interface that is implemented by users to loop over a partial array.
    * @author Ahmed Eldawy
@@ -57,6 +96,140 @@ public class Parallel {
     }
   }
   
+  /**Threads shared by all parallel loops. Threads are created on demand,
+   * reused by later loops, and terminate after one minute of inactivity.
+   * The pool is unbounded so that a loop nested in another one never waits
+   * for a thread held by the outer loop.*/
+  private static final ExecutorService Workers = new ThreadPoolExecutor(0,
+      Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+      new ThreadFactory() {
+    private final AtomicInteger threadNumber = new AtomicInteger();
+    @Override
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "Parallel worker #"+threadNumber.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**Minimum running time of one call in nanoseconds. Chunks of cheap
+   * iterations are enlarged to amortize the overhead of each call.*/
+  private static final long TargetChunkTime = 10 * 1000 * 1000;
+
+  /**Maximum number of calls per thread to bound the partial results that
+   * callers keep per call. Callers with large partial results, e.g., a
+   * canvas, should use {@link RunnableRangeInto} to keep one per thread.*/
+  private static final int MaxChunksPerThread = 4;
+
+  /**
+   * The state of one parallel loop. Threads repeatedly claim the next chunk
+   * of the range until the whole range is processed. Chunks start large and
+   * shrink as the remaining part of the range shrinks so that threads finish
+   * at about the same time even if the cost of iterations is skewed.
+   * @author Ahmed Eldawy
+   *
+   * @param <T>
+   */
+  private static class ParallelLoop<T> implements Runnable {
+    /**The function to run, only one of them is set*/
+    private final RunnableRange<T> r;
+    private final RunnableRangeInto<T> rInto;
+    private final int start;
+    private final int end;
+    private final int parallelism;
+    private final Progressable progress;
+    /**Minimum number of iterations in one chunk to bound the number of calls*/
+    private final int minChunkSize;
+    /**Number of iterations that take about {@link #TargetChunkTime}*/
+    private int targetChunkSize = 1;
+    /**Start of the part of the range that has not been claimed yet*/
+    private int next;
+    /**Number of iterations done and total time spent on them*/
+    private long iterationsDone, timeDone;
+    /**Result of each chunk, or of each thread for {@link #rInto}, keyed by
+     * the start of the (first) chunk to return them in order*/
+    private final Map<Integer, T> results = new TreeMap<Integer, T>();
+    private final List<Throwable> exceptions = new ArrayList<Throwable>();
+    /**Set when the loop fails or the caller is interrupted*/
+    private volatile boolean cancelled;
+
+    ParallelLoop(int start, int end, RunnableRange<T> r,
+        RunnableRangeInto<T> rInto, int parallelism, Progressable progress) {
+      this.r = r;
+      this.rInto = rInto;
+      this.start = this.next = start;
+      this.end = end;
+      this.parallelism = parallelism;
+      this.progress = progress;
+      this.minChunkSize = Math.max(1,
+          (end - start + MaxChunksPerThread * parallelism - 1) / (MaxChunksPerThread * parallelism));
+    }
+
+    /**
+     * Claims the next chunk of the range.
+     * @return the start of the chunk in the first entry and its end in the
+     * second one, or null if the loop is done or cancelled.
+     */
+    private synchronized int[] claimChunk() {
+      if (cancelled || next >= end)
+        return null;
+      int remaining = end - next;
+      int chunkSize = Math.max(remaining / (2 * parallelism), minChunkSize);
+      // Leave some work for the other threads when enlarging cheap chunks
+      chunkSize = Math.max(chunkSize,
+          Math.min(targetChunkSize, (remaining + parallelism - 1) / parallelism));
+      chunkSize = Math.min(chunkSize, remaining);
+      int[] chunk = {next, next + chunkSize};
+      next += chunkSize;
+      return chunk;
+    }
+
+    private synchronized void chunkDone(int i1, int i2, T result, long time)
+        throws IOException {
+      if (result != null || rInto == null)
+        results.put(i1, result);
+      iterationsDone += i2 - i1;
+      timeDone += time;
+      // Enlarge the chunks if iterations turn out to be cheap
+      if (timeDone > 0)
+        targetChunkSize = (int) Math.min(TargetChunkTime * iterationsDone / timeDone,
+            Integer.MAX_VALUE);
+      if (progress != null)
+        progress.progress((float) iterationsDone / (end - start));
+    }
+
+    private synchronized void fail(Throwable e) {
+      exceptions.add(e);
+      cancelled = true;
+    }
+
+    @Override
+    public void run() {
+      try {
+        int[] chunk;
+        T partial = null;
+        while ((chunk = claimChunk()) != null) {
+          long t1 = System.nanoTime();
+          T result;
+          if (rInto == null) {
+            result = r.run(chunk[0], chunk[1]);
+          } else if (partial == null) {
+            // The partial result is reported with the first chunk only
+            result = partial = rInto.createPartial();
+            rInto.run(chunk[0], chunk[1], partial);
+          } else {
+            result = null;
+            rInto.run(chunk[0], chunk[1], partial);
+          }
+          long t2 = System.nanoTime();
+          chunkDone(chunk[0], chunk[1], result, t2 - t1);
+        }
+      } catch (Throwable e) {
+        fail(e);
+      }
+    }
+  }
+
   public static <T> List<T> forEach(int size, RunnableRange<T> r) throws InterruptedException {
     return forEach(0, size, r, Runtime.getRuntime().availableProcessors());
   }
@@ -66,46 +239,173 @@ public class Parallel {
     }
   
   public static <T> List<T> forEach(int start, int end, RunnableRange<T> r, int parallelism) throws InterruptedException {
+    return forEach(start, end, r, parallelism, null);
+  }
+
+  /**
+   * Runs the given function over the range [start, end) using up to the
+   * given number of threads. The range is divided into contiguous chunks
+   * that are claimed dynamically by the threads, so the function is called
+   * once per chunk, possibly more than once per thread. The calling thread
+   * processes chunks as well while the other ones run on a shared pool of
+   * threads. If one call throws an exception, no more chunks are started and
+   * a RuntimeException is thrown after the running ones finish. If the
+   * calling thread is interrupted, the running calls are interrupted and no
+   * more chunks are started.
+   * @param start - the first index in the range, inclusive
+   * @param end - the last index in the range, exclusive
+   * @param r - the function to run on each chunk
+   * @param parallelism - the maximum number of threads to use
+   * @param progress - receives the fraction of the range done after each
+   *  chunk, or null to skip progress reporting
+   * @return the results of all chunks ordered by their position in the range
+   * @throws InterruptedException
+   */
+  public static <T> List<T> forEach(int start, int end, RunnableRange<T> r,
+      int parallelism, Progressable progress) throws InterruptedException {
+    return run(start, end, r, null, parallelism, progress);
+  }
+
+  /**
+   * Runs the given function over the range [start, end) using up to the
+   * given number of threads. Chunks are claimed dynamically as in
+   * {@link #forEach(int, int, RunnableRange, int, Progressable)} but each
+   * thread processes all its chunks into one partial result that it creates
+   * when it claims its first chunk.
+   * @param start - the first index in the range, inclusive
+   * @param end - the last index in the range, exclusive
+   * @param r - the function to run on each chunk
+   * @param parallelism - the maximum number of threads to use
+   * @return one partial result for each thread that processed any chunks
+   * @throws InterruptedException
+   */
+  public static <T> List<T> forEach(int start, int end, RunnableRangeInto<T> r,
+      int parallelism) throws InterruptedException {
+    return run(start, end, null, r, parallelism, null);
+  }
+
+  public static <T> List<T> forEach(int size, RunnableRangeInto<T> r,
+      int parallelism) throws InterruptedException {
+    return forEach(0, size, r, parallelism);
+  }
+
+  private static <T> List<T> run(int start, int end, RunnableRange<T> r,
+      RunnableRangeInto<T> rInto, int parallelism, Progressable progress)
+      throws InterruptedException {
     Vector<T> results = new Vector<T>();
     if (end <= start)
       return results;
-    final Vector<Throwable> exceptions = new Vector<Throwable>();
-    Thread.UncaughtExceptionHandler h = new Thread.UncaughtExceptionHandler() {
-      public void uncaughtException(Thread th, Throwable ex) {
-        exceptions.add(ex);
-      }
-    };
     
     // Put an upper bound on parallelism to avoid empty ranges
     if (parallelism > (end - start))
       parallelism = end - start;
-    if (parallelism == 1) {
-      // Avoid creating threads
-      results.add(r.run(start, end));
-    } else {
-      LOG.info("Creating "+parallelism+" threads");
-      final int[] partitions = new int[parallelism + 1];
-      for (int i_thread = 0; i_thread <= parallelism; i_thread++)
-        partitions[i_thread] = i_thread * (end - start) / parallelism + start;
-      final Vector<RunnableRangeThread<T>> threads = new Vector<RunnableRangeThread<T>>();
-      for (int i_thread = 0; i_thread < parallelism; i_thread++) {
-        RunnableRangeThread<T> thread = new RunnableRangeThread<T>(r,
-            partitions[i_thread], partitions[i_thread+1]);
-        thread.setUncaughtExceptionHandler(h);
-        threads.add(thread);
-        threads.lastElement().start();
+    if (parallelism <= 1) {
+      // Avoid using threads
+      if (rInto == null) {
+        results.add(r.run(start, end));
+      } else {
+        T partial = rInto.createPartial();
+        rInto.run(start, end, partial);
+        results.add(partial);
       }
-      for (int i_thread = 0; i_thread < parallelism; i_thread++) {
-        threads.get(i_thread).join();
-        results.add(threads.get(i_thread).getResult());
+      if (progress != null) {
+        try {
+          progress.progress(1.0f);
+        } catch (IOException e) {
+          throw new RuntimeException("Error reporting progress", e);
+        }
       }
-      if (!exceptions.isEmpty())
-        throw new RuntimeException(exceptions.size()+" unhandled exceptions",
-            exceptions.firstElement());
+    } else {
+      ParallelLoop<T> loop = new ParallelLoop<T>(start, end, r, rInto,
+          parallelism, progress);
+      List<Future<?>> workers = new ArrayList<Future<?>>();
+      for (int i_thread = 1; i_thread < parallelism; i_thread++)
+        workers.add(Workers.submit(loop));
+      // Let the calling thread do its part instead of waiting idle
+      loop.run();
+      try {
+        for (Future<?> worker : workers)
+          worker.get();
+      } catch (InterruptedException e) {
+        loop.cancelled = true;
+        for (Future<?> worker : workers)
+          worker.cancel(true);
+        throw e;
+      } catch (ExecutionException e) {
+        // Should not happen as the loop catches all exceptions
+        loop.fail(e.getCause());
+      }
+      if (!loop.exceptions.isEmpty())
+        throw new RuntimeException(loop.exceptions.size()+" unhandled exceptions",
+            loop.exceptions.get(0));
+      results.addAll(loop.results.values());
     }
     return results;
   }
 
+  /**
+   * Sorts the given array using up to the given number of threads. Parts of
+   * the array are sorted in parallel and then merged in parallel, two at a
+   * time, until the whole array is sorted. The sort is stable.
+   * @param array - the array to sort
+   * @param c - the order of the elements
+   * @param parallelism - the maximum number of threads to use
+   * @throws InterruptedException
+   */
+  public static <T> void sort(final T[] array, final Comparator<? super T> c,
+      int parallelism) throws InterruptedException {
+    if (parallelism <= 1 || array.length < 2 * parallelism) {
+      Arrays.sort(array, c);
+      return;
+    }
+    // 1- Sort each chunk of the array independently
+    List<Integer> runStarts = forEach(array.length, new RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        Arrays.sort(array, i1, i2, c);
+        return i1;
+      }
+    }, parallelism);
+    final int[] runs = new int[runStarts.size() + 1];
+    for (int i = 0; i < runStarts.size(); i++)
+      runs[i] = runStarts.get(i);
+    runs[runStarts.size()] = array.length;
+    
+    // 2- Merge every two consecutive runs until one run remains
+    final T[] temp = array.clone();
+    T[] src = array, dst = temp;
+    int numRuns = runs.length - 1;
+    while (numRuns > 1) {
+      final T[] from = src, to = dst;
+      final int[] bounds = Arrays.copyOf(runs, numRuns + 1);
+      forEach((numRuns + 1) / 2, new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          for (int iPair = i1; iPair < i2; iPair++) {
+            int start = bounds[2 * iPair];
+            int mid = bounds[Math.min(2 * iPair + 1, bounds.length - 1)];
+            int end = bounds[Math.min(2 * iPair + 2, bounds.length - 1)];
+            int i = start, j = mid, k = start;
+            while (i < mid && j < end)
+              to[k++] = c.compare(from[j], from[i]) < 0 ? from[j++] : from[i++];
+            System.arraycopy(from, i, to, k, mid - i);
+            k += mid - i;
+            System.arraycopy(from, j, to, k, end - j);
+          }
+          return null;
+        }
+      }, parallelism);
+      for (int iRun = 0; iRun <= numRuns / 2; iRun++)
+        runs[iRun] = bounds[Math.min(2 * iRun, numRuns)];
+      numRuns = (numRuns + 1) / 2;
+      runs[numRuns] = array.length;
+      src = to;
+      dst = from;
+    }
+    if (src != array)
+      System.arraycopy(src, 0, array, 0, array.length);
+  }
+
   /**
    * @param args
    * @throws InterruptedException 
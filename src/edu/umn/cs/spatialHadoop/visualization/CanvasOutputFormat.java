@@ -38,6 +38,13 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
   
   private static final String InputMBR = "mbr";
 
+  /**
+   * Configuration line that tells whether all canvases written by one task
+   * are merged into one canvas before they are written (default) or written
+   * as-is. The latter is used when canvases are disjoint tiles of the image.
+   */
+  public static final String MergeTaskOutput = "CanvasOutputFormat.MergeTaskOutput";
+
   /**
    * Writes canvases to a file
    * @author Ahmed Eldawy
@@ -48,7 +55,8 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
     private FSDataOutputStream outFile;
     /**Plotter used to merge intermediate canvases*/
     private Plotter plotter;
-    /**The canvas resulting of merging all written canvases*/
+    /**The canvas resulting of merging all written canvases or null if
+     * canvases are written as-is*/
     private Canvas mergedCanvas;
     /**Associated task context to report progress*/
     private TaskAttemptContext task;
@@ -59,15 +67,20 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
       this.task = task;
       this.outFile = fs.create(taskOutputPath);
       this.plotter = Plotter.getPlotter(conf);
-      int imageWidth = conf.getInt("width", 1000);
-      int imageHeight = conf.getInt("height", 1000);
-      Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, "mbr");
-      this.mergedCanvas = plotter.createCanvas(imageWidth, imageHeight, inputMBR);
+      if (conf.getBoolean(MergeTaskOutput, true)) {
+        int imageWidth = conf.getInt("width", 1000);
+        int imageHeight = conf.getInt("height", 1000);
+        Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, "mbr");
+        this.mergedCanvas = plotter.createCanvas(imageWidth, imageHeight, inputMBR);
+      }
     }
 
     @Override
     public void write(Object dummy, Canvas r) throws IOException {
-      plotter.merge(mergedCanvas, r);
+      if (mergedCanvas != null)
+        plotter.merge(mergedCanvas, r);
+      else
+        r.write(outFile);
       task.progress();
     }
     
@@ -75,7 +88,8 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
     public void close(TaskAttemptContext context) throws IOException,
         InterruptedException {
       // Write the merged canvas
-      mergedCanvas.write(outFile);
+      if (mergedCanvas != null)
+        mergedCanvas.write(outFile);
       outFile.close();
     }
   }
@@ -95,8 +109,6 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
     final int height = conf.getInt("height", 1000);
     final Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
     
-    final boolean vflip = conf.getBoolean("vflip", true);
-    
     // List all output files resulting from reducers
     final FileSystem outFs = outPath.getFileSystem(conf);
     final FileStatus[] resultFiles = outFs.listStatus(outPath, new PathFilter() {
@@ -111,33 +123,30 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
       return;
     }
     System.out.println(System.currentTimeMillis()+": Merging "+resultFiles.length+" layers into one");
-    List<Canvas> intermediateLayers = Parallel.forEach(resultFiles.length, new Parallel.RunnableRange<Canvas>() {
+    if (!conf.getBoolean(MergeTaskOutput, true)) {
+      // Each file contains disjoint tiles. Stitch them together
+      Canvas finalLayer = stitchTiles(conf, outFs, resultFiles);
+      writeFinalImage(conf, outPath, outFs, finalLayer);
+      return;
+    }
+    List<Canvas> intermediateLayers = Parallel.forEach(resultFiles.length, new Parallel.RunnableRangeInto<Canvas>() {
+      @Override
+      public Canvas createPartial() {
+        // The canvas that contains the merge of all layers assigned to a thread
+        return Plotter.getPlotter(conf).createCanvas(width, height, inputMBR);
+      }
+
       @Override
-      public Canvas run(int i1, int i2) {
+      public void run(int i1, int i2, Canvas finalLayer) {
         Plotter plotter = Plotter.getPlotter(conf);
-        // The canvas that contains the merge of all assigned layers
-        Canvas finalLayer = null;
         Canvas tempLayer = plotter.createCanvas(1, 1, new Rectangle());
         for (int i = i1; i < i2; i++) {
           FileStatus resultFile = resultFiles[i];
           try {
             FSDataInputStream inputStream = outFs.open(resultFile.getPath());
             while (inputStream.getPos() < resultFile.getLen()) {
-              if (tempLayer == finalLayer) {
-                // More than one layer. Create a separate final layer to merge
-                finalLayer = plotter.createCanvas(width, height, inputMBR);
-                plotter.merge(finalLayer, tempLayer);
-              }
               tempLayer.readFields(inputStream);
-              
-              if (finalLayer == null) {
-                // First layer. Treat it as a final layer to avoid merging
-                // if it is the only layer
-                finalLayer = tempLayer;
-              } else {
-                // More than only layer. Merge into the final layer
-                plotter.merge(finalLayer, tempLayer);
-              }
+              plotter.merge(finalLayer, tempLayer);
             }
             inputStream.close();
           } catch (IOException e) {
@@ -145,7 +154,6 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
             e.printStackTrace();
           }
         }
-        return finalLayer;
       }
     }, conf.getInt("parallel", Runtime.getRuntime().availableProcessors()));
     
@@ -161,6 +169,70 @@ public class CanvasOutputFormat extends FileOutputFormat<Object, Canvas> {
       }
     }
     
+    writeFinalImage(conf, outPath, outFs, finalLayer);
+  }
+
+  /**
+   * Reads all the tiles in the given files and places them in one canvas
+   * that covers the whole image. Since tiles are disjoint, each pixel of the
+   * final canvas is merged only once. Files are read in parallel while the
+   * merge of each tile is synchronized on the final canvas.
+   * @param conf
+   * @param outFs
+   * @param resultFiles
+   * @return
+   * @throws InterruptedException
+   */
+  private static Canvas stitchTiles(final Configuration conf,
+      final FileSystem outFs, final FileStatus[] resultFiles)
+      throws InterruptedException {
+    final int width = conf.getInt("width", 1000);
+    final int height = conf.getInt("height", 1000);
+    final Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
+    final Plotter plotter = Plotter.getPlotter(conf);
+    final Canvas finalLayer = plotter.createCanvas(width, height, inputMBR);
+    Parallel.forEach(resultFiles.length, new Parallel.RunnableRange<Integer>() {
+      @Override
+      public Integer run(int i1, int i2) {
+        Plotter threadPlotter = Plotter.getPlotter(conf);
+        Canvas tile = threadPlotter.createCanvas(1, 1, new Rectangle());
+        int numTiles = 0;
+        for (int i = i1; i < i2; i++) {
+          FileStatus resultFile = resultFiles[i];
+          try {
+            FSDataInputStream inputStream = outFs.open(resultFile.getPath());
+            while (inputStream.getPos() < resultFile.getLen()) {
+              tile.readFields(inputStream);
+              synchronized (finalLayer) {
+                plotter.merge(finalLayer, tile);
+              }
+              numTiles++;
+            }
+            inputStream.close();
+          } catch (IOException e) {
+            System.err.println("Error reading "+resultFile);
+            e.printStackTrace();
+          }
+        }
+        return numTiles;
+      }
+    }, conf.getInt("parallel", Runtime.getRuntime().availableProcessors()));
+    return finalLayer;
+  }
+
+  /**
+   * Writes the final canvas as an image to the given output path replacing
+   * the partial canvases that were written by the tasks.
+   * @param conf
+   * @param outPath
+   * @param outFs
+   * @param finalLayer
+   * @throws IOException
+   */
+  private static void writeFinalImage(Configuration conf, Path outPath,
+      FileSystem outFs, Canvas finalLayer) throws IOException {
+    Plotter plotter = Plotter.getPlotter(conf);
+    boolean vflip = conf.getBoolean("vflip", true);
     // Finally, write the resulting image to the given output path
     System.out.println(System.currentTimeMillis()+": Writing final image");
     outFs.delete(outPath, true); // Delete old (non-combined) images
@@ -11,19 +11,18 @@ package edu.umn.cs.spatialHadoop.visualization;
 import java.awt.Color;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.util.Arrays;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.io.WritableUtils;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.util.BitArray;
 
 /**
  * A frequency map that can be used to visualize data as heat maps
@@ -36,11 +35,46 @@ public class FrequencyMap extends Canvas {
   
   public static enum SmoothType {Flat, Gaussian};
   
-  /**The kernel to use for stamping points*/
-  protected float[][] kernel;
-  
-  /**Frequencies*/
-  protected float[][] frequencies;
+  /**Width and height of the blocks used to keep track of non-empty parts*/
+  private static final int BlockSize = 32;
+
+  /**The kernel to use for stamping points stored in row-major order*/
+  protected float[] kernel;
+
+  /**
+   * Frequencies stored in row-major order. The frequency of the pixel
+   * (x, y) is stored at index (y * width + x)
+   */
+  protected float[] frequencies;
+
+  /**
+   * Blocks of {@link #BlockSize}x{@link #BlockSize} pixels that might
+   * contain non-zero frequencies. Empty blocks are skipped while merging
+   * and serializing the frequency map.
+   */
+  protected BitArray nonEmptyBlocks;
+
+  /**Number of blocks along the x-axis*/
+  private int numBlocksX;
+
+  /**
+   * Number of points at each pixel that are not yet applied to the
+   * frequencies. The map is padded with radius pixels on each side to
+   * count the points that lie outside the map but still affect it. The
+   * padded map is split into blocks of {@link #BlockSize}x{@link #BlockSize}
+   * pixels and a block is allocated only when a point falls in it.
+   * This is null when no points were pre-aggregated.
+   */
+  protected int[][] pendingCounts;
+
+  /**Number of blocks of {@link #pendingCounts} along the x-axis*/
+  private int numPendingBlocksX;
+
+  /**Whether there are points in {@link #pendingCounts} to be applied*/
+  private boolean hasPendingPoints;
+
+  /**Whether to count points per pixel and apply the kernel once per pixel*/
+  private boolean preAggregate;
 
   /**Radius to smooth nearboy points*/
   private int radius;
@@ -68,10 +102,22 @@ public class FrequencyMap extends Canvas {
     this.inputMBR = inputMBR;
     this.width = width;
     this.height = height;
-    this.frequencies = new float[width][height];
+    allocate();
     this.min = -1; this.max = -2;
     initKernel(radius, smoothType);
   }
+
+  /**
+   * Allocates an empty frequency array according to the width and height
+   */
+  private void allocate() {
+    this.frequencies = new float[width * height];
+    this.numBlocksX = (width + BlockSize - 1) / BlockSize;
+    int numBlocksY = (height + BlockSize - 1) / BlockSize;
+    this.nonEmptyBlocks = new BitArray(numBlocksX * numBlocksY);
+    this.pendingCounts = null;
+    this.hasPendingPoints = false;
+  }
   
   /**
    * Initialize a frequency map with the given radius and kernel type
@@ -81,13 +127,14 @@ public class FrequencyMap extends Canvas {
   protected void initKernel(int radius, SmoothType smoothType) {
     this.radius = radius;
     // initialize the kernel according to the radius and kernel type
-    kernel = new float[radius * 2][radius * 2];
+    int kernelSize = radius * 2;
+    kernel = new float[kernelSize * kernelSize];
     switch (smoothType) {
     case Flat:
       for (int dx = -radius; dx < radius; dx++) {
         for (int dy = -radius; dy < radius; dy++) {
           if (dx * dx + dy * dy < radius * radius) {
-            kernel[dx + radius][dy + radius] = 1.0f;
+            kernel[(dy + radius) * kernelSize + (dx + radius)] = 1.0f;
           }
         }
       }
@@ -98,12 +145,24 @@ public class FrequencyMap extends Canvas {
       // http://en.wikipedia.org/wiki/Gaussian_function#Two-dimensional_Gaussian_function
       for (int dx = -radius; dx < radius; dx++) {
         for (int dy = -radius; dy < radius; dy++) {
-          kernel[dx + radius][dy + radius] = (float) Math.exp(-(dx * dx + dy * dy)
-              / (2.0 * stdev * stdev));
+          kernel[(dy + radius) * kernelSize + (dx + radius)] =
+              (float) Math.exp(-(dx * dx + dy * dy) / (2.0 * stdev * stdev));
         }
       }
     }
   }
+
+  /**
+   * Sets whether points are first counted per pixel and the kernel is applied
+   * only once for each pixel with a non-zero count rather than once per point.
+   * This pays off when many points fall in the same pixel. Counts are kept
+   * only for the blocks of pixels that points fall in.
+   * @param preAggregate
+   */
+  public void setPreAggregate(boolean preAggregate) {
+    applyPendingPoints();
+    this.preAggregate = preAggregate;
+  }
   
   /**
    * Sets the range of value to be used while drawing the heat map
@@ -115,94 +174,135 @@ public class FrequencyMap extends Canvas {
     this.max = max;
   }
   
+  /**
+   * Writes only the blocks that might contain non-zero frequencies. Each
+   * block is written as the difference between its ID and the ID of the
+   * previous block followed by all its frequencies.
+   */
   @Override
   public void write(DataOutput out) throws IOException {
+    applyPendingPoints();
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    GZIPOutputStream gzos = new GZIPOutputStream(baos);
-    ByteBuffer bbuffer = ByteBuffer.allocate(getHeight() * 4 + 8);
-    bbuffer.putInt(getWidth());
-    bbuffer.putInt(getHeight());
-    gzos.write(bbuffer.array(), 0, bbuffer.position());
-    for (int x = 0; x < getWidth(); x++) {
+    int numBlocks = numBlocksX == 0 ? 0 : nonEmptyBlocks.size();
+    int numNonEmptyBlocks = 0;
+    for (int iBlock = 0; iBlock < numBlocks; iBlock++)
+      if (nonEmptyBlocks.get(iBlock))
+        numNonEmptyBlocks++;
+    out.writeInt(numNonEmptyBlocks);
+    ByteBuffer bbuffer = ByteBuffer.allocate(BlockSize * BlockSize * 4);
+    int previousBlock = 0;
+    for (int iBlock = 0; iBlock < numBlocks; iBlock++) {
+      if (!nonEmptyBlocks.get(iBlock))
+        continue;
+      WritableUtils.writeVInt(out, iBlock - previousBlock);
+      previousBlock = iBlock;
+      int x1 = (iBlock % numBlocksX) * BlockSize;
+      int y1 = (iBlock / numBlocksX) * BlockSize;
+      int x2 = Math.min(width, x1 + BlockSize);
+      int y2 = Math.min(height, y1 + BlockSize);
       bbuffer.clear();
-      for (int y = 0; y < getHeight(); y++) {
-        bbuffer.putFloat(frequencies[x][y]);
+      for (int y = y1; y < y2; y++) {
+        int offset = y * width;
+        for (int x = x1; x < x2; x++)
+          bbuffer.putFloat(frequencies[offset + x]);
       }
-      gzos.write(bbuffer.array(), 0, bbuffer.position());
+      out.write(bbuffer.array(), 0, bbuffer.position());
     }
-    gzos.close();
-    
-    byte[] serializedData = baos.toByteArray();
-    out.writeInt(serializedData.length);
-    out.write(serializedData);
   }
   
   @Override
   public void readFields(DataInput in) throws IOException {
+    int oldWidth = this.width, oldHeight = this.height;
     super.readFields(in);
-    int length = in.readInt();
-    byte[] serializedData = new byte[length];
-    in.readFully(serializedData);
-    ByteArrayInputStream bais = new ByteArrayInputStream(serializedData);
-    GZIPInputStream gzis = new GZIPInputStream(bais);
-    
-    byte[] buffer = new byte[8];
-    gzis.read(buffer);
-    ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
-    int width = bbuffer.getInt();
-    int height = bbuffer.getInt();
     // Reallocate memory only if needed
-    if (width != this.getWidth() || height != this.getHeight())
-      frequencies = new float[width][height];
-    buffer = new byte[getHeight() * 4];
-    for (int x = 0; x < getWidth(); x++) {
-      int size = 0;
-      while (size < buffer.length) {
-        size += gzis.read(buffer, size, buffer.length - size);
-      }
-      bbuffer = ByteBuffer.wrap(buffer);
-      for (int y = 0; y < getHeight(); y++) {
-        frequencies[x][y] = bbuffer.getFloat();
+    if (frequencies == null || width != oldWidth || height != oldHeight) {
+      allocate();
+    } else {
+      Arrays.fill(frequencies, 0);
+      nonEmptyBlocks.fill(false);
+      hasPendingPoints = false;
+      if (pendingCounts != null)
+        for (int[] blockCounts : pendingCounts)
+          if (blockCounts != null)
+            Arrays.fill(blockCounts, 0);
+    }
+    int numNonEmptyBlocks = in.readInt();
+    byte[] buffer = new byte[BlockSize * BlockSize * 4];
+    int iBlock = 0;
+    while (numNonEmptyBlocks-- > 0) {
+      iBlock += WritableUtils.readVInt(in);
+      nonEmptyBlocks.set(iBlock, true);
+      int x1 = (iBlock % numBlocksX) * BlockSize;
+      int y1 = (iBlock / numBlocksX) * BlockSize;
+      int x2 = Math.min(width, x1 + BlockSize);
+      int y2 = Math.min(height, y1 + BlockSize);
+      in.readFully(buffer, 0, (x2 - x1) * (y2 - y1) * 4);
+      ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
+      for (int y = y1; y < y2; y++) {
+        int offset = y * width;
+        for (int x = x1; x < x2; x++)
+          frequencies[offset + x] = bbuffer.getFloat();
       }
     }
   }
   
   public void mergeWith(FrequencyMap another) {
+    another.applyPendingPoints();
     Point offset = projectToImageSpace(another.getInputMBR().x1, another.getInputMBR().y1);
-    int xmin = Math.max(0, offset.x);
-    int ymin = Math.max(0, offset.y);
-    int xmax = Math.min(this.getWidth(), another.getWidth() + offset.x);
-    int ymax = Math.min(this.getHeight(), another.getHeight() + offset.y);
-    for (int x = xmin; x < xmax; x++) {
+    int numBlocks = another.numBlocksX == 0 ? 0 : another.nonEmptyBlocks.size();
+    for (int iBlock = 0; iBlock < numBlocks; iBlock++) {
+      if (!another.nonEmptyBlocks.get(iBlock))
+        continue;
+      // The block in the other map translated to this map and clipped to it
+      int blockX = (iBlock % another.numBlocksX) * BlockSize;
+      int blockY = (iBlock / another.numBlocksX) * BlockSize;
+      int xmin = Math.max(0, blockX + offset.x);
+      int ymin = Math.max(0, blockY + offset.y);
+      int xmax = Math.min(this.width, Math.min(another.width, blockX + BlockSize) + offset.x);
+      int ymax = Math.min(this.height, Math.min(another.height, blockY + BlockSize) + offset.y);
+      if (xmin >= xmax || ymin >= ymax)
+        continue;
       for (int y = ymin; y < ymax; y++) {
-        this.frequencies[x][y] +=
-            another.frequencies[x - offset.x][y - offset.y];
+        int thisOffset = y * this.width;
+        int anotherOffset = (y - offset.y) * another.width - offset.x;
+        for (int x = xmin; x < xmax; x++)
+          this.frequencies[thisOffset + x] += another.frequencies[anotherOffset + x];
       }
+      markNonEmpty(xmin, ymin, xmax, ymax);
     }
   }
+
+  /**
+   * Marks all blocks that overlap the given range of pixels as non-empty
+   * @param x1 - the first column (inclusive)
+   * @param y1 - the first row (inclusive)
+   * @param x2 - the last column (exclusive)
+   * @param y2 - the last row (exclusive)
+   */
+  private void markNonEmpty(int x1, int y1, int x2, int y2) {
+    for (int blockY = y1 / BlockSize; blockY <= (y2 - 1) / BlockSize; blockY++)
+      for (int blockX = x1 / BlockSize; blockX <= (x2 - 1) / BlockSize; blockX++)
+        nonEmptyBlocks.set(blockY * numBlocksX + blockX, true);
+  }
   
   public BufferedImage asImage() {
+    applyPendingPoints();
     if (min >= max) {
       // Values not set. Autodetect
       min = Float.MAX_VALUE;
       max = -Float.MAX_VALUE;
-      for (int x = 0; x < this.getWidth(); x++) {
-        for (int y = 0; y < this.getHeight(); y++) {
-          if (frequencies[x][y] < min)
-            min = frequencies[x][y];
-          if (frequencies[x][y] > max)
-            max = frequencies[x][y];
-        }
+      for (float frequency : frequencies) {
+        if (frequency < min)
+          min = frequency;
+        if (frequency > max)
+          max = frequency;
       }
     }
     BufferedImage image = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_ARGB);
-    for (int x = 0; x < this.getWidth(); x++) {
-      for (int y = 0; y < this.getHeight(); y++) {
-        Color color = calculateColor(frequencies[x][y], min, max);
-        image.setRGB(x, y, color.getRGB());
-      }
-    }
+    int[] pixels = new int[frequencies.length];
+    for (int i = 0; i < frequencies.length; i++)
+      pixels[i] = calculateColor(frequencies[i], min, max).getRGB();
+    image.setRGB(0, 0, width, height, pixels, 0, width);
     return image;
   }
 
@@ -212,24 +312,77 @@ public class FrequencyMap extends Canvas {
    * @param cy
    */
   public void addPoint(int cx, int cy) {
-    for (int dx = -radius; dx < radius; dx++) {
-      for (int dy = -radius; dy < radius; dy++) {
-        int imgx = cx + dx;
-        int imgy = cy + dy;
-        if (imgx >= 0 && imgx < getWidth() && imgy >= 0 && imgy < getHeight())
-          frequencies[imgx][imgy] += kernel[dx + radius][dy + radius];
-      }
+    if (!preAggregate) {
+      applyKernel(cx, cy, 1);
+      return;
+    }
+    // Points farther than the radius do not affect the map
+    if (cx < -radius || cx >= width + radius || cy < -radius || cy >= height + radius)
+      return;
+    if (pendingCounts == null) {
+      numPendingBlocksX = (width + 2 * radius + BlockSize - 1) / BlockSize;
+      int numPendingBlocksY = (height + 2 * radius + BlockSize - 1) / BlockSize;
+      pendingCounts = new int[numPendingBlocksX * numPendingBlocksY][];
     }
+    int px = cx + radius, py = cy + radius;
+    int iBlock = (py / BlockSize) * numPendingBlocksX + px / BlockSize;
+    if (pendingCounts[iBlock] == null)
+      pendingCounts[iBlock] = new int[BlockSize * BlockSize];
+    pendingCounts[iBlock][(py % BlockSize) * BlockSize + px % BlockSize]++;
+    hasPendingPoints = true;
   }
 
-  public int getWidth() {
-    return frequencies == null? 0 : frequencies.length;
+  /**
+   * Applies the kernel once for each pixel with pending points weighted
+   * by the number of points in that pixel.
+   */
+  protected void applyPendingPoints() {
+    if (!hasPendingPoints)
+      return;
+    for (int iBlock = 0; iBlock < pendingCounts.length; iBlock++) {
+      int[] blockCounts = pendingCounts[iBlock];
+      if (blockCounts == null)
+        continue;
+      int blockX = (iBlock % numPendingBlocksX) * BlockSize - radius;
+      int blockY = (iBlock / numPendingBlocksX) * BlockSize - radius;
+      for (int i = 0; i < blockCounts.length; i++) {
+        if (blockCounts[i] != 0) {
+          applyKernel(blockX + i % BlockSize, blockY + i / BlockSize, blockCounts[i]);
+          blockCounts[i] = 0;
+        }
+      }
+    }
+    hasPendingPoints = false;
   }
 
-  public int getHeight() {
-    return frequencies == null? 0 : frequencies[0].length;
+  /**
+   * Adds the kernel centered at the given pixel to the frequencies
+   * @param cx
+   * @param cy
+   * @param weight - the number of points at this pixel
+   */
+  private void applyKernel(int cx, int cy, int weight) {
+    int kernelSize = radius * 2;
+    int xmin = Math.max(0, cx - radius);
+    int ymin = Math.max(0, cy - radius);
+    int xmax = Math.min(width, cx + radius);
+    int ymax = Math.min(height, cy + radius);
+    if (xmin >= xmax || ymin >= ymax)
+      return;
+    for (int y = ymin; y < ymax; y++) {
+      int offset = y * width;
+      int kernelOffset = (y - cy + radius) * kernelSize - cx + radius;
+      if (weight == 1) {
+        for (int x = xmin; x < xmax; x++)
+          frequencies[offset + x] += kernel[kernelOffset + x];
+      } else {
+        for (int x = xmin; x < xmax; x++)
+          frequencies[offset + x] += weight * kernel[kernelOffset + x];
+      }
+    }
+    markNonEmpty(xmin, ymin, xmax, ymax);
   }
-  
+
   /* The following methods are used to compute the gradient */
 
   protected Color[] colors;
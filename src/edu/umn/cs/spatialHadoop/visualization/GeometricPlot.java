@@ -64,6 +64,11 @@ public class GeometricPlot {
       return ImageCanvas.class;
     }
 
+    @Override
+    public boolean isTileable() {
+      return true;
+    }
+
     @Override
     public void merge(Canvas finalLayer,
         Canvas intermediateLayer) {
@@ -96,6 +101,7 @@ public class GeometricPlot {
     System.out.println("height:<h> - Maximum height of the image (1000)");
     System.out.println("color:<c> - Main color used to draw the picture (black)");
     System.out.println("partition:<data|space|flat|pyramid> - which partitioning technique to use");
+    System.out.println("rect:<x1,y1,x2,y2> - Plot only the given viewport and skip partitions outside it");
     System.out.println("-overwrite: Override output file without notice");
     System.out.println("-vflip: Vertically flip generated image to correct +ve Y-axis direction");
     GenericOptionsParser.printGenericCommandUsage(System.out);
@@ -10,6 +10,12 @@ package edu.umn.cs.spatialHadoop.visualization;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -18,7 +24,13 @@ import java.io.PrintWriter;
 import java.net.URLConnection;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
@@ -38,15 +50,26 @@ import org.apache.hadoop.mapred.JobID;
 import org.apache.hadoop.mapred.JobTracker;
 import org.apache.hadoop.mapred.RunningJob;
 import org.apache.hadoop.mapred.Task;
+import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.GenericOptionsParser;
 import org.mortbay.jetty.Request;
 import org.mortbay.jetty.Server;
 import org.mortbay.jetty.handler.AbstractHandler;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.core.Shape;
+import edu.umn.cs.spatialHadoop.core.SpatialSite;
+import edu.umn.cs.spatialHadoop.indexing.GlobalIndex;
+import edu.umn.cs.spatialHadoop.indexing.Partition;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
+import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
 import edu.umn.cs.spatialHadoop.nasa.HDFPlot;
 import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
+import edu.umn.cs.spatialHadoop.operations.FileMBR;
 
 public class HadoopvizServer extends AbstractHandler {
 
@@ -65,6 +88,174 @@ public class HadoopvizServer extends AbstractHandler {
   /** Shape Map **/
   private HashMap<String, String> shapeMap;
 
+  /** Tiles rendered by the tile endpoint */
+  private TileCache tileCache;
+
+  /** Maximum number of dataset versions whose MBRs are kept */
+  private static final int MaxCachedMBRs = 100;
+
+  /**
+   * MBRs of the pyramids of datasets that are not indexed by version, ordered
+   * from the least to the most recently used. Older versions of a dataset are
+   * never used again so they are evicted eventually.
+   */
+  private Map<String, Rectangle> datasetMBRs =
+      new LinkedHashMap<String, Rectangle>(16, 0.75f, true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Rectangle> eldest) {
+      return size() > MaxCachedMBRs;
+    }
+  };
+
+  /**
+   * A cache of rendered tiles bounded by their total size in memory and on
+   * the local disk. Tiles read from the disk are also kept in memory. In both
+   * levels, the least recently used tiles are evicted first. Tiles on the
+   * disk are kept across restarts of the server.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class TileCache {
+    /**The directory that stores the tiles on the local disk*/
+    private final File cacheDir;
+
+    /**Maximum total size of tiles in memory and on disk in bytes*/
+    private final long maxMemorySize, maxDiskSize;
+
+    /**Current total size of tiles in memory and on disk in bytes*/
+    private long memorySize, diskSize;
+
+    /**Tiles in memory ordered from the least to the most recently used*/
+    private final LinkedHashMap<String, byte[]> memoryTiles =
+        new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+
+    /**Sizes of tiles on disk ordered from the least to the most recently used*/
+    private final LinkedHashMap<String, Long> diskTiles =
+        new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    TileCache(File cacheDir, long maxMemorySize, long maxDiskSize) {
+      this.cacheDir = cacheDir;
+      this.maxMemorySize = maxMemorySize;
+      this.maxDiskSize = maxDiskSize;
+      if (maxDiskSize > 0) {
+        cacheDir.mkdirs();
+        // Reload the tiles stored by earlier runs from the oldest to the newest
+        List<File> files = new ArrayList<File>();
+        listFiles(cacheDir, files);
+        File[] sortedFiles = files.toArray(new File[files.size()]);
+        Arrays.sort(sortedFiles, new Comparator<File>() {
+          @Override
+          public int compare(File f1, File f2) {
+            long diff = f1.lastModified() - f2.lastModified();
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+          }
+        });
+        int prefixLength = cacheDir.getPath().length() + 1;
+        for (File file : sortedFiles) {
+          diskTiles.put(file.getPath().substring(prefixLength), file.length());
+          diskSize += file.length();
+        }
+        evictFromDisk();
+        LOG.info("Loaded "+diskTiles.size()+" cached tiles from "+cacheDir);
+      }
+    }
+
+    private static void listFiles(File dir, List<File> files) {
+      File[] children = dir.listFiles();
+      if (children == null)
+        return;
+      for (File child : children) {
+        if (child.isDirectory())
+          listFiles(child, files);
+        else
+          files.add(child);
+      }
+    }
+
+    /**
+     * Returns the tile with the given key or null if it is not cached
+     * @param key
+     * @return
+     */
+    synchronized byte[] get(String key) {
+      byte[] tile = memoryTiles.get(key);
+      if (tile != null)
+        return tile;
+      Long size = diskTiles.get(key);
+      if (size == null)
+        return null;
+      File file = new File(cacheDir, key);
+      try {
+        tile = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+          in.readFully(tile);
+        } finally {
+          in.close();
+        }
+      } catch (IOException e) {
+        LOG.warn("Error reading cached tile "+file, e);
+        diskTiles.remove(key);
+        diskSize -= size;
+        return null;
+      }
+      putInMemory(key, tile);
+      return tile;
+    }
+
+    /**
+     * Adds a rendered tile to the cache
+     * @param key
+     * @param tile
+     */
+    synchronized void put(String key, byte[] tile) {
+      putInMemory(key, tile);
+      if (maxDiskSize > 0 && tile.length <= maxDiskSize && !diskTiles.containsKey(key)) {
+        File file = new File(cacheDir, key);
+        try {
+          file.getParentFile().mkdirs();
+          FileOutputStream out = new FileOutputStream(file);
+          try {
+            out.write(tile);
+          } finally {
+            out.close();
+          }
+          diskTiles.put(key, (long) tile.length);
+          diskSize += tile.length;
+          evictFromDisk();
+        } catch (IOException e) {
+          LOG.warn("Error caching tile "+file, e);
+        }
+      }
+    }
+
+    private void putInMemory(String key, byte[] tile) {
+      if (tile.length > maxMemorySize)
+        return;
+      byte[] oldTile = memoryTiles.put(key, tile);
+      if (oldTile != null)
+        memorySize -= oldTile.length;
+      memorySize += tile.length;
+      Iterator<byte[]> iter = memoryTiles.values().iterator();
+      while (memorySize > maxMemorySize) {
+        memorySize -= iter.next().length;
+        iter.remove();
+      }
+    }
+
+    private void evictFromDisk() {
+      Iterator<Map.Entry<String, Long>> iter = diskTiles.entrySet().iterator();
+      while (diskSize > maxDiskSize) {
+        Map.Entry<String, Long> eldest = iter.next();
+        diskSize -= eldest.getValue();
+        iter.remove();
+        new File(cacheDir, eldest.getKey()).delete();
+      }
+    }
+  }
+
   /**
    * A constructor that starts the Jetty server
    * 
@@ -82,6 +273,11 @@ public class HadoopvizServer extends AbstractHandler {
     this.shapePath = shapePath;
     this.watermaskPath = watermaskPath;
     readShapeFile();
+    File tileCacheDir = new File(params.get("tilecache",
+        new File(System.getProperty("java.io.tmpdir"), "hadoopviz-tiles").getPath()));
+    this.tileCache = new TileCache(tileCacheDir,
+        params.getLong("tilecachememory", 64 * 1024 * 1024),
+        params.getLong("tilecachedisk", 1024 * 1024 * 1024));
   }
 
   /**
@@ -142,6 +338,8 @@ public class HadoopvizServer extends AbstractHandler {
         handleGenerateOutputList(request, response);
       } else if (target.endsWith("/fetch_result.cgi")) {
         handleOutput(request, response);
+      } else if (target.startsWith("/tiles/")) {
+        handleTile(target, request, response);
       } else if (target.startsWith("/hdfs/")) {
         handleHDFSFetch(request, response);
       } else if (target.endsWith("/get_output_info.cgi")) {
@@ -333,6 +531,207 @@ public class HadoopvizServer extends AbstractHandler {
     }
   }
 
+  /**
+   * Handles a request for one tile of a multilevel image in the form
+   * /tiles/{z}/{x}/{y}.png?dataset=&lt;dataset&gt;&amp;plottype=&lt;gplot|hplot&gt;.
+   * Tiles are numbered as in web maps where tile (0, 0) is at the top left.
+   * The tile is rendered on demand from the partitions of the dataset that
+   * overlap it and kept in the tile cache for subsequent requests.
+   * 
+   * @param target
+   * @param request
+   * @param response
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void handleTile(String target, HttpServletRequest request,
+      HttpServletResponse response) throws IOException, InterruptedException {
+    String dataset = request.getParameter("dataset");
+    String plotType = request.getParameter("plottype");
+    if (plotType == null)
+      plotType = "gplot";
+    String[] parts = target.substring("/tiles/".length()).split("/");
+    if (dataset == null || dataset.contains("/") || dataset.contains("..")
+        || parts.length != 3 || !parts[2].endsWith(".png")) {
+      reportError(response, "Invalid tile request '" + target + "'", null);
+      return;
+    }
+    int z, x, y;
+    try {
+      z = Integer.parseInt(parts[0]);
+      x = Integer.parseInt(parts[1]);
+      y = Integer.parseInt(parts[2].substring(0, parts[2].length() - 4));
+    } catch (NumberFormatException e) {
+      reportError(response, "Invalid tile request '" + target + "'", null);
+      return;
+    }
+    if (z < 0 || z > 30 || x < 0 || x >= (1 << z) || y < 0 || y >= (1 << z)) {
+      reportError(response, "Tile '" + target + "' is out of range", null);
+      return;
+    }
+
+    // Tiles of an older version of the dataset are never returned
+    Path datasetDir = new Path(datasetPath, dataset);
+    String version = dataset + "@" + getDatasetVersion(datasetDir);
+    String key = version + "/" + plotType + "/" + z + "/" + x + "/" + y + ".png";
+    byte[] tile = tileCache.get(key);
+    if (tile == null) {
+      long t1 = System.currentTimeMillis();
+      tile = renderTile(datasetDir, version, plotType, z, x, y);
+      if (tile == null) {
+        reportError(response, "Unsupported plot type '" + plotType + "'", null);
+        return;
+      }
+      tileCache.put(key, tile);
+      long t2 = System.currentTimeMillis();
+      LOG.info("Rendered tile " + key + " in " + (t2 - t1) + " millis");
+    }
+    response.setContentType("image/png");
+    response.setStatus(HttpServletResponse.SC_OK);
+    ServletOutputStream outResponse = response.getOutputStream();
+    outResponse.write(tile);
+    outResponse.close();
+  }
+
+  /**
+   * Returns the version of a dataset which is the latest modification time of
+   * the dataset directory and the files in it. It changes whenever the
+   * dataset is rebuilt, reindexed, or files are added to it.
+   * @param datasetDir
+   * @return
+   * @throws IOException
+   */
+  private long getDatasetVersion(Path datasetDir) throws IOException {
+    FileSystem fs = datasetDir.getFileSystem(commonParams);
+    long version = fs.getFileStatus(datasetDir).getModificationTime();
+    for (FileStatus file : fs.listStatus(datasetDir))
+      version = Math.max(version, file.getModificationTime());
+    return version;
+  }
+
+  /**
+   * Renders one tile of the given dataset as a PNG image. Only partitions and
+   * records that overlap the tile are read. The tile grid at each level
+   * covers the MBR of the dataset expanded to a square.
+   * 
+   * @param datasetDir
+   * @param version - the dataset name and version as returned by
+   *  {@link #getDatasetVersion(Path)}
+   * @param plotType
+   * @param z
+   * @param x
+   * @param y - the row of the tile counted from the top
+   * @return the PNG image or null if the plot type is not supported
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private byte[] renderTile(Path datasetDir, String version, String plotType,
+      int z, int x, int y) throws IOException, InterruptedException {
+    OperationsParams params = new OperationsParams(commonParams);
+    String shape = shapeMap.get(datasetDir.getName());
+    if (shape != null)
+      params.set("shape", shape);
+    Plotter plotter;
+    if (plotType.equals("gplot")) {
+      params.set("color", "red");
+      plotter = new GeometricPlot.GeometricRasterizer();
+    } else if (plotType.equals("hplot")) {
+      plotter = new HeatMapPlot.HeatMapRasterizer();
+    } else {
+      return null;
+    }
+    plotter.configure(params);
+    int tileWidth = params.getInt("tilewidth", 256);
+    int tileHeight = params.getInt("tileheight", 256);
+
+    Rectangle mbr = getPyramidMBR(version, datasetDir, params);
+    int gridSize = 1 << z;
+    // Convert the row to the bottom-up order of the input space
+    int row = gridSize - 1 - y;
+    Rectangle tileMBR = new Rectangle(
+        (mbr.x1 * (gridSize - x) + mbr.x2 * x) / gridSize,
+        (mbr.y1 * (gridSize - row) + mbr.y2 * row) / gridSize,
+        (mbr.x1 * (gridSize - (x + 1)) + mbr.x2 * (x + 1)) / gridSize,
+        (mbr.y1 * (gridSize - (row + 1)) + mbr.y2 * (row + 1)) / gridSize);
+    Canvas canvas = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
+
+    // Heat maps are affected by points within the smoothing radius
+    int bufferPixels = plotType.equals("hplot") ? params.getInt("radius", 5) : 0;
+    Rectangle queryRange = tileMBR.buffer(
+        bufferPixels * tileMBR.getWidth() / tileWidth,
+        bufferPixels * tileMBR.getHeight() / tileHeight);
+    OperationsParams.setShape(params, SpatialInputFormat3.InputQueryRange, queryRange);
+    Job job = Job.getInstance(params);
+    SpatialInputFormat3<Rectangle, Shape> inputFormat =
+        new SpatialInputFormat3<Rectangle, Shape>();
+    SpatialInputFormat3.addInputPath(job, datasetDir);
+    // Smoothing needs all the shapes of the tile as in the pyramid reducer
+    boolean smooth = plotter.isSmooth();
+    List<Shape> tileShapes = new ArrayList<Shape>();
+    for (InputSplit split : inputFormat.getSplits(job)) {
+      FileSplit fsplit = (FileSplit) split;
+      RecordReader<Rectangle, Iterable<Shape>> reader =
+          LocalSplitRunner.createRecordReader(inputFormat, fsplit, params);
+      while (reader.nextKeyValue()) {
+        for (Shape s : reader.getCurrentValue()) {
+          Rectangle shapeMBR = s.getMBR();
+          if (shapeMBR == null || !shapeMBR.isIntersected(queryRange))
+            continue;
+          if (smooth)
+            tileShapes.add(s.clone());
+          else
+            plotter.plot(canvas, s);
+        }
+      }
+      reader.close();
+    }
+    if (smooth) {
+      for (Shape s : plotter.smooth(tileShapes))
+        plotter.plot(canvas, s);
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    plotter.writeImage(canvas, out, true);
+    out.close();
+    return baos.toByteArray();
+  }
+
+  /**
+   * Returns the area covered by the tile pyramid of the given dataset which
+   * is the MBR of the dataset expanded to a square. The MBR is taken from
+   * the global index if the dataset is indexed.
+   * 
+   * @param version - the dataset name and version used as a cache key
+   * @param datasetDir
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private Rectangle getPyramidMBR(String version, Path datasetDir,
+      OperationsParams params) throws IOException, InterruptedException {
+    FileSystem fs = datasetDir.getFileSystem(params);
+    GlobalIndex<Partition> gindex = SpatialSite.getGlobalIndex(fs, datasetDir);
+    Rectangle mbr;
+    if (gindex != null) {
+      mbr = gindex.getMBR();
+    } else {
+      synchronized (datasetMBRs) {
+        mbr = datasetMBRs.get(version);
+        if (mbr == null) {
+          OperationsParams mbrParams = new OperationsParams(params);
+          mbrParams.setBoolean("background", false);
+          mbr = FileMBR.fileMBR(new Path[] {datasetDir}, mbrParams);
+          datasetMBRs.put(version, mbr);
+        }
+      }
+    }
+    double size = Math.max(mbr.getWidth(), mbr.getHeight());
+    double cx = (mbr.x1 + mbr.x2) / 2, cy = (mbr.y1 + mbr.y2) / 2;
+    return new Rectangle(cx - size / 2, cy - size / 2, cx + size / 2, cy + size / 2);
+  }
+
   /**
    * This method will be called when display.html loaded. It will show the
    * available output to be shown.
@@ -646,6 +1045,9 @@ public class HadoopvizServer extends AbstractHandler {
     System.out.println("<watermask> - (*) The watermask folder.");
     System.out
         .println("port:<p> - The port to start listening to. Default: 8889");
+    System.out.println("-D tilecache=<dir> - Local directory to cache rendered tiles");
+    System.out.println("tilecachememory:<bytes> - Memory budget of the tile cache. Default: 64MB");
+    System.out.println("tilecachedisk:<bytes> - Disk budget of the tile cache. Default: 1GB");
     GenericOptionsParser.printGenericCommandUsage(System.out);
   }
 
@@ -40,6 +40,8 @@ public class HeatMapPlot {
     private int radius;
     /**Type of smoothing to use in the frequency map*/
     private FrequencyMap.SmoothType smoothType;
+    /**Whether to count points per pixel before applying the kernel*/
+    private boolean preAggregate;
     /**Color associated with minimum value*/
     private Color color1;
     /**Color associated with maximum value*/
@@ -56,6 +58,7 @@ public class HeatMapPlot {
       this.radius = conf.getInt("radius", 5);
       this.smoothType = conf.getBoolean("smooth", true) ? FrequencyMap.SmoothType.Gaussian
           : FrequencyMap.SmoothType.Flat;
+      this.preAggregate = conf.getBoolean("preaggregate", true);
       this.color1 = OperationsParams.getColor(conf, "color1", new Color(0, 0, 255, 0));
       this.color2 = OperationsParams.getColor(conf, "color2", new Color(255, 0, 0, 255));
       this.gradientType = conf.get("gradient", "hsb").equals("hsb") ? GradientType.GT_HSB : GradientType.GT_RGB;
@@ -74,6 +77,7 @@ public class HeatMapPlot {
     public Canvas createCanvas(int width, int height, Rectangle mbr) {
       FrequencyMap rasterLayer = new FrequencyMap(mbr, width, height, radius, smoothType);
       rasterLayer.setGradientInfor(color1, color2, gradientType);
+      rasterLayer.setPreAggregate(preAggregate);
       if (this.minValue <= maxValue)
         rasterLayer.setValueRange(minValue, maxValue);
       return rasterLayer;
@@ -105,6 +109,16 @@ public class HeatMapPlot {
       return FrequencyMap.class;
     }
 
+    @Override
+    public boolean isTileable() {
+      return true;
+    }
+
+    @Override
+    public int getBufferSize() {
+      return radius;
+    }
+
     @Override
     public void merge(Canvas finalLayer,
         Canvas intermediateLayer) {
@@ -137,6 +151,7 @@ public class HeatMapPlot {
     System.out.println("height:<h> - Maximum height of the image (1000)");
     System.out.println("color:<c> - Main color used to draw the picture (black)");
     System.out.println("partition:<data|space|flat|pyramid> - which partitioning technique to use");
+    System.out.println("rect:<x1,y1,x2,y2> - Plot only the given viewport and skip partitions outside it");
     System.out.println("-overwrite: Override output file without notice");
     System.out.println("-vflip: Vertically flip generated image to correct +ve Y-axis direction");
     GenericOptionsParser.printGenericCommandUsage(System.out);
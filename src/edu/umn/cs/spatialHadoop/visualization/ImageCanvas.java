@@ -12,13 +12,13 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.awt.image.DataBufferInt;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Arrays;
 
-import javax.imageio.ImageIO;
+import org.apache.hadoop.io.WritableUtils;
 
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
@@ -47,6 +47,9 @@ public class ImageCanvas extends Canvas {
   /**The scale of the image on the y-axis in terms of pixels per input units*/
   protected double yscale;
 
+  /**The translation in pixels applied to the graphics to draw shapes*/
+  protected int translateX, translateY;
+
   /**Default color to use with underlying graphics*/
   private Color color;
 
@@ -69,33 +72,101 @@ public class ImageCanvas extends Canvas {
     // Calculate the scale of the image in terms of pixels per unit
     xscale = image.getWidth() / getInputMBR().getWidth();
     yscale = image.getHeight() / getInputMBR().getHeight();
+    translateX = (int)(-getInputMBR().x1 * xscale);
+    translateY = (int)(-getInputMBR().y1 * yscale);
   }
   
   public void setColor(Color color) {
     this.color = color;
   }
   
+  /**
+   * Writes the image as run-length encoded ARGB pixels rather than PNG to
+   * keep the (de)serialization cheap while canvases are shuffled and merged.
+   * Pixels are written in row-major order as a sequence of runs. A positive
+   * run length is followed by one pixel repeated that many times, e.g., a
+   * transparent area, while a negative run length is followed by that many
+   * literal pixels. PNG is only used to write the final image.
+   */
   @Override
   public void write(DataOutput out) throws IOException {
     super.write(out);
-    ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    ImageIO.write(getImage(), "png", baos);
-    baos.close();
-    byte[] bytes = baos.toByteArray();
-    out.writeInt(bytes.length);
-    out.write(bytes);
+    BufferedImage img = getImage();
+    int imgWidth = img.getWidth();
+    int imgHeight = img.getHeight();
+    out.writeInt(imgWidth);
+    out.writeInt(imgHeight);
+    int[] pixels = getPixels(img);
+    int numPixels = imgWidth * imgHeight;
+    int i = 0;
+    while (i < numPixels) {
+      int runLength = 1;
+      while (i + runLength < numPixels && pixels[i + runLength] == pixels[i])
+        runLength++;
+      if (runLength > 1 || pixels[i] == 0) {
+        WritableUtils.writeVInt(out, runLength);
+        out.writeInt(pixels[i]);
+        i += runLength;
+      } else {
+        // Collect literal pixels up to the start of the next run
+        int literalLength = 1;
+        while (i + literalLength < numPixels && pixels[i + literalLength] != 0
+            && (i + literalLength + 1 >= numPixels ||
+                pixels[i + literalLength] != pixels[i + literalLength + 1]))
+          literalLength++;
+        WritableUtils.writeVInt(out, -literalLength);
+        for (int j = i; j < i + literalLength; j++)
+          out.writeInt(pixels[j]);
+        i += literalLength;
+      }
+    }
   }
 
   @Override
   public void readFields(DataInput in) throws IOException {
     super.readFields(in);
-    int length = in.readInt();
-    byte[] bytes = new byte[length];
-    in.readFully(bytes);
-    this.image = ImageIO.read(new ByteArrayInputStream(bytes));
+    int imgWidth = in.readInt();
+    int imgHeight = in.readInt();
+    if (graphics != null) {
+      graphics.dispose();
+      graphics = null;
+    }
+    this.image = new BufferedImage(imgWidth, imgHeight, BufferedImage.TYPE_INT_ARGB);
+    int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    int numPixels = imgWidth * imgHeight;
+    int i = 0;
+    while (i < numPixels) {
+      int runLength = WritableUtils.readVInt(in);
+      if (runLength > 0) {
+        int pixel = in.readInt();
+        if (pixel != 0)
+          Arrays.fill(pixels, i, i + runLength, pixel);
+        i += runLength;
+      } else {
+        for (int j = i; j < i - runLength; j++)
+          pixels[j] = in.readInt();
+        i -= runLength;
+      }
+    }
     // Calculate the scale of the image in terms of pixels per unit
     xscale = image.getWidth() / getInputMBR().getWidth();
     yscale = image.getHeight() / getInputMBR().getHeight();
+    translateX = (int)(-getInputMBR().x1 * xscale);
+    translateY = (int)(-getInputMBR().y1 * yscale);
+  }
+
+  /**
+   * Returns the ARGB values of all pixels in the given image in row-major
+   * order. The underlying array is returned directly if possible.
+   * @param img
+   * @return
+   */
+  private static int[] getPixels(BufferedImage img) {
+    if (img.getType() == BufferedImage.TYPE_INT_ARGB &&
+        img.getRaster().getDataBuffer() instanceof DataBufferInt &&
+        img.getRaster().getParent() == null)
+      return ((DataBufferInt) img.getRaster().getDataBuffer()).getData();
+    return img.getRGB(0, 0, img.getWidth(), img.getHeight(), null, 0, img.getWidth());
   }
 
   public void mergeWith(ImageCanvas another) {
@@ -103,6 +174,24 @@ public class ImageCanvas extends Canvas {
     getOrCreateGrahics(false).drawImage(another.getImage(), offset.x, offset.y, null);
   }
 
+  /**
+   * Makes this canvas draw shapes at exactly the same pixels as a larger
+   * image that this canvas is a tile of. Otherwise, the round-off errors in
+   * the MBR of the tile might shift shapes by one pixel at some tiles.
+   * @param imageMBR - the MBR of the larger image
+   * @param imageWidth - width of the larger image in pixels
+   * @param imageHeight - height of the larger image in pixels
+   * @param tileX - the column of the top-left pixel of this tile in the image
+   * @param tileY - the row of the top-left pixel of this tile in the image
+   */
+  public void alignToImage(Rectangle imageMBR, int imageWidth, int imageHeight,
+      int tileX, int tileY) {
+    xscale = imageWidth / imageMBR.getWidth();
+    yscale = imageHeight / imageMBR.getHeight();
+    translateX = (int)(-imageMBR.x1 * xscale) - tileX;
+    translateY = (int)(-imageMBR.y1 * yscale) - tileY;
+  }
+
   public BufferedImage getImage() {
     if (graphics != null) {
       graphics.dispose();
@@ -121,7 +210,7 @@ public class ImageCanvas extends Canvas {
       }
       if (translate) {
         // Translate the graphics to adjust its origin with the input origin
-        graphics.translate((int)(-getInputMBR().x1 * xscale), (int)(-getInputMBR().y1 * yscale));
+        graphics.translate(translateX, translateY);
         graphics.setColor(color);
       }
     }
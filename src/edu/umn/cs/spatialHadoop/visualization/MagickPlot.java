@@ -131,6 +131,11 @@ public class MagickPlot {
       return ImageCanvas.class;
     }
 
+    @Override
+    public boolean isTileable() {
+      return true;
+    }
+
     @Override
     public void merge(Canvas finalLayer, Canvas intermediateLayer) {
       ((ImageCanvas) finalLayer).mergeWith((ImageCanvas) intermediateLayer);
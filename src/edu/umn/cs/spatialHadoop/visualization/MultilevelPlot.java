@@ -10,15 +10,21 @@ package edu.umn.cs.spatialHadoop.visualization;
 
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.ImageIO;
 
@@ -26,8 +32,11 @@ import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapred.JobClient;
 import org.apache.hadoop.mapred.JobConf;
@@ -38,7 +47,9 @@ import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.NullOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 import org.apache.hadoop.util.LineReader;
 
 import edu.umn.cs.spatialHadoop.OperationsParams;
@@ -46,16 +57,21 @@ import edu.umn.cs.spatialHadoop.core.GridInfo;
 import edu.umn.cs.spatialHadoop.core.Rectangle;
 import edu.umn.cs.spatialHadoop.core.Shape;
 import edu.umn.cs.spatialHadoop.core.SpatialSite;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
 
 /**
- * Generates a multilevel image
+ * Generates a multilevel image.
+ *
+ * In the adaptive mode (-adaptive), a tile that overlaps more than
+ * threshold:&lt;n&gt; shapes is considered dense and is generated by
+ * downsampling its four children rather than plotting the input shapes.
+ * Shapes are not sent to the reducers of sub-pyramids in which all the tiles
+ * they overlap are dense, which keeps the shuffle size small for deep
+ * pyramids. Empty tiles are never generated.
  * @author Ahmed Eldawy
  *
  */
@@ -69,6 +85,280 @@ public class MultilevelPlot {
 
   /**The maximum level on which flat partitioning can be used*/
   private static final String FlatPartitioningLevelThreshold = "MultilevelPlot.FlatPartitioningLevelThreshold";
+
+  /**Minimum number of shapes in a tile to be considered dense in the adaptive pyramid*/
+  private static final String DenseTileThreshold = "threshold";
+
+  /**The deepest level that can contain dense tiles in the adaptive pyramid*/
+  private static final String MaxDenseLevel = "MultilevelPlot.MaxDenseLevel";
+
+  /**Path to the file that lists the dense tiles in the adaptive pyramid*/
+  private static final String DenseTiles = "MultilevelPlot.DenseTiles";
+
+  /**Output directory of the pyramid in which dense tiles are downsampled*/
+  private static final String DownsampleOutPath = "MultilevelPlot.DownsampleOutPath";
+
+  /**The level of the subtrees of dense tiles downsampled by each map task*/
+  private static final String DownsampleLevel = "MultilevelPlot.DownsampleLevel";
+
+  /**
+   * Reads the list of dense tiles stored in the path set in the configuration
+   * @param conf
+   * @return the set of dense tiles or null if the adaptive pyramid is not used
+   * @throws IOException
+   */
+  static Set<TileIndex> readDenseTiles(Configuration conf) throws IOException {
+    String denseTilesStr = conf.get(DenseTiles);
+    if (denseTilesStr == null)
+      return null;
+    Path denseTilesPath = new Path(denseTilesStr);
+    FileSystem fs = denseTilesPath.getFileSystem(conf);
+    Set<TileIndex> denseTiles = new HashSet<TileIndex>();
+    Text line = new Text();
+    for (FileStatus file : fs.listStatus(denseTilesPath, SpatialSite.NonHiddenFileFilter)) {
+      LineReader reader = new LineReader(fs.open(file.getPath()));
+      while (reader.readLine(line) > 0) {
+        String[] parts = line.toString().split(",");
+        denseTiles.add(new TileIndex(Integer.parseInt(parts[0]),
+            Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+      }
+      reader.close();
+    }
+    return denseTiles;
+  }
+
+  /**
+   * Counts the number of shapes that overlap each tile in the given range of
+   * levels. Counts are accumulated in memory for the whole input split and
+   * written only once at the end.
+   */
+  public static class DenseTileMap extends
+      Mapper<Rectangle, Iterable<? extends Shape>, TileIndex, LongWritable> {
+    /**Minimum and maximum levels to count (inclusive and zero-based)*/
+    private int minLevel, maxLevel;
+
+    /**The grid at the bottom level (i.e., maxLevel)*/
+    private GridInfo bottomGrid;
+
+    /**Buffer size that should be taken in the maximum level*/
+    private double bufferSizeXMaxLevel, bufferSizeYMaxLevel;
+
+    /**Number of shapes in each tile*/
+    private Map<TileIndex, LongWritable> counts = new HashMap<TileIndex, LongWritable>();
+
+    @Override
+    protected void setup(Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      String[] strLevels = conf.get("levels", "7").split("\\.\\.");
+      minLevel = Integer.parseInt(strLevels[0]);
+      maxLevel = Integer.parseInt(strLevels[1]);
+      Rectangle inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
+      this.bottomGrid = new GridInfo(inputMBR.x1, inputMBR.y1, inputMBR.x2, inputMBR.y2);
+      this.bottomGrid.rows = bottomGrid.columns = 1 << maxLevel;
+      // Count a shape in every tile it is drawn in as FlatPartitionMap does
+      int bufferSize = Plotter.getPlotter(conf).getBufferSize();
+      this.bufferSizeXMaxLevel = bufferSize * bottomGrid.getAverageCellWidth()
+          / conf.getInt("tilewidth", 256);
+      this.bufferSizeYMaxLevel = bufferSize * bottomGrid.getAverageCellHeight()
+          / conf.getInt("tileheight", 256);
+    }
+
+    @Override
+    protected void map(Rectangle partition, Iterable<? extends Shape> shapes,
+        Context context) throws IOException, InterruptedException {
+      TileIndex key = new TileIndex();
+      int i = 0;
+      for (Shape shape : shapes) {
+        Rectangle shapeMBR = shape.getMBR();
+        if (shapeMBR == null)
+          continue;
+        java.awt.Rectangle overlappingCells =
+            bottomGrid.getOverlappingCells(shapeMBR.buffer(bufferSizeXMaxLevel, bufferSizeYMaxLevel));
+        // Iterate over levels from bottom up
+        for (key.level = maxLevel; key.level >= minLevel; key.level--) {
+          for (key.x = overlappingCells.x; key.x < overlappingCells.x + overlappingCells.width; key.x++) {
+            for (key.y = overlappingCells.y; key.y < overlappingCells.y + overlappingCells.height; key.y++) {
+              LongWritable count = counts.get(key);
+              if (count == null)
+                counts.put(key.clone(), new LongWritable(1));
+              else
+                count.set(count.get() + 1);
+            }
+          }
+          // Update overlappingCells for the higher level
+          int updatedX1 = overlappingCells.x / 2;
+          int updatedY1 = overlappingCells.y / 2;
+          int updatedX2 = (overlappingCells.x + overlappingCells.width - 1) / 2;
+          int updatedY2 = (overlappingCells.y + overlappingCells.height - 1) / 2;
+          overlappingCells.x = updatedX1;
+          overlappingCells.y = updatedY1;
+          overlappingCells.width = updatedX2 - updatedX1 + 1;
+          overlappingCells.height = updatedY2 - updatedY1 + 1;
+        }
+        if (((++i) & 0xff) == 0)
+          context.progress();
+      }
+    }
+
+    @Override
+    protected void cleanup(Context context)
+        throws IOException, InterruptedException {
+      for (Map.Entry<TileIndex, LongWritable> entry : counts.entrySet())
+        context.write(entry.getKey(), entry.getValue());
+      counts.clear();
+      super.cleanup(context);
+    }
+  }
+
+  /**
+   * Sums up the counts of each tile and writes the tiles that have more
+   * shapes than the dense threshold.
+   */
+  public static class DenseTileReduce extends
+      Reducer<TileIndex, LongWritable, Text, NullWritable> {
+    /**Minimum number of shapes in a dense tile*/
+    private long threshold;
+
+    @Override
+    protected void setup(Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      this.threshold = context.getConfiguration().getLong(DenseTileThreshold, 1000000);
+    }
+
+    @Override
+    protected void reduce(TileIndex tileID, Iterable<LongWritable> counts,
+        Context context) throws IOException, InterruptedException {
+      long totalCount = 0;
+      for (LongWritable count : counts)
+        totalCount += count.get();
+      if (totalCount > threshold)
+        context.write(new Text(tileID.level+","+tileID.x+","+tileID.y), NullWritable.get());
+    }
+  }
+
+  /**
+   * Generates the image of a dense tile by downsampling the images of its
+   * four children. Missing children are empty and are left transparent.
+   */
+  static class DenseTileDownsampler {
+    /**The output directory of the pyramid*/
+    private final Path outPath;
+    /**The file system of the output directory*/
+    private final FileSystem outFS;
+    /**The deepest level stored in the flat directory*/
+    private final int maxLevelWithFlatPartitioning;
+    /**Whether tiles are stored by their vertically flipped index*/
+    private final boolean vflip;
+    /**Dimensions of each tile in pixels*/
+    private final int tileWidth, tileHeight;
+
+    DenseTileDownsampler(Path outPath, Configuration conf) throws IOException {
+      this.outPath = outPath;
+      this.outFS = outPath.getFileSystem(conf);
+      this.maxLevelWithFlatPartitioning = conf.getInt(FlatPartitioningLevelThreshold, 4);
+      this.vflip = conf.getBoolean("vflip", true);
+      this.tileWidth = conf.getInt("tilewidth", 256);
+      this.tileHeight = conf.getInt("tileheight", 256);
+    }
+
+    /**Returns the path of the image of the tile with the given file name*/
+    private Path getTilePath(int level, int x, int fileY) {
+      Path dir = new Path(outPath, level <= maxLevelWithFlatPartitioning ? "flat" : "pyramid");
+      return new Path(dir, new TileIndex(level, x, fileY).getImageFileName()
+          + PyramidOutputFormat2.getTileExtension(dir));
+    }
+
+    /**
+     * Writes the image of the given tile. The images of its children must
+     * be already generated.
+     * @param tile
+     * @throws IOException
+     */
+    void downsample(TileIndex tile) throws IOException {
+      // Tiles are stored by their flipped index if the image is flipped.
+      // The children of a tile are still the four tiles at (2x, 2y) to
+      // (2x+1, 2y+1) in the flipped index.
+      int fileY = vflip ? ((1 << tile.level) - 1) - tile.y : tile.y;
+      BufferedImage image = new BufferedImage(tileWidth, tileHeight,
+          BufferedImage.TYPE_INT_ARGB);
+      Graphics2D g = image.createGraphics();
+      g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+          RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      for (int dx = 0; dx < 2; dx++) {
+        for (int dy = 0; dy < 2; dy++) {
+          Path childPath = getTilePath(tile.level + 1, tile.x * 2 + dx, fileY * 2 + dy);
+          if (!outFS.exists(childPath))
+            continue;
+          InputStream in = outFS.open(childPath);
+          BufferedImage childImage = ImageIO.read(in);
+          in.close();
+          if (childImage != null)
+            g.drawImage(childImage, dx * tileWidth / 2, dy * tileHeight / 2,
+                tileWidth / 2, tileHeight / 2, null);
+        }
+      }
+      g.dispose();
+      OutputStream out = outFS.create(getTilePath(tile.level, tile.x, fileY));
+      ImageIO.write(image, "png", out);
+      out.close();
+    }
+  }
+
+  /**
+   * Downsamples the dense tiles of whole subtrees of the pyramid. Each input
+   * line is the root of one subtree at the downsample level. All the dense
+   * tiles in that subtree, including its root, are downsampled from bottom up.
+   */
+  public static class DownsampleMap extends
+      Mapper<LongWritable, Text, NullWritable, NullWritable> {
+    /**The dense tiles at or below the downsample level grouped by their
+     * ancestor at that level*/
+    private Map<TileIndex, Vector<TileIndex>> subtrees;
+
+    private DenseTileDownsampler downsampler;
+
+    @Override
+    protected void setup(Context context)
+        throws IOException, InterruptedException {
+      super.setup(context);
+      Configuration conf = context.getConfiguration();
+      this.downsampler = new DenseTileDownsampler(
+          new Path(conf.get(DownsampleOutPath)), conf);
+      int rootLevel = conf.getInt(DownsampleLevel, 0);
+      this.subtrees = new HashMap<TileIndex, Vector<TileIndex>>();
+      for (TileIndex tile : readDenseTiles(conf)) {
+        if (tile.level < rootLevel)
+          continue;
+        int shift = tile.level - rootLevel;
+        TileIndex root = new TileIndex(rootLevel, tile.x >> shift, tile.y >> shift);
+        Vector<TileIndex> subtree = subtrees.get(root);
+        if (subtree == null)
+          subtrees.put(root, subtree = new Vector<TileIndex>());
+        subtree.add(tile);
+      }
+    }
+
+    @Override
+    protected void map(LongWritable key, Text value, Context context)
+        throws IOException, InterruptedException {
+      String[] parts = value.toString().split(",");
+      TileIndex root = new TileIndex(Integer.parseInt(parts[0]),
+          Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+      Vector<TileIndex> subtree = subtrees.get(root);
+      if (subtree == null)
+        return;
+      TileIndex[] tiles = subtree.toArray(new TileIndex[subtree.size()]);
+      Arrays.sort(tiles);
+      // Deeper levels come last in the sort order
+      for (int i = tiles.length - 1; i >= 0; i--) {
+        downsampler.downsample(tiles[i]);
+        context.progress();
+      }
+    }
+  }
   
   public static class FlatPartitionMap extends
       Mapper<Rectangle, Iterable<? extends Shape>, TileIndex, Canvas> {
@@ -98,6 +388,9 @@ public class MultilevelPlot {
     /**Whether the configured plotter supports smooth or not*/
     private boolean smooth;
 
+    /**Tiles generated by downsampling their children or null if none*/
+    private Set<TileIndex> denseTiles;
+
     @Override
     protected void setup(Context context)
         throws IOException, InterruptedException {
@@ -117,7 +410,12 @@ public class MultilevelPlot {
       this.tileWidth = conf.getInt("tilewidth", 256);
       this.tileHeight = conf.getInt("tileheight", 256);
       this.plotter = Plotter.getPlotter(conf);
+      this.bufferSizeXMaxLevel = plotter.getBufferSize()
+          * bottomGrid.getAverageCellWidth() / tileWidth;
+      this.bufferSizeYMaxLevel = plotter.getBufferSize()
+          * bottomGrid.getAverageCellHeight() / tileHeight;
       this.smooth = plotter.isSmooth();
+      this.denseTiles = readDenseTiles(conf);
     }
     
     @Override
@@ -138,6 +436,8 @@ public class MultilevelPlot {
         for (key.level = maxLevel; key.level >= minLevel; key.level--) {
           for (key.x = overlappingCells.x; key.x < overlappingCells.x + overlappingCells.width; key.x++) {
             for (key.y = overlappingCells.y; key.y < overlappingCells.y + overlappingCells.height; key.y++) {
+              if (denseTiles != null && denseTiles.contains(key))
+                continue;
               Canvas canvasLayer = canvasLayers.get(key);
               if (canvasLayer == null) {
                 Rectangle tileMBR = new Rectangle();
@@ -246,6 +546,8 @@ public class MultilevelPlot {
     private Plotter plotter;
     /**Maximum levels to generate per reducer*/
     private int maxLevelsPerReducer;
+    /**Tiles generated by downsampling their children or null if none*/
+    private Set<TileIndex> denseTiles;
     
     @Override
     protected void setup(Context context)
@@ -269,6 +571,42 @@ public class MultilevelPlot {
       int tileWidth = conf.getInt("tilewidth", 256);
       int tileHeight = conf.getInt("tileheight", 256);
       this.plotter = Plotter.getPlotter(conf);
+      this.denseTiles = readDenseTiles(conf);
+    }
+
+    /**
+     * Tests whether all the tiles that overlap the given shape in the
+     * sub-pyramid rooted at the given tile are dense. In this case, the shape
+     * is not needed to generate any tile in this sub-pyramid. It is enough to
+     * test the tiles in the deepest level of the sub-pyramid as a tile
+     * cannot be sparse if it has a dense child.
+     * @param root - the root of the sub-pyramid
+     * @param shapeMBR - the MBR of the shape
+     * @return
+     */
+    private boolean isDense(TileIndex root, Rectangle shapeMBR) {
+      if (!denseTiles.contains(root))
+        return false;
+      int deepestLevel = Math.min(root.level + maxLevelsPerReducer - 1, maxLevel);
+      GridInfo subGrid = new GridInfo();
+      int gridSize = 1 << root.level;
+      subGrid.x1 = (inputMBR.x1 * (gridSize - root.x) + inputMBR.x2 * root.x) / gridSize;
+      subGrid.x2 = (inputMBR.x1 * (gridSize - (root.x + 1)) + inputMBR.x2 * (root.x+1)) / gridSize;
+      subGrid.y1 = (inputMBR.y1 * (gridSize - root.y) + inputMBR.y2 * root.y) / gridSize;
+      subGrid.y2 = (inputMBR.y1 * (gridSize - (root.y + 1)) + inputMBR.y2 * (root.y+1)) / gridSize;
+      subGrid.columns = subGrid.rows = 1 << (deepestLevel - root.level);
+      java.awt.Rectangle overlappingCells = subGrid.getOverlappingCells(shapeMBR);
+      TileIndex tile = new TileIndex();
+      tile.level = deepestLevel;
+      for (int x = overlappingCells.x; x < overlappingCells.x + overlappingCells.width; x++) {
+        for (int y = overlappingCells.y; y < overlappingCells.y + overlappingCells.height; y++) {
+          tile.x = (root.x << (deepestLevel - root.level)) + x;
+          tile.y = (root.y << (deepestLevel - root.level)) + y;
+          if (!denseTiles.contains(tile))
+            return false;
+        }
+      }
+      return true;
     }
     
     @Override
@@ -285,7 +623,8 @@ public class MultilevelPlot {
         for (outKey.level = maxLevelToReplicate; outKey.level >= minLevel; outKey.level -= maxLevelsPerReducer) {
           for (outKey.x = overlappingCells.x; outKey.x < overlappingCells.x + overlappingCells.width; outKey.x++) {
             for (outKey.y = overlappingCells.y; outKey.y < overlappingCells.y + overlappingCells.height; outKey.y++) {
-              context.write(outKey, shape);
+              if (denseTiles == null || !isDense(outKey, shapeMBR))
+                context.write(outKey, shape);
             }
           }
           // Shrink overlapping cells to match the upper level
@@ -321,6 +660,8 @@ public class MultilevelPlot {
     private int tileWidth, tileHeight;
     /**Whether the configured plotter defines a smooth function or not*/
     private boolean smooth;
+    /**Tiles generated by downsampling their children or null if none*/
+    private Set<TileIndex> denseTiles;
     
     @Override
     protected void setup(Context context)
@@ -347,6 +688,7 @@ public class MultilevelPlot {
       this.smooth = plotter.isSmooth();
       this.tileWidth = conf.getInt("tilewidth", 256);
       this.tileHeight = conf.getInt("tileheight", 256);
+      this.denseTiles = readDenseTiles(conf);
     }
     
     @Override
@@ -389,6 +731,8 @@ public class MultilevelPlot {
         for (key.level = level2; key.level >= level1; key.level--) {
           for (key.x = overlappingCells.x; key.x < overlappingCells.x + overlappingCells.width; key.x++) {
             for (key.y = overlappingCells.y; key.y < overlappingCells.y + overlappingCells.height; key.y++) {
+              if (denseTiles != null && denseTiles.contains(key))
+                continue;
               Canvas canvasLayer = canvasLayers.get(key);
               if (canvasLayer == null) {
                 Rectangle tileMBR = new Rectangle();
@@ -426,6 +770,209 @@ public class MultilevelPlot {
     }
   }
 
+  /**
+   * Returns the MBR covered by the pyramid which is either given by the user,
+   * the viewport given in rect:&lt;x1,y1,x2,y2&gt;, or computed from the
+   * input files. If a viewport is given, only the partitions and records that
+   * overlap it are read by {@link SpatialInputFormat3}.
+   * @param inFiles
+   * @param params
+   * @return
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Rectangle getPyramidMBR(Path[] inFiles, OperationsParams params)
+      throws IOException, InterruptedException {
+    Rectangle inputMBR = (Rectangle) params.getShape("mbr");
+    if (inputMBR == null)
+      inputMBR = (Rectangle) params.getShape(SpatialInputFormat3.InputQueryRange);
+    if (inputMBR == null)
+      inputMBR = FileMBR.fileMBR(inFiles, params);
+    else
+      inputMBR = inputMBR.getMBR();
+    
+    // Adjust width and height if aspect ratio is to be kept
+    if (params.getBoolean("keepratio", true)) {
+      // Expand input file to a rectangle for compatibility with the pyramid
+      // structure
+      if (inputMBR.getWidth() > inputMBR.getHeight()) {
+        inputMBR.y1 -= (inputMBR.getWidth() - inputMBR.getHeight()) / 2;
+        inputMBR.y2 = inputMBR.y1 + inputMBR.getWidth();
+      } else {
+        inputMBR.x1 -= (inputMBR.getHeight() - inputMBR.getWidth()) / 2;
+        inputMBR.x2 = inputMBR.x1 + inputMBR.getHeight();
+      }
+    }
+    return inputMBR;
+  }
+
+  /**
+   * Expands the viewport given in rect:&lt;x1,y1,x2,y2&gt;, if any, by the
+   * buffer size of the plotter so that shapes right outside the viewport that
+   * affect its tiles are read as well. The buffer is measured in the pixels
+   * of the coarsest level in the pyramid as they are the largest ones.
+   * @param conf - the configuration used to read the input
+   * @param pyramidMBR - the MBR covered by the pyramid
+   * @param plotter - a configured plotter
+   */
+  private static void setQueryRange(Configuration conf, Rectangle pyramidMBR,
+      Plotter plotter) {
+    Shape viewport = OperationsParams.getShape(conf, SpatialInputFormat3.InputQueryRange);
+    if (viewport == null)
+      return;
+    String[] strLevels = conf.get("levels", "7").split("\\.\\.");
+    int minLevel = strLevels.length == 1 ? 0 : Integer.parseInt(strLevels[0]);
+    int tileWidth = conf.getInt("tilewidth", 256);
+    int tileHeight = conf.getInt("tileheight", 256);
+    OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange,
+        SingleLevelPlot.getQueryRange(viewport.getMBR(), pyramidMBR, plotter,
+            tileWidth << minLevel, tileHeight << minLevel));
+  }
+
+  /**
+   * Runs a MapReduce job that finds all the dense tiles in the given range of
+   * levels, i.e., tiles that overlap more shapes than the dense threshold.
+   * The dense tiles are written to the given path, one tile per line.
+   * @param inFiles
+   * @param denseTilesPath
+   * @param minLevel
+   * @param maxLevel
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  private static void findDenseTiles(Path[] inFiles, Path denseTilesPath,
+      int minLevel, int maxLevel, Class<? extends Plotter> plotterClass,
+      OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    Job job = Job.getInstance(params, "DenseTiles");
+    job.setJarByClass(MultilevelPlot.class);
+    Configuration conf = job.getConfiguration();
+    conf.set("levels", minLevel+".."+maxLevel);
+    // The plotter decides how far a shape is drawn beyond its MBR
+    Plotter.setPlotter(conf, plotterClass);
+    OperationsParams.setShape(conf, InputMBR, getPyramidMBR(inFiles, params));
+
+    job.setInputFormatClass(SpatialInputFormat3.class);
+    SpatialInputFormat3.setInputPaths(job, inFiles);
+    job.setMapperClass(DenseTileMap.class);
+    job.setMapOutputKeyClass(TileIndex.class);
+    job.setMapOutputValueClass(LongWritable.class);
+    job.setReducerClass(DenseTileReduce.class);
+    job.setOutputFormatClass(TextOutputFormat.class);
+    TextOutputFormat.setOutputPath(job, denseTilesPath);
+    job.setNumReduceTasks(Math.max(1, new JobClient(new JobConf())
+        .getClusterStatus().getMaxReduceTasks() * 7 / 8));
+    conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, Runtime.getRuntime().availableProcessors());
+
+    if (!job.waitForCompletion(false))
+      throw new RuntimeException("Error finding dense tiles");
+  }
+
+  /**
+   * Generates the images of all dense tiles by downsampling the images of
+   * their four children. Levels are processed from bottom up so that the
+   * children of a dense tile are always generated before it.
+   * The pyramid is cut at the shallowest level that has enough dense tiles to
+   * keep all map slots busy. A map-only job downsamples the subtrees below
+   * that level in parallel. The few dense tiles above it are then
+   * downsampled in this process one level at a time.
+   * @param outPath - the output directory of the pyramid
+   * @param denseTiles - all dense tiles in the pyramid
+   * @param params
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws ClassNotFoundException
+   */
+  private static void downsampleDenseTiles(Path outPath,
+      Set<TileIndex> denseTiles, OperationsParams params)
+      throws IOException, InterruptedException, ClassNotFoundException {
+    final TileIndex[] tiles = denseTiles.toArray(new TileIndex[denseTiles.size()]);
+    Arrays.sort(tiles);
+    if (tiles.length == 0)
+      return;
+    int numMapSlots = Math.max(1, new JobClient(new JobConf())
+        .getClusterStatus().getMaxMapTasks());
+    // Find the cut level. If no level has enough tiles, use the largest one
+    int cutStart = 0, cutEnd = 0;
+    for (int levelStart = 0, levelEnd; levelStart < tiles.length; levelStart = levelEnd) {
+      levelEnd = levelStart;
+      while (levelEnd < tiles.length && tiles[levelEnd].level == tiles[levelStart].level)
+        levelEnd++;
+      if (levelEnd - levelStart > cutEnd - cutStart) {
+        cutStart = levelStart;
+        cutEnd = levelEnd;
+      }
+      if (cutEnd - cutStart >= numMapSlots)
+        break;
+    }
+    int cutLevel = tiles[cutStart].level;
+
+    // Every dense tile below the cut level is downsampled with its ancestor
+    // at the cut level, even if that ancestor is not dense itself
+    Set<TileIndex> roots = new HashSet<TileIndex>();
+    for (int i = cutStart; i < tiles.length; i++) {
+      int shift = tiles[i].level - cutLevel;
+      roots.add(new TileIndex(cutLevel, tiles[i].x >> shift, tiles[i].y >> shift));
+    }
+    FileSystem outFS = outPath.getFileSystem(params);
+    // Input formats skip hidden paths so the file itself is the input
+    Path rootsDir = new Path(outPath, "_downsample");
+    Path rootsFile = new Path(rootsDir, "roots");
+    PrintStream ps = new PrintStream(outFS.create(rootsFile));
+    for (TileIndex root : roots)
+      ps.println(root.level+","+root.x+","+root.y);
+    ps.close();
+
+    try {
+      Job job = Job.getInstance(params, "DownsampleDenseTiles");
+      job.setJarByClass(MultilevelPlot.class);
+      Configuration conf = job.getConfiguration();
+      conf.set(DownsampleOutPath, outPath.toString());
+      conf.setInt(DownsampleLevel, cutLevel);
+      // Tiles are written directly by the map tasks
+      conf.setBoolean("mapred.map.tasks.speculative.execution", false);
+      conf.setBoolean("mapreduce.map.speculative", false);
+      job.setInputFormatClass(NLineInputFormat.class);
+      NLineInputFormat.setInputPaths(job, rootsFile);
+      NLineInputFormat.setNumLinesPerSplit(job,
+          (roots.size() + numMapSlots - 1) / numMapSlots);
+      job.setMapperClass(DownsampleMap.class);
+      job.setNumReduceTasks(0);
+      job.setOutputFormatClass(NullOutputFormat.class);
+      conf.setInt(LocalJobRunner.LOCAL_MAX_MAPS, Runtime.getRuntime().availableProcessors());
+      if (!job.waitForCompletion(false))
+        throw new RuntimeException("Error downsampling dense tiles");
+    } finally {
+      outFS.delete(rootsDir, true);
+    }
+
+    // Downsample the remaining tiles above the cut level
+    final DenseTileDownsampler downsampler = new DenseTileDownsampler(outPath, params);
+    int parallelism = params.getInt("parallel",
+        Runtime.getRuntime().availableProcessors());
+    int levelEnd = cutStart;
+    while (levelEnd > 0) {
+      int levelStart = levelEnd;
+      while (levelStart > 0 && tiles[levelStart - 1].level == tiles[levelEnd - 1].level)
+        levelStart--;
+      Parallel.forEach(levelStart, levelEnd, new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          try {
+            for (int i = i1; i < i2; i++)
+              downsampler.downsample(tiles[i]);
+            return null;
+          } catch (IOException e) {
+            throw new RuntimeException("Error downsampling tiles", e);
+          }
+        }
+      }, parallelism);
+      levelEnd = levelStart;
+    }
+  }
+
   private static Job plotMapReduce(Path[] inFiles, Path outFile,
       Class<? extends Plotter> plotterClass, OperationsParams params)
       throws IOException, InterruptedException, ClassNotFoundException {
@@ -438,29 +985,15 @@ public class MultilevelPlot {
       throw new RuntimeException("Error creating rastierizer", e);
     }
     
-    Job job = new Job(params, "MultilevelPlot");
+    Job job = Job.getInstance(params, "MultilevelPlot");
     job.setJarByClass(SingleLevelPlot.class);
     // Set plotter
     Configuration conf = job.getConfiguration();
     Plotter.setPlotter(conf, plotterClass);
     // Set input file MBR
-    Rectangle inputMBR = (Rectangle) params.getShape("mbr");
-    if (inputMBR == null)
-      inputMBR = FileMBR.fileMBR(inFiles, params);
-    
-    // Adjust width and height if aspect ratio is to be kept
-    if (params.getBoolean("keepratio", true)) {
-      // Expand input file to a rectangle for compatibility with the pyramid
-      // structure
-      if (inputMBR.getWidth() > inputMBR.getHeight()) {
-        inputMBR.y1 -= (inputMBR.getWidth() - inputMBR.getHeight()) / 2;
-        inputMBR.y2 = inputMBR.y1 + inputMBR.getWidth();
-      } else {
-        inputMBR.x1 -= (inputMBR.getHeight() - inputMBR.getWidth() / 2);
-        inputMBR.x2 = inputMBR.x1 + inputMBR.getHeight();
-      }
-    }
+    Rectangle inputMBR = getPyramidMBR(inFiles, params);
     OperationsParams.setShape(conf, InputMBR, inputMBR);
+    setQueryRange(conf, inputMBR, Plotter.getPlotter(conf));
     
     // Set input and output
     job.setInputFormatClass(SpatialInputFormat3.class);
@@ -512,25 +1045,17 @@ public class MultilevelPlot {
     
     OperationsParams mbrParams = new OperationsParams(params);
     mbrParams.setBoolean("background", false);
-    final Rectangle inputMBR = params.get("mbr") != null ?
-        params.getShape("mbr").getMBR() : FileMBR.fileMBR(inFiles, mbrParams);
+    final Rectangle inputMBR = getPyramidMBR(inFiles, mbrParams);
     OperationsParams.setShape(params, InputMBR, inputMBR);
+    // The input is read with a copy of the parameters to keep the viewport
+    // of the caller as is
+    final OperationsParams readParams = new OperationsParams(params);
+    setQueryRange(readParams, inputMBR,
+        SingleLevelPlot.createPlotter(plotterClass, params));
 
-    // Retrieve desired output image size and keep aspect ratio if needed
+    // Retrieve desired output image size
     int tileWidth = params.getInt("tilewidth", 256);
     int tileHeight = params.getInt("tileheight", 256);
-    // Adjust width and height if aspect ratio is to be kept
-    if (params.getBoolean("keepratio", true)) {
-      // Expand input file to a rectangle for compatibility with the pyramid
-      // structure
-      if (inputMBR.getWidth() > inputMBR.getHeight()) {
-        inputMBR.y1 -= (inputMBR.getWidth() - inputMBR.getHeight()) / 2;
-        inputMBR.y2 = inputMBR.y1 + inputMBR.getWidth();
-      } else {
-        inputMBR.x1 -= (inputMBR.getHeight() - inputMBR.getWidth() / 2);
-        inputMBR.x2 = inputMBR.x1 + inputMBR.getHeight();
-      }
-    }
     
     String outFName = outPath.getName();
     int extensionStart = outFName.lastIndexOf('.');
@@ -546,7 +1071,7 @@ public class MultilevelPlot {
       if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
         if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
           // Use the normal input format splitter to add this non-hidden file
-          Job job = Job.getInstance(params);
+          Job job = Job.getInstance(readParams);
           SpatialInputFormat3.addInputPath(job, inFile);
           splits.addAll(inputFormat.getSplits(job));
         } else {
@@ -558,7 +1083,7 @@ public class MultilevelPlot {
               inFs.getFileStatus(inFile).getLen(), new String[0]));
         }
       } else {
-        Job job = Job.getInstance(params);
+        Job job = Job.getInstance(readParams);
         SpatialInputFormat3.addInputPath(job, inFile);
         splits.addAll(inputFormat.getSplits(job));
       }
@@ -578,71 +1103,87 @@ public class MultilevelPlot {
         maxLevel = Integer.parseInt(strLevels[1]);
       }
       
-      GridInfo bottomGrid = new GridInfo(inputMBR.x1, inputMBR.y1, inputMBR.x2, inputMBR.y2);
+      final GridInfo bottomGrid = new GridInfo(inputMBR.x1, inputMBR.y1, inputMBR.x2, inputMBR.y2);
       bottomGrid.rows = bottomGrid.columns = 1 << maxLevel;
+      final int fminLevel = minLevel, fmaxLevel = maxLevel;
+      final int ftileWidth = tileWidth, ftileHeight = tileHeight;
       
-      TileIndex key = new TileIndex();
-      
-      // All canvases in the pyramid, one per tile
-      Map<TileIndex, Canvas> canvases = new HashMap<TileIndex, Canvas>();
-      for (InputSplit split : splits) {
-        FileSplit fsplit = (FileSplit) split;
-        RecordReader<Rectangle, Iterable<Shape>> reader =
-            inputFormat.createRecordReader(fsplit, null);
-        if (reader instanceof SpatialRecordReader3) {
-          ((SpatialRecordReader3)reader).initialize(fsplit, params);
-        } else if (reader instanceof RTreeRecordReader3) {
-          ((RTreeRecordReader3)reader).initialize(fsplit, params);
-        } else if (reader instanceof HDFRecordReader) {
-          ((HDFRecordReader)reader).initialize(fsplit, params);
-        } else {
-          throw new RuntimeException("Unknown record reader");
-        }
-
-        while (reader.nextKeyValue()) {
-          Rectangle partition = reader.getCurrentKey();
-          if (!partition.isValid())
-            partition.set(inputMBR);
+      // All canvases in the pyramid, one per tile. The canvases are shared by
+      // all threads which plot each shape while holding the lock of the tile.
+      final ConcurrentHashMap<TileIndex, Canvas> canvases =
+          new ConcurrentHashMap<TileIndex, Canvas>();
+      final InputSplit[] fsplits = splits.toArray(new InputSplit[splits.size()]);
+      int parallelism = params.getInt("parallel",
+          Runtime.getRuntime().availableProcessors());
+      Parallel.forEach(fsplits.length, new RunnableRange<Object>() {
+        @Override
+        public Object run(int i1, int i2) {
+          try {
+            Plotter plotter = plotterClass.newInstance();
+            plotter.configure(params);
+            TileIndex key = new TileIndex();
+            for (int i = i1; i < i2; i++) {
+              FileSplit fsplit = (FileSplit) fsplits[i];
+              RecordReader<Rectangle, Iterable<Shape>> reader =
+                  LocalSplitRunner.createRecordReader(inputFormat, fsplit, readParams);
 
-          Iterable<Shape> shapes = reader.getCurrentValue();
-          
-          for (Shape shape : shapes) {
-            Rectangle shapeMBR = shape.getMBR();
-            if (shapeMBR == null)
-              continue;
-            java.awt.Rectangle overlappingCells = bottomGrid.getOverlappingCells(shapeMBR);
-            // Iterate over levels from bottom up
-            for (key.level = maxLevel; key.level >= minLevel; key.level--) {
-              for (key.x = overlappingCells.x; key.x < overlappingCells.x + overlappingCells.width; key.x++) {
-                for (key.y = overlappingCells.y; key.y < overlappingCells.y + overlappingCells.height; key.y++) {
-                  Canvas canvas = canvases.get(key);
-                  if (canvas == null) {
-                    Rectangle tileMBR = new Rectangle();
-                    int gridSize = 1 << key.level;
-                    tileMBR.x1 = (inputMBR.x1 * (gridSize - key.x) + inputMBR.x2 * key.x) / gridSize;
-                    tileMBR.x2 = (inputMBR.x1 * (gridSize - (key.x + 1)) + inputMBR.x2 * (key.x+1)) / gridSize;
-                    tileMBR.y1 = (inputMBR.y1 * (gridSize - key.y) + inputMBR.y2 * key.y) / gridSize;
-                    tileMBR.y2 = (inputMBR.y1 * (gridSize - (key.y + 1)) + inputMBR.y2 * (key.y+1)) / gridSize;
-                    canvas = plotter.createCanvas(tileWidth, tileHeight, tileMBR);
-                    canvases.put(key.clone(), canvas);
+              while (reader.nextKeyValue()) {
+                Iterable<Shape> shapes = reader.getCurrentValue();
+                
+                for (Shape shape : shapes) {
+                  Rectangle shapeMBR = shape.getMBR();
+                  if (shapeMBR == null)
+                    continue;
+                  java.awt.Rectangle overlappingCells = bottomGrid.getOverlappingCells(shapeMBR);
+                  // Iterate over levels from bottom up
+                  for (key.level = fmaxLevel; key.level >= fminLevel; key.level--) {
+                    for (key.x = overlappingCells.x; key.x < overlappingCells.x + overlappingCells.width; key.x++) {
+                      for (key.y = overlappingCells.y; key.y < overlappingCells.y + overlappingCells.height; key.y++) {
+                        Canvas canvas = canvases.get(key);
+                        if (canvas == null) {
+                          Rectangle tileMBR = new Rectangle();
+                          int gridSize = 1 << key.level;
+                          tileMBR.x1 = (inputMBR.x1 * (gridSize - key.x) + inputMBR.x2 * key.x) / gridSize;
+                          tileMBR.x2 = (inputMBR.x1 * (gridSize - (key.x + 1)) + inputMBR.x2 * (key.x+1)) / gridSize;
+                          tileMBR.y1 = (inputMBR.y1 * (gridSize - key.y) + inputMBR.y2 * key.y) / gridSize;
+                          tileMBR.y2 = (inputMBR.y1 * (gridSize - (key.y + 1)) + inputMBR.y2 * (key.y+1)) / gridSize;
+                          canvas = plotter.createCanvas(ftileWidth, ftileHeight, tileMBR);
+                          // Another thread might have created the same tile
+                          Canvas existing = canvases.putIfAbsent(key.clone(), canvas);
+                          if (existing != null)
+                            canvas = existing;
+                        }
+                        synchronized (canvas) {
+                          plotter.plot(canvas, shape);
+                        }
+                      }
+                    }
+                    // Update overlappingCells for the higher level
+                    int updatedX1 = overlappingCells.x / 2;
+                    int updatedY1 = overlappingCells.y / 2;
+                    int updatedX2 = (overlappingCells.x + overlappingCells.width - 1) / 2;
+                    int updatedY2 = (overlappingCells.y + overlappingCells.height - 1) / 2;
+                    overlappingCells.x = updatedX1;
+                    overlappingCells.y = updatedY1;
+                    overlappingCells.width = updatedX2 - updatedX1 + 1;
+                    overlappingCells.height = updatedY2 - updatedY1 + 1;
                   }
-                  plotter.plot(canvas, shape);
                 }
               }
-              // Update overlappingCells for the higher level
-              int updatedX1 = overlappingCells.x / 2;
-              int updatedY1 = overlappingCells.y / 2;
-              int updatedX2 = (overlappingCells.x + overlappingCells.width - 1) / 2;
-              int updatedY2 = (overlappingCells.y + overlappingCells.height - 1) / 2;
-              overlappingCells.x = updatedX1;
-              overlappingCells.y = updatedY1;
-              overlappingCells.width = updatedX2 - updatedX1 + 1;
-              overlappingCells.height = updatedY2 - updatedY1 + 1;
+              reader.close();
             }
+            return null;
+          } catch (InstantiationException e) {
+            throw new RuntimeException("Error creating plotter", e);
+          } catch (IllegalAccessException e) {
+            throw new RuntimeException("Error creating plotter", e);
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading the file ", e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupt error ", e);
           }
         }
-        reader.close();
-      }
+      }, parallelism);
       
       // Done with all splits. Write output to disk
       LOG.info("Done with plotting. Now writing the output");
@@ -688,8 +1229,6 @@ public class MultilevelPlot {
           canvases.entrySet().toArray(new Map.Entry[canvases.size()]);
       // Clear the hash map to save memory as it is no longer needed
       canvases.clear();
-      int parallelism = params.getInt("parallel",
-          Runtime.getRuntime().availableProcessors());
       Parallel.forEach(entries.length, new RunnableRange<Object>() {
         @Override
         public Object run(int i1, int i2) {
@@ -776,19 +1315,49 @@ public class MultilevelPlot {
       plotLocal(inPaths, outPath, plotterClass, params);
     } else {
       int maxLevelWithFlatPartitioning = params.getInt(FlatPartitioningLevelThreshold, 4);
+      Job flatJob = null, pyramidJob = null;
+      // In the adaptive pyramid, dense tiles are generated by downsampling
+      // their children rather than from the input. Tiles in the deepest
+      // level are never dense as they do not have children.
+      Path denseTilesPath = null;
+      int maxDenseLevel = Math.min(maxLevel - 1, params.getInt(MaxDenseLevel, 10));
+      if (params.getBoolean("adaptive", false) && maxDenseLevel >= minLevel) {
+        // Dense tiles are downsampled after both jobs finish
+        if (params.getBoolean("background", false))
+          throw new IllegalArgumentException("-adaptive cannot run in -background");
+        denseTilesPath = new Path(outPath, "_dense");
+        LOG.info("Finding dense tiles in levels "+minLevel+".."+maxDenseLevel);
+        findDenseTiles(inPaths, denseTilesPath, minLevel, maxDenseLevel,
+            plotterClass, params);
+        params = new OperationsParams(params);
+        params.set(DenseTiles, denseTilesPath.toString());
+      }
       if (minLevel <= maxLevelWithFlatPartitioning) {
         OperationsParams flatPartitioning = new OperationsParams(params);
         flatPartitioning.set("levels", minLevel+".."+Math.min(maxLevelWithFlatPartitioning, maxLevel));
         flatPartitioning.set("partition", "flat");
         LOG.info("Using flat partitioning in levels "+flatPartitioning.get("levels"));
-        runningJob = plotMapReduce(inPaths, new Path(outPath, "flat"), plotterClass, flatPartitioning);
+        flatJob = plotMapReduce(inPaths, new Path(outPath, "flat"), plotterClass, flatPartitioning);
       }
       if (maxLevel > maxLevelWithFlatPartitioning) {
         OperationsParams pyramidPartitioning = new OperationsParams(params);
         pyramidPartitioning.set("levels", Math.max(minLevel, maxLevelWithFlatPartitioning+1)+".."+maxLevel);
         pyramidPartitioning.set("partition", "pyramid");
         LOG.info("Using pyramid partitioning in levels "+pyramidPartitioning.get("levels"));
-        runningJob = plotMapReduce(inPaths, new Path(outPath, "pyramid"), plotterClass, pyramidPartitioning);
+        pyramidJob = plotMapReduce(inPaths, new Path(outPath, "pyramid"), plotterClass, pyramidPartitioning);
+      }
+      runningJob = pyramidJob != null ? pyramidJob : flatJob;
+      if (denseTilesPath != null) {
+        // Dense tiles are downsampled from the tiles of both jobs
+        for (Job job : new Job[] {flatJob, pyramidJob}) {
+          if (job != null && !job.isSuccessful())
+            throw new RuntimeException("Job '"+job.getJobName()+"' failed");
+        }
+        Set<TileIndex> denseTiles = readDenseTiles(params);
+        LOG.info("Downsampling "+denseTiles.size()+" dense tiles");
+        if (params.getBoolean("output", true))
+          downsampleDenseTiles(outPath, denseTiles, params);
+        outFS.delete(denseTilesPath, true);
       }
       // Write a new HTML file that displays both parts of the pyramid
       // Add an HTML file that visualizes the result using Google Maps
@@ -118,6 +118,26 @@ public abstract class Plotter {
     }
   }
 
+  /**
+   * Tells whether merging a canvas into a smaller canvas keeps only the part
+   * that overlaps the smaller canvas as done by raster canvases. If true, the
+   * final image can be split into tiles that are merged independently.
+   * @return
+   */
+  public boolean isTileable() {
+    return false;
+  }
+
+  /**
+   * Returns the number of pixels that the plot of a shape may extend beyond
+   * the MBR of the shape, e.g., the radius of the kernel of a heat map.
+   * This is used to find all the tiles that a shape should be plotted in.
+   * @return
+   */
+  public int getBufferSize() {
+    return 0;
+  }
+
   /**
    * Returns the raster class associated with this rasterizer
    * @return
@@ -37,6 +37,23 @@ import org.apache.hadoop.util.LineReader;
  */
 public class PyramidOutputFormat2 extends FileOutputFormat<TileIndex, Canvas> {
   
+  /**Extension of the tile images if the output directory has no extension*/
+  static final String DefaultTileExtension = ".png";
+
+  /**
+   * Returns the extension of the tile images written in the given output
+   * directory. Both the record writer and any code that reads the tiles back
+   * should call this method with the output path of the job.
+   * @param tileDir
+   * @return
+   */
+  static String getTileExtension(Path tileDir) {
+    String dirName = tileDir.getName();
+    int extensionStart = dirName.lastIndexOf('.');
+    return extensionStart == -1 ? DefaultTileExtension
+        : dirName.substring(extensionStart);
+  }
+
   static class ImageRecordWriter extends RecordWriter<TileIndex, Canvas> {
 
     private Plotter plotter;
@@ -55,10 +72,7 @@ public class PyramidOutputFormat2 extends FileOutputFormat<TileIndex, Canvas> {
       this.outPath = taskOutPath;
       this.outFS = outFs;
       this.vflip = task.getConfiguration().getBoolean("vflip", true);
-      String outFName = outPath.getName();
-      int extensionStart = outFName.lastIndexOf('.');
-      extension = extensionStart == -1 ? ".png"
-          : outFName.substring(extensionStart);
+      this.extension = getTileExtension(getOutputPath(task));
     }
 
     @Override
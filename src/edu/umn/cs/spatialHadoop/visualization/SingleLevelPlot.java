@@ -12,7 +12,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -43,14 +43,13 @@ import edu.umn.cs.spatialHadoop.core.SpatialSite;
 import edu.umn.cs.spatialHadoop.indexing.GridPartitioner;
 import edu.umn.cs.spatialHadoop.indexing.Indexer;
 import edu.umn.cs.spatialHadoop.indexing.Partitioner;
-import edu.umn.cs.spatialHadoop.mapreduce.RTreeRecordReader3;
+import edu.umn.cs.spatialHadoop.mapreduce.LocalSplitRunner;
 import edu.umn.cs.spatialHadoop.mapreduce.SpatialInputFormat3;
-import edu.umn.cs.spatialHadoop.mapreduce.SpatialRecordReader3;
-import edu.umn.cs.spatialHadoop.nasa.HDFRecordReader;
 import edu.umn.cs.spatialHadoop.operations.FileMBR;
 import edu.umn.cs.spatialHadoop.util.FileUtil;
 import edu.umn.cs.spatialHadoop.util.Parallel;
 import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRange;
+import edu.umn.cs.spatialHadoop.util.Parallel.RunnableRangeInto;
 
 
 /**
@@ -63,12 +62,164 @@ public class SingleLevelPlot {
   /**Configuration line for input file MBR*/
   private static final String InputMBR = "mbr";
 
+  /**Configuration line for the size of tiles used to merge partial canvases*/
+  private static final String MergeTileSize = "mergetilesize";
+
+  /**Default size of tiles in pixels when plotting locally*/
+  private static final int LocalTileSize = 256;
+
+  /**Maximum number of shapes a thread buffers for all tiles before plotting them*/
+  private static final int LocalBatchSize = 4096;
+
+  /**
+   * Splits the generated image into square tiles of a fixed size in pixels.
+   * Partial canvases are clipped to these tiles in the map phase and each
+   * tile is merged by one reducer which spreads the merge work over all
+   * reducers. The final image is then stitched from disjoint tiles.
+   * @author Ahmed Eldawy
+   *
+   */
+  static class MergeTiles {
+    /**The MBR of the input file*/
+    final Rectangle inputMBR;
+    /**Generated image width in pixels*/
+    final int imageWidth;
+    /**Generated image height in pixels*/
+    final int imageHeight;
+    /**Width and height of each tile in pixels*/
+    final int tileSize;
+    /**Number of tiles along the x and y axes*/
+    final int numTilesX, numTilesY;
+
+    MergeTiles(Configuration conf) {
+      this((Rectangle) OperationsParams.getShape(conf, InputMBR),
+          conf.getInt("width", 1000), conf.getInt("height", 1000),
+          conf.getInt(MergeTileSize, 0));
+    }
+
+    MergeTiles(Rectangle inputMBR, int imageWidth, int imageHeight, int tileSize) {
+      this.inputMBR = inputMBR;
+      this.imageWidth = imageWidth;
+      this.imageHeight = imageHeight;
+      this.tileSize = tileSize;
+      this.numTilesX = (imageWidth + tileSize - 1) / tileSize;
+      this.numTilesY = (imageHeight + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Whether merging is done in tiles according to the given configuration
+     * @param conf
+     * @param plotter
+     * @return
+     */
+    static boolean isEnabled(Configuration conf, Plotter plotter) {
+      return conf.getInt(MergeTileSize, 0) > 0 && plotter.isTileable();
+    }
+
+    /**
+     * Creates an empty canvas that covers the given tile
+     * @param plotter
+     * @param tileID
+     * @return
+     */
+    Canvas createTileCanvas(Plotter plotter, int tileID) {
+      int px1 = (tileID % numTilesX) * tileSize;
+      int py1 = (tileID / numTilesX) * tileSize;
+      int px2 = Math.min(imageWidth, px1 + tileSize);
+      int py2 = Math.min(imageHeight, py1 + tileSize);
+      Rectangle tileMBR = new Rectangle(
+          pixelToInput(inputMBR.x1, inputMBR.getWidth(), imageWidth, px1),
+          pixelToInput(inputMBR.y1, inputMBR.getHeight(), imageHeight, py1),
+          pixelToInput(inputMBR.x1, inputMBR.getWidth(), imageWidth, px2),
+          pixelToInput(inputMBR.y1, inputMBR.getHeight(), imageHeight, py2));
+      Canvas tileCanvas = plotter.createCanvas(px2 - px1, py2 - py1, tileMBR);
+      if (tileCanvas instanceof ImageCanvas)
+        ((ImageCanvas) tileCanvas).alignToImage(inputMBR, imageWidth, imageHeight, px1, py1);
+      return tileCanvas;
+    }
+
+    /**
+     * Moves the origin of a partial canvas to the middle of its first pixel
+     * in the image. Merging the canvas into a tile then places it at the
+     * same pixels as merging it into the whole image. Otherwise, round-off
+     * errors in the MBR of the tile might shift it by one pixel.
+     * This must be called after all shapes are plotted on the canvas.
+     * @param canvas - the partial canvas to align
+     * @param pixelX - the column of the first pixel of the canvas in the image
+     * @param pixelY - the row of the first pixel of the canvas in the image
+     */
+    void alignCanvas(Canvas canvas, int pixelX, int pixelY) {
+      Rectangle canvasMBR = canvas.getInputMBR();
+      canvasMBR.x1 = inputMBR.x1 + (pixelX + 0.5) * inputMBR.getWidth() / imageWidth;
+      canvasMBR.y1 = inputMBR.y1 + (pixelY + 0.5) * inputMBR.getHeight() / imageHeight;
+    }
+
+    /**
+     * Returns the range of tiles that overlap the given rectangle after
+     * expanding it by the given number of pixels in all directions. The
+     * returned range is empty if the rectangle is completely outside the image.
+     * @param mbr - the rectangle in the input space
+     * @param bufferPixels - number of pixels to expand the rectangle with
+     * @return the column, row, and number of columns and rows of the tiles
+     */
+    java.awt.Rectangle getOverlappingTiles(Rectangle mbr, int bufferPixels) {
+      int px1 = inputToPixel(inputMBR.x1, inputMBR.getWidth(), imageWidth, mbr.x1) - bufferPixels;
+      int py1 = inputToPixel(inputMBR.y1, inputMBR.getHeight(), imageHeight, mbr.y1) - bufferPixels;
+      int px2 = inputToPixel(inputMBR.x1, inputMBR.getWidth(), imageWidth, mbr.x2) + bufferPixels;
+      int py2 = inputToPixel(inputMBR.y1, inputMBR.getHeight(), imageHeight, mbr.y2) + bufferPixels;
+      if (px2 < 0 || py2 < 0 || px1 >= imageWidth || py1 >= imageHeight)
+        return new java.awt.Rectangle(0, 0, 0, 0);
+      int tx1 = Math.max(0, px1) / tileSize;
+      int ty1 = Math.max(0, py1) / tileSize;
+      int tx2 = Math.min(imageWidth - 1, px2) / tileSize;
+      int ty2 = Math.min(imageHeight - 1, py2) / tileSize;
+      return new java.awt.Rectangle(tx1, ty1, tx2 - tx1 + 1, ty2 - ty1 + 1);
+    }
+
+    /**
+     * Converts a coordinate in the input space to a pixel coordinate
+     * @param inputMin - the minimum coordinate of the input
+     * @param inputSize - the width or height of the input
+     * @param imageSize - the width or height of the image in pixels
+     * @param coord - the input coordinate to convert
+     * @return
+     */
+    private static int inputToPixel(double inputMin, double inputSize,
+        int imageSize, double coord) {
+      return (int) Math.floor((coord - inputMin) * imageSize / inputSize);
+    }
+
+    /**
+     * Converts a pixel coordinate to the input space
+     * @param inputMin - the minimum coordinate of the input
+     * @param inputSize - the width or height of the input
+     * @param imageSize - the width or height of the image in pixels
+     * @param pixel - the pixel coordinate to convert
+     * @return
+     */
+    private static double pixelToInput(double inputMin, double inputSize,
+        int imageSize, int pixel) {
+      double coord = inputMin + pixel * inputSize / imageSize;
+      // Round-off might map the coordinate back to the previous pixel which
+      // would shift the tile by one pixel when it is stitched into the image
+      while (inputToPixel(inputMin, inputSize, imageSize, coord) < pixel)
+        coord = Math.nextUp(coord);
+      return coord;
+    }
+  }
+
   /**
    * Visualizes a dataset using the existing partitioning of a file.
    * The mapper creates a partial canvas for each partition while the reducer
    * merges the partial canvases together into the final canvas.
    * The final canvas is then written to the output.
    * 
+   * If the plotter is tileable, each partial canvas is clipped to the tiles
+   * of {@link MergeTiles} it overlaps and each clipped canvas is written with
+   * the tile ID as a key. Otherwise, all canvases of one map task are written
+   * with one key, which is combined into one canvas and sent to a reducer
+   * according to the task ID.
+   * 
    * @author Ahmed Eldawy
    *
    */
@@ -85,27 +236,27 @@ public class SingleLevelPlot {
     private Plotter plotter;
     /**Value for the output*/
     private IntWritable outputValue;
-    /**Number of reduce jobs*/
-    private int numReducers;
-    /**Random number generator to send the canvas to a random reducer*/
-    private Random random;
     /**Whether the configured canvas defines a smooth function or not*/
     private boolean smooth;
+    /**The tiles used to merge canvases or null if merging is not tiled*/
+    private MergeTiles mergeTiles;
     
     @Override
     protected void setup(Context context)
         throws IOException, InterruptedException {
-      // TODO Auto-generated method stub
       super.setup(context);
       Configuration conf = context.getConfiguration();
       this.imageWidth = conf.getInt("width", 1000);
       this.imageHeight = conf.getInt("height", 1000);
       this.inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
-      this.outputValue = new IntWritable(0);
       this.plotter = Plotter.getPlotter(conf);
       this.smooth = plotter.isSmooth();
-      this.numReducers = Math.max(1, context.getNumReduceTasks());
-      this.random = new Random();
+      int numReducers = Math.max(1, context.getNumReduceTasks());
+      // Send all canvases of this task to one reducer to be combined together
+      this.outputValue = new IntWritable(
+          context.getTaskAttemptID().getTaskID().getId() % numReducers);
+      if (context.getNumReduceTasks() > 0 && MergeTiles.isEnabled(conf, plotter))
+        this.mergeTiles = new MergeTiles(conf);
     }
 
     @Override
@@ -124,7 +275,8 @@ public class SingleLevelPlot {
       int canvasX2 = (int) Math.ceil((partitionMBR.x2 - inputMBR.x1) * imageWidth / inputMBR.getWidth());
       int canvasY1 = (int) Math.floor((partitionMBR.y1 - inputMBR.y1) * imageHeight / inputMBR.getHeight());
       int canvasY2 = (int) Math.ceil((partitionMBR.y2 - inputMBR.y1) * imageHeight / inputMBR.getHeight());
-      Canvas canvasLayer = plotter.createCanvas(canvasX2 - canvasX1, canvasY2 - canvasY1, partitionMBR);
+      Canvas canvasLayer = plotter.createCanvas(canvasX2 - canvasX1, canvasY2 - canvasY1,
+          mergeTiles == null ? partitionMBR : new Rectangle(partitionMBR));
       if (smooth) {
         shapes = plotter.smooth(shapes);
         context.progress();
@@ -135,17 +287,40 @@ public class SingleLevelPlot {
         if (((++i) & 0xff) == 0)
           context.progress();
       }
-      // If we set the output value to one constant, all intermediate layers
-      // will be merged in one machine. Alternatively, We can set it to several values
-      // to allow multiple reducers to collaborate in merging intermediate
-      // layers. We will need to run a follow up merge process that runs
-      // on a single machine in the OutputCommitter function.
-      outputValue.set(random.nextInt(numReducers));
-      outputValue.set(0);
-      context.write(outputValue, canvasLayer);
+      if (mergeTiles == null) {
+        context.write(outputValue, canvasLayer);
+        return;
+      }
+      // Clip the canvas to all the tiles it overlaps
+      mergeTiles.alignCanvas(canvasLayer, canvasX1, canvasY1);
+      int tileX1 = Math.max(0, canvasX1 / mergeTiles.tileSize);
+      int tileX2 = Math.min(mergeTiles.numTilesX - 1, (canvasX2 - 1) / mergeTiles.tileSize);
+      int tileY1 = Math.max(0, canvasY1 / mergeTiles.tileSize);
+      int tileY2 = Math.min(mergeTiles.numTilesY - 1, (canvasY2 - 1) / mergeTiles.tileSize);
+      for (int tileX = tileX1; tileX <= tileX2; tileX++) {
+        for (int tileY = tileY1; tileY <= tileY2; tileY++) {
+          outputValue.set(tileY * mergeTiles.numTilesX + tileX);
+          if (tileX1 == tileX2 && tileY1 == tileY2) {
+            // The canvas lies in one tile. No need to clip it
+            context.write(outputValue, canvasLayer);
+          } else {
+            Canvas tileCanvas = mergeTiles.createTileCanvas(plotter, outputValue.get());
+            plotter.merge(tileCanvas, canvasLayer);
+            context.write(outputValue, tileCanvas);
+          }
+          context.progress();
+        }
+      }
     }
   }
   
+  /**
+   * Merges all canvases of the same key into one canvas. If merging is done
+   * in tiles, the key is the tile ID and the merged canvas covers only that
+   * tile. Otherwise, the merged canvas covers the whole image.
+   * @author Ahmed Eldawy
+   *
+   */
   public static class NoPartitionPlotCombine<S extends Shape>
   extends Reducer<IntWritable, Canvas, IntWritable, Canvas> {
     
@@ -157,23 +332,20 @@ public class SingleLevelPlot {
     private int imageHeight;
     /**The component that plots the shapes*/
     private Plotter plotter;
-    /**Number of reduce jobs*/
-    private int numReducers;
-    /**Random number generator to send the canvas to a random reducer*/
-    private Random random;
+    /**The tiles used to merge canvases or null if merging is not tiled*/
+    private MergeTiles mergeTiles;
     
     @Override
     protected void setup(Context context)
         throws IOException, InterruptedException {
-      // TODO Auto-generated method stub
       super.setup(context);
       Configuration conf = context.getConfiguration();
       this.imageWidth = conf.getInt("width", 1000);
       this.imageHeight = conf.getInt("height", 1000);
       this.inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
       this.plotter = Plotter.getPlotter(conf);
-      this.numReducers = Math.max(1, context.getNumReduceTasks());
-      this.random = new Random();
+      if (MergeTiles.isEnabled(conf, plotter))
+        this.mergeTiles = new MergeTiles(conf);
     }
     
     @Override
@@ -185,16 +357,16 @@ public class SingleLevelPlot {
         Canvas layer = iLayers.next();
         if (!iLayers.hasNext()) {
           // Only one layer in the input. Output it as-is
-          key.set(random.nextInt(numReducers));
           context.write(key, layer);
         } else {
-          Canvas finalLayer = plotter.createCanvas(imageWidth, imageHeight, inputMBR);
+          Canvas finalLayer = mergeTiles != null ?
+              mergeTiles.createTileCanvas(plotter, key.get()) :
+              plotter.createCanvas(imageWidth, imageHeight, inputMBR);
           plotter.merge(finalLayer, layer);
           while (iLayers.hasNext()) {
             layer = iLayers.next();
             plotter.merge(finalLayer, layer);
           }
-          key.set(random.nextInt(numReducers));
           context.write(key, finalLayer);
         }
       }
@@ -212,25 +384,29 @@ public class SingleLevelPlot {
     private int imageHeight;
     /**The component that plots the shapes*/
     private Plotter plotter;
+    /**The tiles used to merge canvases or null if merging is not tiled*/
+    private MergeTiles mergeTiles;
     
     @Override
     protected void setup(Context context)
         throws IOException, InterruptedException {
-      // TODO Auto-generated method stub
       super.setup(context);
       Configuration conf = context.getConfiguration();
       this.imageWidth = conf.getInt("width", 1000);
       this.imageHeight = conf.getInt("height", 1000);
       this.inputMBR = (Rectangle) OperationsParams.getShape(conf, InputMBR);
       this.plotter = Plotter.getPlotter(conf);
+      if (MergeTiles.isEnabled(conf, plotter))
+        this.mergeTiles = new MergeTiles(conf);
     }
     
     @Override
-    protected void reduce(IntWritable dummy,
+    protected void reduce(IntWritable key,
         Iterable<Canvas> intermediateLayers, Context context)
         throws IOException, InterruptedException {
-      // TODO Auto-generated method stub
-      Canvas finalLayer = plotter.createCanvas(imageWidth, imageHeight, inputMBR);
+      Canvas finalLayer = mergeTiles != null ?
+          mergeTiles.createTileCanvas(plotter, key.get()) :
+          plotter.createCanvas(imageWidth, imageHeight, inputMBR);
       
       for (Canvas intermediateLayer : intermediateLayers) {
         plotter.merge(finalLayer, intermediateLayer);
@@ -364,7 +540,7 @@ public class SingleLevelPlot {
       throw new RuntimeException("Error creating rastierizer", e);
     }
     
-    Job job = new Job(params, "SingleLevelPlot");
+    Job job = Job.getInstance(params, "SingleLevelPlot");
     job.setJarByClass(SingleLevelPlot.class);
     job.setJobName("SingleLevelPlot");
     // Set plotter
@@ -376,8 +552,6 @@ public class SingleLevelPlot {
     if (inputMBR == null)
       inputMBR = drawRect != null? drawRect : FileMBR.fileMBR(inFiles, params);
     OperationsParams.setShape(conf, InputMBR, inputMBR);
-    if (drawRect != null)
-      OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange, drawRect);
     
     // Adjust width and height if aspect ratio is to be kept
     int imageWidth = conf.getInt("width", 1000);
@@ -396,6 +570,12 @@ public class SingleLevelPlot {
         conf.setInt("width", imageWidth);
       }
     }
+    if (drawRect != null) {
+      // Only read the partitions and records that overlap the viewport
+      plotter.configure(conf);
+      OperationsParams.setShape(conf, SpatialInputFormat3.InputQueryRange,
+          getQueryRange(drawRect, inputMBR, plotter, imageWidth, imageHeight));
+    }
     
     boolean merge = conf.getBoolean("merge", true);
     // Set input and output
@@ -429,7 +609,24 @@ public class SingleLevelPlot {
         job.setReducerClass(NoPartitionPlotReduce.class);
         // Set number of reduce tasks according to cluster status
         int maxReduce = Math.max(1, clusterStatus.getMaxReduceTasks() * 7 / 8);
-        job.setNumReduceTasks(Math.max(1, Math.min(maxReduce, numSplits / maxReduce)));
+        if (plotter.isTileable()) {
+          // Each reducer merges only the tiles assigned to it which allows
+          // more reducers to work in parallel
+          int numReducers = Math.max(1, Math.min(maxReduce, numSplits));
+          job.setNumReduceTasks(numReducers);
+          if (conf.get(MergeTileSize) == null && numReducers > 1) {
+            // Create around four tiles per reducer to balance the load
+            int tileSize = (int) Math.ceil(Math.sqrt(
+                (double) imageWidth * imageHeight / (numReducers * 4)));
+            conf.setInt(MergeTileSize, Math.max(64, tileSize));
+          }
+          if (conf.getInt(MergeTileSize, 0) > 0) {
+            // Tiles are disjoint. Write them as-is to be stitched at the end
+            conf.setBoolean(CanvasOutputFormat.MergeTaskOutput, false);
+          }
+        } else {
+          job.setNumReduceTasks(Math.max(1, Math.min(maxReduce, numSplits / maxReduce)));
+        }
       } else {
         job.setNumReduceTasks(0);
       }
@@ -483,8 +680,11 @@ public class SingleLevelPlot {
       final OperationsParams params) throws IOException, InterruptedException {
     OperationsParams mbrParams = new OperationsParams(params);
     mbrParams.setBoolean("background", false);
+    // If only a viewport is given, it becomes the MBR of the image
+    final Rectangle drawRect = (Rectangle) params.getShape(SpatialInputFormat3.InputQueryRange);
     final Rectangle inputMBR = params.get(InputMBR) != null ?
-        params.getShape("mbr").getMBR() : FileMBR.fileMBR(inFiles, mbrParams);
+        params.getShape("mbr").getMBR() :
+        (drawRect != null ? drawRect : FileMBR.fileMBR(inFiles, mbrParams));
     if (params.get(InputMBR) == null)
       OperationsParams.setShape(params, InputMBR, inputMBR);
 
@@ -501,6 +701,16 @@ public class SingleLevelPlot {
     }
     // Store width and height in final variables to make them accessible in parallel
     final int fwidth = width, fheight = height;
+    Plotter plotter = createPlotter(plotterClass, params);
+    // The input is read with a copy of the parameters to keep the viewport
+    // of the caller as is
+    final OperationsParams readParams = new OperationsParams(params);
+    if (drawRect != null) {
+      // Only read the partitions and records that overlap the viewport. The
+      // global index of each input file is pruned by this range in getSplits
+      OperationsParams.setShape(readParams, SpatialInputFormat3.InputQueryRange,
+          getQueryRange(drawRect, inputMBR, plotter, fwidth, fheight));
+    }
 
     // Start reading input file
     List<InputSplit> splits = new ArrayList<InputSplit>();
@@ -511,7 +721,7 @@ public class SingleLevelPlot {
       if (!OperationsParams.isWildcard(inFile) && inFs.exists(inFile) && !inFs.isDirectory(inFile)) {
         if (SpatialSite.NonHiddenFileFilter.accept(inFile)) {
           // Use the normal input format splitter to add this non-hidden file
-          Job job = Job.getInstance(params);
+          Job job = Job.getInstance(readParams);
           SpatialInputFormat3.addInputPath(job, inFile);
           splits.addAll(inputFormat.getSplits(job));
         } else {
@@ -524,7 +734,7 @@ public class SingleLevelPlot {
         }
       } else {
         // Use the normal input format splitter to add this non-hidden file
-        Job job = Job.getInstance(params);
+        Job job = Job.getInstance(readParams);
         SpatialInputFormat3.addInputPath(job, inFile);
         splits.addAll(inputFormat.getSplits(job));
       }
@@ -534,34 +744,117 @@ public class SingleLevelPlot {
     final FileSplit[] fsplits = splits.toArray(new FileSplit[splits.size()]);
     int parallelism = params.getInt("parallel",
         Runtime.getRuntime().availableProcessors());
-    List<Canvas> partialCanvases = Parallel.forEach(fsplits.length, new RunnableRange<Canvas>() {
+    boolean merge = params.getBoolean("merge", true);
+    
+    // Whether we should vertically flip the final image or not
+    boolean vflip = params.getBoolean("vflip", true);
+    if (merge) {
+      Canvas finalCanvas;
+      int tileSize = params.getInt(MergeTileSize, LocalTileSize);
+      if (tileSize > 0 && plotter.isTileable()) {
+        // Plot all partitions directly into the tiles of one final image
+        MergeTiles tiles = new MergeTiles(inputMBR, fwidth, fheight, tileSize);
+        finalCanvas = plotLocalTiles(fsplits, inputFormat, plotterClass,
+            readParams, tiles, parallelism);
+      } else {
+        List<Canvas> partialCanvases = plotLocalPartialCanvases(fsplits,
+            inputFormat, plotterClass, readParams, inputMBR, fwidth, fheight, parallelism);
+        LOG.info("Merging "+partialCanvases.size()+" partial canvases");
+        // Create the final canvas that will contain the final image
+        finalCanvas = plotter.createCanvas(fwidth, fheight, inputMBR);
+        for (Canvas partialCanvas : partialCanvases)
+          plotter.merge(finalCanvas, partialCanvas);
+      }
+      
+      // Finally, write the resulting image to the given output path
+      LOG.info("Writing final image");
+      FileSystem outFs = outFile.getFileSystem(params);
+      FSDataOutputStream outputFile = outFs.create(outFile);
+      
+      plotter.writeImage(finalCanvas, outputFile, vflip);
+      outputFile.close();
+    } else {
+      // No merge
+      List<Canvas> partialCanvases = plotLocalPartialCanvases(fsplits,
+          inputFormat, plotterClass, readParams, inputMBR, fwidth, fheight, parallelism);
+      LOG.info("Writing partial images");
+      FileSystem outFs = outFile.getFileSystem(params);
+      for (int i = 0; i < partialCanvases.size(); i++) {
+        Path filename = new Path(outFile, String.format("part-%05d.png", i));
+        FSDataOutputStream outputFile = outFs.create(filename);
+        
+        plotter.writeImage(partialCanvases.get(i), outputFile, vflip);
+        outputFile.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the range of the input to read for plotting the given viewport.
+   * The viewport is expanded by the buffer size of the plotter so that shapes
+   * right outside the viewport that still affect its pixels, e.g., points
+   * near the border of a heat map, are plotted as well.
+   * @param viewport - the part of the input to plot
+   * @param imageMBR - the MBR that the image is projected onto
+   * @param plotter - a configured plotter
+   * @param imageWidth - width of the generated image in pixels
+   * @param imageHeight - height of the generated image in pixels
+   * @return
+   */
+  static Rectangle getQueryRange(Rectangle viewport, Rectangle imageMBR,
+      Plotter plotter, int imageWidth, int imageHeight) {
+    int bufferSize = plotter.getBufferSize();
+    if (bufferSize == 0)
+      return viewport;
+    return viewport.buffer(imageMBR.getWidth() * bufferSize / imageWidth,
+        imageMBR.getHeight() * bufferSize / imageHeight);
+  }
+
+  /**
+   * Creates and configures a new plotter of the given class
+   * @param plotterClass
+   * @param params
+   * @return
+   */
+  static Plotter createPlotter(Class<? extends Plotter> plotterClass,
+      Configuration params) {
+    Plotter plotter;
+    try {
+      plotter = plotterClass.newInstance();
+    } catch (InstantiationException e) {
+      throw new RuntimeException("Error creating rastierizer", e);
+    } catch (IllegalAccessException e) {
+      throw new RuntimeException("Error creating rastierizer", e);
+    }
+    plotter.configure(params);
+    return plotter;
+  }
+
+  /**
+   * Plots the given splits in parallel where each thread plots its splits
+   * into one partial canvas that covers the whole image.
+   * @return one partial canvas for each thread that plotted any splits
+   */
+  private static List<Canvas> plotLocalPartialCanvases(final FileSplit[] fsplits,
+      final SpatialInputFormat3<Rectangle, Shape> inputFormat,
+      final Class<? extends Plotter> plotterClass,
+      final OperationsParams params, final Rectangle inputMBR,
+      final int fwidth, final int fheight, int parallelism)
+          throws InterruptedException {
+    return Parallel.forEach(fsplits.length, new RunnableRangeInto<Canvas>() {
       @Override
-      public Canvas run(int i1, int i2) {
-        Plotter plotter;
-        try {
-          plotter = plotterClass.newInstance();
-        } catch (InstantiationException e) {
-          throw new RuntimeException("Error creating rastierizer", e);
-        } catch (IllegalAccessException e) {
-          throw new RuntimeException("Error creating rastierizer", e);
-        }
-        plotter.configure(params);
+      public Canvas createPartial() {
         // Create the partial layer that will contain the plot of the assigned partitions
-        Canvas partialCanvas = plotter.createCanvas(fwidth, fheight, inputMBR);
-        
+        return createPlotter(plotterClass, params).createCanvas(fwidth, fheight, inputMBR);
+      }
+
+      @Override
+      public void run(int i1, int i2, Canvas partialCanvas) {
+        Plotter plotter = createPlotter(plotterClass, params);
         for (int i = i1; i < i2; i++) {
           try {
             RecordReader<Rectangle, Iterable<Shape>> reader =
-                inputFormat.createRecordReader(fsplits[i], null);
-            if (reader instanceof SpatialRecordReader3) {
-              ((SpatialRecordReader3)reader).initialize(fsplits[i], params);
-            } else if (reader instanceof RTreeRecordReader3) {
-              ((RTreeRecordReader3)reader).initialize(fsplits[i], params);
-            } else if (reader instanceof HDFRecordReader) {
-              ((HDFRecordReader)reader).initialize(fsplits[i], params);
-            } else {
-              throw new RuntimeException("Unknown record reader");
-            }
+                LocalSplitRunner.createRecordReader(inputFormat, fsplits[i], params);
 
             while (reader.nextKeyValue()) {
               Rectangle partition = reader.getCurrentKey();
@@ -580,48 +873,129 @@ public class SingleLevelPlot {
             throw new RuntimeException("Interrupt error ", e);
           }
         }
-        return partialCanvas;
       }
     }, parallelism);
-    boolean merge = params.getBoolean("merge", true);
-    Plotter plotter;
-    try {
-      plotter = plotterClass.newInstance();
-      plotter.configure(params);
-    } catch (InstantiationException e) {
-      throw new RuntimeException("Error creating plotter", e);
-    } catch (IllegalAccessException e) {
-      throw new RuntimeException("Error creating plotter", e);
-    }
-    
-    // Whether we should vertically flip the final image or not
-    boolean vflip = params.getBoolean("vflip", true);
-    if (merge) {
-      LOG.info("Merging "+partialCanvases.size()+" partial canvases");
-      // Create the final canvas that will contain the final image
-      Canvas finalCanvas = plotter.createCanvas(fwidth, fheight, inputMBR);
-      for (Canvas partialCanvas : partialCanvases)
-        plotter.merge(finalCanvas, partialCanvas);
-      
-      // Finally, write the resulting image to the given output path
-      LOG.info("Writing final image");
-      FileSystem outFs = outFile.getFileSystem(params);
-      FSDataOutputStream outputFile = outFs.create(outFile);
-      
-      plotter.writeImage(finalCanvas, outputFile, vflip);
-      outputFile.close();
-    } else {
-      // No merge
-      LOG.info("Writing partial images");
-      FileSystem outFs = outFile.getFileSystem(params);
-      for (int i = 0; i < partialCanvases.size(); i++) {
-        Path filename = new Path(outFile, String.format("part-%05d.png", i));
-        FSDataOutputStream outputFile = outFs.create(filename);
+  }
+
+  /**
+   * Plots the given splits in parallel into the tiles of one final image.
+   * Each thread routes the shapes of its splits to the tiles they overlap,
+   * according to their MBRs expanded by {@link Plotter#getBufferSize()}, and
+   * plots them in batches while holding the lock of the tile. Since all
+   * threads share the same tiles, no partial canvases are merged. The memory
+   * needed is that of the tiles, which cover the image once, in addition to
+   * {@link #LocalBatchSize} buffered shapes per thread. While the tiles are
+   * stitched, the final image and the tiles not stitched yet are kept.
+   * @return the final canvas after stitching all the tiles together
+   */
+  private static Canvas plotLocalTiles(final FileSplit[] fsplits,
+      final SpatialInputFormat3<Rectangle, Shape> inputFormat,
+      final Class<? extends Plotter> plotterClass,
+      final OperationsParams params, final MergeTiles tiles,
+      int parallelism) throws InterruptedException {
+    final int numTiles = tiles.numTilesX * tiles.numTilesY;
+    // Tile canvases are created on demand by the first thread that needs them
+    final AtomicReferenceArray<Canvas> tileCanvases =
+        new AtomicReferenceArray<Canvas>(numTiles);
+    Parallel.forEach(fsplits.length, new RunnableRange<Object>() {
+      @Override
+      public Object run(int i1, int i2) {
+        Plotter plotter = createPlotter(plotterClass, params);
+        // Add one more pixel to account for rounding the shape coordinates
+        int bufferSize = plotter.getBufferSize() + 1;
+        // The shapes waiting to be plotted in each tile. Shapes are copied
+        // because record readers reuse the same object for all shapes.
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<Shape>[] batches = new List[numTiles];
+        int numBuffered = 0;
         
-        plotter.writeImage(partialCanvases.get(i), outputFile, vflip);
-        outputFile.close();
+        for (int i = i1; i < i2; i++) {
+          try {
+            RecordReader<Rectangle, Iterable<Shape>> reader =
+                LocalSplitRunner.createRecordReader(inputFormat, fsplits[i], params);
+
+            while (reader.nextKeyValue()) {
+              Iterable<Shape> shapes = reader.getCurrentValue();
+              if (plotter.isSmooth())
+                shapes = plotter.smooth(shapes);
+              for (Shape shape : shapes) {
+                Rectangle shapeMBR = shape.getMBR();
+                if (shapeMBR == null)
+                  continue;
+                java.awt.Rectangle overlappingTiles =
+                    tiles.getOverlappingTiles(shapeMBR, bufferSize);
+                if (overlappingTiles.isEmpty())
+                  continue;
+                // One copy is shared by all the tiles as batches are only read
+                Shape shapeCopy = shape.clone();
+                for (int ty = overlappingTiles.y; ty < overlappingTiles.y + overlappingTiles.height; ty++) {
+                  for (int tx = overlappingTiles.x; tx < overlappingTiles.x + overlappingTiles.width; tx++) {
+                    int tileID = ty * tiles.numTilesX + tx;
+                    if (batches[tileID] == null)
+                      batches[tileID] = new ArrayList<Shape>();
+                    batches[tileID].add(shapeCopy);
+                    numBuffered++;
+                  }
+                }
+                if (numBuffered >= LocalBatchSize) {
+                  flushTileBatches(plotter, tiles, tileCanvases, batches);
+                  numBuffered = 0;
+                }
+              }
+            }
+            reader.close();
+          } catch (IOException e) {
+            throw new RuntimeException("Error reading the file ", e);
+          } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupt error ", e);
+          }
+        }
+        // Flush the remaining shapes
+        flushTileBatches(plotter, tiles, tileCanvases, batches);
+        return null;
       }
+    }, parallelism);
+
+    LOG.info("Stitching "+numTiles+" tiles");
+    Plotter plotter = createPlotter(plotterClass, params);
+    Canvas finalCanvas = plotter.createCanvas(tiles.imageWidth,
+        tiles.imageHeight, tiles.inputMBR);
+    for (int tileID = 0; tileID < numTiles; tileID++) {
+      Canvas tileCanvas = tileCanvases.getAndSet(tileID, null);
+      if (tileCanvas != null)
+        plotter.merge(finalCanvas, tileCanvas);
+    }
+    return finalCanvas;
+  }
+
+  /**
+   * Plots all the non-empty batches of shapes into their tiles
+   */
+  private static void flushTileBatches(Plotter plotter, MergeTiles tiles,
+      AtomicReferenceArray<Canvas> tileCanvases, List<Shape>[] batches) {
+    for (int tileID = 0; tileID < batches.length; tileID++) {
+      if (batches[tileID] != null && !batches[tileID].isEmpty())
+        plotTileBatch(plotter, tiles, tileCanvases, tileID, batches[tileID]);
+    }
+  }
+
+  /**
+   * Plots a batch of shapes into one tile while holding the lock of the
+   * tile canvas and clears the batch afterwards. The tile canvas is created
+   * if this is the first batch plotted in it.
+   */
+  private static void plotTileBatch(Plotter plotter, MergeTiles tiles,
+      AtomicReferenceArray<Canvas> tileCanvases, int tileID, List<Shape> batch) {
+    Canvas tileCanvas = tileCanvases.get(tileID);
+    if (tileCanvas == null) {
+      tileCanvases.compareAndSet(tileID, null,
+          tiles.createTileCanvas(plotter, tileID));
+      tileCanvas = tileCanvases.get(tileID);
+    }
+    synchronized (tileCanvas) {
+      plotter.plot(tileCanvas, batch);
     }
+    batch.clear();
   }
   
   /**
@@ -0,0 +1,193 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.nasa;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.Rectangle;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.umn.cs.spatialHadoop.io.RandomCompressedOutputStream;
+import edu.umn.cs.spatialHadoop.nasa.AggregateQuadTree.Node;
+
+/**
+ * Answers random range queries from a small roll-up and compares the answers
+ * to the aggregates of the daily trees that the roll-up was built from.
+ * @author Ahmed Eldawy
+ *
+ */
+public class AggregateRollupTest {
+
+  private static final int Resolution = 24;
+  private static final short FillValue = -1;
+  private static final long DayLength = 24L * 60 * 60 * 1000;
+
+  @Rule
+  public TemporaryFolder tempDir = new TemporaryFolder();
+
+  private FileSystem fs;
+
+  @Before
+  public void setUp() throws IOException {
+    fs = FileSystem.getLocal(new Configuration());
+  }
+
+  /**
+   * Builds one daily tree for each of the given days with random values. A
+   * few values in each day are fill values that all aggregates skip. Rare
+   * spikes and dips on some days make the minimum and maximum of a range depend on the
+   * exact days it covers.
+   * @param random
+   * @param values - receives the values of each day in row-major order
+   * @return the paths of the daily trees
+   * @throws IOException
+   */
+  private Path[] buildDailyTrees(Random random, short[][] values)
+      throws IOException {
+    Path[] trees = new Path[values.length];
+    for (int iDay = 0; iDay < values.length; iDay++) {
+      values[iDay] = new short[Resolution * Resolution];
+      for (int i = 0; i < values[iDay].length; i++)
+        values[iDay][i] = random.nextInt(20) == 0 ? FillValue
+            : (short) random.nextInt(1000);
+      if (random.nextInt(8) == 0) {
+        values[iDay][random.nextInt(values[iDay].length)] =
+            (short) (1000 + random.nextInt(30000));
+        values[iDay][random.nextInt(values[iDay].length)] =
+            (short) (-1000 - random.nextInt(30000));
+      }
+      NASADataset metadata = new NASADataset();
+      metadata.time = iDay * DayLength;
+      trees[iDay] = new Path(new File(tempDir.getRoot(), "day_"+iDay).toURI());
+      DataOutputStream out = new DataOutputStream(
+          new RandomCompressedOutputStream(fs.create(trees[iDay], false)));
+      AggregateQuadTree.build(metadata, values[iDay], FillValue, out);
+      out.close();
+    }
+    return trees;
+  }
+
+  /**
+   * Builds the nodes and values files of a roll-up for the given daily trees
+   * @return the nodes file followed by the values file
+   */
+  private Path[] buildRollup(Path[] trees) throws IOException {
+    long[] dayStarts = new long[trees.length];
+    long[] dayEnds = new long[trees.length];
+    for (int iDay = 0; iDay < trees.length; iDay++) {
+      dayStarts[iDay] = iDay * DayLength;
+      dayEnds[iDay] = (iDay + 1) * DayLength;
+    }
+    File dir = tempDir.newFolder();
+    Path nodesFile = new Path(new File(dir, "nodes").toURI());
+    Path valuesFile = new Path(new File(dir, "values").toURI());
+    AggregateRollup.buildNodes(fs.getConf(), trees, dayStarts, dayEnds, nodesFile);
+    AggregateRollup.buildValues(fs.getConf(), trees, valuesFile);
+    return new Path[] {nodesFile, valuesFile};
+  }
+
+  private static void assertNodeEquals(String message, Node expected, Node actual) {
+    assertEquals(message+" count", expected.count, actual.count);
+    assertEquals(message+" sum", expected.sum, actual.sum);
+    if (expected.count > 0) {
+      assertEquals(message+" min", expected.min, actual.min);
+      assertEquals(message+" max", expected.max, actual.max);
+    }
+  }
+
+  /**
+   * Runs random queries against a roll-up of the given number of days
+   * @param numOfDays
+   * @param seed
+   * @throws IOException
+   */
+  private void checkRandomQueries(int numOfDays, long seed) throws IOException {
+    Random random = new Random(seed);
+    short[][] values = new short[numOfDays][];
+    Path[] trees = buildDailyTrees(random, values);
+    Path[] rollup = buildRollup(trees);
+
+    for (int iQuery = 0; iQuery < 400; iQuery++) {
+      Rectangle query;
+      if (iQuery % 3 == 0) {
+        // The whole tile is answered from the aggregates of the root
+        query = new Rectangle(0, 0, Resolution, Resolution);
+      } else {
+        int x1 = random.nextInt(Resolution), y1 = random.nextInt(Resolution);
+        query = new Rectangle(x1, y1, 1 + random.nextInt(Resolution - x1),
+            1 + random.nextInt(Resolution - y1));
+      }
+      // Time ranges start and end at day boundaries or in the middle of a
+      // day. Some ranges select one or no days while others span all blocks.
+      long start, end;
+      if (iQuery % 4 == 0) {
+        start = random.nextInt(numOfDays * 4) * DayLength / 4;
+        end = start + random.nextInt(8) * DayLength / 4;
+      } else if (iQuery % 4 == 1) {
+        int blockSize = AggregateRollup.BlockSize;
+        start = random.nextInt(blockSize * 4) * DayLength / 4;
+        end = (numOfDays - random.nextInt(blockSize)) * DayLength
+            - random.nextInt(4) * DayLength / 4;
+      } else {
+        long t1 = random.nextInt(numOfDays * 4 + 1) * DayLength / 4;
+        long t2 = random.nextInt(numOfDays * 4 + 1) * DayLength / 4;
+        start = Math.min(t1, t2);
+        end = Math.max(t1, t2);
+      }
+
+      Node expectedFromTrees = new Node();
+      Node expectedFromValues = new Node();
+      for (int iDay = 0; iDay < numOfDays; iDay++) {
+        if (iDay * DayLength < start || (iDay + 1) * DayLength > end)
+          continue;
+        expectedFromTrees.accumulate(AggregateQuadTree.aggregateQuery(fs, trees[iDay], query));
+        for (int y = query.y; y < query.y + query.height; y++) {
+          for (int x = query.x; x < query.x + query.width; x++) {
+            short value = values[iDay][y * Resolution + x];
+            if (value != FillValue)
+              expectedFromValues.accumulate(value);
+          }
+        }
+      }
+      Node actual = AggregateRollup.aggregateQuery(fs, rollup[0], rollup[1],
+          query, start, end);
+      String message = "Query "+query+" in ["+start / DayLength+","+end / DayLength+")";
+      assertNodeEquals(message, expectedFromValues, expectedFromTrees);
+      assertNodeEquals(message, expectedFromTrees, actual);
+    }
+  }
+
+  @Test
+  public void testOneBlock() throws IOException {
+    checkRandomQueries(AggregateRollup.BlockSize - 3, 0);
+  }
+
+  @Test
+  public void testManyBlocks() throws IOException {
+    // Ranges that span several full blocks read the sparse table and more
+    // trees than the merge fan-in build the values in groups
+    checkRandomQueries(5 * AggregateRollup.BlockSize + 7, 1);
+  }
+
+  @Test
+  public void testFullBlocks() throws IOException {
+    checkRandomQueries(4 * AggregateRollup.BlockSize, 2);
+  }
+}
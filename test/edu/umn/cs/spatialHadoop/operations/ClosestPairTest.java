@@ -0,0 +1,310 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.GridInfo;
+import edu.umn.cs.spatialHadoop.core.Point;
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.operations.ClosestPair.Pair;
+
+/**
+ * Compares {@link StreamingClosestPair} and the reduce tree of
+ * {@link ClosestPair} to a brute-force closest pair. The reduce tree is run
+ * in memory with the same steps as the map and reduce functions of each
+ * level. Points are generated on integer coordinates that fall on the
+ * boundaries of the partitions and of the reduce grid cells.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ClosestPairTest {
+
+  private static double bruteForceDistance(List<Point> points) {
+    double minDistance = Double.POSITIVE_INFINITY;
+    for (int i = 0; i < points.size(); i++)
+      for (int j = i + 1; j < points.size(); j++)
+        minDistance = Math.min(minDistance, points.get(i).distanceTo(points.get(j)));
+    return minDistance;
+  }
+
+  /**
+   * Generates random points in [0, range] that include the four corners so
+   * that the MBR of the points is the whole range.
+   * @param random
+   * @param numPoints
+   * @param range
+   * @param integer - whether to round the coordinates to integers, which
+   *  makes duplicate points and points on cell boundaries more likely
+   * @return
+   */
+  private static List<Point> randomPoints(Random random, int numPoints,
+      int range, boolean integer) {
+    List<Point> points = new ArrayList<Point>();
+    points.add(new Point(0, 0));
+    points.add(new Point(range, 0));
+    points.add(new Point(0, range));
+    points.add(new Point(range, range));
+    while (points.size() < numPoints) {
+      double x = random.nextDouble() * range, y = random.nextDouble() * range;
+      if (integer) {
+        x = Math.round(x);
+        y = Math.round(y);
+      }
+      points.add(new Point(x, y));
+    }
+    // Shuffle the points so that corners do not always come first
+    for (int i = points.size() - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      points.set(i, points.set(j, points.get(i)));
+    }
+    return points;
+  }
+
+  private static double distanceToBoundary(Rectangle region, Point p) {
+    return Math.min(Math.min(p.x - region.x1, region.x2 - p.x),
+        Math.min(p.y - region.y1, region.y2 - p.y));
+  }
+
+  @Test
+  public void testStreamingClosestPair() {
+    Random random = new Random(0);
+    for (int iTest = 0; iTest < 200; iTest++) {
+      int range = 1 + random.nextInt(iTest % 2 == 0 ? 30 : 1000);
+      List<Point> points = randomPoints(random, 2 + random.nextInt(300), range,
+          iTest % 3 != 0);
+      Rectangle region = new Rectangle(0, 0, range, range);
+      StreamingClosestPair closestPair = new StreamingClosestPair(region);
+      for (Point p : points)
+        closestPair.add(p);
+
+      double expected = bruteForceDistance(points);
+      Pair pair = closestPair.getClosestPair();
+      assertEquals(expected, pair.getDistance(), 0);
+      assertTrue(points.contains(pair.p1));
+      assertTrue(points.contains(pair.p2));
+
+      // Candidates are the pair and all points within its distance of the
+      // boundary, each of them once
+      List<Point> candidates = closestPair.getCandidatePoints();
+      List<Point> expectedCandidates = new ArrayList<Point>();
+      for (Point p : points)
+        if (distanceToBoundary(region, p) <= expected)
+          expectedCandidates.add(p);
+      List<Point> actualCandidates = new ArrayList<Point>(candidates);
+      actualCandidates.remove(pair.p1);
+      actualCandidates.remove(pair.p2);
+      List<Point> remainingExpected = new ArrayList<Point>(expectedCandidates);
+      remainingExpected.remove(pair.p1);
+      remainingExpected.remove(pair.p2);
+      Point[] actualArray = actualCandidates.toArray(new Point[0]);
+      Point[] expectedArray = remainingExpected.toArray(new Point[0]);
+      Arrays.sort(actualArray);
+      Arrays.sort(expectedArray);
+      assertEquals(Arrays.asList(expectedArray), Arrays.asList(actualArray));
+    }
+  }
+
+  @Test
+  public void testStreamingWithoutRegion() {
+    Random random = new Random(1);
+    for (int iTest = 0; iTest < 100; iTest++) {
+      List<Point> points = randomPoints(random, 2 + random.nextInt(500), 100,
+          iTest % 2 == 0);
+      StreamingClosestPair closestPair = new StreamingClosestPair(null);
+      for (Point p : points)
+        closestPair.add(p);
+      assertEquals(bruteForceDistance(points),
+          closestPair.getClosestPair().getDistance(), 0);
+      // Only the pair itself is a candidate without a region
+      assertEquals(2, closestPair.getCandidatePoints().size());
+    }
+    StreamingClosestPair onePoint = new StreamingClosestPair(null);
+    onePoint.add(new Point(1, 2));
+    assertNull(onePoint.getClosestPair());
+  }
+
+  /**
+   * Runs the map function of the first level for one partition
+   * @param partition - the MBR of the partition, or null if partitions
+   *  overlap
+   * @param points
+   * @param reduceGrid
+   * @param cells - receives the points of each cell of the first level
+   */
+  private static void map(Rectangle partition, List<Point> points,
+      GridInfo reduceGrid, Map<Integer, List<Point>> cells) {
+    List<Point> output = points;
+    if (partition != null) {
+      StreamingClosestPair closestPair = new StreamingClosestPair(partition);
+      for (Point p : points)
+        closestPair.add(p);
+      output = closestPair.getCandidatePoints();
+    }
+    for (Point p : output)
+      addToCell(cells, ClosestPair.getReduceCell(reduceGrid, 0, p.x, p.y), p);
+  }
+
+  private static void addToCell(Map<Integer, List<Point>> cells, int cell, Point p) {
+    List<Point> cellPoints = cells.get(cell);
+    if (cellPoints == null)
+      cells.put(cell, cellPoints = new ArrayList<Point>());
+    cellPoints.add(p);
+  }
+
+  /**
+   * Runs all levels of the reduce tree in memory
+   * @param cells - the output of the map function of the first level
+   * @param reduceGrid
+   * @return the output of the last level
+   */
+  private static List<Point> reduceTree(Map<Integer, List<Point>> cells,
+      GridInfo reduceGrid) {
+    int numLevels = ClosestPair.getNumReduceLevels(reduceGrid);
+    List<Point> output = null;
+    for (int level = 0; level < numLevels; level++) {
+      int numCells = (((reduceGrid.columns - 1) >> level) + 1) *
+          (((reduceGrid.rows - 1) >> level) + 1);
+      // Reduce each cell
+      output = new ArrayList<Point>();
+      for (Map.Entry<Integer, List<Point>> cell : cells.entrySet()) {
+        assertTrue(cell.getKey() >= 0 && cell.getKey() < numCells);
+        StreamingClosestPair closestPair = new StreamingClosestPair(
+            ClosestPair.getReduceRegion(reduceGrid, level, cell.getKey()));
+        for (Point p : cell.getValue())
+          closestPair.add(p);
+        output.addAll(closestPair.getCandidatePoints());
+      }
+      // Map the output to the cells of the next level
+      cells = new TreeMap<Integer, List<Point>>();
+      for (Point p : output)
+        addToCell(cells, ClosestPair.getReduceCell(reduceGrid, level + 1, p.x, p.y), p);
+    }
+    assertEquals("The last level should have one cell", 1, cells.size());
+    return output;
+  }
+
+  /**
+   * Computes the closest pair with the reduce tree and compares it to the
+   * brute-force closest pair
+   * @param points
+   * @param range - the range of the coordinates of the points
+   * @param reduceGrid
+   * @param partitionsPerSide - number of partitions along each side for
+   *  disjoint partitions, or zero for overlapping partitions
+   * @param random
+   */
+  private static void checkReduceTree(List<Point> points, int range,
+      GridInfo reduceGrid, int partitionsPerSide, Random random) {
+    Map<Integer, List<Point>> cells = new TreeMap<Integer, List<Point>>();
+    if (partitionsPerSide > 0) {
+      // Disjoint partitions of a uniform grid. A point on the boundary of two
+      // partitions is assigned to the one after it.
+      @SuppressWarnings("unchecked")
+      List<Point>[] partitions = new List[partitionsPerSide * partitionsPerSide];
+      for (Point p : points) {
+        int column = Math.min(partitionsPerSide - 1, (int) (p.x * partitionsPerSide / range));
+        int row = Math.min(partitionsPerSide - 1, (int) (p.y * partitionsPerSide / range));
+        int iPartition = row * partitionsPerSide + column;
+        if (partitions[iPartition] == null)
+          partitions[iPartition] = new ArrayList<Point>();
+        partitions[iPartition].add(p);
+      }
+      for (int iPartition = 0; iPartition < partitions.length; iPartition++) {
+        if (partitions[iPartition] == null)
+          continue;
+        int column = iPartition % partitionsPerSide;
+        int row = iPartition / partitionsPerSide;
+        Rectangle partitionMBR = new Rectangle(
+            (double) range * column / partitionsPerSide,
+            (double) range * row / partitionsPerSide,
+            (double) range * (column + 1) / partitionsPerSide,
+            (double) range * (row + 1) / partitionsPerSide);
+        map(partitionMBR, partitions[iPartition], reduceGrid, cells);
+      }
+    } else {
+      // Overlapping partitions with points assigned at random
+      List<List<Point>> partitions = new ArrayList<List<Point>>();
+      for (int i = 0; i < 5; i++)
+        partitions.add(new ArrayList<Point>());
+      for (Point p : points)
+        partitions.get(random.nextInt(partitions.size())).add(p);
+      for (List<Point> partition : partitions)
+        map(null, partition, reduceGrid, cells);
+    }
+
+    List<Point> output = reduceTree(cells, reduceGrid);
+    String message = reduceGrid+" with "+(partitionsPerSide > 0 ?
+        partitionsPerSide+"x"+partitionsPerSide+" disjoint" : "overlapping")+" partitions";
+    assertEquals(message, 2, output.size());
+    assertEquals(message, bruteForceDistance(points),
+        output.get(0).distanceTo(output.get(1)), 0);
+  }
+
+  @Test
+  public void testReduceTree() {
+    Random random = new Random(2);
+    // Grids of one cell, one row, one column, and several sizes that are
+    // not powers of two
+    int[][] gridSizes = {{1, 1}, {4, 1}, {1, 3}, {2, 2}, {3, 2}, {4, 4}, {5, 7}};
+    for (int iTest = 0; iTest < 300; iTest++) {
+      // Coordinates in [0, 20] fall on the boundaries of cells of 4 or 5
+      // columns and of partitions of 2 or 4 per side
+      boolean integer = iTest % 3 != 0;
+      int range = integer ? 20 : 1000;
+      List<Point> points = randomPoints(random, 2 + random.nextInt(
+          integer ? 60 : 400), range, integer);
+      int[] gridSize = gridSizes[iTest % gridSizes.length];
+      GridInfo reduceGrid = new GridInfo(0, 0, range, range);
+      reduceGrid.columns = gridSize[0];
+      reduceGrid.rows = gridSize[1];
+      int[] partitionsPerSide = {0, 1, 2, 3, 4};
+      checkReduceTree(points, range, reduceGrid,
+          partitionsPerSide[random.nextInt(partitionsPerSide.length)], random);
+    }
+  }
+
+  @Test
+  public void testPairAcrossCellBoundary() {
+    // The closest pair is split by the boundaries of the partitions and of
+    // the reduce grid cells while each cell has a closer pair of its own.
+    // Pairs cross a vertical boundary, a horizontal one, a corner of four
+    // cells, and a boundary of the first level only.
+    Point[][] crossingPairs = {
+        {new Point(9.5, 7), new Point(10.2, 7)},
+        {new Point(7, 9.6), new Point(7, 10.3)},
+        {new Point(9.6, 9.6), new Point(10.2, 10.2)},
+        {new Point(13, 4.7), new Point(13.1, 5.3)},
+    };
+    for (Point[] crossingPair : crossingPairs) {
+      List<Point> points = new ArrayList<Point>(Arrays.asList(
+          new Point(0, 0), new Point(20, 20), crossingPair[0], crossingPair[1],
+          new Point(2, 2), new Point(2, 3), new Point(18, 18), new Point(18, 19),
+          new Point(3, 13), new Point(3, 14), new Point(13, 16), new Point(14, 16)));
+      for (int[] gridSize : new int[][] {{1, 1}, {2, 2}, {4, 4}, {2, 4}}) {
+        GridInfo reduceGrid = new GridInfo(0, 0, 20, 20);
+        reduceGrid.columns = gridSize[0];
+        reduceGrid.rows = gridSize[1];
+        for (int partitionsPerSide = 0; partitionsPerSide <= 4; partitionsPerSide++)
+          checkReduceTree(points, 20, reduceGrid, partitionsPerSide, new Random(3));
+      }
+    }
+  }
+}
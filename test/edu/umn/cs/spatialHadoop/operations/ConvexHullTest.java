@@ -0,0 +1,148 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.Point;
+
+/**
+ * Compares the in-memory convex hull, sequential and parallel, to a
+ * brute-force hull that checks every pair of points as a candidate edge.
+ * Points are generated on small grids so that many of them are duplicates
+ * or collinear. The hull should contain its corners only, once each, in
+ * counter-clockwise order.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ConvexHullTest {
+
+  private static double cross(Point o, Point a, Point b) {
+    return (a.x - o.x) * (b.y - o.y) - (a.y - o.y) * (b.x - o.x);
+  }
+
+  /**
+   * Finds the corners of the convex hull by checking all pairs of distinct
+   * points. A pair is an edge of the hull if no point is to its right and
+   * all points on its line are between its two ends.
+   * @param points
+   * @return
+   */
+  private static TreeSet<Point> bruteForceHull(Point[] points) {
+    Point[] distinct = new TreeSet<Point>(Arrays.asList(points)).toArray(new Point[0]);
+    TreeSet<Point> corners = new TreeSet<Point>();
+    if (distinct.length <= 2) {
+      corners.addAll(Arrays.asList(distinct));
+      return corners;
+    }
+    for (Point a : distinct) {
+      for (Point b : distinct) {
+        if (a == b)
+          continue;
+        boolean isEdge = true;
+        for (int i = 0; i < distinct.length && isEdge; i++) {
+          Point p = distinct[i];
+          double c = cross(a, b, p);
+          if (c < 0)
+            isEdge = false;
+          else if (c == 0 && p != a && p != b)
+            // A collinear point is allowed only strictly between a and b
+            isEdge = (p.x - a.x) * (p.x - b.x) + (p.y - a.y) * (p.y - b.y) < 0;
+        }
+        if (isEdge) {
+          corners.add(a);
+          corners.add(b);
+        }
+      }
+    }
+    return corners;
+  }
+
+  private static void assertHull(Point[] points, Point[] hull) {
+    TreeSet<Point> expected = bruteForceHull(points);
+    assertEquals("Duplicate hull points in "+Arrays.toString(hull),
+        new TreeSet<Point>(Arrays.asList(hull)).size(), hull.length);
+    assertEquals(new ArrayList<Point>(expected),
+        new ArrayList<Point>(new TreeSet<Point>(Arrays.asList(hull))));
+    // Every three consecutive corners make a strict left turn
+    if (hull.length >= 3) {
+      for (int i = 0; i < hull.length; i++) {
+        Point p1 = hull[i], p2 = hull[(i + 1) % hull.length],
+            p3 = hull[(i + 2) % hull.length];
+        assertTrue("Not a counter-clockwise turn at "+p2, cross(p1, p2, p3) > 0);
+      }
+    }
+  }
+
+  @Test
+  public void testSequential() {
+    Random random = new Random(0);
+    for (int iTest = 0; iTest < 200; iTest++) {
+      // Small ranges produce many duplicates and collinear points
+      int range = 1 + random.nextInt(iTest % 2 == 0 ? 5 : 100);
+      Point[] points = SkylineTest.randomPoints(random, 1 + random.nextInt(100), range);
+      assertHull(points, ConvexHull.convexHullInMemory(points.clone()));
+    }
+  }
+
+  @Test
+  public void testParallel() throws InterruptedException {
+    Random random = new Random(1);
+    for (int iTest = 0; iTest < 100; iTest++) {
+      int range = 1 + random.nextInt(iTest % 2 == 0 ? 5 : 1000);
+      Point[] points = SkylineTest.randomPoints(random, 10 + random.nextInt(150), range);
+      int parallelism = 2 + random.nextInt(7);
+      assertHull(points, ConvexHull.convexHullInMemory(points.clone(), parallelism));
+    }
+  }
+
+  @Test
+  public void testDegenerate() throws InterruptedException {
+    // All points are the same
+    Point[] points = new Point[50];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(3, 4);
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone()));
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone(), 4));
+    // All points are on one line, including duplicates of its two ends
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(2 + (i % 10), 1 + 2 * (i % 10));
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone()));
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone(), 4));
+    // A vertical line, where all points have the same x
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(5, i % 7);
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone()));
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone(), 4));
+  }
+
+  @Test
+  public void testCollinearEdges() throws InterruptedException {
+    // Points on the boundary of a square with several points along each side
+    ArrayList<Point> square = new ArrayList<Point>();
+    for (int i = 0; i <= 20; i++) {
+      square.add(new Point(i, 0));
+      square.add(new Point(i, 20));
+      square.add(new Point(0, i));
+      square.add(new Point(20, i));
+      square.add(new Point(1 + i % 19, 1 + (i * 7) % 19));
+    }
+    Point[] points = square.toArray(new Point[square.size()]);
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone()));
+    assertHull(points, ConvexHull.convexHullInMemory(points.clone(), 6));
+  }
+}
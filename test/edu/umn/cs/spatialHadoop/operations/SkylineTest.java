@@ -0,0 +1,144 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.OperationsParams.Direction;
+import edu.umn.cs.spatialHadoop.core.Point;
+
+/**
+ * Compares the in-memory skyline, sequential and parallel, to a brute-force
+ * skyline that checks every pair of points. Points are generated on small
+ * grids so that many of them are duplicates or share a coordinate.
+ * @author Ahmed Eldawy
+ *
+ */
+public class SkylineTest {
+
+  /**
+   * Generates random points with integer coordinates in [0, range)
+   * @param random
+   * @param numPoints
+   * @param range
+   * @return
+   */
+  static Point[] randomPoints(Random random, int numPoints, int range) {
+    Point[] points = new Point[numPoints];
+    for (int i = 0; i < numPoints; i++)
+      points[i] = new Point(random.nextInt(range), random.nextInt(range));
+    return points;
+  }
+
+  /**Returns true if p1 dominates p2, i.e., it is at least as good in both
+   * coordinates and better in one of them*/
+  private static boolean dominates(Point p1, Point p2, Direction dir) {
+    double dx = p1.x - p2.x, dy = p1.y - p2.y;
+    if (dir == Direction.MinMax || dir == Direction.MinMin)
+      dx = -dx;
+    if (dir == Direction.MaxMin || dir == Direction.MinMin)
+      dy = -dy;
+    return dx >= 0 && dy >= 0 && (dx > 0 || dy > 0);
+  }
+
+  /**
+   * Computes the skyline by comparing all pairs of points. Each skyline
+   * point is reported once even if it appears several times in the input.
+   * @param points
+   * @param dir
+   * @return
+   */
+  private static TreeSet<Point> bruteForceSkyline(Point[] points, Direction dir) {
+    TreeSet<Point> skyline = new TreeSet<Point>();
+    for (Point p : points) {
+      boolean dominated = false;
+      for (int i = 0; i < points.length && !dominated; i++)
+        dominated = dominates(points[i], p, dir);
+      if (!dominated)
+        skyline.add(p);
+    }
+    return skyline;
+  }
+
+  private static void assertSkyline(Point[] points, Direction dir,
+      Point[] skyline) {
+    TreeSet<Point> expected = bruteForceSkyline(points, dir);
+    List<Point> actual = new ArrayList<Point>(Arrays.asList(skyline));
+    assertEquals("Duplicate skyline points in "+actual,
+        new TreeSet<Point>(actual).size(), actual.size());
+    assertEquals(new ArrayList<Point>(expected),
+        new ArrayList<Point>(new TreeSet<Point>(actual)));
+  }
+
+  @Test
+  public void testSequential() {
+    Random random = new Random(0);
+    for (int iTest = 0; iTest < 200; iTest++) {
+      // Small ranges produce many duplicates and points on the same line
+      int range = 1 + random.nextInt(iTest % 2 == 0 ? 5 : 100);
+      Point[] points = randomPoints(random, 1 + random.nextInt(300), range);
+      for (Direction dir : Direction.values()) {
+        Point[] input = points.clone();
+        assertSkyline(points, dir, Skyline.skylineInMemory(input, dir));
+      }
+    }
+  }
+
+  @Test
+  public void testParallel() throws InterruptedException {
+    Random random = new Random(1);
+    for (int iTest = 0; iTest < 50; iTest++) {
+      int range = 1 + random.nextInt(iTest % 2 == 0 ? 5 : 1000);
+      Point[] points = randomPoints(random, 10 + random.nextInt(2000), range);
+      int parallelism = 2 + random.nextInt(7);
+      for (Direction dir : Direction.values()) {
+        Point[] input = points.clone();
+        assertSkyline(points, dir, Skyline.skylineInMemory(input, dir, parallelism));
+      }
+    }
+  }
+
+  @Test
+  public void testAllDuplicates() throws InterruptedException {
+    Point[] points = new Point[100];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(3, 4);
+    for (Direction dir : Direction.values()) {
+      assertSkyline(points, dir, Skyline.skylineInMemory(points.clone(), dir));
+      assertSkyline(points, dir, Skyline.skylineInMemory(points.clone(), dir, 4));
+    }
+  }
+
+  @Test
+  public void testAntiCorrelated() throws InterruptedException {
+    // All points are on the skyline of one direction and none is dominated
+    Point[] points = new Point[500];
+    for (int i = 0; i < points.length; i++)
+      points[i] = new Point(i, points.length - i);
+    Random random = new Random(2);
+    for (int i = points.length - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      Point temp = points[i];
+      points[i] = points[j];
+      points[j] = temp;
+    }
+    for (Direction dir : Direction.values()) {
+      assertSkyline(points, dir, Skyline.skylineInMemory(points.clone(), dir));
+      assertSkyline(points, dir, Skyline.skylineInMemory(points.clone(), dir, 8));
+    }
+  }
+}
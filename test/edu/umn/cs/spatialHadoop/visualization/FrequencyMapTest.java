@@ -0,0 +1,180 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+import edu.umn.cs.spatialHadoop.visualization.FrequencyMap.SmoothType;
+
+/**
+ * Checks the serialization and merging of {@link FrequencyMap} against maps
+ * that apply the kernel of each point directly, including maps with
+ * pre-aggregated points that were never applied before writing or merging.
+ * @author Ahmed Eldawy
+ *
+ */
+public class FrequencyMapTest {
+
+  private static final int Radius = 5;
+
+  /**
+   * Creates a frequency map of one pixel per unit and adds the given points
+   * @param mbr
+   * @param points - the pixel coordinates of the points as (x, y) pairs
+   * @param smoothType
+   * @param preAggregate
+   * @return
+   */
+  private static FrequencyMap createMap(Rectangle mbr, int[] points,
+      SmoothType smoothType, boolean preAggregate) {
+    FrequencyMap map = new FrequencyMap(mbr, (int) mbr.getWidth(),
+        (int) mbr.getHeight(), Radius, smoothType);
+    map.setPreAggregate(preAggregate);
+    for (int i = 0; i < points.length; i += 2)
+      map.addPoint(points[i], points[i + 1]);
+    return map;
+  }
+
+  /**
+   * Generates random points in and around a map of the given size. Some
+   * points fall outside the map but within the radius, and many points share
+   * the same pixels so that pre-aggregation has something to count.
+   * @return the coordinates of the points as (x, y) pairs
+   */
+  private static int[] randomPoints(Random random, int width, int height,
+      int numPoints) {
+    int[] points = new int[numPoints * 2];
+    for (int i = 0; i < points.length; i += 2) {
+      if (i > 0 && random.nextInt(3) == 0) {
+        // Repeat a previous pixel
+        int j = random.nextInt(i / 2) * 2;
+        points[i] = points[j];
+        points[i + 1] = points[j + 1];
+      } else {
+        points[i] = random.nextInt(width + 4 * Radius) - 2 * Radius;
+        points[i + 1] = random.nextInt(height + 4 * Radius) - 2 * Radius;
+      }
+    }
+    return points;
+  }
+
+  private static FrequencyMap roundTrip(FrequencyMap map, FrequencyMap into)
+      throws IOException {
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    map.write(out);
+    out.close();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+    into.readFields(in);
+    assertEquals("Extra bytes after the frequency map", 0, in.available());
+    return into;
+  }
+
+  private static void assertFrequencies(float[] expected, float[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals("Frequency at "+i, expected[i], actual[i],
+          1E-4f * Math.max(1, Math.abs(expected[i])));
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    Random random = new Random(0);
+    Rectangle mbr = new Rectangle(0, 0, 100, 70);
+    for (SmoothType smoothType : SmoothType.values()) {
+      int[] points = randomPoints(random, 100, 70, 500);
+      FrequencyMap expected = createMap(mbr, points, smoothType, false);
+      for (boolean preAggregate : new boolean[] {false, true}) {
+        // The pre-aggregated points are still pending when the map is written
+        FrequencyMap map = createMap(mbr, points, smoothType, preAggregate);
+        FrequencyMap copy = roundTrip(map, new FrequencyMap());
+        assertEquals(mbr, copy.getInputMBR());
+        assertEquals(100, copy.getWidth());
+        assertEquals(70, copy.getHeight());
+        assertFrequencies(expected.frequencies, copy.frequencies);
+      }
+    }
+  }
+
+  @Test
+  public void testRoundTripEmptyAndSparse() throws IOException {
+    Rectangle mbr = new Rectangle(0, 0, 90, 65);
+    FrequencyMap empty = createMap(mbr, new int[0], SmoothType.Flat, true);
+    assertFrequencies(new float[90 * 65], roundTrip(empty, new FrequencyMap()).frequencies);
+    // A single point in the last partial block
+    int[] points = {88, 63};
+    FrequencyMap expected = createMap(mbr, points, SmoothType.Flat, false);
+    FrequencyMap sparse = createMap(mbr, points, SmoothType.Flat, true);
+    assertFrequencies(expected.frequencies, roundTrip(sparse, new FrequencyMap()).frequencies);
+  }
+
+  @Test
+  public void testReadIntoUsedMap() throws IOException {
+    Random random = new Random(1);
+    Rectangle mbr = new Rectangle(0, 0, 64, 64);
+    int[] points = randomPoints(random, 64, 64, 100);
+    FrequencyMap expected = createMap(mbr, points, SmoothType.Gaussian, false);
+    FrequencyMap map = createMap(mbr, points, SmoothType.Gaussian, true);
+    // A map of the same size with its own pending points that must be dropped
+    FrequencyMap used = createMap(mbr, randomPoints(random, 64, 64, 100),
+        SmoothType.Gaussian, true);
+    used.write(new DataOutputStream(new ByteArrayOutputStream()));
+    used.addPoint(10, 10);
+    assertFrequencies(expected.frequencies, roundTrip(map, used).frequencies);
+  }
+
+  @Test
+  public void testMergeWith() throws IOException {
+    Random random = new Random(2);
+    Rectangle bigMBR = new Rectangle(0, 0, 100, 80);
+    // Tiles inside the big map, crossing its corner, and outside it
+    Rectangle[] tileMBRs = {
+        new Rectangle(20, 10, 60, 40),
+        new Rectangle(80, 60, 120, 100),
+        new Rectangle(-30, -20, 10, 10),
+        new Rectangle(200, 200, 240, 230),
+    };
+    for (SmoothType smoothType : SmoothType.values()) {
+      int[] bigPoints = randomPoints(random, 100, 80, 300);
+      FrequencyMap expected = createMap(bigMBR, bigPoints, smoothType, false);
+      FrequencyMap actual = createMap(bigMBR, bigPoints, smoothType, true);
+      for (Rectangle tileMBR : tileMBRs) {
+        int tileWidth = (int) tileMBR.getWidth();
+        int tileHeight = (int) tileMBR.getHeight();
+        int[] tilePoints = randomPoints(random, tileWidth, tileHeight, 200);
+        FrequencyMap tile = createMap(tileMBR, tilePoints, smoothType, false);
+        // Add the frequencies of the tile that overlap the big map
+        for (int y = 0; y < tileHeight; y++) {
+          for (int x = 0; x < tileWidth; x++) {
+            int bigX = x + (int) tileMBR.x1, bigY = y + (int) tileMBR.y1;
+            if (bigX >= 0 && bigX < 100 && bigY >= 0 && bigY < 80)
+              expected.frequencies[bigY * 100 + bigX] += tile.frequencies[y * tileWidth + x];
+          }
+        }
+        // Merge a tile whose pre-aggregated points were never applied
+        actual.mergeWith(createMap(tileMBR, tilePoints, smoothType, true));
+      }
+      actual.applyPendingPoints();
+      assertFrequencies(expected.frequencies, actual.frequencies);
+      // The merged map should survive serialization as well
+      assertFrequencies(expected.frequencies,
+          roundTrip(actual, new FrequencyMap()).frequencies);
+    }
+  }
+}
@@ -0,0 +1,145 @@
+/***********************************************************************
+* Copyright (c) 2015 by Regents of the University of Minnesota.
+* All rights reserved. This program and the accompanying materials
+* are made available under the terms of the Apache License, Version 2.0 which
+* accompanies this distribution and is available at
+* http://www.opensource.org/licenses/apache2.0.php.
+*
+*************************************************************************/
+package edu.umn.cs.spatialHadoop.visualization;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.umn.cs.spatialHadoop.core.Rectangle;
+
+/**
+ * Checks that the run-length encoding of {@link ImageCanvas} restores the
+ * exact pixels for images with different kinds of runs.
+ * @author Ahmed Eldawy
+ *
+ */
+public class ImageCanvasTest {
+
+  private static final int Width = 37, Height = 23;
+
+  /**
+   * Writes the given pixels to a canvas, serializes it, and checks that the
+   * deserialized canvas has the same pixels and MBR.
+   * @param pixels - ARGB values of all pixels in row-major order
+   * @param width
+   * @param height
+   * @throws IOException
+   */
+  private static void assertRoundTrip(int[] pixels, int width, int height)
+      throws IOException {
+    Rectangle mbr = new Rectangle(-10, 5, 30, 25);
+    ImageCanvas canvas = new ImageCanvas(mbr, width, height);
+    canvas.getImage().setRGB(0, 0, width, height, pixels, 0, width);
+
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    canvas.write(out);
+    out.close();
+
+    ImageCanvas copy = new ImageCanvas();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bout.toByteArray()));
+    copy.readFields(in);
+    assertEquals("Extra bytes after the canvas", 0, in.available());
+    assertEquals(mbr, copy.getInputMBR());
+    assertEquals(width, copy.getImage().getWidth());
+    assertEquals(height, copy.getImage().getHeight());
+    int[] actual = copy.getImage().getRGB(0, 0, width, height, null, 0, width);
+    assertArrayEquals(pixels, actual);
+  }
+
+  @Test
+  public void testAllTransparent() throws IOException {
+    assertRoundTrip(new int[Width * Height], Width, Height);
+  }
+
+  @Test
+  public void testTransparentRows() throws IOException {
+    int[] pixels = new int[Width * Height];
+    for (int y = 0; y < Height; y++) {
+      // Leave every third row transparent including the first and last ones
+      if (y % 3 == 0 || y == Height - 1)
+        continue;
+      for (int x = 0; x < Width; x++)
+        pixels[y * Width + x] = 0xff000000 | (x * 7 + y * 13);
+    }
+    assertRoundTrip(pixels, Width, Height);
+  }
+
+  @Test
+  public void testAlternatingPixels() throws IOException {
+    int[] pixels = new int[Width * Height];
+    for (int i = 0; i < pixels.length; i++)
+      pixels[i] = i % 2 == 0 ? 0xffff0000 : 0x800000ff;
+    assertRoundTrip(pixels, Width, Height);
+    // Alternate with transparent pixels, which are always written as runs
+    for (int i = 0; i < pixels.length; i++)
+      pixels[i] = i % 2 == 0 ? 0xffff0000 : 0;
+    assertRoundTrip(pixels, Width, Height);
+  }
+
+  @Test
+  public void testLongRuns() throws IOException {
+    int width = 1000, height = 300;
+    int[] pixels = new int[width * height];
+    // Runs that span several rows separated by single literal pixels
+    int color = 0xff00ff00;
+    for (int i = 0; i < pixels.length; i++) {
+      if (i % 70001 == 0)
+        color += 0x10;
+      pixels[i] = i % 70001 == 35000 ? 0xffffffff : color;
+    }
+    // End with a literal pixel right after a run
+    pixels[pixels.length - 1] = 0xff123456;
+    assertRoundTrip(pixels, width, height);
+  }
+
+  @Test
+  public void testRandomRunsAndLiterals() throws IOException {
+    Random random = new Random(0);
+    int[] colors = {0, 0xffff0000, 0xff00ff00, 0x400000ff};
+    for (int iTest = 0; iTest < 20; iTest++) {
+      int width = 1 + random.nextInt(50);
+      int height = 1 + random.nextInt(50);
+      int[] pixels = new int[width * height];
+      int i = 0;
+      while (i < pixels.length) {
+        int length = Math.min(pixels.length - i, 1 + random.nextInt(random.nextBoolean() ? 3 : 100));
+        int color = random.nextInt(5) == 0 ? random.nextInt()
+            : colors[random.nextInt(colors.length)];
+        for (int j = i; j < i + length; j++)
+          pixels[j] = color;
+        i += length;
+      }
+      assertRoundTrip(pixels, width, height);
+    }
+  }
+
+  @Test
+  public void testReuseCanvas() throws IOException {
+    // Reading into a canvas that was used before should not keep old pixels
+    ImageCanvas canvas = new ImageCanvas(new Rectangle(0, 0, 10, 10), 4, 4);
+    canvas.getImage().setRGB(1, 1, 0xffff0000);
+    ByteArrayOutputStream bout = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bout);
+    new ImageCanvas(new Rectangle(0, 0, 10, 10), 4, 4).write(out);
+    out.close();
+    canvas.readFields(new DataInputStream(new ByteArrayInputStream(bout.toByteArray())));
+    int[] actual = canvas.getImage().getRGB(0, 0, 4, 4, null, 0, 4);
+    assertArrayEquals(new int[16], actual);
+  }
+}